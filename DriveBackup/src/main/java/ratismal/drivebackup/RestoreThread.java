@@ -0,0 +1,165 @@
+package ratismal.drivebackup;
+
+import org.bukkit.command.CommandSender;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.archive.ArchiveExtractor;
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.config.ConfigParser;
+import ratismal.drivebackup.config.configSections.BackupStorage;
+import ratismal.drivebackup.util.FileUtil;
+import ratismal.drivebackup.util.MessageUtil;
+
+import java.io.File;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static ratismal.drivebackup.config.Localization.intl;
+
+/**
+ * Restores a local backup, or only the files in it matching a glob, see {@link ArchiveExtractor}.
+ * <p>
+ * The backup is extracted to a folder of its own in the {@link #FOLDER_NAME} folder of the local backup folder,
+ * rather than over the files it is a backup of, which the server may be using.
+ */
+public class RestoreThread implements Runnable {
+    /**
+     * The name of the folder in the local backup folder backups are restored to
+     */
+    public static final String FOLDER_NAME = "restored";
+
+    private static final AtomicBoolean running = new AtomicBoolean();
+
+    private final UploadLogger logger;
+    private final String[] args;
+
+    /**
+     * Creates an instance of the {@code RestoreThread} object
+     * @param initiator the player who initiated the restore
+     * @param args any arguments that followed the command that initiated the restore
+     */
+    public RestoreThread(CommandSender initiator, String[] args) {
+        logger = new UploadLogger() {
+            @Override
+            public void log(String input, String... placeholders) {
+                MessageUtil.Builder()
+                    .mmText(input, placeholders)
+                    .to(initiator)
+                    .send();
+            }
+
+            @Override
+            public void initiatorError(String input, String... placeholders) {
+                MessageUtil.Builder()
+                    .mmText(input, placeholders)
+                    .to(initiator)
+                    .toConsole(false)
+                    .send();
+            }
+        };
+        this.args = args;
+    }
+
+    /**
+     * Starts restoring the backup
+     */
+    @Override
+    public void run() {
+        /*
+         * Arguments:
+         * 1) The location the backup is of
+         * 2) The file name of the backup
+         * 3) Optionally, a glob the paths of the files to restore must match
+         */
+        if (args.length < 3) {
+            logger.initiatorError(intl("restore-not-specified"));
+            return;
+        }
+        String location = FileUtil.isBaseFolder(args[1]) ? "root" : args[1];
+        String backupName = args[2];
+        String glob = args.length > 3 ? args[3] : null;
+        List<File> backup = getLocalBackup(location, backupName);
+        if (backup == null) {
+            logger.initiatorError(
+                intl("restore-backup-not-found"),
+                "backup", backupName,
+                "location", location);
+            return;
+        }
+        if (!running.compareAndSet(false, true)) {
+            logger.initiatorError(intl("restore-already-running"));
+            return;
+        }
+        try {
+            restore(backup, glob);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private void restore(@NotNull List<File> backup, @Nullable String glob) {
+        BackupStorage backupStorage = ConfigParser.getConfig().backupStorage;
+        String backupName = ArchiveFormat.getBackupName(backup.get(0).getName());
+        ArchiveFormat format = ArchiveFormat.fromFileName(backupName);
+        String folderName = format != null ? backupName.substring(0, backupName.length() - format.extension.length()) : backupName;
+        File destination = new File(new File(backupStorage.localDirectory, FOLDER_NAME), folderName);
+        logger.log(
+            intl("restore-start"),
+            "backup", backupName,
+            "glob", glob != null ? glob : "*");
+        long startTime = System.nanoTime();
+        int fileCount;
+        try {
+            ArchiveExtractor extractor = new ArchiveExtractor(backup, glob, Runtime.getRuntime().availableProcessors(), backupStorage.threadPriority);
+            fileCount = extractor.extract(destination);
+        } catch (Exception e) {
+            logger.log(intl("restore-failed"), "backup", backupName);
+            MessageUtil.sendConsoleException(e);
+            return;
+        }
+        DecimalFormat df = new DecimalFormat("#.##");
+        df.setDecimalFormatSymbols(DecimalFormatSymbols.getInstance(Locale.ENGLISH));
+        logger.log(
+            intl("restore-complete"),
+            "file-count", String.valueOf(fileCount),
+            "destination", destination.getPath(),
+            "length", df.format((System.nanoTime() - startTime) / 1e9));
+    }
+
+    /**
+     * Gets the files of a local backup.
+     * @param location the location the backup is of
+     * @param backupName the file name of the backup, or of any of its files
+     * @return the files of the backup, or {@code null} if there is no such backup
+     */
+    @Nullable
+    private static List<File> getLocalBackup(String location, String backupName) {
+        for (List<File> backup : FileUtil.getLocalBackupFiles(location)) {
+            for (File file : backup) {
+                if (file.getName().equals(backupName)) {
+                    return backup;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the file names of the local backups of a location.
+     * @param location the location the backups are of
+     * @return the file names, in order
+     */
+    @NotNull
+    public static List<String> getLocalBackupNames(String location) {
+        List<String> backupNames = new ArrayList<>();
+        for (List<File> backup : FileUtil.getLocalBackupFiles(FileUtil.isBaseFolder(location) ? "root" : location)) {
+            backupNames.add(ArchiveFormat.getBackupName(backup.get(0).getName()));
+        }
+        return backupNames;
+    }
+}
@@ -14,6 +14,7 @@ import ratismal.drivebackup.uploaders.onedrive.OneDriveUploader;
 import ratismal.drivebackup.uploaders.s3.S3Uploader;
 import ratismal.drivebackup.uploaders.webdav.NextcloudUploader;
 import ratismal.drivebackup.uploaders.webdav.WebDAVUploader;
+import ratismal.drivebackup.util.BufferPool;
 import ratismal.drivebackup.util.MessageUtil;
 
 import java.io.File;
@@ -23,6 +24,11 @@ import java.util.Random;
 import static ratismal.drivebackup.config.Localization.intl;
 
 public class TestThread implements Runnable {
+    /**
+     * The size of the chunks the test file is written in
+     */
+    private static final int TEST_FILE_CHUNK_SIZE = 1024 * 1024;
+
     private UploadLogger logger;
     private String[] args;
 
@@ -175,11 +181,20 @@ public class TestThread implements Runnable {
 
         try (FileOutputStream fos = new FileOutputStream(localTestFilePath)) {
             Random byteGenerator = new Random();
-            
-            byte[] randomBytes = new byte[testFileSize];
-            byteGenerator.nextBytes(randomBytes);
 
-            fos.write(randomBytes);
+            // Written a chunk at a time, so large test files don't have to fit in memory
+            byte[] randomBytes = BufferPool.acquire(TEST_FILE_CHUNK_SIZE);
+            try {
+                long remaining = testFileSize;
+                while (remaining > 0) {
+                    int length = (int) Math.min(remaining, TEST_FILE_CHUNK_SIZE);
+                    byteGenerator.nextBytes(randomBytes);
+                    fos.write(randomBytes, 0, length);
+                    remaining -= length;
+                }
+            } finally {
+                BufferPool.release(randomBytes);
+            }
             fos.flush();
         } catch (Exception exception) {
             logger.log(intl("test-file-creation-failed"));
@@ -6,6 +6,8 @@ import org.bukkit.command.CommandSender;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.archive.ArchiveStats;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.config.ConfigParser.Config;
 import ratismal.drivebackup.config.configSections.BackupList.BackupListEntry;
@@ -21,7 +23,10 @@ import ratismal.drivebackup.handler.listeners.PlayerListener;
 import ratismal.drivebackup.plugin.Scheduler;
 import ratismal.drivebackup.uploaders.Authenticator;
 import ratismal.drivebackup.uploaders.Authenticator.AuthenticationProvider;
+import ratismal.drivebackup.uploaders.UploadJournal;
+import ratismal.drivebackup.uploaders.UploadQueue;
 import ratismal.drivebackup.uploaders.Uploader;
+import ratismal.drivebackup.uploaders.VolumeUpload;
 import ratismal.drivebackup.uploaders.dropbox.DropboxUploader;
 import ratismal.drivebackup.uploaders.ftp.FTPUploader;
 import ratismal.drivebackup.uploaders.googledrive.GoogleDriveUploader;
@@ -30,9 +35,13 @@ import ratismal.drivebackup.uploaders.onedrive.OneDriveUploader;
 import ratismal.drivebackup.uploaders.s3.S3Uploader;
 import ratismal.drivebackup.uploaders.webdav.NextcloudUploader;
 import ratismal.drivebackup.uploaders.webdav.WebDAVUploader;
+import ratismal.drivebackup.util.BackupDeadline;
+import ratismal.drivebackup.util.BackupHistory;
 import ratismal.drivebackup.util.BlacklistEntry;
+import ratismal.drivebackup.util.BufferPool;
 import ratismal.drivebackup.util.FileUtil;
 import ratismal.drivebackup.util.LocalDateTimeFormatter;
+import ratismal.drivebackup.util.LocationSnapshot;
 import ratismal.drivebackup.util.Logger;
 import ratismal.drivebackup.util.MessageUtil;
 import ratismal.drivebackup.util.ServerUtil;
@@ -45,6 +54,8 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.ZonedDateTime;
@@ -56,9 +67,17 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static ratismal.drivebackup.config.Localization.intl;
 
@@ -103,17 +122,57 @@ public class UploadThread implements Runnable {
     /**
      * List of locations to be pruned that were successfully backed up.
      */
-    private final Map<String, LocalDateTimeFormatter> locationsToBePruned = new HashMap<>(10);
+    private final Map<String, LocalDateTimeFormatter> locationsToBePruned = new ConcurrentHashMap<>(10);
 
     /**
      * The list of items to be backed up by the backup thread.
      */
     private List<BackupListEntry> backupList;
 
+    /**
+     * When saving was disabled, or {@code 0} if it is enabled
+     */
+    private long autoSaveDisabledAt;
+
+    /**
+     * How long saving was disabled for during this backup, in milliseconds
+     */
+    private long autoSaveDisabledTime;
+
+    /**
+     * The number of locations being backed up from the folders themselves, with saving disabled
+     */
+    private int locationsWithSavingDisabled;
+
+    /**
+     * What was learned from previous backups, see {@link BackupHistory}
+     */
+    private BackupHistory history;
+
+    /**
+     * When this backup has to finish by, or {@code null} if it has no time budget
+     */
+    private BackupDeadline deadline;
+
+    /**
+     * Uploads the backups as soon as each is created, or {@code null} if there are no uploaders to upload them to once created
+     */
+    private UploadQueue uploadQueue;
+
+    /**
+     * The uploaders the {@code uploadQueue} uploads to, in the order they upload in
+     */
+    private List<Uploader> queuedUploaders;
+
+    /**
+     * The pool the {@code uploadQueue} uploads to several uploaders at once on, or {@code null} to upload to one at a time
+     */
+    private ExecutorService uploadExecutor;
+
     /**
      * The {@code BackupStatus} of the backup thread
      */
-    private static BackupStatus backupStatus = BackupStatus.NOT_RUNNING;
+    private static volatile BackupStatus backupStatus = BackupStatus.NOT_RUNNING;
     
     private static LocalDateTime nextIntervalBackupTime;
     private static boolean lastBackupSuccessful = true;
@@ -121,7 +180,19 @@ public class UploadThread implements Runnable {
     /**
      * The backup currently being backed up by the 
      */
-    private static int backupBackingUp = 0;
+    private static volatile int backupBackingUp = 0;
+
+    /**
+     * The indexes of the backup sets being backed up, with how many of their folders are being backed up,
+     * as several can be at once, see {@link #makeBackupFiles(Config, Map)}
+     */
+    private static final Map<Integer, Integer> backupSetsInProgress = new ConcurrentSkipListMap<>();
+
+    /**
+     * How much of the backups being uploaded was uploaded, as the number of bytes uploaded and the size,
+     * by the name of the uploader uploading them, see {@link #setUploadProgress(String, long, long)}
+     */
+    private static final Map<String, long[]> uploadProgress = new ConcurrentSkipListMap<>();
     
     public abstract static class UploadLogger implements Logger {
         public void broadcast(String input, String... placeholders) {
@@ -205,6 +276,7 @@ public class UploadThread implements Runnable {
             throw e;
         } finally {
             backupStatus = BackupStatus.NOT_RUNNING;
+            uploadProgress.clear();
             if (lastBackupSuccessful) {
                 DriveBackupApi.backupDone();
             } else {
@@ -240,6 +312,7 @@ public class UploadThread implements Runnable {
             logger.log(intl("backup-empty-list"));
             return;
         }
+        deadline = config.backupStorage.timeBudget > 0 ? new BackupDeadline(config.backupStorage.timeBudget) : null;
         logger.broadcast(intl("backup-start"));
         for (ExternalBackupSource externalBackup : externalBackupList) {
             if (externalBackup instanceof ExternalFTPSource) {
@@ -248,52 +321,121 @@ public class UploadThread implements Runnable {
                 makeExternalDatabaseBackup((ExternalMySQLSource) externalBackup);
             }
         }
+        history = BackupHistory.load(new File(config.backupStorage.localDirectory, BackupHistory.FILE_NAME));
+        List<Uploader> fileUploaders = null;
+        VolumeUpload volumeUpload = null;
+        if (config.backupStorage.volumeSize > 0) {
+            createUploaders(config);
+            ensureMethodsAuthenticated();
+            // The volumes are uploaded as they are finished, rather than once all the backups were created
+            volumeUpload = new VolumeUpload(logger, new ArrayList<>(uploaders), history);
+            fileUtil.setVolumeUpload(volumeUpload);
+            fileUploaders = new ArrayList<>();
+        } else if (config.backupStorage.streamingUploads) {
+            createUploaders(config);
+            ensureMethodsAuthenticated();
+            List<Uploader> streamingUploaders = new ArrayList<>();
+            fileUploaders = new ArrayList<>();
+            for (Uploader uploader : uploaders) {
+                if (uploader.supportsStreaming()) {
+                    streamingUploaders.add(uploader);
+                } else {
+                    fileUploaders.add(uploader);
+                }
+            }
+            // The backups are only saved locally if they are retained, or needed to upload them to the other uploaders
+            boolean retainedLocally = config.backupStorage.localKeepCount != 0 && !config.backupStorage.localRepository;
+            fileUtil.setStreamingUploaders(streamingUploaders, retainedLocally || !fileUploaders.isEmpty());
+        }
+        if (fileUploaders == null) {
+            // The backups are uploaded as soon as each is created, while the next ones are created
+            createUploaders(config);
+            ensureMethodsAuthenticated();
+            fileUploaders = uploaders;
+        }
+        resumeUploads();
+        if (config.backupStorage.zipCompressionAuto || deadline != null) {
+            List<String> uploaderIds = new ArrayList<>();
+            for (Uploader uploader : uploaders) {
+                uploaderIds.add(uploader.getId());
+            }
+            boolean uploadOverlapped = config.backupStorage.volumeSize > 0 || config.backupStorage.streamingUploads;
+            boolean uploadsConcurrent = uploadOverlapped || config.backupStorage.concurrentUploads >= uploaderIds.size();
+            fileUtil.setCompressionTuning(history, history.estimateUploadRate(uploaderIds, uploadsConcurrent), uploadOverlapped);
+            fileUtil.setDeadline(deadline);
+            if (deadline != null) {
+                List<String> locations = new ArrayList<>();
+                for (BackupListEntry set : backupList) {
+                    if (set.create) {
+                        for (Path folder : set.location.getPaths()) {
+                            locations.add(folder.toString());
+                        }
+                    }
+                }
+                fileUtil.setPendingLocations(locations);
+            }
+        }
         logger.log(intl("backup-local-start"));
         backupStatus = BackupStatus.COMPRESSING;
         backupBackingUp = 0;
-        ServerUtil.setAutoSave(false);
-        for (BackupListEntry set : backupList) {
-            backupBackingUp++;
-            for (Path folder : set.location.getPaths()) {
-                if (set.create) {
-                    makeBackupFile(folder.toString(), set.formatter, Arrays.asList(set.blacklist));
+        Map<Path, LocationSnapshot> snapshots = new HashMap<>();
+        if (config.backupStorage.snapshotBackups) {
+            // Saving is only disabled while the snapshots are made, the backups are then created from the snapshots
+            setAutoSave(false);
+            logger.log(intl("backup-snapshot-start"));
+            for (BackupListEntry set : backupList) {
+                for (Path folder : set.location.getPaths()) {
+                    if (set.create) {
+                        LocationSnapshot snapshot = makeSnapshot(folder.toString(), Arrays.asList(set.blacklist), set.incremental, set.fullBackupInterval);
+                        if (snapshot != null) {
+                            snapshots.put(folder, snapshot);
+                        }
+                    }
                 }
             }
+            setAutoSave(true);
+            logger.log(intl("backup-snapshot-complete"));
         }
-        ServerUtil.setAutoSave(true);
-        logger.log(intl("backup-local-complete"));
-        logger.log(intl("backup-upload-start"));
-        backupStatus = BackupStatus.UPLOADING;
-        backupBackingUp = 0;
-        uploaders = new ArrayList<>(5);
-        if (config.backupMethods.googleDrive.enabled) {
-            uploaders.add(new GoogleDriveUploader(logger));
-        }
-        if (config.backupMethods.oneDrive.enabled) {
-            uploaders.add(new OneDriveUploader(logger));
-        }
-        if (config.backupMethods.dropbox.enabled) {
-            uploaders.add(new DropboxUploader(logger));
+        if (!fileUploaders.isEmpty()) {
+            startUploadQueue(config, fileUploaders);
         }
-        if (config.backupMethods.webdav.enabled) {
-            uploaders.add(new WebDAVUploader(logger, config.backupMethods.webdav));
+        try {
+            makeBackupFiles(config, snapshots);
+        } finally {
+            for (LocationSnapshot snapshot : snapshots.values()) {
+                snapshot.close();
+            }
         }
-        if (config.backupMethods.nextcloud.enabled) {
-            uploaders.add(new NextcloudUploader(logger, config.backupMethods.nextcloud));
+        setAutoSave(true);
+        if (config.backupStorage.disableSavingDuringBackups) {
+            DecimalFormat df = new DecimalFormat("#.##");
+            df.setDecimalFormatSymbols(DecimalFormatSymbols.getInstance(Locale.ENGLISH));
+            logger.info(intl("backup-saving-disabled-time"), "time", df.format(autoSaveDisabledTime / 1000.0));
         }
-        if (config.backupMethods.s3.enabled) {
-            uploaders.add(new S3Uploader(logger, config.backupMethods.s3));
+        logger.log(intl("backup-local-complete"));
+        ArchiveStats archiveStats = fileUtil.getArchiveStats();
+        if (!archiveStats.isEmpty()) {
+            logger.info(
+                intl("backup-local-compression-summary"),
+                "stored-size", FileUtil.formatMegabytes(archiveStats.getStoredBytes()),
+                "deflated-size", FileUtil.formatMegabytes(archiveStats.getDeflatedBytes()),
+                "compressed-size", FileUtil.formatMegabytes(archiveStats.getDeflatedCompressedBytes()));
         }
-        if (config.backupMethods.ftp.enabled) {
-            uploaders.add(new FTPUploader(logger, config.backupMethods.ftp));
+        logger.log(intl("backup-upload-start"));
+        backupStatus = BackupStatus.UPLOADING;
+        backupBackingUp = 0;
+        if (volumeUpload != null) {
+            volumeUpload.close();
+            fileUtil.setVolumeUpload(null);
         }
+        finishUploadQueue();
         if (uploaders.isEmpty() && config.backupStorage.localKeepCount == 0) {
             logger.log(intl("backup-no-methods"));
+            saveHistory(config);
             return;
         }
-        ensureMethodsAuthenticated();
-        uploadBackupFiles(uploaders);
         FileUtil.deleteFolder(new File("external-backups"));
+        saveHistory(config);
         logger.log(intl("backup-upload-complete"));
         logger.log(intl("upload-error-check"));
         for (Uploader uploader : uploaders) {
@@ -322,10 +464,92 @@ public class UploadThread implements Runnable {
         lastBackupSuccessful = !errorOccurred;
         backupStatus = BackupStatus.PRUNING;
         pruneLocalBackups();
+        BufferPool.Stats heapStats = BufferPool.getHeapStats();
+        BufferPool.Stats directStats = BufferPool.getDirectStats();
+        long bufferRequests = heapStats.requests + directStats.requests;
+        logger.info(
+            intl("backup-buffer-pool-stats"),
+            "hit-rate", String.valueOf(bufferRequests == 0 ? 0 : Math.round((heapStats.hits + directStats.hits) * 100.0 / bufferRequests)),
+            "requests", String.valueOf(bufferRequests),
+            "peak-heap-size", FileUtil.formatMegabytes(heapStats.peakBytesInUse),
+            "peak-direct-size", FileUtil.formatMegabytes(directStats.peakBytesInUse));
         totalTimer.end();
         long totalBackupTime = totalTimer.getTime();
         long totalSeconds = Duration.of(totalBackupTime, ChronoUnit.MILLIS).getSeconds();
         logger.log(intl("backup-total-time"), "time", String.valueOf(totalSeconds));
+        if (deadline != null && deadline.isExceeded()) {
+            logger.log(intl("backup-time-budget-exceeded"), "budget", String.valueOf(deadline.getBudget() / 60 / 1000));
+        }
+    }
+
+    /**
+     * Creates the {@code Uploaders} for the enabled backup methods
+     * @param config the config
+     */
+    private void createUploaders(@NotNull Config config) {
+        uploaders = new ArrayList<>(5);
+        if (config.backupMethods.googleDrive.enabled) {
+            uploaders.add(new GoogleDriveUploader(logger));
+        }
+        if (config.backupMethods.oneDrive.enabled) {
+            uploaders.add(new OneDriveUploader(logger));
+        }
+        if (config.backupMethods.dropbox.enabled) {
+            uploaders.add(new DropboxUploader(logger));
+        }
+        if (config.backupMethods.webdav.enabled) {
+            uploaders.add(new WebDAVUploader(logger, config.backupMethods.webdav));
+        }
+        if (config.backupMethods.nextcloud.enabled) {
+            uploaders.add(new NextcloudUploader(logger, config.backupMethods.nextcloud));
+        }
+        if (config.backupMethods.s3.enabled) {
+            uploaders.add(new S3Uploader(logger, config.backupMethods.s3));
+        }
+        if (config.backupMethods.ftp.enabled) {
+            uploaders.add(new FTPUploader(logger, config.backupMethods.ftp));
+        }
+    }
+
+    /**
+     * Resumes the uploads in the {@link UploadJournal} of the uploaders, which were interrupted by a restart or an error,
+     * and abandons those which can't be resumed.
+     */
+    private void resumeUploads() {
+        UploadJournal journal = UploadJournal.getJournal();
+        for (Uploader uploader : uploaders) {
+            for (UploadJournal.Entry entry : journal.getEntries(uploader.getId())) {
+                File file = new File(entry.filePath);
+                if (!journal.isResumable(entry)) {
+                    try {
+                        uploader.abandonUpload(entry);
+                    } catch (Exception e) {
+                        MessageUtil.sendConsoleException(e);
+                    }
+                    journal.remove(entry);
+                    continue;
+                }
+                logger.info(
+                    intl("upload-resume"),
+                    "file-name", file.getName(),
+                    "upload-method", uploader.getName(),
+                    "uploaded-size", FileUtil.formatMegabytes(entry.offset),
+                    "size", FileUtil.formatMegabytes(file.length()));
+                Timer timer = new Timer();
+                timer.start();
+                try {
+                    uploader.uploadFile(file, entry.destination);
+                } catch (Exception e) {
+                    MessageUtil.sendConsoleException(e);
+                }
+                timer.end();
+                if (!uploader.isErrorWhileUploading()) {
+                    logger.info(timer.getUploadTimeMessage(file.length() - entry.offset, uploader.getId()));
+                } else {
+                    logger.info(intl("backup-method-upload-failed"));
+                }
+            }
+        }
     }
 
     private void ensureMethodsAuthenticated() {
@@ -364,20 +588,109 @@ public class UploadThread implements Runnable {
             LocalDateTimeFormatter formatter = entry.getValue();
             fileUtil.pruneLocalBackups(location, formatter);
         }
+        if (ConfigParser.getConfig().backupStorage.localRepository) {
+            fileUtil.collectRepositoryGarbage();
+        }
         logger.log(intl("backup-local-prune-complete"));
     }
     
+    /**
+     * Creates the backups of the locations in the backup list, several at once if configured to.
+     * <p>
+     * Each folder, including each folder a glob expands to, is backed up into its own archive,
+     * which is queued to be uploaded as soon as it is created, see {@link UploadQueue}.
+     * Backups uploaded while they are being created are made one at a time, as an uploader only uploads one stream at a time.
+     * @param config the config
+     * @param snapshots the snapshots to create the backups from, by folder, which are removed from the map once they are used
+     */
+    private void makeBackupFiles(@NotNull Config config, Map<Path, LocationSnapshot> snapshots) {
+        int parallelBackups = config.backupStorage.streamingUploads ? 1 : config.backupStorage.parallelBackups;
+        ExecutorService executor = null;
+        if (parallelBackups > 1) {
+            AtomicInteger threadCount = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(parallelBackups, runnable -> {
+                Thread thread = new Thread(runnable, "DriveBackupV2-backup-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(config.backupStorage.threadPriority);
+                return thread;
+            });
+        }
+        backupSetsInProgress.clear();
+        List<Future<?>> backups = new ArrayList<>();
+        try {
+            for (int i = 0; i < backupList.size(); i++) {
+                BackupListEntry set = backupList.get(i);
+                int setIndex = i;
+                if (!set.create) {
+                    // Such as external backups, which were already created
+                    for (Path folder : set.location.getPaths()) {
+                        queueUpload(setIndex, folder.toString(), set.formatter);
+                    }
+                    continue;
+                }
+                for (Path folder : set.location.getPaths()) {
+                    LocationSnapshot snapshot = snapshots.remove(folder);
+                    Runnable backup = () -> {
+                        try {
+                            if (uploadQueue != null) {
+                                uploadQueue.awaitDiskSpace();
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            if (snapshot != null) {
+                                snapshot.close();
+                            }
+                            return;
+                        }
+                        backupBackingUp = setIndex + 1;
+                        backupSetsInProgress.merge(setIndex, 1, Integer::sum);
+                        try {
+                            makeBackupFile(folder.toString(), set.formatter, Arrays.asList(set.blacklist), set.incremental, set.fullBackupInterval, snapshot);
+                        } finally {
+                            backupSetsInProgress.computeIfPresent(setIndex, (index, folders) -> folders == 1 ? null : folders - 1);
+                        }
+                        queueUpload(setIndex, folder.toString(), set.formatter);
+                    };
+                    if (executor == null) {
+                        backup.run();
+                    } else {
+                        backups.add(executor.submit(backup));
+                    }
+                }
+            }
+            for (Future<?> backup : backups) {
+                try {
+                    backup.get();
+                } catch (ExecutionException e) {
+                    MessageUtil.sendConsoleException(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
     /**
      * Creates a backup file of the specified folder
      * @param location path to the folder
      * @param formatter save format configuration
      * @param blackList a configured blacklist (with globs)
+     * @param incremental whether to only back up the files which changed since the last backup
+     * @param fullBackupInterval how often a full backup is made when making incremental backups
+     * @param snapshot the snapshot of the folder to create the backup from, which is closed afterwards,
+     *                 or {@code null} to create it from the folder itself, with saving disabled
      */
-    private void makeBackupFile(String location, LocalDateTimeFormatter formatter, List<String> blackList) {
+    private void makeBackupFile(String location, LocalDateTimeFormatter formatter, List<String> blackList, boolean incremental, int fullBackupInterval, @Nullable LocationSnapshot snapshot) {
         logger.info(intl("backup-local-file-start"), "location", location);
         try {
-            ServerUtil.setAutoSave(false);
-            fileUtil.makeBackup(location, formatter, blackList);
+            if (snapshot == null) {
+                disableSavingForLocation();
+            }
+            fileUtil.makeBackup(location, formatter, blackList, incremental, fullBackupInterval, snapshot);
         } catch (AbsolutePathException exception) {
             logger.log(intl("backup-failed-absolute-path"));
             return;
@@ -388,18 +701,159 @@ public class UploadThread implements Runnable {
             logger.log(intl("backup-local-failed"));
             MessageUtil.sendConsoleException(exception);
             return;
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+            } else {
+                // Saving isn't left disabled between locations, such as while waiting for disk space for the next backup
+                enableSavingForLocation();
+            }
         }
         locationsToBePruned.put(location, formatter);
         logger.info(intl("backup-local-file-complete"), "location", location);
     }
-    
-    private void uploadBackupFiles(List<Uploader> uploaders) {
-        for (BackupListEntry set : backupList) {
-            backupBackingUp++;
-            for (Path folder : set.location.getPaths()) {
-                uploadFile(folder.toString(), set.formatter, uploaders);
+
+    /**
+     * Makes a snapshot of the specified folder to create its backup from
+     * @param location path to the folder
+     * @param blackList a configured blacklist (with globs)
+     * @param incremental whether to only back up the files which changed since the last backup
+     * @param fullBackupInterval how often a full backup is made when making incremental backups
+     * @return the snapshot, or {@code null} if making it failed
+     */
+    @Nullable
+    private LocationSnapshot makeSnapshot(String location, List<String> blackList, boolean incremental, int fullBackupInterval) {
+        logger.info(intl("backup-snapshot-file-start"), "location", location);
+        try {
+            return fileUtil.makeSnapshot(location, blackList, incremental, fullBackupInterval);
+        } catch (Exception exception) {
+            logger.log(intl("backup-snapshot-failed"), "location", location);
+            MessageUtil.sendConsoleException(exception);
+            return null;
+        }
+    }
+
+    /**
+     * Saves the history of this backup, logging if it fails
+     * @param config the config
+     */
+    private void saveHistory(@NotNull Config config) {
+        try {
+            history.save(new File(config.backupStorage.localDirectory, BackupHistory.FILE_NAME));
+        } catch (Exception exception) {
+            logger.info(intl("backup-history-save-failed"));
+            MessageUtil.sendConsoleException(exception);
+        }
+    }
+
+    /**
+     * Enables or disables saving, keeping track of how long it was disabled for
+     * @param autoSave whether to enable saving
+     */
+    private synchronized void setAutoSave(boolean autoSave) {
+        ServerUtil.setAutoSave(autoSave);
+        long now = System.currentTimeMillis();
+        if (!autoSave && autoSaveDisabledAt == 0) {
+            autoSaveDisabledAt = now;
+        } else if (autoSave && autoSaveDisabledAt != 0) {
+            autoSaveDisabledTime += now - autoSaveDisabledAt;
+            autoSaveDisabledAt = 0;
+        }
+    }
+
+    /**
+     * Disables saving while a location is backed up from the folder itself, rather than from a snapshot
+     */
+    private synchronized void disableSavingForLocation() {
+        locationsWithSavingDisabled++;
+        setAutoSave(false);
+    }
+
+    /**
+     * Enables saving again once a location was backed up from the folder itself, if no other location still is
+     */
+    private synchronized void enableSavingForLocation() {
+        locationsWithSavingDisabled--;
+        if (locationsWithSavingDisabled == 0) {
+            setAutoSave(true);
+        }
+    }
+
+    /**
+     * Starts uploading the most recent backup of each backup location to the specified uploaders as soon as it is created,
+     * see {@link #queueUpload(int, String, LocalDateTimeFormatter)}.
+     * <p>
+     * Each backup is uploaded to several uploaders at once, as configured, so uploading it takes as long as the slowest uploader,
+     * rather than as long as all of them together.
+     * If the backup has a time budget, the fastest uploaders upload first, so that as many as possible have the backups in time.
+     * @param config the config
+     * @param uploaders services to upload to
+     */
+    private void startUploadQueue(@NotNull Config config, List<Uploader> uploaders) {
+        queuedUploaders = new ArrayList<>(uploaders);
+        if (deadline != null) {
+            // Uploaders without recorded uploads have a rate of -1, so they upload last
+            queuedUploaders.sort(Comparator.comparingDouble((Uploader uploader) -> history.getUploadRate(uploader.getId())).reversed());
+        }
+        int concurrentUploads = Math.min(config.backupStorage.concurrentUploads, queuedUploaders.size());
+        if (concurrentUploads > 1) {
+            AtomicInteger threadCount = new AtomicInteger();
+            uploadExecutor = Executors.newFixedThreadPool(concurrentUploads, runnable -> {
+                Thread thread = new Thread(runnable, "DriveBackupV2-upload-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        uploadQueue = new UploadQueue(new File(config.backupStorage.localDirectory));
+    }
+
+    /**
+     * Queues the most recent backup of a location to be uploaded, once the backups queued before it were,
+     * then prunes the local backups of the location, if it was uploaded to every uploader,
+     * so backups which aren't kept locally don't take up disk space while the rest of the backups are created.
+     * @param setIndex the index of the backup list entry the location is in
+     * @param location path to the folder
+     * @param formatter save format configuration
+     */
+    private void queueUpload(int setIndex, String location, LocalDateTimeFormatter formatter) {
+        if (uploadQueue == null) {
+            return;
+        }
+        long size = 0;
+        TreeMap<Long, List<File>> localBackups = fileUtil.getLocalBackups(FileUtil.isBaseFolder(location) ? "root" : location, formatter);
+        if (!localBackups.isEmpty()) {
+            for (File file : localBackups.lastEntry().getValue()) {
+                size += file.length();
             }
         }
+        uploadQueue.add(size, () -> {
+            if (backupStatus == BackupStatus.UPLOADING) {
+                backupBackingUp = setIndex + 1;
+            }
+            boolean uploaded = uploadFile(location, formatter, queuedUploaders, uploadExecutor);
+            if (ConfigParser.getConfig().backupStorage.localRepository || locationsToBePruned.remove(location) == null) {
+                return;
+            }
+            // After a failed upload, the backups are kept until the next backup of the location, so the upload can be retried
+            if (uploaded) {
+                fileUtil.pruneLocalBackups(location, formatter);
+            }
+        });
+    }
+
+    /**
+     * Waits for the backups queued to be uploaded to be uploaded.
+     */
+    private void finishUploadQueue() {
+        if (uploadQueue == null) {
+            return;
+        }
+        uploadQueue.close();
+        uploadQueue = null;
+        if (uploadExecutor != null) {
+            uploadExecutor.shutdown();
+            uploadExecutor = null;
+        }
     }
     
     /**
@@ -407,40 +861,97 @@ public class UploadThread implements Runnable {
      * @param location path to the folder
      * @param formatter save format configuration
      * @param uploaders services to upload to
+     * @param executor the pool to upload to the uploaders at the same time on, or {@code null} to upload to one at a time
+     * @return whether the backup was uploaded to every uploader, or there was no backup to upload
      */
-    private void uploadFile(String location, LocalDateTimeFormatter formatter, List<Uploader> uploaders) {
+    private boolean uploadFile(String location, LocalDateTimeFormatter formatter, List<Uploader> uploaders, @Nullable ExecutorService executor) {
         try {
             if (FileUtil.isBaseFolder(location)) {
                 location = "root";
             }
-            TreeMap<Long, File> localBackups = fileUtil.getLocalBackups(location, formatter);
+            TreeMap<Long, List<File>> localBackups = fileUtil.getLocalBackups(location, formatter);
             if (localBackups.isEmpty()) {
                 logger.log(intl("location-empty"), "location", location);
-                return;
+                return true;
+            }
+            // The volumes of a backup split into volumes, or just the archive, followed by its index
+            List<File> files = localBackups.descendingMap().firstEntry().getValue();
+            File file = files.get(0);
+            String backupName = ArchiveFormat.getBackupName(file.getName());
+            String name = file.getParent().replace("\\", "/").replace("./", "") + "/" + backupName;
+            long size = 0;
+            for (File volume : files) {
+                size += volume.length();
             }
-            File file = localBackups.descendingMap().firstEntry().getValue();
-            String name = file.getParent().replace("\\", "/").replace("./", "") + "/" + file.getName();
             logger.log(intl("backup-file-upload-start"), "file-name", name);
-            Timer timer = new Timer();
+            String type = location;
+            long backupSize = size;
+            boolean uploaded = true;
+            List<Future<Boolean>> uploads = new ArrayList<>();
             for (Uploader uploader : uploaders) {
-                logger.info(
-                        intl("backup-method-uploading"),
-                        "upload-method",
-                        uploader.getName());
-                timer.start();
-                uploader.uploadFile(file, location);
-                timer.end();
-                if (!uploader.isErrorWhileUploading()) {
-                    logger.info(timer.getUploadTimeMessage(file));
+                if (executor == null) {
+                    uploaded &= uploadBackup(uploader, files, type, backupSize);
                 } else {
-                    logger.info(intl("backup-method-upload-failed"));
+                    uploads.add(executor.submit(() -> uploadBackup(uploader, files, type, backupSize)));
                 }
             }
-            logger.log(intl("backup-file-upload-complete"), "file-name", file.getName());
+            for (Future<Boolean> upload : uploads) {
+                uploaded &= upload.get();
+            }
+            logger.log(intl("backup-file-upload-complete"), "file-name", backupName);
+            return uploaded;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             logger.info(intl("backup-method-upload-failed"));
             MessageUtil.sendConsoleException(e);
         }
+        return false;
+    }
+
+    /**
+     * Uploads the files of a backup to an uploader, then logs how it went,
+     * with its own timing, so it can be uploaded to several uploaders at once.
+     * @param uploader the uploader
+     * @param files the files of the backup
+     * @param type the type of file (ex. plugins, world)
+     * @param size the size of the backup, in bytes
+     * @return whether the backup was uploaded without the uploader reporting an error
+     */
+    private boolean uploadBackup(@NotNull Uploader uploader, @NotNull List<File> files, String type, long size) {
+        Timer timer = new Timer();
+        timer.start();
+        boolean failedBefore = uploader.isErrorWhileUploading();
+        boolean failed = false;
+        try {
+            for (File volume : files) {
+                // Older backups are only pruned once the whole backup was uploaded
+                uploader.setPruningDeferred(volume != files.get(files.size() - 1));
+                uploader.uploadFile(volume, type);
+                if (!failedBefore && uploader.isErrorWhileUploading()) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            MessageUtil.sendConsoleException(e);
+            failed = true;
+        } finally {
+            uploader.setPruningDeferred(false);
+        }
+        timer.end();
+        // The messages of an uploader are kept together, rather than mixed with those of the uploaders uploading at the same time
+        synchronized (logger) {
+            logger.info(
+                intl("backup-method-uploading"),
+                "upload-method", uploader.getName());
+            if (!failed && !uploader.isErrorWhileUploading()) {
+                logger.info(timer.getUploadTimeMessage(size, uploader.getId()));
+                history.recordUpload(uploader.getId(), size, timer.getTime());
+                return true;
+            }
+            logger.info(intl("backup-method-upload-failed"));
+            return false;
+        }
     }
 
     /**
@@ -516,7 +1027,9 @@ public class UploadThread implements Runnable {
             new PathBackupLocation("external-backups" + "/" + tempFolderName),
             externalBackup.format,
             true,
-            new String[0]
+            new String[0],
+            false,
+            1
         );
         backupList.add(backup);
         if (ftpUploader.isErrorWhileUploading()) {
@@ -561,7 +1074,9 @@ public class UploadThread implements Runnable {
             new PathBackupLocation("external-backups" + "/" + tempFolderName),
             externalBackup.format,
             true,
-            new String[0]
+            new String[0],
+            false,
+            1
         );
         backupList.add(backup);
         if (mysqlUploader.isErrorWhileUploading()) {
@@ -590,23 +1105,70 @@ public class UploadThread implements Runnable {
                 message = intl("backup-status-uploading");
                 break;
             case STARTING:
-                return intl("backup-status-starting");
+                return withUploadProgress(intl("backup-status-starting"));
             case PRUNING:
                 return intl("backup-status-pruning");
             default:
                 return intl("backup-status-not-running");
         }
         BackupListEntry[] backupList = config.backupList.list;
+        List<Integer> setsInProgress = backupStatus == BackupStatus.COMPRESSING ? new ArrayList<>(backupSetsInProgress.keySet()) : new ArrayList<>();
+        setsInProgress.removeIf(set -> set >= backupList.length);
+        if (setsInProgress.size() > 1) {
+            List<String> setNames = new ArrayList<>();
+            List<String> setNumbers = new ArrayList<>();
+            for (int set : setsInProgress) {
+                setNames.add("\"" + backupList[set].location.toString() + "\"");
+                setNumbers.add(String.valueOf(set + 1));
+            }
+            return withUploadProgress(intl("backup-status-compressing-multiple")
+                .replace("<set-names>", String.join(", ", setNames))
+                .replace("<set-nums>", String.join(", ", setNumbers))
+                .replace("<set-count>", String.valueOf(backupList.length)));
+        }
 
-        int backupNumber = Math.max(0, backupBackingUp - 1);
+        int backupNumber = setsInProgress.isEmpty() ? Math.max(0, backupBackingUp - 1) : setsInProgress.get(0);
         int backupIndex = Math.min(backupNumber, backupList.length - 1);
 
         String backupSetName = backupList[backupIndex].location.toString();
 
-        return message
+        return withUploadProgress(message
             .replace("<set-name>", backupSetName)
             .replace("<set-num>", String.valueOf(backupNumber+1))
-            .replace("<set-count>", String.valueOf(backupList.length));
+            .replace("<set-count>", String.valueOf(backupList.length)));
+    }
+
+    /**
+     * Adds how much of the backups being uploaded was uploaded to the status of the backup thread
+     * @param status the status of the backup thread
+     * @return the status, followed by the progress of each uploader uploading a backup
+     */
+    @NotNull
+    private static String withUploadProgress(String status) {
+        StringBuilder builder = new StringBuilder(status);
+        for (Map.Entry<String, long[]> progress : uploadProgress.entrySet()) {
+            long uploaded = progress.getValue()[0];
+            long size = progress.getValue()[1];
+            builder.append(' ').append(intl("backup-status-upload-progress")
+                .replace("<upload-method>", progress.getKey())
+                .replace("<percent>", String.valueOf(uploaded * 100 / size))
+                .replace("<size>", FileUtil.formatMegabytes(size)));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Sets how much of the backup an uploader is uploading was uploaded, which is shown in the status of the backup thread
+     * @param uploaderName the name of the uploader
+     * @param uploaded the number of bytes uploaded
+     * @param size the size of the backup, in bytes, or 0 once the upload finished
+     */
+    public static void setUploadProgress(String uploaderName, long uploaded, long size) {
+        if (size <= 0) {
+            uploadProgress.remove(uploaderName);
+        } else {
+            uploadProgress.put(uploaderName, new long[] {uploaded, size});
+        }
     }
 
     /**
@@ -0,0 +1,588 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ratismal.drivebackup.util.BufferPool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Extracts the files in a backup archive to a folder, optionally only the files matching a glob.
+ * <p>
+ * Zip archives are extracted in parallel. The central directory is read through a memory-mapped buffer,
+ * and each file is read with positional reads and inflated on one of several threads, largest files first,
+ * so extracting a large backup uses every core rather than one.
+ * Files are written in large blocks, and checked against the CRC-32 in the archive.
+ * Tar archives can only be decompressed in order, so they are extracted on a single thread.
+ * <p>
+ * A backup split into volumes, see {@link VolumeOutputStream}, is read as the concatenation of its volumes.
+ * Region file deltas and the files listed as deleted in an incremental backup are applied as in {@link IncrementalRestore},
+ * so an incremental backup is extracted on top of the backups before it.
+ */
+public class ArchiveExtractor {
+    /**
+     * The size of the blocks files are read and written in
+     */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int EXTENDED_TIMESTAMP_ID = 0x5455;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    private final List<File> files;
+    private final ArchiveFormat format;
+    private final PathMatcher matcher;
+    private final int threads;
+    private final int threadPriority;
+    private final List<String> deletedFiles = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger extractedCount = new AtomicInteger();
+
+    /**
+     * A file in a zip archive, as listed in its central directory
+     */
+    private static class Entry {
+        private final String name;
+        private final int method;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+        private final long lastModified;
+
+        private Entry(String name, int method, long crc, long compressedSize, long size, long localHeaderOffset, long lastModified) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Creates an instance of the {@code ArchiveExtractor} object
+     * @param files the archive, or its volumes in order, optionally followed by its index, which is ignored
+     * @param glob a glob pattern the paths of the files to extract must match, or {@code null} to extract every file
+     * @param threads the number of threads to extract zip archives with
+     * @param threadPriority the priority of the threads
+     * @throws IOException if the files aren't a backup archive
+     */
+    public ArchiveExtractor(@NotNull List<File> files, @Nullable String glob, int threads, int threadPriority) throws IOException {
+        this.files = new ArrayList<>();
+        for (File file : files) {
+            if (!ArchiveFormat.isIndex(file.getName())) {
+                this.files.add(file);
+            }
+        }
+        format = this.files.isEmpty() ? null : ArchiveFormat.fromFileName(ArchiveFormat.getBackupName(this.files.get(0).getName()));
+        if (format == null) {
+            throw new IOException("Not a backup archive");
+        }
+        matcher = glob != null ? FileSystems.getDefault().getPathMatcher("glob:" + glob) : null;
+        this.threads = Math.max(threads, 1);
+        this.threadPriority = threadPriority;
+    }
+
+    /**
+     * Extracts the archive.
+     * @param destination the folder to extract the archive to, which is created if it doesn't exist
+     * @return the number of files extracted
+     * @throws IOException if the archive couldn't be read, or a file couldn't be extracted
+     */
+    public int extract(@NotNull File destination) throws IOException {
+        if (!destination.isDirectory() && !destination.mkdirs()) {
+            throw new IOException("Failed to create " + destination.getPath());
+        }
+        if (format == ArchiveFormat.ZIP) {
+            extractZip(destination);
+        } else {
+            extractTar(destination);
+        }
+        for (String deletedFile : deletedFiles) {
+            if (matches(deletedFile)) {
+                IncrementalRestore.resolve(destination, deletedFile).delete();
+            }
+        }
+        return extractedCount.get();
+    }
+
+    private void extractTar(File destination) throws IOException {
+        List<InputStream> volumeInputStreams = new ArrayList<>();
+        try {
+            for (File file : files) {
+                volumeInputStreams.add(new FileInputStream(file));
+            }
+        } catch (IOException e) {
+            for (InputStream inputStream : volumeInputStreams) {
+                inputStream.close();
+            }
+            throw e;
+        }
+        Enumeration<InputStream> volumes = Collections.enumeration(volumeInputStreams);
+        try (InputStream inputStream = new BufferedInputStream(new SequenceInputStream(volumes), BUFFER_SIZE)) {
+            ArchiveReader.readTar(format, inputStream, (name, lastModified, entryInputStream) -> {
+                if (name.equals(BackupManifest.DELETED_FILES_ENTRY) || matches(name)) {
+                    extractEntry(destination, name, lastModified, entryInputStream, -1, -1);
+                }
+            });
+        }
+    }
+
+    private void extractZip(File destination) throws IOException {
+        try (Volumes volumes = new Volumes(files)) {
+            List<Entry> entries = new ArrayList<>();
+            for (Entry entry : readCentralDirectory(volumes)) {
+                if (!entry.name.endsWith("/") && (entry.name.equals(BackupManifest.DELETED_FILES_ENTRY) || matches(entry.name))) {
+                    entries.add(entry);
+                }
+            }
+            // The largest files first, so a large file isn't left to be extracted on its own at the end
+            entries.sort(Comparator.comparingLong((Entry entry) -> entry.compressedSize).reversed());
+            if (threads == 1 || entries.size() <= 1) {
+                for (Entry entry : entries) {
+                    extractZipEntry(volumes, entry, destination);
+                }
+                return;
+            }
+            AtomicInteger threadCount = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, entries.size()), runnable -> {
+                Thread thread = new Thread(runnable, "DriveBackupV2-restore-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(threadPriority);
+                return thread;
+            });
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (Entry entry : entries) {
+                    futures.add(executor.submit(() -> {
+                        extractZipEntry(volumes, entry, destination);
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while extracting", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private void extractZipEntry(@NotNull Volumes volumes, @NotNull Entry entry, File destination) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        volumes.read(entry.localHeaderOffset, header);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Local header of " + entry.name + " not found, the archive is corrupt");
+        }
+        long dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE + getUnsignedShort(header, 26) + getUnsignedShort(header, 28);
+        if (entry.method == ZipEntry.STORED) {
+            InputStream inputStream = new VolumeInputStream(volumes, dataOffset, entry.compressedSize, false);
+            extractEntry(destination, entry.name, entry.lastModified, inputStream, entry.crc, entry.size);
+            return;
+        }
+        if (entry.method != ZipEntry.DEFLATED) {
+            throw new IOException(entry.name + " uses an unsupported compression method");
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            InputStream inputStream = new VolumeInputStream(volumes, dataOffset, entry.compressedSize, true);
+            int bufferSize = (int) Math.max(Math.min(entry.compressedSize + 1, BUFFER_SIZE), 1);
+            extractEntry(destination, entry.name, entry.lastModified, new InflaterInputStream(inputStream, inflater, bufferSize), entry.crc, entry.size);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Extracts a file, or applies it if it is a region file delta or the list of deleted files.
+     * @param crc the CRC-32 of the file, or -1 if it isn't known
+     * @param size the size of the file, or -1 if it isn't known
+     */
+    private void extractEntry(File destination, @NotNull String name, long lastModified, InputStream inputStream, long crc, long size) throws IOException {
+        if (name.equals(BackupManifest.DELETED_FILES_ENTRY)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                deletedFiles.add(line);
+            }
+            return;
+        }
+        if (name.endsWith(RegionDelta.SUFFIX)) {
+            File region = IncrementalRestore.resolve(destination, name.substring(0, name.length() - RegionDelta.SUFFIX.length()));
+            RegionDelta.apply(region, inputStream);
+            if (lastModified >= 0) {
+                region.setLastModified(lastModified);
+            }
+            extractedCount.incrementAndGet();
+            return;
+        }
+        File file = IncrementalRestore.resolve(destination, name);
+        File parent = file.getParentFile();
+        // Another thread may create the folder at the same time
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Failed to create " + parent.getPath());
+        }
+        byte[] buffer = BufferPool.acquire(BUFFER_SIZE);
+        CRC32 checksum = new CRC32();
+        long written = 0;
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            int read;
+            while ((read = readFully(inputStream, buffer)) > 0) {
+                outputStream.write(buffer, 0, read);
+                checksum.update(buffer, 0, read);
+                written += read;
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        if ((crc >= 0 && checksum.getValue() != crc) || (size >= 0 && written != size)) {
+            throw new IOException(name + " is corrupt, its checksum doesn't match");
+        }
+        if (lastModified >= 0) {
+            file.setLastModified(lastModified);
+        }
+        extractedCount.incrementAndGet();
+    }
+
+    /**
+     * Reads into the whole buffer, unless the end of the stream is reached, so files are written in large blocks.
+     * @return the number of bytes read, 0 at the end of the stream
+     */
+    private static int readFully(@NotNull InputStream inputStream, @NotNull byte[] buffer) throws IOException {
+        int length = 0;
+        int read;
+        while (length < buffer.length && (read = inputStream.read(buffer, length, buffer.length - length)) >= 0) {
+            length += read;
+        }
+        return length;
+    }
+
+    private boolean matches(String name) {
+        return matcher == null || matcher.matches(Paths.get(name));
+    }
+
+    /**
+     * Reads the list of files in a zip archive from its central directory.
+     */
+    @NotNull
+    private static List<Entry> readCentralDirectory(@NotNull Volumes volumes) throws IOException {
+        long archiveSize = volumes.size();
+        int tailLength = (int) Math.min(archiveSize, END_SIZE + MAX_COMMENT_LENGTH);
+        long tailOffset = archiveSize - tailLength;
+        ByteBuffer tail = volumes.map(tailOffset, tailLength);
+        int end = -1;
+        for (int i = tailLength - END_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new IOException("Central directory not found, the archive is incomplete");
+        }
+        long count = getUnsignedShort(tail, end + 10);
+        long centralDirectorySize = getUnsignedInt(tail, end + 12);
+        long centralDirectoryOffset = getUnsignedInt(tail, end + 16);
+        if (count == ZIP64_MAGIC_COUNT || centralDirectorySize == ZIP64_MAGIC || centralDirectoryOffset == ZIP64_MAGIC) {
+            long endOffset = tailOffset + end;
+            if (endOffset < ZIP64_LOCATOR_SIZE) {
+                throw new IOException("Zip64 end of central directory not found, the archive is corrupt");
+            }
+            ByteBuffer locator = volumes.map(endOffset - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+            if (locator.getInt(0) != ZIP64_LOCATOR_SIGNATURE) {
+                throw new IOException("Zip64 end of central directory not found, the archive is corrupt");
+            }
+            ByteBuffer zip64End = volumes.map(locator.getLong(8), ZIP64_END_SIZE);
+            if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+                throw new IOException("Zip64 end of central directory not found, the archive is corrupt");
+            }
+            count = zip64End.getLong(32);
+            centralDirectorySize = zip64End.getLong(40);
+            centralDirectoryOffset = zip64End.getLong(48);
+        }
+        if (centralDirectorySize > Integer.MAX_VALUE) {
+            throw new IOException("Central directory is too large");
+        }
+        ByteBuffer centralDirectory = volumes.map(centralDirectoryOffset, (int) centralDirectorySize);
+        List<Entry> entries = new ArrayList<>((int) Math.min(count, 1 << 16));
+        int position = 0;
+        for (long i = 0; i < count; i++) {
+            if (position + CENTRAL_HEADER_SIZE > centralDirectory.limit() || centralDirectory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Central directory is corrupt");
+            }
+            int method = getUnsignedShort(centralDirectory, position + 10);
+            long dosTime = getUnsignedInt(centralDirectory, position + 12);
+            long crc = getUnsignedInt(centralDirectory, position + 16);
+            long compressedSize = getUnsignedInt(centralDirectory, position + 20);
+            long size = getUnsignedInt(centralDirectory, position + 24);
+            int nameLength = getUnsignedShort(centralDirectory, position + 28);
+            int extraLength = getUnsignedShort(centralDirectory, position + 30);
+            int commentLength = getUnsignedShort(centralDirectory, position + 32);
+            long localHeaderOffset = getUnsignedInt(centralDirectory, position + 42);
+            int extraStart = position + CENTRAL_HEADER_SIZE + nameLength;
+            int extraEnd = extraStart + extraLength;
+            if (extraEnd + commentLength > centralDirectory.limit()) {
+                throw new IOException("Central directory is corrupt");
+            }
+            byte[] name = new byte[nameLength];
+            ByteBuffer nameBuffer = centralDirectory.duplicate();
+            nameBuffer.position(position + CENTRAL_HEADER_SIZE);
+            nameBuffer.get(name);
+            long lastModified = fromDosTime(dosTime);
+            int extra = extraStart;
+            while (extra + 4 <= extraEnd) {
+                int id = getUnsignedShort(centralDirectory, extra);
+                int length = getUnsignedShort(centralDirectory, extra + 2);
+                int data = extra + 4;
+                int dataEnd = data + length;
+                if (dataEnd > extraEnd) {
+                    break;
+                }
+                if (id == ZIP64_EXTRA_ID) {
+                    // Only the fields too large for the header are in the extra field, in this order
+                    if (size == ZIP64_MAGIC && data + 8 <= dataEnd) {
+                        size = centralDirectory.getLong(data);
+                        data += 8;
+                    }
+                    if (compressedSize == ZIP64_MAGIC && data + 8 <= dataEnd) {
+                        compressedSize = centralDirectory.getLong(data);
+                        data += 8;
+                    }
+                    if (localHeaderOffset == ZIP64_MAGIC && data + 8 <= dataEnd) {
+                        localHeaderOffset = centralDirectory.getLong(data);
+                    }
+                } else if (id == EXTENDED_TIMESTAMP_ID && length >= 5 && (centralDirectory.get(data) & 1) != 0) {
+                    lastModified = centralDirectory.getInt(data + 1) * 1000L;
+                }
+                extra = dataEnd;
+            }
+            entries.add(new Entry(new String(name, StandardCharsets.UTF_8), method, crc, compressedSize, size, localHeaderOffset, lastModified));
+            position = extraEnd + commentLength;
+        }
+        return entries;
+    }
+
+    /**
+     * Converts a time in the MS-DOS date and time format used in zip headers.
+     * @param dosTime the date in the upper 16 bits, and the time in the lower 16 bits
+     * @return the time, in milliseconds since the epoch, or -1 if it isn't valid
+     */
+    @Contract (pure = true)
+    private static long fromDosTime(long dosTime) {
+        try {
+            LocalDateTime time = LocalDateTime.of(
+                (int) ((dosTime >> 25) & 0x7F) + 1980,
+                (int) ((dosTime >> 21) & 0x0F),
+                (int) ((dosTime >> 16) & 0x1F),
+                (int) ((dosTime >> 11) & 0x1F),
+                (int) ((dosTime >> 5) & 0x3F),
+                (int) ((dosTime << 1) & 0x3E));
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeException e) {
+            return -1;
+        }
+    }
+
+    private static int getUnsignedShort(@NotNull ByteBuffer buffer, int index) {
+        return buffer.getShort(index) & 0xFFFF;
+    }
+
+    private static long getUnsignedInt(@NotNull ByteBuffer buffer, int index) {
+        return buffer.getInt(index) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * The volumes of an archive, or just the archive, read as one file with positional reads,
+     * so several threads can read from it at once.
+     */
+    private static class Volumes implements Closeable {
+        private final List<FileChannel> channels = new ArrayList<>();
+        private final long[] starts;
+        private final long size;
+
+        private Volumes(@NotNull List<File> files) throws IOException {
+            starts = new long[files.size()];
+            long position = 0;
+            try {
+                for (int i = 0; i < files.size(); i++) {
+                    FileChannel channel = FileChannel.open(files.get(i).toPath(), StandardOpenOption.READ);
+                    channels.add(channel);
+                    starts[i] = position;
+                    position += channel.size();
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            size = position;
+        }
+
+        private long size() {
+            return size;
+        }
+
+        /**
+         * Gets the volume a position is in.
+         */
+        private int getVolume(long position) throws EOFException {
+            if (position < 0 || position >= size) {
+                throw new EOFException("Read past the end of the archive");
+            }
+            int volume = 0;
+            while (volume + 1 < starts.length && starts[volume + 1] <= position) {
+                volume++;
+            }
+            return volume;
+        }
+
+        /**
+         * Reads until the buffer is full.
+         */
+        private void read(long position, @NotNull ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                int volume = getVolume(position);
+                int read = channels.get(volume).read(buffer, position - starts[volume]);
+                if (read < 0) {
+                    throw new EOFException("Read past the end of the archive");
+                }
+                position += read;
+            }
+        }
+
+        /**
+         * Maps a part of the archive into memory, or reads it if it spans volumes.
+         */
+        @NotNull
+        private ByteBuffer map(long position, int length) throws IOException {
+            int volume = getVolume(position);
+            FileChannel channel = channels.get(volume);
+            ByteBuffer buffer;
+            if (position - starts[volume] + length <= channel.size()) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, position - starts[volume], length);
+            } else {
+                buffer = ByteBuffer.allocate(length);
+                read(position, buffer);
+                buffer.flip();
+            }
+            return buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException exception = null;
+            for (FileChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    exception = e;
+                }
+            }
+            if (exception != null) {
+                throw exception;
+            }
+        }
+    }
+
+    /**
+     * Reads a range of the archive.
+     * <p>
+     * Raw deflate data can be followed by an extra byte, as some versions of zlib need one to detect the end of the data.
+     */
+    private static class VolumeInputStream extends InputStream {
+        private final Volumes volumes;
+        private long position;
+        private long remaining;
+        private boolean extraByte;
+
+        private VolumeInputStream(Volumes volumes, long position, long length, boolean extraByte) {
+            this.volumes = volumes;
+            this.position = position;
+            this.remaining = length;
+            this.extraByte = extraByte;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                if (extraByte) {
+                    extraByte = false;
+                    b[off] = 0;
+                    return 1;
+                }
+                return -1;
+            }
+            int length = (int) Math.min(len, remaining);
+            volumes.read(position, ByteBuffer.wrap(b, off, length));
+            position += length;
+            remaining -= length;
+            return length;
+        }
+    }
+}
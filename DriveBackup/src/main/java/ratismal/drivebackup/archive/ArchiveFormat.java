@@ -0,0 +1,263 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The formats backups can be archived in
+ */
+public enum ArchiveFormat {
+    ZIP("zip", ".zip", "application/zip"),
+    TAR_ZSTD("tar.zst", ".tar.zst", "application/zstd"),
+    TAR_LZ4("tar.lz4", ".tar.lz4", "application/x-lz4");
+
+    /**
+     * The MIME type of a volume of a backup, which on its own isn't a valid archive
+     */
+    private static final String VOLUME_MIME_TYPE = "application/octet-stream";
+
+    private static final String INDEX_MIME_TYPE = "text/plain";
+
+    /**
+     * Added before the extension of incremental backups
+     */
+    public static final String INCREMENTAL_SUFFIX = "-incremental";
+
+    /**
+     * The name of the format in the {@code config.yml}
+     */
+    public final String configName;
+    public final String extension;
+    public final String mimeType;
+
+    ArchiveFormat(String configName, String extension, String mimeType) {
+        this.configName = configName;
+        this.extension = extension;
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * Creates an {@code Archiver} which writes an archive in this format.
+     * @param out the stream to write the archive to
+     * @param level the compression level, from 1 to 9, which LZ4 ignores
+     * @param threads the number of threads to compress with
+     * @param threadPriority the priority of the compression threads
+     * @param storeIncompressible whether to store incompressible files without compressing them, if the format allows it
+     * @param stats where to record how much data was stored and compressed, if the format allows it
+     * @param readAhead opens the files to add, which it may have read ahead
+     * @param listener notified as files are added to the archive
+     * @return the {@code Archiver}
+     * @throws IOException if the compressor couldn't be created, such as if Zstandard isn't supported on this platform
+     */
+    public Archiver createArchiver(OutputStream out, int level, int threads, int threadPriority, boolean storeIncompressible, ArchiveStats stats, ReadAhead readAhead, ArchiveListener listener) throws IOException {
+        switch (this) {
+            case TAR_ZSTD:
+                return TarArchiver.zstd(out, level, threads, readAhead, listener);
+            case TAR_LZ4:
+                return TarArchiver.lz4(out, readAhead, listener);
+            default:
+                return new ZipArchiver(out, level, threads, threadPriority, storeIncompressible, stats, readAhead, listener);
+        }
+    }
+
+    /**
+     * Replaces the archive extension of the specified file name, if any, with the extension of this format.
+     * @param fileName the file name
+     * @return the file name with this format's extension
+     */
+    @NotNull
+    public String withExtension(@NotNull String fileName) {
+        ArchiveFormat current = fromFileName(fileName);
+        if (current != null) {
+            fileName = fileName.substring(0, fileName.length() - current.extension.length());
+        }
+        return fileName + extension;
+    }
+
+    /**
+     * Gets the format with the specified name in the {@code config.yml}.
+     * @param configName the name
+     * @return the format, or {@code null} if there isn't one with that name
+     */
+    @Nullable
+    @Contract (pure = true)
+    public static ArchiveFormat fromConfigName(String configName) {
+        for (ArchiveFormat format : values()) {
+            if (format.configName.equalsIgnoreCase(configName)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the format of an archive from its file name.
+     * @param fileName the file name
+     * @return the format, or {@code null} if the file name doesn't end with the extension of any format
+     */
+    @Nullable
+    @Contract (pure = true)
+    public static ArchiveFormat fromFileName(@NotNull String fileName) {
+        for (ArchiveFormat format : values()) {
+            if (fileName.endsWith(format.extension)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets whether the specified file name is that of a backup archive, in any format, or of a volume or the index of one.
+     * <p>
+     * All formats are matched, so backups made before the format was changed are still pruned.
+     * @param fileName the file name
+     * @return whether it is
+     */
+    @Contract (pure = true)
+    public static boolean isArchive(@NotNull String fileName) {
+        return fromFileName(getBackupName(fileName)) != null;
+    }
+
+    /**
+     * Gets the MIME type of an archive from its file name.
+     * @param fileName the file name
+     * @return the MIME type, {@code application/zip} if the file name isn't that of an archive
+     */
+    @NotNull
+    public static String getMimeType(@NotNull String fileName) {
+        if (isVolume(fileName)) {
+            return VOLUME_MIME_TYPE;
+        }
+        if (isIndex(fileName)) {
+            return INDEX_MIME_TYPE;
+        }
+        ArchiveFormat format = fromFileName(fileName);
+        return format == null ? ZIP.mimeType : format.mimeType;
+    }
+
+    /**
+     * Gets the file name of a volume of a backup split into volumes, which is the name of the archive followed by the number of the volume,
+     * such as {@code backup.zip.001}, so joining the volumes in the order of their names gives the archive.
+     * @param archiveName the file name of the archive
+     * @param volume the number of the volume, starting from 1
+     * @return the file name of the volume
+     */
+    @NotNull
+    public static String getVolumeName(@NotNull String archiveName, int volume) {
+        return String.format("%s.%03d", archiveName, volume);
+    }
+
+    /**
+     * Gets whether the specified file name is that of a volume of a backup split into volumes, see {@link #getVolumeName(String, int)}.
+     * @param fileName the file name
+     * @return whether it is
+     */
+    @Contract (pure = true)
+    public static boolean isVolume(@NotNull String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0 || fileName.length() - dot - 1 < 3) {
+            return false;
+        }
+        for (int i = dot + 1; i < fileName.length(); i++) {
+            if (!Character.isDigit(fileName.charAt(i))) {
+                return false;
+            }
+        }
+        return fromFileName(fileName.substring(0, dot)) != null;
+    }
+
+    /**
+     * Gets whether the specified file name is that of the index of an archive, see {@link ArchiveIndex}.
+     * @param fileName the file name
+     * @return whether it is
+     */
+    @Contract (pure = true)
+    public static boolean isIndex(@NotNull String fileName) {
+        return fileName.endsWith(ArchiveIndex.EXTENSION)
+            && fromFileName(fileName.substring(0, fileName.length() - ArchiveIndex.EXTENSION.length())) != null;
+    }
+
+    /**
+     * Gets the name of the backup a file is of, which for a volume or an index is the file name of the archive it is part of.
+     * @param fileName the file name
+     * @return the name of the backup, the file name if it isn't a volume or an index
+     */
+    @NotNull
+    @Contract (pure = true)
+    public static String getBackupName(@NotNull String fileName) {
+        if (isIndex(fileName)) {
+            return fileName.substring(0, fileName.length() - ArchiveIndex.EXTENSION.length());
+        }
+        return isVolume(fileName) ? fileName.substring(0, fileName.lastIndexOf('.')) : fileName;
+    }
+
+    /**
+     * Groups files into the backups they are of, so the volumes of a backup split into volumes, and its index, are pruned together.
+     * @param files the files, oldest first
+     * @param getName gets the file name of a file
+     * @param <T> the type of the files
+     * @return the backups, each a list of its files, in the order of their oldest file
+     */
+    @NotNull
+    public static <T> List<List<T>> groupVolumes(@NotNull Iterable<T> files, @NotNull Function<T, String> getName) {
+        Map<String, List<T>> backups = new LinkedHashMap<>();
+        for (T file : files) {
+            backups.computeIfAbsent(getBackupName(getName.apply(file)), name -> new ArrayList<>()).add(file);
+        }
+        return new ArrayList<>(backups.values());
+    }
+
+    /**
+     * Gets whether the specified file name is that of an incremental backup, or of one of its volumes or its index.
+     * @param fileName the file name
+     * @return whether it is
+     */
+    @Contract (pure = true)
+    public static boolean isIncremental(@NotNull String fileName) {
+        String backupName = getBackupName(fileName);
+        ArchiveFormat format = fromFileName(backupName);
+        return format != null && backupName.substring(0, backupName.length() - format.extension.length()).endsWith(INCREMENTAL_SUFFIX);
+    }
+
+    /**
+     * Gets the backups to delete so that no more than the specified number are kept.
+     * <p>
+     * An incremental backup can only be restored along with the full backup before it, and the incremental backups in between,
+     * so each full backup is deleted together with the incremental backups after it, oldest first,
+     * and only while at least the specified number of backups remain, which may keep more than that many.
+     * @param backups the backups, each a list of its files, oldest first, see {@link #groupVolumes(Iterable, Function)}
+     * @param keepCount the number of backups to keep
+     * @param getName gets the file name of a file
+     * @param <T> the type of the files
+     * @return the backups to delete, oldest first
+     */
+    @NotNull
+    public static <T> List<List<T>> getBackupsToPrune(@NotNull List<List<T>> backups, int keepCount, @NotNull Function<T, String> getName) {
+        List<List<T>> backupsToPrune = new ArrayList<>();
+        int remaining = backups.size();
+        int chainStart = 0;
+        while (chainStart < backups.size()) {
+            int chainEnd = chainStart + 1;
+            while (chainEnd < backups.size() && isIncremental(getName.apply(backups.get(chainEnd).get(0)))) {
+                chainEnd++;
+            }
+            int chainLength = chainEnd - chainStart;
+            if (remaining - chainLength < keepCount) {
+                break;
+            }
+            backupsToPrune.addAll(backups.subList(chainStart, chainEnd));
+            remaining -= chainLength;
+            chainStart = chainEnd;
+        }
+        return backupsToPrune;
+    }
+}
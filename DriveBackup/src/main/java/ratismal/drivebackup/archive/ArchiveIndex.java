@@ -0,0 +1,169 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Where each file is in an archive, saved next to the archive and uploaded with it,
+ * so a single file can be restored by reading only its bytes, locally or with a ranged download, rather than the whole archive.
+ * <p>
+ * Each file is recorded with the offset of its data in the archive, its compressed and uncompressed size,
+ * its compression method, and the CRC-32 of its contents.
+ * The offsets are into the whole archive, so for a backup split into volumes, the volume a file is in follows from the volume size.
+ * <p>
+ * Only zip archives have an index, as a file in a compressed tar can't be decompressed without the data before it.
+ */
+public class ArchiveIndex {
+    /**
+     * Added to the file name of an archive to get the file name of its index
+     */
+    public static final String EXTENSION = ".index";
+
+    private static final String HEADER = "# DriveBackupV2 archive index";
+    private static final String VOLUME_SIZE_KEY = "volume-size";
+
+    private final List<Entry> entries;
+    private long volumeSize;
+
+    /**
+     * Creates an instance of the {@code ArchiveIndex} object
+     * @param entries the files in the archive, in the order they are in it
+     */
+    public ArchiveIndex(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Where a file is in the archive
+     */
+    public static class Entry {
+        /**
+         * The path of the file inside the archive
+         */
+        public final String name;
+
+        /**
+         * The compression method, {@code STORED} or {@code DEFLATED}
+         */
+        public final int method;
+
+        /**
+         * The offset of the data of the file in the archive
+         */
+        public final long offset;
+
+        public final long compressedSize;
+        public final long size;
+        public final long crc;
+
+        @Contract (pure = true)
+        public Entry(String name, int method, long offset, long compressedSize, long size, long crc) {
+            this.name = name;
+            this.method = method;
+            this.offset = offset;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * Gets the files in the archive.
+     * @return the files, in the order they are in the archive
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Gets the size of the volumes of the archive.
+     * @return the size, in bytes, or 0 if the archive isn't split into volumes
+     */
+    public long getVolumeSize() {
+        return volumeSize;
+    }
+
+    /**
+     * Sets the size of the volumes of the archive.
+     * @param volumeSize the size, in bytes, or 0 if the archive isn't split into volumes
+     */
+    public void setVolumeSize(long volumeSize) {
+        this.volumeSize = volumeSize;
+    }
+
+    /**
+     * Gets the file name of the index of an archive.
+     * @param archiveName the file name of the archive
+     * @return the file name of the index
+     */
+    @NotNull
+    @Contract (pure = true)
+    public static String getIndexName(@NotNull String archiveName) {
+        return archiveName + EXTENSION;
+    }
+
+    /**
+     * Loads an index from a file.
+     * @param file the file
+     * @return the index, or {@code null} if it couldn't be read
+     */
+    @Nullable
+    public static ArchiveIndex load(@NotNull File file) {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            String[] volumeSize = String.valueOf(reader.readLine()).split("\t");
+            if (!HEADER.equals(header) || volumeSize.length != 2 || !VOLUME_SIZE_KEY.equals(volumeSize[0])) {
+                return null;
+            }
+            List<Entry> entries = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 6);
+                if (fields.length != 6) {
+                    return null;
+                }
+                entries.add(new Entry(
+                    fields[5],
+                    Integer.parseInt(fields[3]),
+                    Long.parseLong(fields[0]),
+                    Long.parseLong(fields[1]),
+                    Long.parseLong(fields[2]),
+                    Long.parseLong(fields[4], 16)));
+            }
+            ArchiveIndex index = new ArchiveIndex(entries);
+            index.setVolumeSize(Long.parseLong(volumeSize[1]));
+            return index;
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Saves the index to a file.
+     * @param file the file
+     * @throws IOException if the index couldn't be saved
+     */
+    public void save(@NotNull File file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            writer.write(VOLUME_SIZE_KEY + "\t" + volumeSize);
+            writer.newLine();
+            for (Entry entry : entries) {
+                writer.write(entry.offset + "\t" + entry.compressedSize + "\t" + entry.size + "\t" + entry.method + "\t" + Long.toHexString(entry.crc) + "\t" + entry.name);
+                writer.newLine();
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package ratismal.drivebackup.archive;
+
+/**
+ * Notified by an {@link Archiver} as files are added to the archive.
+ * <p>
+ * Notifications are made on the thread adding files, but not necessarily during the call which added the file.
+ */
+public interface ArchiveListener {
+    /**
+     * Called when a file has been written to the archive.
+     * @param filePath the path of the file
+     * @param size the size of the data written
+     * @param crc the CRC-32 of the data written
+     */
+    void fileArchived(String filePath, long size, long crc);
+
+    /**
+     * Called when a file couldn't be fully read. The data read before the failure is still in the archive.
+     * @param filePath the path of the file
+     */
+    void fileNotFullyRead(String filePath);
+}
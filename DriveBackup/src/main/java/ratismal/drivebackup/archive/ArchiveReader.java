@@ -0,0 +1,105 @@
+package ratismal.drivebackup.archive;
+
+import com.github.luben.zstd.ZstdInputStream;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the files in a backup archive, in any {@link ArchiveFormat}.
+ */
+public final class ArchiveReader {
+    private ArchiveReader() {
+    }
+
+    /**
+     * Handles a file read from an archive
+     */
+    public interface EntryHandler {
+        /**
+         * Handles a file read from an archive.
+         * @param name the name of the entry
+         * @param lastModified the last modified time of the file, in milliseconds, or -1 if it isn't known
+         * @param inputStream the contents of the file, which must not be closed
+         * @throws IOException if handling the file failed, which stops reading the archive
+         */
+        void handle(String name, long lastModified, InputStream inputStream) throws IOException;
+    }
+
+    /**
+     * Reads each file in an archive, in the order they are in the archive.
+     * @param archive the archive
+     * @param handler called for each file
+     * @throws IOException if the archive couldn't be read, or isn't in a known format
+     */
+    public static void read(@NotNull File archive, @NotNull EntryHandler handler) throws IOException {
+        ArchiveFormat format = ArchiveFormat.fromFileName(archive.getName());
+        if (format == null) {
+            throw new IOException(archive.getName() + " is not a backup archive");
+        }
+        if (format == ArchiveFormat.ZIP) {
+            readZip(archive, handler);
+            return;
+        }
+        try (InputStream fileInputStream = new BufferedInputStream(new FileInputStream(archive))) {
+            readTar(format, fileInputStream, handler);
+        }
+    }
+
+    /**
+     * Reads each file in a tar archive, in the order they are in the archive.
+     * @param format the format of the archive, which must not be {@link ArchiveFormat#ZIP}
+     * @param inputStream the contents of the archive, which is closed
+     * @param handler called for each file
+     * @throws IOException if the archive couldn't be read
+     */
+    static void readTar(@NotNull ArchiveFormat format, InputStream inputStream, @NotNull EntryHandler handler) throws IOException {
+        try (InputStream decompressedInputStream = decompress(format, inputStream);
+             TarArchiveInputStream tarInputStream = new TarArchiveInputStream(decompressedInputStream, StandardCharsets.UTF_8.name())) {
+            TarArchiveEntry entry;
+            while ((entry = tarInputStream.getNextEntry()) != null) {
+                if (entry.isFile()) {
+                    handler.handle(entry.getName(), entry.getModTime().getTime(), tarInputStream);
+                }
+            }
+        }
+    }
+
+    private static void readZip(@NotNull File archive, @NotNull EntryHandler handler) throws IOException {
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                    handler.handle(entry.getName(), entry.getTime(), inputStream);
+                }
+            }
+        }
+    }
+
+    @NotNull
+    private static InputStream decompress(@NotNull ArchiveFormat format, InputStream inputStream) throws IOException {
+        if (format == ArchiveFormat.TAR_LZ4) {
+            return new LZ4FrameInputStream(inputStream);
+        }
+        try {
+            return new ZstdInputStream(inputStream);
+        } catch (LinkageError e) {
+            throw new IOException("Zstandard is not supported on this platform", e);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how much data was stored in archives without compression, and how much was compressed.
+ * <p>
+ * Each archive has its own stats, as several archives can be created at once,
+ * which also count towards the stats of the whole backup they were created with.
+ */
+public class ArchiveStats {
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong deflatedBytes = new AtomicLong();
+    private final AtomicLong deflatedCompressedBytes = new AtomicLong();
+    private final ArchiveStats total;
+
+    /**
+     * Creates an instance of the {@code ArchiveStats} object
+     */
+    public ArchiveStats() {
+        this(null);
+    }
+
+    /**
+     * Creates an instance of the {@code ArchiveStats} object, which also counts towards the specified stats
+     * @param total the stats of the whole backup, or {@code null} if there are none
+     */
+    public ArchiveStats(@Nullable ArchiveStats total) {
+        this.total = total;
+    }
+
+    /**
+     * Records a file stored without compression.
+     * @param size the size of the file
+     */
+    public void addStored(long size) {
+        storedBytes.addAndGet(size);
+        if (total != null) {
+            total.addStored(size);
+        }
+    }
+
+    /**
+     * Records a compressed file.
+     * @param size the size of the file
+     * @param compressedSize the size of the compressed file
+     */
+    public void addDeflated(long size, long compressedSize) {
+        deflatedBytes.addAndGet(size);
+        deflatedCompressedBytes.addAndGet(compressedSize);
+        if (total != null) {
+            total.addDeflated(size, compressedSize);
+        }
+    }
+
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    public long getDeflatedBytes() {
+        return deflatedBytes.get();
+    }
+
+    public long getDeflatedCompressedBytes() {
+        return deflatedCompressedBytes.get();
+    }
+
+    /**
+     * Gets whether anything was recorded.
+     * @return whether it was
+     */
+    public boolean isEmpty() {
+        return getStoredBytes() == 0 && getDeflatedBytes() == 0;
+    }
+}
@@ -0,0 +1,45 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Adds files to an archive in one of the {@link ArchiveFormat}s.
+ * <p>
+ * Closing the {@code Archiver} completes the archive.
+ */
+public interface Archiver extends Closeable {
+    /**
+     * Adds a file to the archive.
+     * <p>
+     * If the file can't be fully read, it is still added with the data read before the failure,
+     * and the listener the {@code Archiver} was created with is notified.
+     * @param entryName the path of the file inside the archive
+     * @param filePath the path of the file
+     * @param attributes the attributes of the file, or {@code null} if they couldn't be read
+     * @throws IOException if writing to the archive failed
+     */
+    void addFile(String entryName, String filePath, @Nullable BasicFileAttributes attributes) throws IOException;
+
+    /**
+     * Changes the compression level of the files added from now on, to finish the archive sooner at the cost of a larger archive.
+     * Formats whose compressor can't change its level partway through an archive keep the level they were created with.
+     * @param level the compression level, from 0, which stores the files without compressing them, to 9
+     * @return whether the level was changed
+     */
+    default boolean setLevel(int level) {
+        return false;
+    }
+
+    /**
+     * Gets the index of the files added to the archive, to save next to it once it is complete.
+     * @return the index, or {@code null} if the format can't be read at random, see {@link ArchiveIndex}
+     */
+    @Nullable
+    default ArchiveIndex getIndex() {
+        return null;
+    }
+}
@@ -0,0 +1,216 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ratismal.drivebackup.util.BufferPool;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * The files in a backup location as of its last backup, used to find which files changed for incremental backups.
+ * <p>
+ * Each file is recorded with its size, last modified time and the CRC-32 of its contents.
+ * A file which couldn't be fully read when it was backed up is recorded with a size of -1,
+ * so it is always treated as changed.
+ */
+public class BackupManifest {
+    /**
+     * The name of the manifest file, kept next to the backups of the location
+     */
+    public static final String FILE_NAME = ".drivebackup-manifest";
+
+    /**
+     * The entry in incremental backups listing the files deleted since the previous backup
+     */
+    public static final String DELETED_FILES_ENTRY = ".drivebackup-deleted";
+
+    private static final String HEADER = "# DriveBackupV2 backup manifest";
+    private static final String BACKUPS_SINCE_FULL_KEY = "backups-since-full";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int backupsSinceFull;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * Creates an instance of the {@code BackupManifest} object
+     * @param backupsSinceFull the number of incremental backups since the last full backup, 0 for a full backup
+     */
+    public BackupManifest(int backupsSinceFull) {
+        this.backupsSinceFull = backupsSinceFull;
+    }
+
+    /**
+     * The state of a file when it was backed up
+     */
+    public static class Entry {
+        public final long size;
+        public final long lastModified;
+        public final long crc;
+
+        @Contract (pure = true)
+        public Entry(long size, long lastModified, long crc) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.crc = crc;
+        }
+    }
+
+    public int getBackupsSinceFull() {
+        return backupsSinceFull;
+    }
+
+    /**
+     * Gets the recorded state of a file.
+     * @param path the path of the file, relative to the backup location
+     * @return the state, or {@code null} if the file isn't in the manifest
+     */
+    @Nullable
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Records the state of a file.
+     * @param path the path of the file, relative to the backup location
+     * @param entry the state
+     */
+    public void put(String path, Entry entry) {
+        entries.put(path, entry);
+    }
+
+    /**
+     * Sets the CRC-32 of a file already in the manifest.
+     * @param path the path of the file, relative to the backup location
+     * @param crc the CRC-32
+     */
+    public void setCrc(String path, long crc) {
+        Entry entry = entries.get(path);
+        if (entry != null) {
+            entries.put(path, new Entry(entry.size, entry.lastModified, crc));
+        }
+    }
+
+    /**
+     * Marks a file as not fully backed up, so it is treated as changed by the next incremental backup.
+     * @param path the path of the file, relative to the backup location
+     */
+    public void invalidate(String path) {
+        Entry entry = entries.get(path);
+        if (entry != null) {
+            entries.put(path, new Entry(-1, entry.lastModified, entry.crc));
+        }
+    }
+
+    /**
+     * Gets the paths of all the files in the manifest.
+     * @return the paths, relative to the backup location
+     */
+    public Set<String> getPaths() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * Gets whether a file is unchanged since it was recorded.
+     * <p>
+     * If its last modified time changed but its size didn't, its contents are read to compare their CRC-32.
+     * @param path the path of the file, relative to the backup location
+     * @param filePath the path of the file
+     * @param size the current size of the file
+     * @param lastModified the current last modified time of the file
+     * @return whether it is unchanged
+     */
+    public boolean isUnchanged(String path, String filePath, long size, long lastModified) {
+        Entry entry = entries.get(path);
+        if (entry == null || entry.size < 0 || entry.size != size) {
+            return false;
+        }
+        return entry.lastModified == lastModified || (entry.crc >= 0 && entry.crc == calculateCrc(filePath));
+    }
+
+    /**
+     * Loads the manifest from a file.
+     * @param file the file
+     * @return the manifest, or {@code null} if there is no manifest, or it couldn't be read
+     */
+    @Nullable
+    public static BackupManifest load(@NotNull File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            String[] backupsSinceFull = String.valueOf(reader.readLine()).split("\t");
+            if (!HEADER.equals(header) || backupsSinceFull.length != 2 || !BACKUPS_SINCE_FULL_KEY.equals(backupsSinceFull[0])) {
+                return null;
+            }
+            BackupManifest manifest = new BackupManifest(Integer.parseInt(backupsSinceFull[1]));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4) {
+                    return null;
+                }
+                manifest.put(fields[3], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+            }
+            return manifest;
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Saves the manifest to a file, replacing it in one step so that a partially written manifest is never left behind.
+     * @param file the file
+     * @throws IOException if the manifest couldn't be saved
+     */
+    public void save(@NotNull File file) throws IOException {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporaryFile.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            writer.write(BACKUPS_SINCE_FULL_KEY + "\t" + backupsSinceFull);
+            writer.newLine();
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry value = entry.getValue();
+                writer.write(value.size + "\t" + value.lastModified + "\t" + value.crc + "\t" + entry.getKey());
+                writer.newLine();
+            }
+        }
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Calculates the CRC-32 of a file's contents.
+     * @param filePath the path of the file
+     * @return the CRC-32, or -1 if the file couldn't be read
+     */
+    private static long calculateCrc(String filePath) {
+        CRC32 crc = new CRC32();
+        byte[] buffer = BufferPool.acquire(BUFFER_SIZE);
+        try (InputStream inputStream = new FileInputStream(filePath)) {
+            int read;
+            while ((read = inputStream.read(buffer)) >= 0) {
+                crc.update(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            BufferPool.release(buffer);
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,255 @@
+package ratismal.drivebackup.archive;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import ratismal.drivebackup.util.BufferPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Measures how fast, and how well, a sample of the files of a backup location compresses at several compression levels,
+ * to pick the level which creates and uploads its backups in the least time, see {@link #chooseLevel(List, int, double, boolean)}.
+ * <p>
+ * The sample is a number of blocks spread evenly over the bytes of the files, so large files, which make up most of the backup,
+ * are sampled the most. Each block is compressed on its own, on one thread.
+ */
+public final class CompressionBenchmark {
+    /**
+     * The compression levels measured
+     */
+    private static final int[] LEVELS = {1, 3, 6, 9};
+
+    private static final int SAMPLE_BLOCK_SIZE = 1024 * 1024;
+    private static final int SAMPLE_BLOCKS = 16;
+
+    private CompressionBenchmark() {
+    }
+
+    /**
+     * How a sample compressed at a compression level
+     */
+    public static class Measurement {
+        public final int level;
+
+        /**
+         * The compressed size of the sample divided by its size
+         */
+        public final double ratio;
+
+        /**
+         * The number of bytes of the sample compressed per second, on one thread
+         */
+        public final double bytesPerSecond;
+
+        @Contract (pure = true)
+        public Measurement(int level, double ratio, double bytesPerSecond) {
+            this.level = level;
+            this.ratio = ratio;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+    }
+
+    /**
+     * Gets whether the compression level of a format can be tuned.
+     * @param format the archive format
+     * @return whether it can, {@code false} for LZ4, which ignores the level
+     */
+    @Contract (pure = true)
+    public static boolean isTunable(@NotNull ArchiveFormat format) {
+        return format != ArchiveFormat.TAR_LZ4;
+    }
+
+    /**
+     * Compresses a sample of files at each of the measured compression levels.
+     * @param format the archive format, whose compressor is measured
+     * @param filePaths the paths of the files to sample
+     * @param sizes the sizes of the files
+     * @return the measurements, ordered by level, or an empty list if the format can't be tuned, or the files are empty
+     * @throws IOException if the compressor couldn't be created
+     */
+    @NotNull
+    public static List<Measurement> run(@NotNull ArchiveFormat format, @NotNull List<String> filePaths, @NotNull List<Long> sizes) throws IOException {
+        if (!isTunable(format)) {
+            return Collections.emptyList();
+        }
+        List<byte[]> blocks = readSample(filePaths, sizes);
+        try {
+            if (blocks.isEmpty()) {
+                return Collections.emptyList();
+            }
+            // Warms up the compressor, so the first level measured isn't slowed down by it
+            compress(format, LEVELS[0], blocks.get(0));
+            List<Measurement> measurements = new ArrayList<>(LEVELS.length);
+            for (int level : LEVELS) {
+                long size = 0;
+                long compressedSize = 0;
+                long startTime = System.nanoTime();
+                for (byte[] block : blocks) {
+                    size += SAMPLE_BLOCK_SIZE;
+                    compressedSize += compress(format, level, block);
+                }
+                double seconds = Math.max(System.nanoTime() - startTime, 1) / 1e9;
+                measurements.add(new Measurement(level, (double) compressedSize / size, size / seconds));
+            }
+            return measurements;
+        } finally {
+            for (byte[] block : blocks) {
+                BufferPool.release(block);
+            }
+        }
+    }
+
+    /**
+     * Chooses the compression level with which creating and uploading a backup is estimated to take the least time.
+     * @param measurements the measurements of the levels, see {@link #run(ArchiveFormat, List, List)}
+     * @param threads the number of threads compressing
+     * @param uploadBytesPerSecond how many bytes of the backup are uploaded per second, infinite if it isn't uploaded
+     * @param overlapped whether the backup is uploaded while it is being created, so the slower of the two sets the time
+     * @return the level, or -1 if there are no measurements
+     */
+    public static int chooseLevel(@NotNull List<Measurement> measurements, int threads, double uploadBytesPerSecond, boolean overlapped) {
+        int bestLevel = -1;
+        double bestTime = Double.MAX_VALUE;
+        for (Measurement measurement : measurements) {
+            // The time per byte of the backup, as the size of the backup is the same for every level
+            double compressTime = 1 / (measurement.bytesPerSecond * Math.max(threads, 1));
+            double uploadTime = measurement.ratio / uploadBytesPerSecond;
+            double time = overlapped ? Math.max(compressTime, uploadTime) : compressTime + uploadTime;
+            if (time < bestTime) {
+                bestTime = time;
+                bestLevel = measurement.level;
+            }
+        }
+        return bestLevel;
+    }
+
+    /**
+     * Reads blocks spread evenly over the bytes of the files.
+     * A block starting near the end of a file continues into the next files, so a block of small files holds several of them.
+     * @return the blocks, each {@link #SAMPLE_BLOCK_SIZE} bytes, in pooled buffers
+     */
+    @NotNull
+    private static List<byte[]> readSample(@NotNull List<String> filePaths, @NotNull List<Long> sizes) {
+        long[] fileStarts = new long[sizes.size() + 1];
+        for (int i = 0; i < sizes.size(); i++) {
+            fileStarts[i + 1] = fileStarts[i] + Math.max(sizes.get(i), 0);
+        }
+        long totalSize = fileStarts[sizes.size()];
+        List<byte[]> blocks = new ArrayList<>(SAMPLE_BLOCKS);
+        if (totalSize < SAMPLE_BLOCK_SIZE) {
+            return blocks;
+        }
+        int blockCount = (int) Math.min(SAMPLE_BLOCKS, totalSize / SAMPLE_BLOCK_SIZE);
+        long stride = totalSize / blockCount;
+        for (int i = 0; i < blockCount; i++) {
+            long offset = i * stride;
+            int file = findFile(fileStarts, offset);
+            byte[] block = BufferPool.acquire(SAMPLE_BLOCK_SIZE);
+            int length = 0;
+            long position = offset - fileStarts[file];
+            for (; file < filePaths.size() && length < SAMPLE_BLOCK_SIZE; file++, position = 0) {
+                length += readFile(filePaths.get(file), position, block, length);
+            }
+            if (length < SAMPLE_BLOCK_SIZE) {
+                // Files which couldn't be read, or shrank since they were found, are left out of the sample
+                BufferPool.release(block);
+                continue;
+            }
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    /**
+     * Finds the file containing the byte at an offset into all the files.
+     * @return the index of the file
+     */
+    private static int findFile(@NotNull long[] fileStarts, long offset) {
+        int low = 0;
+        int high = fileStarts.length - 2;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (fileStarts[middle] <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Reads from a file into the rest of a block.
+     * @return the number of bytes read, 0 if the file couldn't be read
+     */
+    private static int readFile(String filePath, long position, @NotNull byte[] block, int offset) {
+        try (RandomAccessFile file = new RandomAccessFile(filePath, "r")) {
+            file.seek(position);
+            int length = 0;
+            while (offset + length < SAMPLE_BLOCK_SIZE) {
+                int read = file.read(block, offset + length, SAMPLE_BLOCK_SIZE - offset - length);
+                if (read < 0) {
+                    break;
+                }
+                length += read;
+            }
+            return length;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Compresses a block with the compressor of a format.
+     * @return the compressed size
+     */
+    private static long compress(@NotNull ArchiveFormat format, int level, @NotNull byte[] block) throws IOException {
+        if (format == ArchiveFormat.TAR_ZSTD) {
+            CountingOutputStream counter = new CountingOutputStream();
+            try (ZstdOutputStream zstdOutputStream = new ZstdOutputStream(counter, level)) {
+                zstdOutputStream.write(block, 0, SAMPLE_BLOCK_SIZE);
+            } catch (LinkageError e) {
+                throw new IOException("Zstandard is not supported on this platform", e);
+            }
+            return counter.count;
+        }
+        Deflater deflater = new Deflater(level, true);
+        byte[] buffer = BufferPool.acquire(SAMPLE_BLOCK_SIZE);
+        try {
+            deflater.setInput(block, 0, SAMPLE_BLOCK_SIZE);
+            deflater.finish();
+            long compressedSize = 0;
+            while (!deflater.finished()) {
+                compressedSize += deflater.deflate(buffer);
+            }
+            return compressedSize;
+        } finally {
+            deflater.end();
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Counts the bytes written to it, discarding them
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
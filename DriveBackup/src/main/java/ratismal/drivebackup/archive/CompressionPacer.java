@@ -0,0 +1,118 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.Contract;
+import ratismal.drivebackup.util.BackupDeadline;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Tracks how fast an archive is being created against the {@link BackupDeadline} of the backup,
+ * and lowers the compression level of the rest of the archive when the backup is projected to finish late,
+ * down to 0, which stores the files without compressing them.
+ * <p>
+ * The backup is projected to finish once the remaining files of the archive, and the locations backed up after it, are archived,
+ * at the speed measured since the level last changed, and the rest of the backup is uploaded, at the compression ratio measured since then.
+ * If the total size of the files isn't known, the level is only lowered once the deadline has passed.
+ */
+public class CompressionPacer {
+    /**
+     * How long a level is used before deciding whether it is fast enough, so that its speed can be measured, in nanoseconds
+     */
+    private static final long MIN_LEVEL_TIME = 5_000_000_000L;
+
+    private final BackupDeadline deadline;
+    private final long totalBytes;
+    private final LongSupplier laterBytes;
+    private final double uploadBytesPerSecond;
+    private final boolean uploadOverlapped;
+    private int level;
+    private long levelStartTime;
+    private long levelStartBytes;
+    private long levelStartCompressedBytes;
+
+    /**
+     * Creates an instance of the {@code CompressionPacer} object
+     * @param deadline the deadline of the backup
+     * @param level the compression level the archive is started with
+     * @param totalBytes the total size of the files to archive, or -1 if it isn't known
+     * @param laterBytes gets the size of the files of the locations backed up after this archive, as far as it is known
+     * @param uploadBytesPerSecond how many bytes of the backup are uploaded per second, or -1 if it isn't known
+     * @param uploadOverlapped whether the backup is uploaded while it is being created
+     */
+    public CompressionPacer(BackupDeadline deadline, int level, long totalBytes, LongSupplier laterBytes, double uploadBytesPerSecond, boolean uploadOverlapped) {
+        this.deadline = deadline;
+        this.level = level;
+        this.totalBytes = totalBytes;
+        this.laterBytes = laterBytes;
+        this.uploadBytesPerSecond = uploadBytesPerSecond;
+        this.uploadOverlapped = uploadOverlapped;
+        this.levelStartTime = System.nanoTime();
+    }
+
+    /**
+     * Records how much was archived so far, and gets the compression level to archive the next files with.
+     * @param archivedBytes the number of bytes of the files added to the archive so far
+     * @param compressedBytes the number of bytes of the archive created so far, which still have to be uploaded unless it is uploaded while it is created
+     * @return the compression level, lower than before if the backup is projected to finish late
+     */
+    public int update(long archivedBytes, long compressedBytes) {
+        if (level == 0) {
+            return level;
+        }
+        long now = System.nanoTime();
+        long time = now - levelStartTime;
+        long bytes = archivedBytes - levelStartBytes;
+        if (time < MIN_LEVEL_TIME || bytes <= 0) {
+            return level;
+        }
+        if (isLate(archivedBytes, compressedBytes, bytes, time)) {
+            level = getFasterLevel(level);
+            levelStartTime = now;
+            levelStartBytes = archivedBytes;
+            levelStartCompressedBytes = compressedBytes;
+        }
+        return level;
+    }
+
+    /**
+     * Gets the compression level to start an archive with, which is the fastest one if the deadline has already passed.
+     * @param deadline the deadline of the backup
+     * @param level the compression level the archive would be started with
+     * @return the compression level
+     */
+    public static int getStartLevel(BackupDeadline deadline, int level) {
+        return deadline.isExceeded() ? Math.min(level, 1) : level;
+    }
+
+    private boolean isLate(long archivedBytes, long compressedBytes, long bytes, long time) {
+        long remainingTime = deadline.getRemainingTime();
+        if (totalBytes < 0) {
+            return remainingTime < 0;
+        }
+        double remainingBytes = Math.max(totalBytes - archivedBytes, 0) + laterBytes.getAsLong();
+        double archiveTime = remainingBytes * time / bytes / 1e6;
+        double uploadTime = 0;
+        if (uploadBytesPerSecond > 0 && !Double.isInfinite(uploadBytesPerSecond)) {
+            double ratio = (double) (compressedBytes - levelStartCompressedBytes) / bytes;
+            double remainingCompressedBytes = remainingBytes * ratio;
+            double uploadedBytes = uploadOverlapped ? remainingCompressedBytes : compressedBytes + remainingCompressedBytes;
+            uploadTime = uploadedBytes * 1000 / uploadBytesPerSecond;
+        }
+        double projectedTime = uploadOverlapped ? Math.max(archiveTime, uploadTime) : archiveTime + uploadTime;
+        return projectedTime > remainingTime;
+    }
+
+    @Contract (pure = true)
+    private static int getFasterLevel(int level) {
+        if (level > 6) {
+            return 6;
+        }
+        if (level > 3) {
+            return 3;
+        }
+        if (level > 1) {
+            return 1;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,137 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Decides whether files are worth compressing, or should be stored in zip archives as they are.
+ * <p>
+ * A file is considered incompressible if its extension is that of a format which is already compressed,
+ * such as Minecraft region files, or if the start of the file looks compressed, either by starting with the
+ * signature of a compressed format, or by its bytes being close to random.
+ */
+public final class CompressionStrategy {
+    /**
+     * How much of the start of a file is sampled
+     */
+    public static final int SAMPLE_SIZE = 4 * 1024;
+
+    /**
+     * Samples with at least this many bits of entropy per byte are considered incompressible
+     */
+    private static final double INCOMPRESSIBLE_ENTROPY = 7.5;
+
+    /**
+     * Samples shorter than this aren't worth judging, small files are always compressed
+     */
+    private static final int MIN_SAMPLE_SIZE = 512;
+
+    /**
+     * The extensions of already compressed formats.
+     * Region files are included as their chunks are compressed, but their headers, at the start of the file, aren't.
+     */
+    private static final Set<String> INCOMPRESSIBLE_EXTENSIONS = new HashSet<>(Arrays.asList(
+        "mca", "mcr", "mcc", "jar", "zip", "gz", "tgz", "bz2", "xz", "zst", "lz4", "7z", "rar",
+        "png", "jpg", "jpeg", "gif", "webp", "ogg", "mp3", "mp4", "webm"));
+
+    private static final byte[][] COMPRESSED_SIGNATURES = {
+        {0x1F, (byte) 0x8B}, // gzip
+        {0x50, 0x4B, 0x03, 0x04}, // zip
+        {0x28, (byte) 0xB5, 0x2F, (byte) 0xFD}, // zstd
+        {(byte) 0xFD, 0x37, 0x7A, 0x58, 0x5A, 0x00}, // xz
+        {0x04, 0x22, 0x4D, 0x18}, // lz4
+        {(byte) 0x89, 0x50, 0x4E, 0x47}, // png
+        {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF}, // jpeg
+    };
+
+    private CompressionStrategy() {
+    }
+
+    /**
+     * Gets whether the specified file is incompressible based on its extension.
+     * @param filePath the path of the file
+     * @return whether it is
+     */
+    @Contract (pure = true)
+    public static boolean hasIncompressibleExtension(@NotNull String filePath) {
+        int separatorIndex = Math.max(filePath.lastIndexOf('/'), filePath.lastIndexOf('\\'));
+        int extensionIndex = filePath.lastIndexOf('.');
+        if (extensionIndex <= separatorIndex) {
+            return false;
+        }
+        return INCOMPRESSIBLE_EXTENSIONS.contains(filePath.substring(extensionIndex + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Gets whether the specified data, from the start of a file, looks incompressible.
+     * @param sample the data
+     * @param length the length of the data in the array
+     * @return whether it does
+     */
+    public static boolean isIncompressible(byte[] sample, int length) {
+        for (byte[] signature : COMPRESSED_SIGNATURES) {
+            if (startsWith(sample, length, signature)) {
+                return true;
+            }
+        }
+        length = Math.min(length, SAMPLE_SIZE);
+        if (length < MIN_SAMPLE_SIZE) {
+            return false;
+        }
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[sample[i] & 0xFF]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double probability = (double) count / length;
+                entropy -= probability * Math.log(probability);
+            }
+        }
+        return entropy / Math.log(2) >= INCOMPRESSIBLE_ENTROPY;
+    }
+
+    /**
+     * Gets whether the specified file is incompressible, based on its extension or by sampling its start.
+     * @param filePath the path of the file
+     * @return whether it is, {@code false} if it couldn't be read
+     */
+    public static boolean isIncompressible(@NotNull String filePath) {
+        if (hasIncompressibleExtension(filePath)) {
+            return true;
+        }
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int length = 0;
+        try (InputStream inputStream = new FileInputStream(filePath)) {
+            int read;
+            while (length < sample.length && (read = inputStream.read(sample, length, sample.length - length)) >= 0) {
+                length += read;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return isIncompressible(sample, length);
+    }
+
+    @Contract (pure = true)
+    private static boolean startsWith(byte[] data, int length, @NotNull byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,40 @@
+package ratismal.drivebackup.archive;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * The CRC-32 and size of the uncompressed data of a zip entry, as it is read.
+ */
+public class EntryChecksum {
+    private final CRC32 crc = new CRC32();
+    private long size;
+
+    /**
+     * Adds data to the checksum.
+     * @param data the data
+     * @param offset the offset of the data in the array
+     * @param length the length of the data
+     */
+    public void update(byte[] data, int offset, int length) {
+        crc.update(data, offset, length);
+        size += length;
+    }
+
+    /**
+     * Adds the remaining data of a buffer to the checksum, leaving the buffer at its limit.
+     * @param data the data
+     */
+    public void update(ByteBuffer data) {
+        size += data.remaining();
+        crc.update(data);
+    }
+
+    public long getCrc() {
+        return crc.getValue();
+    }
+
+    public long getSize() {
+        return size;
+    }
+}
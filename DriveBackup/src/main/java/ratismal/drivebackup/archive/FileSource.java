@@ -0,0 +1,293 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ratismal.drivebackup.util.BufferPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file to be archived through a {@link FileChannel}, a large block at a time,
+ * instead of in many small reads through a {@code FileInputStream}.
+ * <p>
+ * Files of at least {@link #MAP_THRESHOLD}, such as region files and databases, are memory mapped, a window at a time,
+ * so each byte is only copied once, straight out of the page cache.
+ * Each window is unmapped as soon as it was read, rather than when it is garbage collected,
+ * as on some platforms a mapped file can't be resized, which the server does to region files once saving is enabled again.
+ * If that isn't possible on this JVM, files aren't mapped.
+ * Smaller files, and any data past the size a file had when it was opened, are read into a direct buffer from the {@link BufferPool}.
+ * <p>
+ * A file already read into memory by {@link ReadAhead} is read from there instead, see {@link #of(ByteBuffer, Runnable)}.
+ */
+final class FileSource extends InputStream {
+    /**
+     * Files at least this large are memory mapped
+     */
+    static final long MAP_THRESHOLD = 4L * 1024 * 1024;
+
+    private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    @Nullable
+    private static final Unmapper UNMAPPER = createUnmapper();
+
+    private final FileChannel channel;
+    private final long mappedSize;
+    private long position;
+    private MappedByteBuffer window;
+    private ByteBuffer buffer;
+
+    /**
+     * The whole file, if it was read ahead, and what to do once it was read
+     */
+    private final ByteBuffer data;
+    private final Runnable release;
+    private boolean released;
+
+    private FileSource(@NotNull FileChannel channel) throws IOException {
+        this.channel = channel;
+        long size = channel.size();
+        mappedSize = size >= MAP_THRESHOLD && UNMAPPER != null ? size : 0;
+        data = null;
+        release = null;
+    }
+
+    private FileSource(@NotNull ByteBuffer data, @NotNull Runnable release) {
+        this.channel = null;
+        this.mappedSize = 0;
+        this.data = data;
+        this.release = release;
+    }
+
+    /**
+     * Opens a file to read.
+     * @param filePath the path of the file
+     * @return the {@code FileSource}
+     * @throws IOException if the file couldn't be opened
+     */
+    @NotNull
+    static FileSource open(String filePath) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+        } catch (InvalidPathException e) {
+            throw new IOException(e);
+        }
+        try {
+            return new FileSource(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a file which was already read into memory.
+     * @param data the whole file
+     * @param release called once the file was read and closed
+     * @return the {@code FileSource}
+     */
+    @NotNull
+    static FileSource of(@NotNull ByteBuffer data, @NotNull Runnable release) {
+        return new FileSource(data, release);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@NotNull byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        ByteBuffer source = nextBlock();
+        if (source == null) {
+            return -1;
+        }
+        int read = Math.min(len, source.remaining());
+        try {
+            source.get(b, off, read);
+        } catch (InternalError e) {
+            throw truncated(e);
+        }
+        position += read;
+        return read;
+    }
+
+    /**
+     * Gets how much of the file was read.
+     * @return the number of bytes
+     */
+    long getPosition() {
+        return position;
+    }
+
+    /**
+     * Reads the rest of the file, adding it to a checksum straight from the mapped or direct buffer, without copying it.
+     * @param checksum the checksum
+     * @throws IOException if the file couldn't be read
+     */
+    void readInto(@NotNull EntryChecksum checksum) throws IOException {
+        ByteBuffer source;
+        while ((source = nextBlock()) != null) {
+            int read = source.remaining();
+            try {
+                checksum.update(source);
+            } catch (InternalError e) {
+                throw truncated(e);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Transfers the rest of the file to a channel, which for another file is done by the operating system,
+     * without the data passing through the JVM.
+     * @param target the channel
+     * @param count the maximum number of bytes to transfer
+     * @return the number of bytes transferred, less than the count only if the file ended
+     * @throws IOException if the file couldn't be read, or the channel couldn't be written to
+     */
+    long transferTo(@NotNull WritableByteChannel target, long count) throws IOException {
+        if (data != null) {
+            long transferred = 0;
+            int limit = data.limit();
+            data.limit((int) Math.min(limit, data.position() + count));
+            try {
+                while (data.hasRemaining()) {
+                    transferred += target.write(data);
+                }
+            } finally {
+                data.limit(limit);
+                position += transferred;
+            }
+            return transferred;
+        }
+        unmapWindow();
+        long transferred = 0;
+        while (transferred < count) {
+            long result = channel.transferTo(position, count - transferred, target);
+            if (result <= 0) {
+                break;
+            }
+            position += result;
+            transferred += result;
+        }
+        return transferred;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (data != null) {
+            if (!released) {
+                released = true;
+                release.run();
+            }
+            return;
+        }
+        unmapWindow();
+        if (buffer != null) {
+            BufferPool.releaseDirect(buffer);
+            buffer = null;
+        }
+        channel.close();
+    }
+
+    /**
+     * Gets the buffer with the next data of the file, mapping the next window or reading the next block as needed.
+     * @return the buffer, or {@code null} if the file ended
+     */
+    @Nullable
+    private ByteBuffer nextBlock() throws IOException {
+        if (data != null) {
+            return data.hasRemaining() ? data : null;
+        }
+        if (position < mappedSize) {
+            if (window == null || !window.hasRemaining()) {
+                unmapWindow();
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW_SIZE, mappedSize - position));
+            }
+            return window;
+        }
+        unmapWindow();
+        if (buffer == null) {
+            buffer = BufferPool.acquireDirect(BUFFER_SIZE);
+            buffer.limit(0);
+        }
+        if (!buffer.hasRemaining()) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            buffer.flip();
+            if (read <= 0) {
+                return null;
+            }
+        }
+        return buffer;
+    }
+
+    private void unmapWindow() {
+        if (window == null) {
+            return;
+        }
+        try {
+            UNMAPPER.unmap(window);
+        } catch (Exception ignored) {
+            // Unmapped once garbage collected instead
+        }
+        window = null;
+    }
+
+    /**
+     * Reading a mapped file which was truncated while mapped fails with an {@code InternalError}, rather than an {@code IOException}.
+     */
+    @NotNull
+    private static IOException truncated(InternalError e) {
+        return new IOException("File was truncated while being read", e);
+    }
+
+    /**
+     * Unmaps a mapped buffer
+     */
+    private interface Unmapper {
+        void unmap(ByteBuffer buffer) throws Exception;
+    }
+
+    /**
+     * Finds how to unmap mapped buffers on this JVM,
+     * with {@code sun.misc.Unsafe.invokeCleaner} on Java 9 and later, and the buffer's cleaner on Java 8.
+     * @return the {@code Unmapper}, or {@code null} if mapped buffers can't be unmapped
+     */
+    @Nullable
+    private static Unmapper createUnmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invokeCleaner.invoke(unsafe, buffer);
+        } catch (Exception ignored) {
+        }
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> clean.invoke(cleaner.invoke(buffer));
+        } catch (Exception ignored) {
+        }
+        return null;
+    }
+}
@@ -0,0 +1,111 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Restores a full backup and the incremental backups made after it.
+ * <p>
+ * Each backup is extracted on top of the previous ones, in order.
+ * Region file deltas are merged onto the region files, see {@link RegionDelta},
+ * and the files listed as deleted in an incremental backup are deleted.
+ * <p>
+ * It can be run without the server, with
+ * {@code java -cp DriveBackupV2.jar ratismal.drivebackup.archive.IncrementalRestore <destination> <full backup> [incremental backups...]}
+ */
+public final class IncrementalRestore {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private IncrementalRestore() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: java -cp DriveBackupV2.jar " + IncrementalRestore.class.getName() + " <destination> <full backup> [incremental backups...]");
+            System.exit(1);
+        }
+        List<File> archives = new ArrayList<>();
+        for (String archive : Arrays.asList(args).subList(1, args.length)) {
+            archives.add(new File(archive));
+        }
+        File destination = new File(args[0]);
+        try {
+            restore(destination, archives);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.out.println("Restored " + archives.size() + " backup(s) to " + destination.getAbsolutePath());
+    }
+
+    /**
+     * Restores the specified backups to a folder.
+     * @param destination the folder
+     * @param archives the full backup, followed by the incremental backups made after it, oldest first
+     * @throws IOException if a backup couldn't be read, or a file couldn't be restored
+     */
+    public static void restore(@NotNull File destination, @NotNull List<File> archives) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (File archive : archives) {
+            List<String> deletedFiles = new ArrayList<>();
+            ArchiveReader.read(archive, (name, lastModified, inputStream) -> {
+                if (name.equals(BackupManifest.DELETED_FILES_ENTRY)) {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        deletedFiles.add(line);
+                    }
+                    return;
+                }
+                if (name.endsWith(RegionDelta.SUFFIX)) {
+                    File region = resolve(destination, name.substring(0, name.length() - RegionDelta.SUFFIX.length()));
+                    RegionDelta.apply(region, inputStream);
+                    if (lastModified >= 0) {
+                        region.setLastModified(lastModified);
+                    }
+                    return;
+                }
+                File file = resolve(destination, name);
+                File parent = file.getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Failed to create " + parent.getPath());
+                }
+                try (OutputStream outputStream = new FileOutputStream(file)) {
+                    int read;
+                    while ((read = inputStream.read(buffer)) >= 0) {
+                        outputStream.write(buffer, 0, read);
+                    }
+                }
+                if (lastModified >= 0) {
+                    file.setLastModified(lastModified);
+                }
+            });
+            for (String deletedFile : deletedFiles) {
+                resolve(destination, deletedFile).delete();
+            }
+        }
+    }
+
+    /**
+     * Gets the file an entry is restored to, making sure it is inside the destination folder.
+     */
+    @NotNull
+    static File resolve(@NotNull File destination, String name) throws IOException {
+        File file = new File(destination, name);
+        String destinationPath = destination.getCanonicalPath() + File.separator;
+        if (!file.getCanonicalPath().startsWith(destinationPath)) {
+            throw new IOException(name + " is outside of the destination folder");
+        }
+        return file;
+    }
+}
@@ -0,0 +1,406 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.NotNull;
+import ratismal.drivebackup.util.BufferPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Compresses zip entry data into a raw deflate stream, optionally using several threads.
+ * <p>
+ * When using several threads, the data is split into blocks which are compressed concurrently, in the same way as pigz.
+ * Each block is compressed by its own {@code Deflater} primed with the end of the preceding block,
+ * and all but the last end with a sync flush, so the compressed blocks joined in order form one standard deflate stream.
+ * <p>
+ * Small files can instead be compressed whole by one of the threads with {@link #compressLater(String, boolean)},
+ * so that many of them are compressed at once.
+ */
+public class ParallelDeflater implements Closeable {
+    /**
+     * The size of the blocks data is split into when using several threads
+     */
+    public static final int BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * The size of the deflate window, so how much of the preceding block to use as a dictionary
+     */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private volatile int level;
+    private final int threads;
+    private final ReadAhead readAhead;
+    private final ExecutorService executor;
+    private final int maxBlocksInFlight;
+    private final List<Deflater> allDeflaters = new CopyOnWriteArrayList<>();
+    /**
+     * The {@code Deflater}s of each thread, by compression level, as changing the level of a {@code Deflater}
+     * only takes effect partway through its next call
+     */
+    private final ThreadLocal<Deflater[]> deflaters = ThreadLocal.withInitial(() -> new Deflater[Deflater.BEST_COMPRESSION + 1]);
+    private final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    private final ThreadLocal<ByteArrayOutputStream> fileBuffers = ThreadLocal.withInitial(ByteArrayOutputStream::new);
+    private final ThreadLocal<ByteArrayOutputStream> entryBuffers = ThreadLocal.withInitial(ByteArrayOutputStream::new);
+
+    /**
+     * Creates an instance of the {@code ParallelDeflater} object
+     * @param level the compression level, from 1 to 9
+     * @param threads the number of threads to compress with, 1 compresses on the calling thread
+     * @param threadPriority the priority of the compression threads
+     * @param readAhead opens the files to compress, which it may have read ahead
+     */
+    public ParallelDeflater(int level, int threads, int threadPriority, ReadAhead readAhead) {
+        this.level = level;
+        this.threads = threads > 1 ? threads : 0;
+        this.readAhead = readAhead;
+        if (threads > 1) {
+            AtomicInteger threadCount = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "DriveBackupV2-compression-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(threadPriority);
+                return thread;
+            });
+            maxBlocksInFlight = threads * 2;
+        } else {
+            executor = null;
+            maxBlocksInFlight = 1;
+        }
+    }
+
+    /**
+     * Reads a file to the end, writing it as deflated data to the current entry of the zip.
+     * <p>
+     * If the file can't be fully read, the data read before the failure is still written as a complete deflate stream.
+     * @param filePath the path of the file to compress
+     * @param zipWriter the zip to write the compressed data to
+     * @param checksum updated with the uncompressed data
+     * @return whether the file was read fully
+     * @throws IOException if writing to the zip fails
+     */
+    public boolean deflate(String filePath, ZipWriter zipWriter, EntryChecksum checksum) throws IOException {
+        int level = this.level;
+        try (BlockReader reader = BlockReader.open(readAhead, filePath)) {
+            if (executor == null) {
+                deflateSerially(reader, zipWriter::write, checksum, level);
+            } else {
+                deflateInParallel(reader, zipWriter, checksum, level);
+            }
+            return reader.exception == null;
+        }
+    }
+
+    /**
+     * Reads and compresses a whole file on one of the compression threads.
+     * <p>
+     * If the file is incompressible, or the compression level is 0, it isn't compressed, and should be {@code STORED} instead.
+     * @param filePath the path of the file to compress
+     * @param storeIncompressible whether to check if the file is incompressible
+     * @return the compressed file
+     * @throws IllegalStateException if this {@code ParallelDeflater} only uses the calling thread
+     * @see CompressionStrategy
+     */
+    public Future<CompressedEntry> compressLater(String filePath, boolean storeIncompressible) {
+        if (executor == null) {
+            throw new IllegalStateException("No compression threads");
+        }
+        int level = this.level;
+        return executor.submit(() -> {
+            ByteArrayOutputStream fileBuffer = fileBuffers.get();
+            fileBuffer.reset();
+            byte[] buffer = buffers.get();
+            IOException exception;
+            try (BlockReader reader = BlockReader.open(readAhead, filePath)) {
+                int length;
+                while ((length = reader.read(buffer, buffer.length)) > 0) {
+                    fileBuffer.write(buffer, 0, length);
+                }
+                exception = reader.exception;
+            }
+            byte[] data = fileBuffer.toByteArray();
+            EntryChecksum checksum = new EntryChecksum();
+            if (level == Deflater.NO_COMPRESSION || storeIncompressible
+                && (CompressionStrategy.hasIncompressibleExtension(filePath) || CompressionStrategy.isIncompressible(data, data.length))) {
+                checksum.update(data, 0, data.length);
+                return new CompressedEntry(ZipEntry.STORED, data, checksum, exception);
+            }
+            ByteArrayOutputStream compressed = entryBuffers.get();
+            compressed.reset();
+            try (BlockReader reader = new BlockReader(new ByteArrayInputStream(data), null)) {
+                deflateSerially(reader, compressed::write, checksum, level);
+            }
+            return new CompressedEntry(ZipEntry.DEFLATED, compressed.toByteArray(), checksum, exception);
+        });
+    }
+
+    /**
+     * Changes the compression level of the files compressed from now on.
+     * @param level the compression level, from 0, which only splits the data into deflate blocks without compressing it, to 9
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Gets the number of compression threads.
+     * @return the number of threads, 0 if compressing on the calling thread
+     */
+    public int getThreadCount() {
+        return threads;
+    }
+
+    /**
+     * Stops the compression threads.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        for (Deflater deflater : allDeflaters) {
+            deflater.end();
+        }
+        allDeflaters.clear();
+    }
+
+    private void deflateSerially(@NotNull BlockReader reader, Sink sink, EntryChecksum checksum, int level) throws IOException {
+        Deflater deflater = getDeflater(level);
+        byte[] inputBuffer = BufferPool.acquire(BUFFER_SIZE);
+        byte[] outputBuffer = buffers.get();
+        try {
+            int length;
+            while ((length = reader.read(inputBuffer, BUFFER_SIZE)) > 0) {
+                checksum.update(inputBuffer, 0, length);
+                deflater.setInput(inputBuffer, 0, length);
+                while (!deflater.needsInput()) {
+                    int compressedLength = deflater.deflate(outputBuffer);
+                    sink.write(outputBuffer, 0, compressedLength);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                int compressedLength = deflater.deflate(outputBuffer);
+                sink.write(outputBuffer, 0, compressedLength);
+            }
+        } finally {
+            BufferPool.release(inputBuffer);
+        }
+    }
+
+    private void deflateInParallel(@NotNull BlockReader reader, ZipWriter zipWriter, EntryChecksum checksum, int level) throws IOException {
+        Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        // The blocks being compressed, and the block before them, which the first uses as its dictionary.
+        // They are only returned to the pool once compressed, if compressing fails they are left to be garbage collected.
+        Deque<byte[]> blocks = new ArrayDeque<>();
+        byte[] previous = null;
+        byte[] block = BufferPool.acquire(BLOCK_SIZE);
+        int length = reader.read(block, BLOCK_SIZE);
+        while (true) {
+            byte[] next = null;
+            int nextLength = 0;
+            if (length == BLOCK_SIZE) {
+                next = BufferPool.acquire(BLOCK_SIZE);
+                nextLength = reader.read(next, BLOCK_SIZE);
+                if (nextLength == 0) {
+                    BufferPool.release(next);
+                    next = null;
+                }
+            }
+            boolean last = nextLength == 0;
+            checksum.update(block, 0, length);
+            blocks.add(block);
+            if (last && pending.isEmpty()) {
+                // Not worth handing off to another thread
+                zipWriter.write(compressBlock(block, length, previous, true, level));
+                blocks.forEach(BufferPool::release);
+                return;
+            }
+            final byte[] blockData = block;
+            final int blockLength = length;
+            final byte[] dictionary = previous;
+            pending.add(executor.submit(() -> compressBlock(blockData, blockLength, dictionary, last, level)));
+            while (pending.size() > maxBlocksInFlight || (last && !pending.isEmpty())) {
+                zipWriter.write(await(pending.poll()));
+                while (blocks.size() > pending.size() + 1) {
+                    BufferPool.release(blocks.poll());
+                }
+            }
+            if (last) {
+                blocks.forEach(BufferPool::release);
+                return;
+            }
+            previous = block;
+            block = next;
+            length = nextLength;
+        }
+    }
+
+    /**
+     * Compresses a block of data as part of a raw deflate stream.
+     * @param block the data
+     * @param length the length of the data in the array
+     * @param previous the preceding block, or {@code null} if this is the first
+     * @param last whether this is the last block of the stream
+     * @param level the compression level
+     * @return the compressed data
+     */
+    private byte[] compressBlock(byte[] block, int length, byte[] previous, boolean last, int level) {
+        Deflater deflater = getDeflater(level);
+        if (previous != null) {
+            deflater.setDictionary(previous, BLOCK_SIZE - DICTIONARY_SIZE, DICTIONARY_SIZE);
+        }
+        deflater.setInput(block, 0, length);
+        byte[] buffer = buffers.get();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                int compressedLength = deflater.deflate(buffer);
+                compressed.write(buffer, 0, compressedLength);
+            }
+        } else {
+            int compressedLength;
+            do {
+                compressedLength = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                compressed.write(buffer, 0, compressedLength);
+            } while (compressedLength == buffer.length);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Gets the {@code Deflater} of the calling thread for a compression level, reset to start a new stream.
+     */
+    private Deflater getDeflater(int level) {
+        Deflater[] levelDeflaters = deflaters.get();
+        Deflater deflater = levelDeflaters[level];
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+            levelDeflaters[level] = deflater;
+            allDeflaters.add(deflater);
+        } else {
+            deflater.reset();
+        }
+        return deflater;
+    }
+
+    private static byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress block", e.getCause());
+        }
+    }
+
+    /**
+     * Reads blocks from a file, holding on to the first exception instead of throwing it,
+     * so that the data read up to that point can still be compressed.
+     */
+    private static class BlockReader implements Closeable {
+        private final InputStream input;
+        private IOException exception;
+
+        private BlockReader(InputStream input, IOException exception) {
+            this.input = input;
+            this.exception = exception;
+        }
+
+        @NotNull
+        private static BlockReader open(@NotNull ReadAhead readAhead, String filePath) {
+            try {
+                return new BlockReader(readAhead.open(filePath), null);
+            } catch (IOException e) {
+                return new BlockReader(null, e);
+            }
+        }
+
+        /**
+         * Reads from the file until the block is full, or the file ends or fails to be read.
+         * @param block the array to read into
+         * @param size the size of the block, which may be less than the length of the array
+         * @return the number of bytes read
+         */
+        private int read(byte[] block, int size) {
+            int length = 0;
+            while (exception == null && length < size) {
+                int read;
+                try {
+                    read = input.read(block, length, size - length);
+                } catch (IOException e) {
+                    exception = e;
+                    break;
+                }
+                if (read < 0) {
+                    break;
+                }
+                length += read;
+            }
+            return length;
+        }
+
+        @Override
+        public void close() {
+            if (input == null) {
+                return;
+            }
+            try {
+                input.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Somewhere to write compressed data
+     */
+    private interface Sink {
+        void write(byte[] data, int offset, int length) throws IOException;
+    }
+
+    /**
+     * A file compressed by {@link #compressLater(String, boolean)}
+     */
+    public static class CompressedEntry {
+        /**
+         * The compression method, {@code STORED} if the file was incompressible
+         */
+        public final int method;
+        /**
+         * The raw deflate stream, or the file itself if {@code STORED}
+         */
+        public final byte[] data;
+        public final EntryChecksum checksum;
+        /**
+         * The exception thrown reading the file, or {@code null} if it was read fully.
+         * The data read before the exception is still included.
+         */
+        public final IOException exception;
+
+        private CompressedEntry(int method, byte[] data, EntryChecksum checksum, IOException exception) {
+            this.method = method;
+            this.data = data;
+            this.checksum = checksum;
+            this.exception = exception;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.NotNull;
+import ratismal.drivebackup.util.BufferPool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the next files to be archived on a few I/O threads, while the current file is being compressed,
+ * so the compression threads don't wait for files to be opened and read.
+ * <p>
+ * The files are read whole into memory, in the order they will be archived, see {@link #prefetch(String, long)},
+ * and handed to the {@link Archiver} when it opens them, see {@link #open(String)}.
+ * Only files smaller than {@link FileSource#MAP_THRESHOLD} are read ahead, larger files are read in large blocks as they are archived.
+ * A file is only read ahead if it fits in the memory left, otherwise it is read when it is archived,
+ * so at most the memory cap is held by files waiting to be archived.
+ * The files are read into buffers from the {@link BufferPool}, which are returned once the files were archived.
+ * <p>
+ * A {@code ReadAhead} with a depth of 0 doesn't read ahead, and opens files when they are archived.
+ */
+public class ReadAhead implements Closeable {
+    /**
+     * The number of I/O threads
+     */
+    private static final int THREADS = 4;
+
+    private final int depth;
+    private final long memoryCap;
+    private final ExecutorService executor;
+    private final Map<String, Prefetched> files = new ConcurrentHashMap<>();
+    private final AtomicLong memoryUsed = new AtomicLong();
+
+    /**
+     * Creates an instance of the {@code ReadAhead} object
+     * @param depth how many files to read ahead, 0 to not read ahead
+     * @param memoryCap the maximum number of bytes held by files read ahead
+     * @param threadPriority the priority of the I/O threads
+     */
+    public ReadAhead(int depth, long memoryCap, int threadPriority) {
+        this.depth = Math.max(depth, 0);
+        this.memoryCap = memoryCap;
+        if (this.depth > 0 && memoryCap > 0) {
+            AtomicInteger threadCount = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(Math.min(THREADS, this.depth), runnable -> {
+                Thread thread = new Thread(runnable, "DriveBackupV2-read-ahead-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(threadPriority);
+                return thread;
+            });
+        } else {
+            executor = null;
+        }
+    }
+
+    /**
+     * Creates a {@code ReadAhead} which doesn't read ahead.
+     * @return the {@code ReadAhead}
+     */
+    @NotNull
+    public static ReadAhead disabled() {
+        return new ReadAhead(0, 0, Thread.NORM_PRIORITY);
+    }
+
+    /**
+     * Gets how many files to read ahead of the file being archived.
+     * @return the number of files, 0 if not reading ahead
+     */
+    public int getDepth() {
+        return executor != null ? depth : 0;
+    }
+
+    /**
+     * Starts reading a file which will be archived soon, unless it is too large, or doesn't fit in the memory left.
+     * Files must be read ahead in the order they will be archived in, so the earliest are read first.
+     * @param filePath the path of the file
+     * @param size the size of the file
+     */
+    public void prefetch(String filePath, long size) {
+        if (executor == null || size < 0 || size >= FileSource.MAP_THRESHOLD || files.containsKey(filePath)) {
+            return;
+        }
+        // Memory is reserved in the order files will be archived in, so a file read ahead never waits for memory held by later files
+        long bufferSize = BufferPool.getBufferSize((int) size);
+        long used;
+        do {
+            used = memoryUsed.get();
+            if (used + bufferSize > memoryCap) {
+                return;
+            }
+        } while (!memoryUsed.compareAndSet(used, used + bufferSize));
+        files.put(filePath, new Prefetched(bufferSize, executor.submit(() -> read(filePath, size))));
+    }
+
+    /**
+     * Opens a file to archive, with the data read ahead if it was, waiting for it to be read if needed.
+     * If the file couldn't be read ahead, it is opened to be read as it is archived instead.
+     * @param filePath the path of the file
+     * @return the {@code FileSource}
+     * @throws IOException if the file couldn't be opened
+     */
+    @NotNull
+    FileSource open(String filePath) throws IOException {
+        Prefetched file = files.remove(filePath);
+        if (file == null) {
+            return FileSource.open(filePath);
+        }
+        ByteBuffer data = null;
+        try {
+            data = file.data.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ignored) {
+            // Opening it again will fail with the same exception, or succeed if it was temporary
+        }
+        if (data == null) {
+            file.data.cancel(true);
+            memoryUsed.addAndGet(-file.size);
+            return FileSource.open(filePath);
+        }
+        ByteBuffer buffer = data;
+        return FileSource.of(data, () -> {
+            BufferPool.release(buffer.array());
+            memoryUsed.addAndGet(-file.size);
+        });
+    }
+
+    /**
+     * Stops reading ahead, dropping the files which weren't archived.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        for (Prefetched file : files.values()) {
+            // The buffers of files already read are returned to the pool
+            if (!file.data.cancel(true)) {
+                try {
+                    ByteBuffer data = file.data.get();
+                    if (data != null) {
+                        BufferPool.release(data.array());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ignored) {
+                }
+            }
+        }
+        files.clear();
+        memoryUsed.set(0);
+    }
+
+    /**
+     * Reads a whole file into a pooled buffer.
+     * @return the data, backed by the pooled buffer, or {@code null} if the file didn't have the expected size, and should be read as it is archived instead
+     * @throws IOException if the file couldn't be read
+     */
+    private static ByteBuffer read(String filePath, long size) throws IOException {
+        byte[] buffer = BufferPool.acquire((int) size);
+        // The buffer may be larger than the file, so reading one byte past the end shows whether the file grew
+        ByteBuffer data = ByteBuffer.wrap(buffer, 0, (int) Math.min(size + 1, buffer.length));
+        boolean read = false;
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            while (data.position() < size) {
+                if (channel.read(data) < 0) {
+                    return null;
+                }
+            }
+            // A file which grew since it was found is read as it is archived, so none of it is left out
+            if (data.position() > size || channel.read(data.hasRemaining() ? data : ByteBuffer.allocate(1)) >= 0) {
+                return null;
+            }
+            read = true;
+        } catch (InvalidPathException e) {
+            throw new IOException(e);
+        } finally {
+            if (!read) {
+                BufferPool.release(buffer);
+            }
+        }
+        data.flip();
+        return data;
+    }
+
+    /**
+     * A file being read ahead, with the memory reserved for it
+     */
+    private static class Prefetched {
+        private final long size;
+        private final Future<ByteBuffer> data;
+
+        private Prefetched(long size, Future<ByteBuffer> data) {
+            this.size = size;
+            this.data = data;
+        }
+    }
+}
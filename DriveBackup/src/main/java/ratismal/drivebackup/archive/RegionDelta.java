@@ -0,0 +1,263 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * The chunks of an Anvil region file which were saved since a previous backup.
+ * <p>
+ * A region file starts with a table of the location of each of its 1024 chunks, as a 3 byte sector offset and a 1 byte sector count,
+ * followed by a table of the time each chunk was last saved, in seconds.
+ * The chunks are in 4 KiB sectors after that, each starting with its length.
+ * Only the chunks whose timestamp changed are included in the delta, with their data as it is in the region file,
+ * so merging the deltas of a region file, in order, onto its last full backup restores the region file.
+ */
+public final class RegionDelta {
+    /**
+     * Added to the path of a region file for the entry of its delta in an archive
+     */
+    public static final String SUFFIX = ".drivebackup-delta";
+
+    private static final int SECTOR_SIZE = 4096;
+    private static final int CHUNK_COUNT = 1024;
+    private static final int HEADER_SIZE = 2 * SECTOR_SIZE;
+    private static final int MAX_SECTOR_COUNT = 255;
+    private static final int MAGIC = 0x44425244;
+    private static final int VERSION = 1;
+
+    private RegionDelta() {
+    }
+
+    /**
+     * The result of creating a delta
+     */
+    public static class Result {
+        /**
+         * The timestamps of the chunks in the region file, to create the next delta from
+         */
+        public final int[] timestamps;
+
+        /**
+         * The number of chunks in the delta
+         */
+        public final int changedChunks;
+
+        /**
+         * The CRC-32 of the whole region file, to record in the manifest, as the delta's own CRC-32 isn't of the region file
+         */
+        public final long crc;
+
+        @Contract (pure = true)
+        private Result(int[] timestamps, int changedChunks, long crc) {
+            this.timestamps = timestamps;
+            this.changedChunks = changedChunks;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * Gets whether the specified file is a region file, based on its extension.
+     * @param filePath the path of the file
+     * @return whether it is
+     */
+    @Contract (pure = true)
+    public static boolean isRegionFile(@NotNull String filePath) {
+        String lowerCaseFilePath = filePath.toLowerCase(Locale.ROOT);
+        return lowerCaseFilePath.endsWith(".mca") || lowerCaseFilePath.endsWith(".mcr");
+    }
+
+    /**
+     * Reads the timestamps of the chunks in a region file.
+     * @param region the region file
+     * @return the timestamps, or {@code null} if the file is too small to be a region file
+     * @throws IOException if the file couldn't be read
+     */
+    @Nullable
+    public static int[] readTimestamps(@NotNull File region) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(region, "r")) {
+            if (file.length() < HEADER_SIZE) {
+                return null;
+            }
+            byte[] header = new byte[HEADER_SIZE];
+            file.readFully(header);
+            return getTimestamps(ByteBuffer.wrap(header));
+        }
+    }
+
+    /**
+     * Writes the delta of a region file, with the chunks whose timestamps differ from the specified ones.
+     * @param region the region file
+     * @param previousTimestamps the timestamps of the chunks when the region file was last backed up
+     * @param delta the file to write the delta to
+     * @return the result
+     * @throws IOException if the file couldn't be read, or isn't a region file, or the delta couldn't be written
+     */
+    @NotNull
+    public static Result create(@NotNull File region, @NotNull int[] previousTimestamps, @NotNull File delta) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(region, "r");
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(delta)))) {
+            if (file.length() < HEADER_SIZE) {
+                throw new IOException(region.getName() + " is not a region file");
+            }
+            byte[] header = new byte[HEADER_SIZE];
+            file.readFully(header);
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+            int[] timestamps = getTimestamps(headerBuffer);
+            List<Integer> changedChunks = new ArrayList<>();
+            for (int i = 0; i < CHUNK_COUNT; i++) {
+                if (timestamps[i] != previousTimestamps[i]) {
+                    changedChunks.add(i);
+                }
+            }
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(changedChunks.size());
+            for (int chunk : changedChunks) {
+                byte[] data = readChunk(file, headerBuffer.getInt(chunk * 4));
+                out.writeShort(chunk);
+                out.writeInt(timestamps[chunk]);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+            return new Result(timestamps, changedChunks.size(), calculateCrc(file));
+        }
+    }
+
+    /**
+     * Merges a delta onto a region file, or creates the region file if it doesn't exist.
+     * <p>
+     * The region file is rewritten with its chunks in order, so it isn't byte for byte the same as the original,
+     * but has the same chunks.
+     * @param region the region file
+     * @param delta the delta, which is read to its end, but not closed
+     * @throws IOException if the region file or the delta couldn't be read, or the region file couldn't be written
+     */
+    public static void apply(@NotNull File region, @NotNull InputStream delta) throws IOException {
+        byte[][] chunks = new byte[CHUNK_COUNT][];
+        Arrays.fill(chunks, new byte[0]);
+        int[] timestamps = new int[CHUNK_COUNT];
+        if (region.isFile()) {
+            try (RandomAccessFile file = new RandomAccessFile(region, "r")) {
+                if (file.length() >= HEADER_SIZE) {
+                    byte[] header = new byte[HEADER_SIZE];
+                    file.readFully(header);
+                    ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+                    timestamps = getTimestamps(headerBuffer);
+                    for (int i = 0; i < CHUNK_COUNT; i++) {
+                        chunks[i] = readChunk(file, headerBuffer.getInt(i * 4));
+                    }
+                }
+            }
+        }
+        DataInputStream in = new DataInputStream(delta);
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Invalid region delta for " + region.getName());
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int chunk = in.readUnsignedShort();
+            if (chunk >= CHUNK_COUNT) {
+                throw new IOException("Invalid region delta for " + region.getName());
+            }
+            timestamps[chunk] = in.readInt();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            chunks[chunk] = data;
+        }
+        File parent = region.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create " + parent.getPath());
+        }
+        File temporaryFile = new File(region.getPath() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temporaryFile))) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            int sector = HEADER_SIZE / SECTOR_SIZE;
+            for (int i = 0; i < CHUNK_COUNT; i++) {
+                int sectorCount = (chunks[i].length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+                if (sectorCount > MAX_SECTOR_COUNT) {
+                    throw new IOException("Chunk too large in region delta for " + region.getName());
+                }
+                header.putInt(i * 4, sectorCount == 0 ? 0 : sector << 8 | sectorCount);
+                header.putInt(SECTOR_SIZE + i * 4, timestamps[i]);
+                sector += sectorCount;
+            }
+            out.write(header.array());
+            byte[] padding = new byte[SECTOR_SIZE];
+            for (byte[] data : chunks) {
+                out.write(data);
+                int remainder = data.length % SECTOR_SIZE;
+                if (remainder != 0) {
+                    out.write(padding, 0, SECTOR_SIZE - remainder);
+                }
+            }
+        }
+        Files.move(temporaryFile.toPath(), region.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @NotNull
+    private static int[] getTimestamps(@NotNull ByteBuffer header) {
+        int[] timestamps = new int[CHUNK_COUNT];
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            timestamps[i] = header.getInt(SECTOR_SIZE + i * 4);
+        }
+        return timestamps;
+    }
+
+    /**
+     * Reads the data of a chunk, starting with its length, as it is in the region file.
+     * If the length is invalid, all the chunk's sectors are read instead, so the chunk is kept as it is.
+     * @param file the region file
+     * @param location the location of the chunk, from the region file's header
+     * @return the data, empty if the chunk doesn't exist
+     */
+    @NotNull
+    private static long calculateCrc(@NotNull RandomAccessFile file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[HEADER_SIZE];
+        file.seek(0);
+        int read;
+        while ((read = file.read(buffer)) >= 0) {
+            crc.update(buffer, 0, read);
+        }
+        return crc.getValue();
+    }
+
+    private static byte[] readChunk(@NotNull RandomAccessFile file, int location) throws IOException {
+        long offset = (long) (location >>> 8) * SECTOR_SIZE;
+        int sectorCount = location & 0xFF;
+        if (offset < HEADER_SIZE || sectorCount == 0 || offset >= file.length()) {
+            return new byte[0];
+        }
+        int size = (int) Math.min((long) sectorCount * SECTOR_SIZE, file.length() - offset);
+        file.seek(offset);
+        if (size >= 4) {
+            int length = file.readInt();
+            if (length > 0 && length <= size - 4) {
+                size = length + 4;
+            }
+            file.seek(offset);
+        }
+        byte[] data = new byte[size];
+        file.readFully(data);
+        return data;
+    }
+}
@@ -0,0 +1,110 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The timestamps of the chunks in each region file of a backup location as of its last backup,
+ * used to find which chunks changed for {@link RegionDelta}s.
+ */
+public class RegionTimestamps {
+    /**
+     * The name of the file the timestamps are saved in, kept next to the backups of the location
+     */
+    public static final String FILE_NAME = ".drivebackup-regions";
+
+    private static final int MAGIC = 0x44425254;
+    private static final int CHUNK_COUNT = 1024;
+
+    private final Map<String, int[]> timestamps = new HashMap<>();
+
+    /**
+     * Gets the timestamps of a region file.
+     * @param path the path of the region file, relative to the backup location
+     * @return the timestamps, or {@code null} if the region file isn't recorded
+     */
+    @Nullable
+    public int[] get(String path) {
+        return timestamps.get(path);
+    }
+
+    /**
+     * Records the timestamps of a region file.
+     * @param path the path of the region file, relative to the backup location
+     * @param regionTimestamps the timestamps
+     */
+    public void put(String path, int[] regionTimestamps) {
+        timestamps.put(path, regionTimestamps);
+    }
+
+    /**
+     * Removes the timestamps of a region file, so it is backed up whole next time.
+     * @param path the path of the region file, relative to the backup location
+     */
+    public void remove(String path) {
+        timestamps.remove(path);
+    }
+
+    /**
+     * Loads the timestamps from a file.
+     * @param file the file
+     * @return the timestamps, or {@code null} if there is no file, or it couldn't be read
+     */
+    @Nullable
+    public static RegionTimestamps load(@NotNull File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            RegionTimestamps regionTimestamps = new RegionTimestamps();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                int[] timestamps = new int[CHUNK_COUNT];
+                for (int j = 0; j < CHUNK_COUNT; j++) {
+                    timestamps[j] = in.readInt();
+                }
+                regionTimestamps.put(path, timestamps);
+            }
+            return regionTimestamps;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Saves the timestamps to a file, replacing it in one step so that a partially written file is never left behind.
+     * @param file the file
+     * @throws IOException if the timestamps couldn't be saved
+     */
+    public void save(@NotNull File file) throws IOException {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(timestamps.size());
+            for (Map.Entry<String, int[]> entry : timestamps.entrySet()) {
+                out.writeUTF(entry.getKey());
+                for (int timestamp : entry.getValue()) {
+                    out.writeInt(timestamp);
+                }
+            }
+        }
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
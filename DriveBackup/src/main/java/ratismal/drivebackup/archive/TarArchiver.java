@@ -0,0 +1,165 @@
+package ratismal.drivebackup.archive;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ratismal.drivebackup.util.BufferPool;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Adds files to a compressed tar archive.
+ * <p>
+ * A tar header holds the size of the file before its data, so each file is archived with the size it had
+ * when its attributes were read. If the file has since shrunk, or can't be fully read, the rest is padded with zeros,
+ * and if it has grown, it is cut off at that size.
+ */
+public class TarArchiver implements Archiver {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TarArchiveOutputStream tarOutputStream;
+    private final ReadAhead readAhead;
+    private final ArchiveListener listener;
+    private final byte[] buffer = BufferPool.acquire(BUFFER_SIZE);
+
+    /**
+     * Creates an instance of the {@code TarArchiver} object
+     * @param out the compressing stream to write the archive to
+     * @param readAhead opens the files to add, which it may have read ahead
+     * @param listener notified as files are added to the archive
+     */
+    public TarArchiver(OutputStream out, ReadAhead readAhead, ArchiveListener listener) {
+        this.tarOutputStream = new TarArchiveOutputStream(new BufferedOutputStream(out, BUFFER_SIZE), StandardCharsets.UTF_8.name());
+        this.tarOutputStream.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        this.tarOutputStream.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        this.tarOutputStream.setAddPaxHeadersForNonAsciiNames(true);
+        this.readAhead = readAhead;
+        this.listener = listener;
+    }
+
+    /**
+     * Creates a {@code TarArchiver} which compresses the archive with Zstandard.
+     * @param out the stream to write the archive to
+     * @param level the Zstandard compression level
+     * @param threads the number of threads to compress with
+     * @param readAhead opens the files to add, which it may have read ahead
+     * @param listener notified as files are added to the archive
+     * @return the {@code TarArchiver}
+     * @throws IOException if Zstandard isn't supported on this platform
+     */
+    @NotNull
+    public static TarArchiver zstd(OutputStream out, int level, int threads, ReadAhead readAhead, ArchiveListener listener) throws IOException {
+        ZstdOutputStream zstdOutputStream;
+        try {
+            zstdOutputStream = new ZstdOutputStream(out, level);
+        } catch (LinkageError e) {
+            throw new IOException("Zstandard is not supported on this platform", e);
+        }
+        if (threads > 1) {
+            zstdOutputStream.setWorkers(threads);
+        }
+        return new TarArchiver(zstdOutputStream, readAhead, listener);
+    }
+
+    /**
+     * Creates a {@code TarArchiver} which compresses the archive with LZ4, in the LZ4 frame format.
+     * @param out the stream to write the archive to
+     * @param readAhead opens the files to add, which it may have read ahead
+     * @param listener notified as files are added to the archive
+     * @return the {@code TarArchiver}
+     * @throws IOException if the frame header couldn't be written
+     */
+    @NotNull
+    public static TarArchiver lz4(OutputStream out, ReadAhead readAhead, ArchiveListener listener) throws IOException {
+        return new TarArchiver(new LZ4FrameOutputStream(out), readAhead, listener);
+    }
+
+    @Override
+    public void addFile(String entryName, String filePath, @Nullable BasicFileAttributes attributes) throws IOException {
+        TarArchiveEntry entry = new TarArchiveEntry(entryName);
+        long size;
+        if (attributes != null) {
+            size = attributes.size();
+            entry.setModTime(attributes.lastModifiedTime());
+        } else {
+            size = new File(filePath).length();
+        }
+        entry.setSize(size);
+        tarOutputStream.putArchiveEntry(entry);
+        long remaining = size;
+        CRC32 crc = new CRC32();
+        boolean opened;
+        try (InputStream inputStream = open(filePath)) {
+            opened = inputStream != null;
+            while (opened && remaining > 0) {
+                int read = read(inputStream, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    break;
+                }
+                tarOutputStream.write(buffer, 0, read);
+                crc.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        boolean readFully = opened && remaining == 0;
+        if (remaining > 0) {
+            Arrays.fill(buffer, (byte) 0);
+            while (remaining > 0) {
+                int length = (int) Math.min(buffer.length, remaining);
+                tarOutputStream.write(buffer, 0, length);
+                crc.update(buffer, 0, length);
+                remaining -= length;
+            }
+        }
+        tarOutputStream.closeArchiveEntry();
+        listener.fileArchived(filePath, size, crc.getValue());
+        if (!readFully) {
+            listener.fileNotFullyRead(filePath);
+        }
+    }
+
+    @Nullable
+    private InputStream open(String filePath) {
+        try {
+            return readAhead.open(filePath);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads from the file into the buffer.
+     * @return the number of bytes read, or -1 if the end of the file was reached or it couldn't be read
+     */
+    private int read(@NotNull InputStream inputStream, int length) {
+        try {
+            return inputStream.read(buffer, 0, length);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Completes and closes the archive.
+     * @throws IOException if writing to the archive failed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            tarOutputStream.close();
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes an archive split into volumes of a fixed size, named as in {@link ArchiveFormat#getVolumeName(String, int)},
+ * so each volume can be uploaded as soon as it is finished, while the rest of the archive is still being written.
+ * <p>
+ * A volume is only finished once something is written past its end, or {@link #finish()} is called,
+ * so the listener knows whether it is the last volume.
+ * Closing the stream without finishing it, such as when writing the archive failed, abandons the last volume, so the listener isn't notified of it.
+ */
+public class VolumeOutputStream extends OutputStream {
+    private final File archive;
+    private final long volumeSize;
+    private final Listener listener;
+    private int volumeCount;
+    private File volume;
+    private OutputStream volumeOutputStream;
+    private long volumeWritten;
+    private boolean closed;
+    private boolean finished;
+
+    /**
+     * Notified as volumes are finished
+     */
+    public interface Listener {
+        /**
+         * Called when a volume is finished.
+         * @param volume the volume
+         * @param last whether it is the last volume of the archive
+         * @throws IOException if the volume couldn't be handled
+         */
+        void volumeFinished(File volume, boolean last) throws IOException;
+    }
+
+    /**
+     * Creates an instance of the {@code VolumeOutputStream} object
+     * @param archive the archive, whose name the names of the volumes are based on
+     * @param volumeSize the size of each volume, except the last, in bytes
+     * @param listener notified as volumes are finished
+     */
+    public VolumeOutputStream(@NotNull File archive, long volumeSize, @NotNull Listener listener) {
+        if (volumeSize <= 0) {
+            throw new IllegalArgumentException("Volume size must be positive");
+        }
+        this.archive = archive;
+        this.volumeSize = volumeSize;
+        this.listener = listener;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@NotNull byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (len > 0) {
+            if (volumeOutputStream == null || volumeWritten == volumeSize) {
+                if (volumeOutputStream != null) {
+                    finishVolume(false);
+                }
+                nextVolume();
+            }
+            int written = (int) Math.min(len, volumeSize - volumeWritten);
+            volumeOutputStream.write(b, off, written);
+            volumeWritten += written;
+            off += written;
+            len -= written;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (volumeOutputStream != null) {
+            volumeOutputStream.flush();
+        }
+    }
+
+    /**
+     * Closes the volume being written, without finishing it, see {@link #finish()}.
+     * @throws IOException if the volume couldn't be written
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (volumeOutputStream != null) {
+            OutputStream unfinished = volumeOutputStream;
+            volumeOutputStream = null;
+            unfinished.close();
+        }
+    }
+
+    /**
+     * Closes the stream, and finishes the last volume, creating an empty one if nothing was written.
+     * @throws IOException if the volume couldn't be written
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (volume == null) {
+            nextVolume();
+        }
+        close();
+        finished = true;
+        listener.volumeFinished(volume, true);
+    }
+
+    /**
+     * Gets the number of volumes started so far.
+     * @return the number of volumes
+     */
+    public int getVolumeCount() {
+        return volumeCount;
+    }
+
+    private void nextVolume() throws IOException {
+        volumeCount++;
+        volume = new File(archive.getParentFile(), ArchiveFormat.getVolumeName(archive.getName(), volumeCount));
+        volumeOutputStream = new BufferedOutputStream(new FileOutputStream(volume));
+        volumeWritten = 0;
+    }
+
+    private void finishVolume(boolean last) throws IOException {
+        OutputStream finishedOutputStream = volumeOutputStream;
+        volumeOutputStream = null;
+        finishedOutputStream.close();
+        listener.volumeFinished(volume, last);
+    }
+}
@@ -0,0 +1,262 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ratismal.drivebackup.archive.ParallelDeflater.CompressedEntry;
+import ratismal.drivebackup.util.BufferPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+
+/**
+ * Adds files to a zip archive, compressing them with a {@link ParallelDeflater}.
+ * <p>
+ * When there are several compression threads, files smaller than a block are each compressed whole on one of the threads,
+ * while a single writer, the calling thread, adds the compressed entries to the archive in the order the files were added.
+ * Larger files are split into blocks which are compressed concurrently instead.
+ * <p>
+ * Files which are already compressed can be {@code STORED} instead of compressed again, see {@link CompressionStrategy}.
+ * As the CRC-32 of a {@code STORED} entry goes before its data, large files are read twice, once to calculate it.
+ * <p>
+ * The level can be lowered partway through the archive, see {@link #setLevel(int)}.
+ */
+public class ZipArchiver implements Archiver {
+    /**
+     * How many small files can be waiting to be written for each compression thread
+     */
+    private static final int QUEUED_ENTRIES_PER_THREAD = 4;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ZipWriter zipWriter;
+    private final ParallelDeflater deflater;
+    private final boolean storeIncompressible;
+    private final ArchiveStats stats;
+    private final ReadAhead readAhead;
+    private final ArchiveListener listener;
+    private final Deque<QueuedEntry> queue = new ArrayDeque<>();
+    private final int maxQueuedEntries;
+
+    /**
+     * Creates an instance of the {@code ZipArchiver} object
+     * @param out the stream to write the archive to
+     * @param level the compression level, from 1 to 9
+     * @param threads the number of threads to compress with, 1 compresses on the calling thread
+     * @param threadPriority the priority of the compression threads
+     * @param storeIncompressible whether to store incompressible files without compressing them
+     * @param stats where to record how much data was stored and compressed
+     * @param readAhead opens the files to add, which it may have read ahead
+     * @param listener notified as files are added to the archive
+     */
+    public ZipArchiver(OutputStream out, int level, int threads, int threadPriority, boolean storeIncompressible, ArchiveStats stats, ReadAhead readAhead, ArchiveListener listener) {
+        this.zipWriter = new ZipWriter(out);
+        this.deflater = new ParallelDeflater(level, threads, threadPriority, readAhead);
+        this.storeIncompressible = storeIncompressible;
+        this.stats = stats;
+        this.readAhead = readAhead;
+        this.listener = listener;
+        this.maxQueuedEntries = deflater.getThreadCount() * QUEUED_ENTRIES_PER_THREAD;
+    }
+
+    @Override
+    public void addFile(String entryName, String filePath, @Nullable BasicFileAttributes attributes) throws IOException {
+        ZipEntry entry = new ZipEntry(entryName);
+        if (attributes != null) {
+            entry.setCreationTime(attributes.creationTime());
+            entry.setLastAccessTime(attributes.lastAccessTime());
+            entry.setLastModifiedTime(attributes.lastModifiedTime());
+            entry.setSize(attributes.size());
+        }
+        long size = entry.getSize();
+        if (maxQueuedEntries > 0 && size >= 0 && size < ParallelDeflater.BLOCK_SIZE) {
+            queue.add(new QueuedEntry(entry, filePath, deflater.compressLater(filePath, storeIncompressible)));
+            while (queue.size() > maxQueuedEntries) {
+                writeQueuedEntry(queue.poll());
+            }
+            return;
+        }
+        writeQueuedEntries();
+        if (storeIncompressible && CompressionStrategy.isIncompressible(filePath) && writeStoredEntry(entry, filePath)) {
+            return;
+        }
+        zipWriter.putNextEntry(entry);
+        long dataOffset = zipWriter.getBytesWritten();
+        EntryChecksum checksum = new EntryChecksum();
+        boolean readFully = deflater.deflate(filePath, zipWriter, checksum);
+        long compressedSize = zipWriter.getBytesWritten() - dataOffset;
+        zipWriter.closeEntry(checksum.getCrc(), checksum.getSize());
+        stats.addDeflated(checksum.getSize(), compressedSize);
+        listener.fileArchived(filePath, checksum.getSize(), checksum.getCrc());
+        if (!readFully) {
+            listener.fileNotFullyRead(filePath);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * At level 0, the small files compressed on the compression threads are {@code STORED}, while other files are still deflated entries,
+     * made of deflate blocks which aren't compressed, so that they aren't read twice.
+     */
+    @Override
+    public boolean setLevel(int level) {
+        deflater.setLevel(level);
+        return true;
+    }
+
+    @NotNull
+    @Override
+    public ArchiveIndex getIndex() {
+        return zipWriter.getIndex();
+    }
+
+    /**
+     * Writes any queued files, then the central directory, and closes the archive.
+     * @throws IOException if writing to the archive failed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            writeQueuedEntries();
+        } finally {
+            try {
+                deflater.close();
+            } finally {
+                zipWriter.close();
+            }
+        }
+    }
+
+    private void writeQueuedEntries() throws IOException {
+        while (!queue.isEmpty()) {
+            writeQueuedEntry(queue.poll());
+        }
+    }
+
+    private void writeQueuedEntry(@NotNull QueuedEntry queuedEntry) throws IOException {
+        CompressedEntry compressed;
+        try {
+            compressed = queuedEntry.compressed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress " + queuedEntry.filePath, e.getCause());
+        }
+        ZipEntry entry = queuedEntry.entry;
+        EntryChecksum checksum = compressed.checksum;
+        if (compressed.method == ZipEntry.STORED) {
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(checksum.getSize());
+            entry.setCompressedSize(checksum.getSize());
+            entry.setCrc(checksum.getCrc());
+        }
+        zipWriter.putNextEntry(entry);
+        zipWriter.write(compressed.data);
+        zipWriter.closeEntry(checksum.getCrc(), checksum.getSize());
+        if (compressed.method == ZipEntry.STORED) {
+            stats.addStored(checksum.getSize());
+        } else {
+            stats.addDeflated(checksum.getSize(), compressed.data.length);
+        }
+        listener.fileArchived(queuedEntry.filePath, checksum.getSize(), checksum.getCrc());
+        if (compressed.exception != null) {
+            listener.fileNotFullyRead(queuedEntry.filePath);
+        }
+    }
+
+    /**
+     * Writes a file as a {@code STORED} entry, reading it once to calculate its CRC-32, then again to write it.
+     * When the archive is written to a file, the second read is a transfer between the files, see {@link ZipWriter#transferFrom(FileSource, long)}.
+     * <p>
+     * If the file changes between the two reads, the entry is written with the size it had the first time,
+     * but the file is reported as not fully read, as its CRC-32 won't match.
+     * A transferred file is considered changed if its size or last modified time changed.
+     * @return whether the entry was written, {@code false} if the file couldn't be read to calculate its CRC-32
+     */
+    private boolean writeStoredEntry(@NotNull ZipEntry entry, String filePath) throws IOException {
+        EntryChecksum checksum = new EntryChecksum();
+        File file = new File(filePath);
+        long lastModified = file.lastModified();
+        try (FileSource source = readAhead.open(filePath)) {
+            source.readInto(checksum);
+        } catch (IOException e) {
+            return false;
+        }
+        long size = checksum.getSize();
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(size);
+        entry.setCompressedSize(size);
+        entry.setCrc(checksum.getCrc());
+        zipWriter.putNextEntry(entry);
+        long dataOffset = zipWriter.getBytesWritten();
+        boolean unchanged = false;
+        byte[] buffer = null;
+        try (FileSource source = FileSource.open(filePath)) {
+            if (zipWriter.canTransfer()) {
+                zipWriter.transferFrom(source, size);
+                unchanged = file.length() == size && file.lastModified() == lastModified;
+            } else {
+                buffer = BufferPool.acquire(BUFFER_SIZE);
+                EntryChecksum written = new EntryChecksum();
+                long remaining = size;
+                int read;
+                while (remaining > 0 && (read = source.read(buffer, 0, (int) Math.min(buffer.length, remaining))) >= 0) {
+                    written.update(buffer, 0, read);
+                    zipWriter.write(buffer, 0, read);
+                    remaining -= read;
+                }
+                unchanged = written.getSize() == size && written.getCrc() == checksum.getCrc();
+            }
+        } catch (IOException ignored) {
+        }
+        long remaining = size - (zipWriter.getBytesWritten() - dataOffset);
+        if (remaining > 0) {
+            unchanged = false;
+            if (buffer == null) {
+                buffer = BufferPool.acquire(BUFFER_SIZE);
+            } else {
+                Arrays.fill(buffer, (byte) 0);
+            }
+            while (remaining > 0) {
+                int length = (int) Math.min(buffer.length, remaining);
+                zipWriter.write(buffer, 0, length);
+                remaining -= length;
+            }
+        }
+        if (buffer != null) {
+            BufferPool.release(buffer);
+        }
+        zipWriter.closeEntry(checksum.getCrc(), size);
+        stats.addStored(size);
+        listener.fileArchived(filePath, size, checksum.getCrc());
+        if (!unchanged) {
+            listener.fileNotFullyRead(filePath);
+        }
+        return true;
+    }
+
+    /**
+     * A small file being compressed, waiting to be written
+     */
+    private static class QueuedEntry {
+        private final ZipEntry entry;
+        private final String filePath;
+        private final Future<CompressedEntry> compressed;
+
+        private QueuedEntry(ZipEntry entry, String filePath, Future<CompressedEntry> compressed) {
+            this.entry = entry;
+            this.filePath = filePath;
+            this.compressed = compressed;
+        }
+    }
+}
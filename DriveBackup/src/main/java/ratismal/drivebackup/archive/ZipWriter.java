@@ -0,0 +1,499 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a standard zip archive to a stream.
+ * <p>
+ * Unlike {@link java.util.zip.ZipOutputStream}, entry data is written already compressed, which lets it be
+ * produced elsewhere, for example in parallel by {@link ParallelDeflater}.
+ * Deflated entries are followed by a data descriptor, so the output never needs to be seekable.
+ * Zip64 records are written where the archive needs them.
+ */
+public class ZipWriter implements Closeable {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int EXTENDED_TIMESTAMP_ID = 0x5455;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    /**
+     * Entries expected to be at least this big get Zip64 local headers,
+     * leaving headroom for data which grows when deflated, or files which grow while they are read.
+     * Entries whose size isn't known get them too, as only entries with a Zip64 local header may have a Zip64 data descriptor.
+     */
+    private static final long ZIP64_LOCAL_THRESHOLD = 0xF0000000L;
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final CountingOutputStream out;
+    private final OutputStream target;
+    private final List<EntryRecord> entries = new ArrayList<>();
+    private EntryRecord currentEntry;
+    private boolean finished;
+
+    /**
+     * Creates an instance of the {@code ZipWriter} object
+     * @param out the stream to write the archive to
+     */
+    public ZipWriter(OutputStream out) {
+        this.out = new CountingOutputStream(new BufferedOutputStream(out, OUTPUT_BUFFER_SIZE));
+        this.target = out;
+    }
+
+    /**
+     * Starts a new entry, writing its local file header.
+     * <p>
+     * {@code STORED} entries must have their size and CRC-32 set beforehand. For {@code DEFLATED} entries,
+     * the size is optional and only used to decide whether the entry needs Zip64 headers, which entries without a size always get.
+     * @param entry the entry
+     * @throws IOException if the header could not be written
+     */
+    public void putNextEntry(@NotNull ZipEntry entry) throws IOException {
+        if (currentEntry != null) {
+            throw new ZipException("Previous entry was not closed");
+        }
+        EntryRecord record = new EntryRecord(entry, out.getCount());
+        if (record.method == ZipEntry.STORED && (entry.getSize() == -1 || entry.getCrc() == -1)) {
+            throw new ZipException("STORED entry missing size or CRC-32: " + entry.getName());
+        }
+        byte[] timestamps = record.localTimestampExtra();
+        int extraLength = timestamps.length + (record.zip64 ? 20 : 0);
+        ByteBuffer header = newBuffer(30 + record.name.length + extraLength);
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) record.versionNeeded());
+        header.putShort((short) record.flags);
+        header.putShort((short) record.method);
+        header.putInt((int) record.dosTime);
+        if (record.method == ZipEntry.STORED) {
+            header.putInt((int) record.crc);
+            header.putInt((int) (record.zip64 ? ZIP64_MAGIC : record.size));
+            header.putInt((int) (record.zip64 ? ZIP64_MAGIC : record.size));
+        } else {
+            header.putInt(0);
+            header.putInt((int) (record.zip64 ? ZIP64_MAGIC : 0));
+            header.putInt((int) (record.zip64 ? ZIP64_MAGIC : 0));
+        }
+        header.putShort((short) record.name.length);
+        header.putShort((short) extraLength);
+        header.put(record.name);
+        if (record.zip64) {
+            long knownSize = record.method == ZipEntry.STORED ? record.size : 0;
+            header.putShort((short) ZIP64_EXTRA_ID);
+            header.putShort((short) 16);
+            header.putLong(knownSize);
+            header.putLong(knownSize);
+        }
+        header.put(timestamps);
+        out.write(header.array());
+        record.dataOffset = out.getCount();
+        currentEntry = record;
+    }
+
+    /**
+     * Writes data for the current entry; the data must already be compressed using the entry's method.
+     * @param data the data
+     * @param offset the offset of the data in the array
+     * @param length the length of the data
+     * @throws IOException if the data could not be written
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (currentEntry == null) {
+            throw new ZipException("No current entry");
+        }
+        out.write(data, offset, length);
+    }
+
+    /**
+     * Writes data for the current entry; the data must already be compressed using the entry's method.
+     * @param data the data
+     * @throws IOException if the data could not be written
+     */
+    public void write(byte[] data) throws IOException {
+        write(data, 0, data.length);
+    }
+
+    /**
+     * Gets whether entry data can be transferred straight from a file, see {@link #transferFrom(FileSource, long)},
+     * which is the case when the archive is written to a file.
+     * @return whether it can
+     */
+    boolean canTransfer() {
+        return target instanceof FileOutputStream;
+    }
+
+    /**
+     * Writes data for the current entry straight from a file, without it passing through the JVM;
+     * the data must already be compressed using the entry's method.
+     * @param source the file, from its current position
+     * @param count the maximum number of bytes to write
+     * @return the number of bytes written, less than the count only if the file ended
+     * @throws IOException if the data could not be written
+     * @throws IllegalStateException if the archive isn't written to a file, see {@link #canTransfer()}
+     */
+    long transferFrom(@NotNull FileSource source, long count) throws IOException {
+        if (currentEntry == null) {
+            throw new ZipException("No current entry");
+        }
+        if (!canTransfer()) {
+            throw new IllegalStateException("The archive isn't written to a file");
+        }
+        out.flush();
+        long start = source.getPosition();
+        try {
+            source.transferTo(((FileOutputStream) target).getChannel(), count);
+        } finally {
+            out.count += source.getPosition() - start;
+        }
+        return source.getPosition() - start;
+    }
+
+    /**
+     * Finishes the current entry.
+     * @param crc the CRC-32 of the uncompressed data
+     * @param size the size of the uncompressed data
+     * @throws IOException if the data descriptor could not be written, if a {@code STORED} entry doesn't match its header,
+     * or if an entry without a Zip64 local header grew too large for a data descriptor without Zip64 sizes
+     */
+    public void closeEntry(long crc, long size) throws IOException {
+        EntryRecord record = currentEntry;
+        if (record == null) {
+            throw new ZipException("No current entry");
+        }
+        record.compressedSize = out.getCount() - record.dataOffset;
+        if (record.method == ZipEntry.STORED) {
+            if (record.size != size || record.compressedSize != size || record.crc != crc) {
+                throw new ZipException("Invalid size or CRC-32 for STORED entry: " + record.getName());
+            }
+        } else {
+            record.crc = crc;
+            record.size = size;
+            // Readers only expect Zip64 sizes in the data descriptor when the local header has a Zip64 extra field
+            if (!record.zip64 && (record.size >= ZIP64_MAGIC || record.compressedSize >= ZIP64_MAGIC)) {
+                throw new ZipException("Entry grew too large for its local header: " + record.getName());
+            }
+            ByteBuffer descriptor = newBuffer(record.zip64 ? 24 : 16);
+            descriptor.putInt(DATA_DESCRIPTOR_SIGNATURE);
+            descriptor.putInt((int) record.crc);
+            if (record.zip64) {
+                descriptor.putLong(record.compressedSize);
+                descriptor.putLong(record.size);
+            } else {
+                descriptor.putInt((int) record.compressedSize);
+                descriptor.putInt((int) record.size);
+            }
+            out.write(descriptor.array());
+        }
+        entries.add(record);
+        currentEntry = null;
+    }
+
+    /**
+     * Gets the index of the entries written so far, see {@link ArchiveIndex}.
+     * @return the index
+     */
+    @NotNull
+    public ArchiveIndex getIndex() {
+        List<ArchiveIndex.Entry> indexEntries = new ArrayList<>(entries.size());
+        for (EntryRecord record : entries) {
+            indexEntries.add(new ArchiveIndex.Entry(record.getName(), record.method, record.dataOffset, record.compressedSize, record.size, record.crc));
+        }
+        return new ArchiveIndex(indexEntries);
+    }
+
+    /**
+     * Gets the number of bytes of the archive written so far.
+     * @return the number of bytes
+     */
+    public long getBytesWritten() {
+        return out.getCount();
+    }
+
+    /**
+     * Writes the central directory, completing the archive without closing the underlying stream.
+     * @throws IOException if the central directory could not be written
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (currentEntry != null) {
+            throw new ZipException("Last entry was not closed");
+        }
+        long centralDirectoryOffset = out.getCount();
+        for (EntryRecord record : entries) {
+            writeCentralHeader(record);
+        }
+        long centralDirectorySize = out.getCount() - centralDirectoryOffset;
+        long entryCount = entries.size();
+        if (entryCount >= ZIP64_MAGIC_COUNT || centralDirectoryOffset >= ZIP64_MAGIC || centralDirectorySize >= ZIP64_MAGIC) {
+            long zip64EndOffset = out.getCount();
+            ByteBuffer zip64End = newBuffer(56);
+            zip64End.putInt(ZIP64_END_SIGNATURE);
+            zip64End.putLong(44);
+            zip64End.putShort((short) VERSION_ZIP64);
+            zip64End.putShort((short) VERSION_ZIP64);
+            zip64End.putInt(0);
+            zip64End.putInt(0);
+            zip64End.putLong(entryCount);
+            zip64End.putLong(entryCount);
+            zip64End.putLong(centralDirectorySize);
+            zip64End.putLong(centralDirectoryOffset);
+            out.write(zip64End.array());
+            ByteBuffer locator = newBuffer(20);
+            locator.putInt(ZIP64_LOCATOR_SIGNATURE);
+            locator.putInt(0);
+            locator.putLong(zip64EndOffset);
+            locator.putInt(1);
+            out.write(locator.array());
+        }
+        ByteBuffer end = newBuffer(22);
+        end.putInt(END_SIGNATURE);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) Math.min(entryCount, ZIP64_MAGIC_COUNT));
+        end.putShort((short) Math.min(entryCount, ZIP64_MAGIC_COUNT));
+        end.putInt((int) Math.min(centralDirectorySize, ZIP64_MAGIC));
+        end.putInt((int) Math.min(centralDirectoryOffset, ZIP64_MAGIC));
+        end.putShort((short) 0);
+        out.write(end.array());
+        out.flush();
+        finished = true;
+    }
+
+    /**
+     * Finishes the archive, if not already finished, and closes the underlying stream.
+     * @throws IOException if the archive could not be finished or closed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (currentEntry == null) {
+                finish();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeCentralHeader(@NotNull EntryRecord record) throws IOException {
+        boolean largeSize = record.size >= ZIP64_MAGIC;
+        boolean largeCompressedSize = record.compressedSize >= ZIP64_MAGIC;
+        boolean largeOffset = record.headerOffset >= ZIP64_MAGIC;
+        int zip64Length = (largeSize ? 8 : 0) + (largeCompressedSize ? 8 : 0) + (largeOffset ? 8 : 0);
+        byte[] timestamps = record.centralTimestampExtra();
+        int extraLength = timestamps.length + (zip64Length > 0 ? zip64Length + 4 : 0);
+        int version = zip64Length > 0 ? VERSION_ZIP64 : record.versionNeeded();
+        ByteBuffer header = newBuffer(46 + record.name.length + extraLength);
+        header.putInt(CENTRAL_HEADER_SIGNATURE);
+        header.putShort((short) version);
+        header.putShort((short) version);
+        header.putShort((short) record.flags);
+        header.putShort((short) record.method);
+        header.putInt((int) record.dosTime);
+        header.putInt((int) record.crc);
+        header.putInt((int) (largeCompressedSize ? ZIP64_MAGIC : record.compressedSize));
+        header.putInt((int) (largeSize ? ZIP64_MAGIC : record.size));
+        header.putShort((short) record.name.length);
+        header.putShort((short) extraLength);
+        // comment length, disk number, internal and external attributes
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putInt(0);
+        header.putInt((int) (largeOffset ? ZIP64_MAGIC : record.headerOffset));
+        header.put(record.name);
+        if (zip64Length > 0) {
+            header.putShort((short) ZIP64_EXTRA_ID);
+            header.putShort((short) zip64Length);
+            if (largeSize) {
+                header.putLong(record.size);
+            }
+            if (largeCompressedSize) {
+                header.putLong(record.compressedSize);
+            }
+            if (largeOffset) {
+                header.putLong(record.headerOffset);
+            }
+        }
+        header.put(timestamps);
+        out.write(header.array());
+    }
+
+    @NotNull
+    private static ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Converts a time to the MS-DOS date and time format used in zip headers.
+     * @param millis the time, in milliseconds since the epoch
+     * @return the date in the upper 16 bits, and the time in the lower 16 bits
+     */
+    private static long toDosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long) (time.getYear() - 1980) << 25
+            | time.getMonthValue() << 21
+            | time.getDayOfMonth() << 16
+            | time.getHour() << 11
+            | time.getMinute() << 5
+            | time.getSecond() >> 1) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Converts a file time to seconds since the epoch, if it fits in the extended timestamp extra field.
+     * @param time the file time, or {@code null}
+     * @return the seconds, or {@code null}
+     */
+    private static Long toUnixTime(FileTime time) {
+        if (time == null) {
+            return null;
+        }
+        long seconds = time.to(TimeUnit.SECONDS);
+        if (seconds < Integer.MIN_VALUE || seconds > Integer.MAX_VALUE) {
+            return null;
+        }
+        return seconds;
+    }
+
+    /**
+     * What's known about an entry written to the archive, kept to write its central directory header.
+     */
+    private static class EntryRecord {
+        private final String entryName;
+        private final byte[] name;
+        private final int method;
+        private final int flags;
+        private final long dosTime;
+        private final long headerOffset;
+        private final boolean zip64;
+        private final Long modifiedTime;
+        private final Long accessTime;
+        private final Long creationTime;
+        private long dataOffset;
+        private long crc;
+        private long size;
+        private long compressedSize;
+
+        private EntryRecord(@NotNull ZipEntry entry, long headerOffset) {
+            this.entryName = entry.getName();
+            this.name = entry.getName().getBytes(StandardCharsets.UTF_8);
+            this.method = entry.getMethod() == ZipEntry.STORED ? ZipEntry.STORED : ZipEntry.DEFLATED;
+            this.flags = FLAG_UTF8 | (method == ZipEntry.STORED ? 0 : FLAG_DATA_DESCRIPTOR);
+            long time = entry.getTime();
+            this.dosTime = toDosTime(time == -1 ? System.currentTimeMillis() : time);
+            this.headerOffset = headerOffset;
+            this.zip64 = entry.getSize() == -1 || entry.getSize() >= ZIP64_LOCAL_THRESHOLD;
+            this.modifiedTime = toUnixTime(entry.getLastModifiedTime());
+            this.accessTime = toUnixTime(entry.getLastAccessTime());
+            this.creationTime = toUnixTime(entry.getCreationTime());
+            this.crc = entry.getCrc();
+            this.size = entry.getSize();
+        }
+
+        private String getName() {
+            return entryName;
+        }
+
+        private int versionNeeded() {
+            return zip64 ? VERSION_ZIP64 : VERSION_DEFAULT;
+        }
+
+        private int timestampFlags() {
+            return (modifiedTime != null ? 1 : 0) | (accessTime != null ? 2 : 0) | (creationTime != null ? 4 : 0);
+        }
+
+        private byte[] localTimestampExtra() {
+            int flags = timestampFlags();
+            if (flags == 0) {
+                return new byte[0];
+            }
+            int length = 1 + 4 * Integer.bitCount(flags);
+            ByteBuffer extra = newBuffer(4 + length);
+            extra.putShort((short) EXTENDED_TIMESTAMP_ID);
+            extra.putShort((short) length);
+            extra.put((byte) flags);
+            for (Long time : new Long[] { modifiedTime, accessTime, creationTime }) {
+                if (time != null) {
+                    extra.putInt(time.intValue());
+                }
+            }
+            return extra.array();
+        }
+
+        private byte[] centralTimestampExtra() {
+            int flags = timestampFlags();
+            if (flags == 0) {
+                return new byte[0];
+            }
+            // The central directory only holds the modification time
+            int length = modifiedTime != null ? 5 : 1;
+            ByteBuffer extra = newBuffer(4 + length);
+            extra.putShort((short) EXTENDED_TIMESTAMP_ID);
+            extra.putShort((short) length);
+            extra.put((byte) flags);
+            if (modifiedTime != null) {
+                extra.putInt(modifiedTime.intValue());
+            }
+            return extra.array();
+        }
+    }
+
+    /**
+     * An {@code OutputStream} which counts the bytes written through it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        private long getCount() {
+            return count;
+        }
+    }
+}
@@ -15,6 +15,7 @@ import ratismal.drivebackup.config.configSections.BackupScheduling;
 import ratismal.drivebackup.config.configSections.BackupStorage;
 import ratismal.drivebackup.config.configSections.ExternalBackups;
 import ratismal.drivebackup.config.configSections.Messages;
+import ratismal.drivebackup.config.configSections.UploadRateLimits;
 import ratismal.drivebackup.plugin.DriveBackup;
 import ratismal.drivebackup.util.Logger;
 import ratismal.drivebackup.util.MessageUtil;
@@ -27,6 +28,7 @@ public class ConfigParser {
         public final BackupList backupList;
         public final ExternalBackups externalBackups;
         public final BackupMethods backupMethods;
+        public final UploadRateLimits uploadRateLimits;
         public final Messages messages;
         public final Advanced advanced;
     
@@ -36,6 +38,7 @@ public class ConfigParser {
             BackupList backupList,
             ExternalBackups externalBackups,
             BackupMethods backupMethods,
+            UploadRateLimits uploadRateLimits,
             Messages messages,
             Advanced advanced
             ) {
@@ -45,6 +48,7 @@ public class ConfigParser {
             this.backupList = backupList;
             this.externalBackups = externalBackups;
             this.backupMethods = backupMethods;
+            this.uploadRateLimits = uploadRateLimits;
             this.messages = messages;
             this.advanced = advanced;
         }
@@ -90,6 +94,7 @@ public class ConfigParser {
             BackupList.parse(config, logger),
             ExternalBackups.parse(config, logger),
             BackupMethods.parse(config, logger),
+            UploadRateLimits.parse(config, logger),
             Messages.parse(config, logger),
             Advanced.parse(config, logger)
         );
@@ -106,6 +111,7 @@ public class ConfigParser {
             BackupList.parse(config, logger),
             ExternalBackups.parse(config, logger),
             BackupMethods.parse(config, logger),
+            UploadRateLimits.parse(config, logger),
             Messages.parse(config, logger),
             Advanced.parse(config, logger)
         );
@@ -20,6 +20,11 @@ import static ratismal.drivebackup.config.Localization.intl;
 public class BackupList {
     
     public static final String ENTRY = "entry";
+
+    /**
+     * How often a full backup is made when making incremental backups, if not specified
+     */
+    private static final int DEFAULT_FULL_BACKUP_INTERVAL = 7;
     
     public static class BackupListEntry {
         public interface BackupLocation {
@@ -63,18 +68,24 @@ public class BackupList {
         public final LocalDateTimeFormatter formatter;
         public final boolean create;
         public final String[] blacklist;
+        public final boolean incremental;
+        public final int fullBackupInterval;
         
         public BackupListEntry(
             BackupLocation location,
             LocalDateTimeFormatter formatter, 
             boolean create, 
-            String[] blacklist
+            String[] blacklist,
+            boolean incremental,
+            int fullBackupInterval
             ) {
 
             this.location = location;
             this.formatter = formatter;
             this.create = create;
             this.blacklist = blacklist;
+            this.incremental = incremental;
+            this.fullBackupInterval = fullBackupInterval;
         }
     }
 
@@ -134,7 +145,25 @@ public class BackupList {
                     logger.log(intl("backup-list-blacklist-invalid"), ENTRY, entryIndex);
                 }
             }
-            list.add(new BackupListEntry(location, formatter, create, blacklist));
+            boolean incremental = false;
+            try {
+                incremental = (Boolean) rawListEntry.get("incremental");
+            } catch (ClassCastException | NullPointerException e) {
+                // Do nothing, assume false
+            }
+            int fullBackupInterval = DEFAULT_FULL_BACKUP_INTERVAL;
+            if (rawListEntry.containsKey("full-backup-interval")) {
+                try {
+                    fullBackupInterval = (Integer) rawListEntry.get("full-backup-interval");
+                } catch (ClassCastException e) {
+                    fullBackupInterval = 0;
+                }
+                if (fullBackupInterval < 1) {
+                    logger.log(intl("backup-list-full-backup-interval-invalid"), ENTRY, entryIndex);
+                    fullBackupInterval = DEFAULT_FULL_BACKUP_INTERVAL;
+                }
+            }
+            list.add(new BackupListEntry(location, formatter, create, blacklist, incremental, fullBackupInterval));
         }
         return new BackupList(list.toArray(new BackupListEntry[0]));
     }
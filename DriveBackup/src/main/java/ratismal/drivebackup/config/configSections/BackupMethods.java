@@ -23,11 +23,18 @@ public class BackupMethods {
     }
 
     public static class GoogleDriveBackupMethod extends BackupMethod {
+        /**
+         * Google Drive requires each chunk of a resumable upload but the last to be a multiple of this size, 256 KB
+         */
+        public static final int CHUNK_SIZE_MULTIPLE = 256 * 1024;
+
         public final String sharedDriveId;
+        public final int chunkSize;
 
-        public GoogleDriveBackupMethod(boolean enabled, String sharedDriveId) {
+        public GoogleDriveBackupMethod(boolean enabled, String sharedDriveId, int chunkSize) {
             super(enabled);
             this.sharedDriveId = sharedDriveId;
+            this.chunkSize = chunkSize;
         }
     }
 
@@ -152,9 +159,15 @@ public class BackupMethods {
         if (!Strings.isNullOrEmpty(googleSharedDriveId)) {
             logger.log(intl("shared-drive-deprecated"));
         }
+        int googleChunkSize = config.getInt("googledrive.chunk-size", 40 * GoogleDriveBackupMethod.CHUNK_SIZE_MULTIPLE);
+        if (googleChunkSize % GoogleDriveBackupMethod.CHUNK_SIZE_MULTIPLE != 0 || googleChunkSize <= 0) {
+            googleChunkSize = Math.max(1, googleChunkSize / GoogleDriveBackupMethod.CHUNK_SIZE_MULTIPLE) * GoogleDriveBackupMethod.CHUNK_SIZE_MULTIPLE;
+            logger.log(intl("google-drive-chunk-size-invalid"), "chunk-size", String.valueOf(googleChunkSize));
+        }
         GoogleDriveBackupMethod googleDriveMethod = new GoogleDriveBackupMethod(
             config.getBoolean("googledrive.enabled"),
-            googleSharedDriveId
+            googleSharedDriveId,
+            googleChunkSize
             );
         OneDriveBackupMethod oneDriveMethod = new OneDriveBackupMethod(
             config.getBoolean("onedrive.enabled")
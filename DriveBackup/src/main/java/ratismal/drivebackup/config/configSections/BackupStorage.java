@@ -4,6 +4,7 @@ import org.bukkit.configuration.Configuration;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
+import ratismal.drivebackup.archive.ArchiveFormat;
 import ratismal.drivebackup.util.Logger;
 
 import java.util.zip.Deflater;
@@ -12,34 +13,73 @@ import static ratismal.drivebackup.config.Localization.intl;
 
 public class BackupStorage {
     public final long delay;
+    public final long timeBudget;
     public final int threadPriority;
+    public final int parallelBackups;
+    public final int concurrentUploads;
     public final int keepCount;
     public final int localKeepCount;
     public final int zipCompression;
+    public final boolean zipCompressionAuto;
+    public final int zipCompressionThreads;
+    public final boolean zipStoreIncompressible;
+    public final ArchiveFormat archiveFormat;
+    public final int readAheadFiles;
+    public final long readAheadMemory;
+    public final boolean localRepository;
+    public final boolean streamingUploads;
+    public final long volumeSize;
     public final boolean backupsRequirePlayers;
     public final boolean disableSavingDuringBackups;
+    public final boolean snapshotBackups;
     public final String localDirectory;
     public final String remoteDirectory;
 
     public BackupStorage(
         long delay, 
+        long timeBudget,
         int threadPriority, 
+        int parallelBackups,
+        int concurrentUploads,
         int keepCount, 
         int localKeepCount,
         int zipCompression,
+        boolean zipCompressionAuto,
+        int zipCompressionThreads,
+        boolean zipStoreIncompressible,
+        ArchiveFormat archiveFormat,
+        int readAheadFiles,
+        long readAheadMemory,
+        boolean localRepository,
+        boolean streamingUploads,
+        long volumeSize,
         boolean backupsRequirePlayers,
         boolean disableSavingDuringBackups,
+        boolean snapshotBackups,
         String localDirectory,
         String remoteDirectory
         ) {
 
         this.delay = delay;
+        this.timeBudget = timeBudget;
         this.threadPriority = threadPriority;
+        this.parallelBackups = parallelBackups;
+        this.concurrentUploads = concurrentUploads;
         this.keepCount = keepCount;
         this.localKeepCount = localKeepCount;
         this.zipCompression = zipCompression;
+        this.zipCompressionAuto = zipCompressionAuto;
+        this.zipCompressionThreads = zipCompressionThreads;
+        this.zipStoreIncompressible = zipStoreIncompressible;
+        this.archiveFormat = archiveFormat;
+        this.readAheadFiles = readAheadFiles;
+        this.readAheadMemory = readAheadMemory;
+        this.localRepository = localRepository;
+        this.streamingUploads = streamingUploads;
+        this.volumeSize = volumeSize;
         this.backupsRequirePlayers = backupsRequirePlayers;
         this.disableSavingDuringBackups = disableSavingDuringBackups;
+        this.snapshotBackups = snapshotBackups;
         this.localDirectory = localDirectory;
         this.remoteDirectory = remoteDirectory;
     }
@@ -53,6 +93,12 @@ public class BackupStorage {
             logger.log(intl("invalid-backup-delay"));
             delay = defaultConfig.getLong("delay");
         }
+        long timeBudget = config.getLong("backup-time-budget");
+        if (timeBudget < 0) {
+            logger.log(intl("backup-time-budget-invalid"));
+            timeBudget = 0;
+        }
+        timeBudget *= 60 * 1000;
         int threadPriority = config.getInt("backup-thread-priority");
         if (threadPriority < Thread.MIN_PRIORITY) {
             logger.log(intl("thread-priority-too-low"));
@@ -61,6 +107,16 @@ public class BackupStorage {
             logger.log(intl("thread-priority-too-high"));
             threadPriority = Thread.MAX_PRIORITY;
         }
+        int parallelBackups = config.getInt("parallel-backups");
+        if (parallelBackups < 1) {
+            logger.log(intl("parallel-backups-invalid"));
+            parallelBackups = 1;
+        }
+        int concurrentUploads = config.getInt("concurrent-uploads");
+        if (concurrentUploads < 1) {
+            logger.log(intl("concurrent-uploads-invalid"));
+            concurrentUploads = 1;
+        }
         int keepCount = config.getInt("keep-count");
         if (keepCount < 1 && keepCount != -1) {
             logger.log(intl("keep-count-invalid"));
@@ -71,7 +127,9 @@ public class BackupStorage {
             logger.log(intl("local-keep-count-invalid"));
             localKeepCount = defaultConfig.getInt("local-keep-count");
         }
-        int zipCompression = config.getInt("zip-compression");
+        // With auto, the level is chosen for each backup location, using the default level until it can be
+        boolean zipCompressionAuto = "auto".equalsIgnoreCase(config.getString("zip-compression"));
+        int zipCompression = zipCompressionAuto ? defaultConfig.getInt("zip-compression") : config.getInt("zip-compression");
         if (zipCompression < Deflater.BEST_SPEED) {
             logger.log(intl("zip-compression-too-low"));
             zipCompression = Deflater.BEST_SPEED;
@@ -79,14 +137,45 @@ public class BackupStorage {
             logger.log(intl("zip-compression-too-high"));
             zipCompression = Deflater.BEST_COMPRESSION;
         }
+        int zipCompressionThreads = config.getInt("zip-compression-threads");
+        if (zipCompressionThreads < 1) {
+            logger.log(intl("zip-compression-threads-invalid"));
+            zipCompressionThreads = 1;
+        }
+        boolean zipStoreIncompressible = config.getBoolean("zip-store-incompressible");
+        ArchiveFormat archiveFormat = ArchiveFormat.fromConfigName(config.getString("archive-format"));
+        if (archiveFormat == null) {
+            logger.log(intl("archive-format-invalid"));
+            archiveFormat = ArchiveFormat.ZIP;
+        }
+        int readAheadFiles = config.getInt("read-ahead-files");
+        if (readAheadFiles < 0) {
+            logger.log(intl("read-ahead-files-invalid"));
+            readAheadFiles = 0;
+        }
+        long readAheadMemory = config.getLong("read-ahead-memory");
+        if (readAheadMemory < 0) {
+            logger.log(intl("read-ahead-memory-invalid"));
+            readAheadMemory = 0;
+        }
+        readAheadMemory *= 1024 * 1024;
+        boolean localRepository = config.getBoolean("local-repository");
+        boolean streamingUploads = config.getBoolean("streaming-uploads");
+        long volumeSize = config.getLong("volume-size");
+        if (volumeSize < 0) {
+            logger.log(intl("volume-size-invalid"));
+            volumeSize = 0;
+        }
+        volumeSize *= 1024 * 1024;
         boolean backupsRequirePlayers = config.getBoolean("backups-require-players");
         boolean disableSavingDuringBackups = config.getBoolean("disable-saving-during-backups");
+        boolean snapshotBackups = config.getBoolean("snapshot-backups");
         String localDirectory = config.getString("local-save-directory");
         if (localDirectory.startsWith("/")) {
             logger.log(intl("local-save-directory-not-relative"));
             localDirectory = localDirectory.substring(1);
         }
         String remoteDirectory = config.getString("remote-save-directory");
-        return new BackupStorage(delay, threadPriority, keepCount, localKeepCount, zipCompression, backupsRequirePlayers, disableSavingDuringBackups, localDirectory, remoteDirectory);
+        return new BackupStorage(delay, timeBudget, threadPriority, parallelBackups, concurrentUploads, keepCount, localKeepCount, zipCompression, zipCompressionAuto, zipCompressionThreads, zipStoreIncompressible, archiveFormat, readAheadFiles, readAheadMemory, localRepository, streamingUploads, volumeSize, backupsRequirePlayers, disableSavingDuringBackups, snapshotBackups, localDirectory, remoteDirectory);
     }
 }
@@ -0,0 +1,164 @@
+package ratismal.drivebackup.config.configSections;
+
+import java.time.DateTimeException;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ratismal.drivebackup.util.Logger;
+import ratismal.drivebackup.util.SchedulerUtil;
+
+import static ratismal.drivebackup.config.Localization.intl;
+
+/**
+ * How fast backups may be uploaded, in total and to each backup method, see {@link ratismal.drivebackup.util.BandwidthLimiter}.
+ * <p>
+ * While a schedule entry is active, its rate replaces the total rate, and the rates of the backup methods don't apply,
+ * so uploads can be unthrottled while the server is quiet.
+ */
+public class UploadRateLimits {
+    public static class RateLimitScheduleEntry {
+        public final LocalTime start;
+        public final LocalTime end;
+
+        /**
+         * The total rate while the entry is active, in bytes per second, or 0 if unlimited
+         */
+        public final long rate;
+
+        public RateLimitScheduleEntry(LocalTime start, LocalTime end, long rate) {
+            this.start = start;
+            this.end = end;
+            this.rate = rate;
+        }
+
+        /**
+         * Gets whether the entry is active at the specified time, which it is from its start until its end, even past midnight.
+         * @param time the time
+         * @return whether the entry is active
+         */
+        @Contract (pure = true)
+        public boolean isActive(@NotNull LocalTime time) {
+            if (start.isAfter(end)) {
+                return !time.isBefore(start) || time.isBefore(end);
+            }
+            return !time.isBefore(start) && time.isBefore(end);
+        }
+    }
+
+    /**
+     * The total rate, in bytes per second, or 0 if unlimited
+     */
+    public final long rate;
+
+    /**
+     * The rate of each backup method by its id, in bytes per second, or 0 if unlimited
+     */
+    public final Map<String, Long> methodRates;
+    public final RateLimitScheduleEntry[] schedule;
+
+    public UploadRateLimits(
+        long rate,
+        Map<String, Long> methodRates,
+        RateLimitScheduleEntry[] schedule
+        ) {
+
+        this.rate = rate;
+        this.methodRates = methodRates;
+        this.schedule = schedule;
+    }
+
+    /**
+     * Gets the schedule entry active at the specified time.
+     * @param time the time
+     * @return the first entry active at the time, or {@code null} if there is none
+     */
+    @Nullable
+    public RateLimitScheduleEntry getScheduleEntry(@NotNull LocalTime time) {
+        for (RateLimitScheduleEntry entry : schedule) {
+            if (entry.isActive(time)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets whether any rate is limited, at any time.
+     * @return whether any rate is limited
+     */
+    public boolean isEnabled() {
+        if (rate > 0) {
+            return true;
+        }
+        for (long methodRate : methodRates.values()) {
+            if (methodRate > 0) {
+                return true;
+            }
+        }
+        for (RateLimitScheduleEntry entry : schedule) {
+            if (entry.rate > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @NotNull
+    @Contract ("_, _ -> new")
+    public static UploadRateLimits parse(@NotNull FileConfiguration config, Logger logger) {
+        long rate = config.getLong("upload-rate-limits.rate");
+        if (rate < 0) {
+            logger.log(intl("upload-rate-limit-invalid"), "upload-method", "all");
+            rate = 0;
+        }
+        Map<String, Long> methodRates = new HashMap<>();
+        ConfigurationSection rawMethodRates = config.getConfigurationSection("upload-rate-limits.method-rates");
+        if (rawMethodRates != null) {
+            for (String id : rawMethodRates.getKeys(false)) {
+                long methodRate = rawMethodRates.getLong(id);
+                if (methodRate < 0) {
+                    logger.log(intl("upload-rate-limit-invalid"), "upload-method", id);
+                    continue;
+                }
+                methodRates.put(id, methodRate * 1024);
+            }
+        }
+        List<Map<?, ?>> rawSchedule = config.getMapList("upload-rate-limits.schedule");
+        List<RateLimitScheduleEntry> schedule = new ArrayList<>();
+        for (int i = 0; i < rawSchedule.size(); i++) {
+            Map<?, ?> rawScheduleEntry = rawSchedule.get(i);
+            String entryIndex = String.valueOf(i + 1);
+            LocalTime start;
+            LocalTime end;
+            try {
+                start = LocalTime.from(SchedulerUtil.parseTime((String) rawScheduleEntry.get("start")));
+                end = LocalTime.from(SchedulerUtil.parseTime((String) rawScheduleEntry.get("end")));
+            } catch (IllegalArgumentException | DateTimeException | ClassCastException | NullPointerException e) {
+                logger.log(intl("upload-rate-limit-schedule-time-invalid"), "entry", entryIndex);
+                continue;
+            }
+            Object rawRate = rawScheduleEntry.get("rate");
+            long entryRate = rawRate instanceof Number ? ((Number) rawRate).longValue() : 0;
+            if (rawRate != null && !(rawRate instanceof Number) || entryRate < 0) {
+                logger.log(intl("upload-rate-limit-schedule-rate-invalid"), "entry", entryIndex);
+                continue;
+            }
+            schedule.add(new RateLimitScheduleEntry(start, end, entryRate * 1024));
+        }
+        return new UploadRateLimits(
+            rate * 1024,
+            Collections.unmodifiableMap(methodRates),
+            schedule.toArray(new RateLimitScheduleEntry[0])
+            );
+    }
+}
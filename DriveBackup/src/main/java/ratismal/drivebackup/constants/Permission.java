@@ -6,7 +6,8 @@ public enum Permission {
     GET_BACKUP_STATUS("drivebackup.getBackupStatus"),
     GET_NEXT_BACKUP("drivebackup.getNextBackup"),
     RELOAD_CONFIG("drivebackup.reloadConfig"),
-    LINK_ACCOUNTS("drivebackup.linkAccounts");
+    LINK_ACCOUNTS("drivebackup.linkAccounts"),
+    RESTORE("drivebackup.restore");
     
     private final String permission;
     
@@ -4,10 +4,13 @@ import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabCompleter;
 import org.jetbrains.annotations.NotNull;
+import ratismal.drivebackup.RestoreThread;
 import ratismal.drivebackup.config.ConfigParser;
+import ratismal.drivebackup.config.configSections.BackupList.BackupListEntry;
 import ratismal.drivebackup.config.configSections.BackupMethods;
 import ratismal.drivebackup.constants.Permission;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -61,6 +64,9 @@ public class CommandTabComplete implements TabCompleter {
                     commandList.add("test");
                     commandList.add("update");
                 }
+                if (hasPerm(player, Permission.RESTORE)) {
+                    commandList.add("restore");
+                }
                 return commandList;
             } else if (args[0].equalsIgnoreCase("linkaccount") && args.length == 2) {
                 if (!hasPerm(player, Permission.LINK_ACCOUNTS)) {
@@ -71,6 +77,22 @@ public class CommandTabComplete implements TabCompleter {
                 commandList.add("onedrive");
                 commandList.add("dropbox");
                 return commandList;
+            } else if (args[0].equalsIgnoreCase("restore") && args.length == 2) {
+                if (!hasPerm(player, Permission.RESTORE)) {
+                    return Collections.emptyList();
+                }
+                List<String> commandList = new ArrayList<>();
+                for (BackupListEntry entry : ConfigParser.getConfig().backupList.list) {
+                    for (Path path : entry.location.getPaths()) {
+                        commandList.add(path.toString());
+                    }
+                }
+                return commandList;
+            } else if (args[0].equalsIgnoreCase("restore") && args.length == 3) {
+                if (!hasPerm(player, Permission.RESTORE)) {
+                    return Collections.emptyList();
+                }
+                return RestoreThread.getLocalBackupNames(args[1]);
             } else if (args[0].equalsIgnoreCase("test") && args.length == 2) {
                 if (!hasPerm(player, Permission.BACKUP)) {
                     return Collections.emptyList();
@@ -4,6 +4,7 @@ import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.jetbrains.annotations.NotNull;
+import ratismal.drivebackup.RestoreThread;
 import ratismal.drivebackup.TestThread;
 import ratismal.drivebackup.UploadThread;
 import ratismal.drivebackup.config.PermissionHandler;
@@ -148,6 +149,14 @@ public class CommandHandler implements CommandExecutor {
                 Runnable testThread = new TestThread(sender, args);
                 new Thread(testThread).start();
                 break;
+            case "restore":
+                if (!PermissionHandler.hasPerm(sender, Permission.RESTORE)) {
+                    BasicCommands.sendNoPerms(sender);
+                    break;
+                }
+                Runnable restoreThread = new RestoreThread(sender, args);
+                new Thread(restoreThread).start();
+                break;
             case "update":
                 if (!PermissionHandler.hasPerm(sender, Permission.BACKUP)) {
                     BasicCommands.sendNoPerms(sender);
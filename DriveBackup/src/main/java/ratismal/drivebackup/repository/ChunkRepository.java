@@ -0,0 +1,519 @@
+package ratismal.drivebackup.repository;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A content-addressed store of backups, where each file is split into chunks which are stored once, however many backups contain them.
+ * <p>
+ * Chunks are found with content-defined chunking, see {@link Chunker}, and identified by their SHA-256 hash.
+ * New chunks are compressed and appended to packfiles, and an index records where each chunk is.
+ * Each backup is a {@link Snapshot} listing the chunks of its files, so a backup only takes up the space of the data which changed.
+ * <p>
+ * Deleting a snapshot doesn't free any space by itself, {@link #collectGarbage()} does,
+ * by deleting the chunks no snapshot references anymore.
+ * <p>
+ * The repository is only ever modified by one backup at a time.
+ * Packfiles are written before the index which references them, and the index before the snapshots which reference it,
+ * so an interrupted backup can only leave unreferenced data behind, which is deleted by the next garbage collection.
+ */
+public class ChunkRepository implements Closeable {
+    /**
+     * The name of the repository folder, in the local save directory
+     */
+    public static final String FOLDER_NAME = ".repository";
+
+    private static final String PACKS_FOLDER = "packs";
+    private static final String SNAPSHOTS_FOLDER = "snapshots";
+    private static final String INDEX_FILE = "index";
+    private static final String INDEX_HEADER = "# DriveBackupV2 chunk index";
+    private static final String PACK_EXTENSION = ".pack";
+
+    /**
+     * A new packfile is started once the current one reaches this size
+     */
+    private static final long MAX_PACK_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Packfiles are only rewritten once less than this much of them is referenced,
+     * rather than rewriting a whole packfile every time one of its chunks is no longer needed
+     */
+    private static final double MIN_LIVE_FRACTION = 0.75;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File packsFolder;
+    private final File snapshotsFolder;
+    private final File indexFile;
+    private final Map<String, ChunkLocation> index = new HashMap<>();
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater();
+    private final MessageDigest digest;
+    private final byte[] chunk = new byte[Chunker.MAX_CHUNK_SIZE];
+    private final byte[] compressedChunk = new byte[Chunker.MAX_CHUNK_SIZE];
+
+    private int nextPackNumber;
+    private int packNumber;
+    private OutputStream pack;
+    private FileOutputStream packFile;
+    private long packSize;
+
+    /**
+     * Where a chunk is stored.
+     * A chunk stored with the same length as its size isn't compressed, as compressing it didn't make it smaller.
+     */
+    private static class ChunkLocation {
+        private final int pack;
+        private final long offset;
+        private final int length;
+        private final int size;
+
+        @Contract (pure = true)
+        private ChunkLocation(int pack, long offset, int length, int size) {
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+            this.size = size;
+        }
+    }
+
+    /**
+     * The result of adding a snapshot
+     */
+    public static class SnapshotResult {
+        /**
+         * The total size of the files in the snapshot
+         */
+        public final long totalBytes;
+
+        /**
+         * How much was added to the repository, after deduplication and compression
+         */
+        public final long storedBytes;
+
+        /**
+         * The files which couldn't be read, and aren't in the snapshot
+         */
+        public final List<String> failedFiles;
+
+        @Contract (pure = true)
+        private SnapshotResult(long totalBytes, long storedBytes, List<String> failedFiles) {
+            this.totalBytes = totalBytes;
+            this.storedBytes = storedBytes;
+            this.failedFiles = failedFiles;
+        }
+    }
+
+    private ChunkRepository(@NotNull File folder, int compressionLevel) throws IOException {
+        this.packsFolder = new File(folder, PACKS_FOLDER);
+        this.snapshotsFolder = new File(folder, SNAPSHOTS_FOLDER);
+        this.indexFile = new File(folder, INDEX_FILE);
+        this.deflater = new Deflater(compressionLevel);
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Opens the repository in the specified folder, creating it if it doesn't exist.
+     * @param folder the folder of the repository
+     * @param compressionLevel the level to compress new chunks with, from 1 to 9
+     * @return the repository
+     * @throws IOException if the repository couldn't be created, or its index couldn't be read
+     */
+    @NotNull
+    public static ChunkRepository open(@NotNull File folder, int compressionLevel) throws IOException {
+        ChunkRepository repository = new ChunkRepository(folder, compressionLevel);
+        if (!repository.packsFolder.isDirectory() && !repository.packsFolder.mkdirs()) {
+            throw new IOException("Failed to create " + repository.packsFolder.getPath());
+        }
+        if (!repository.snapshotsFolder.isDirectory() && !repository.snapshotsFolder.mkdirs()) {
+            throw new IOException("Failed to create " + repository.snapshotsFolder.getPath());
+        }
+        repository.loadIndex();
+        for (File packFile : repository.getPackFiles().values()) {
+            repository.nextPackNumber = Math.max(repository.nextPackNumber, getPackNumber(packFile) + 1);
+        }
+        return repository;
+    }
+
+    /**
+     * Adds a snapshot of the specified files, storing the chunks of their contents which aren't already in the repository.
+     * @param location the name of the backup location the snapshot is of
+     * @param name the name of the snapshot, unique within the location
+     * @param folderPath the path of the folder the files are in
+     * @param files the files, relative to the folder
+     * @return the result
+     * @throws IOException if writing to the repository failed
+     */
+    @NotNull
+    public SnapshotResult addSnapshot(String location, String name, String folderPath, @NotNull List<String> files) throws IOException {
+        Snapshot snapshot = new Snapshot();
+        List<String> failedFiles = new ArrayList<>();
+        long totalBytes = 0;
+        long storedBytes = 0;
+        for (String file : files) {
+            File source = new File(folderPath, file);
+            List<String> chunks = new ArrayList<>();
+            long size = 0;
+            long lastModified;
+            try (InputStream inputStream = new FileInputStream(source)) {
+                lastModified = Files.readAttributes(source.toPath(), BasicFileAttributes.class).lastModifiedTime().toMillis();
+                Chunker chunker = new Chunker(inputStream);
+                int length;
+                while ((length = chunker.next(chunk)) >= 0) {
+                    String hash = hash(chunk, length);
+                    if (!index.containsKey(hash)) {
+                        storedBytes += writeChunk(hash, chunk, length);
+                    }
+                    chunks.add(hash);
+                    size += length;
+                }
+            } catch (IOException e) {
+                failedFiles.add(file);
+                continue;
+            }
+            totalBytes += size;
+            snapshot.add(new Snapshot.Entry(file, size, lastModified, chunks));
+        }
+        closePack();
+        saveIndex();
+        File locationFolder = new File(snapshotsFolder, location);
+        if (!locationFolder.isDirectory() && !locationFolder.mkdirs()) {
+            throw new IOException("Failed to create " + locationFolder.getPath());
+        }
+        snapshot.save(new File(locationFolder, name + Snapshot.EXTENSION));
+        return new SnapshotResult(totalBytes, storedBytes, failedFiles);
+    }
+
+    /**
+     * Gets the snapshots of the specified backup location as a {@code TreeMap} with their creation date and a reference to them.
+     * @param location the name of the backup location
+     * @return the snapshots
+     */
+    @NotNull
+    public TreeMap<Long, File> getSnapshots(String location) {
+        TreeMap<Long, File> snapshots = new TreeMap<>();
+        File[] files = new File(snapshotsFolder, location).listFiles();
+        if (files == null) {
+            return snapshots;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(Snapshot.EXTENSION)) {
+                snapshots.put(file.lastModified(), file);
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Restores the files in a snapshot to the specified folder.
+     * @param snapshotFile the snapshot
+     * @param destination the folder to restore the files to
+     * @throws IOException if the snapshot couldn't be read, or a file couldn't be restored
+     */
+    public void restore(@NotNull File snapshotFile, @NotNull File destination) throws IOException {
+        Snapshot snapshot = Snapshot.load(snapshotFile);
+        Map<Integer, RandomAccessFile> packs = new HashMap<>();
+        try {
+            for (Snapshot.Entry entry : snapshot.getEntries()) {
+                File file = new File(destination, entry.path);
+                File parent = file.getParentFile();
+                if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Failed to create " + parent.getPath());
+                }
+                try (OutputStream outputStream = new FileOutputStream(file)) {
+                    for (String hash : entry.chunks) {
+                        ChunkLocation location = index.get(hash);
+                        if (location == null) {
+                            throw new IOException("Missing chunk " + hash + " of " + entry.path);
+                        }
+                        RandomAccessFile packFile = packs.get(location.pack);
+                        if (packFile == null) {
+                            packFile = new RandomAccessFile(getPackFile(location.pack), "r");
+                            packs.put(location.pack, packFile);
+                        }
+                        outputStream.write(chunk, 0, readChunk(packFile, location));
+                    }
+                }
+                file.setLastModified(entry.lastModified);
+            }
+        } finally {
+            for (RandomAccessFile packFile : packs.values()) {
+                packFile.close();
+            }
+        }
+    }
+
+    /**
+     * Deletes the chunks which no snapshot references anymore.
+     * <p>
+     * Packfiles only containing unreferenced chunks are deleted,
+     * and packfiles mostly containing unreferenced chunks are rewritten with only the referenced ones.
+     * Unreferenced chunks in other packfiles are kept until enough of their packfile is unreferenced.
+     * @return how many bytes were freed
+     * @throws IOException if a snapshot couldn't be read, in which case nothing is deleted, or rewriting a packfile failed
+     */
+    public long collectGarbage() throws IOException {
+        Set<String> referenced = new HashSet<>();
+        File[] locationFolders = snapshotsFolder.listFiles(File::isDirectory);
+        if (locationFolders != null) {
+            for (File locationFolder : locationFolders) {
+                File[] snapshotFiles = locationFolder.listFiles((dir, name) -> name.endsWith(Snapshot.EXTENSION));
+                if (snapshotFiles == null) {
+                    continue;
+                }
+                for (File snapshotFile : snapshotFiles) {
+                    for (Snapshot.Entry entry : Snapshot.load(snapshotFile).getEntries()) {
+                        referenced.addAll(entry.chunks);
+                    }
+                }
+            }
+        }
+        Map<Integer, List<String>> chunksByPack = new HashMap<>();
+        for (Map.Entry<String, ChunkLocation> entry : index.entrySet()) {
+            chunksByPack.computeIfAbsent(entry.getValue().pack, pack -> new ArrayList<>()).add(entry.getKey());
+        }
+        long freedBytes = 0;
+        List<File> packsToDelete = new ArrayList<>();
+        for (Map.Entry<Integer, File> packEntry : getPackFiles().entrySet()) {
+            List<String> chunks = chunksByPack.getOrDefault(packEntry.getKey(), Collections.emptyList());
+            List<String> liveChunks = new ArrayList<>();
+            long liveBytes = 0;
+            for (String hash : chunks) {
+                if (referenced.contains(hash)) {
+                    liveChunks.add(hash);
+                    liveBytes += index.get(hash).length;
+                }
+            }
+            File oldPackFile = packEntry.getValue();
+            if (!liveChunks.isEmpty() && liveBytes >= oldPackFile.length() * MIN_LIVE_FRACTION) {
+                continue;
+            }
+            if (!liveChunks.isEmpty()) {
+                try (RandomAccessFile packFile = new RandomAccessFile(oldPackFile, "r")) {
+                    for (String hash : liveChunks) {
+                        ChunkLocation location = index.get(hash);
+                        packFile.seek(location.offset);
+                        packFile.readFully(compressedChunk, 0, location.length);
+                        freedBytes -= writeStoredChunk(hash, compressedChunk, location.length, location.size);
+                    }
+                }
+            }
+            for (String hash : chunks) {
+                if (!referenced.contains(hash)) {
+                    index.remove(hash);
+                }
+            }
+            freedBytes += oldPackFile.length();
+            packsToDelete.add(oldPackFile);
+        }
+        closePack();
+        saveIndex();
+        for (File packFile : packsToDelete) {
+            packFile.delete();
+        }
+        return freedBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            closePack();
+        } finally {
+            deflater.end();
+            inflater.end();
+        }
+    }
+
+    /**
+     * Compresses and stores a new chunk.
+     * @return how many bytes were stored
+     */
+    private int writeChunk(String hash, byte[] data, int length) throws IOException {
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        int compressedLength = deflater.deflate(compressedChunk, 0, length);
+        if (deflater.finished() && compressedLength < length) {
+            return writeStoredChunk(hash, compressedChunk, compressedLength, length);
+        }
+        return writeStoredChunk(hash, data, length, length);
+    }
+
+    /**
+     * Appends a chunk, as it is stored, to the current packfile, starting a new one if needed.
+     * @return how many bytes were stored
+     */
+    private int writeStoredChunk(String hash, byte[] data, int length, int size) throws IOException {
+        if (pack == null || packSize >= MAX_PACK_SIZE) {
+            closePack();
+            packNumber = nextPackNumber++;
+            packFile = new FileOutputStream(getPackFile(packNumber));
+            pack = new BufferedOutputStream(packFile, 64 * 1024);
+            packSize = 0;
+        }
+        pack.write(data, 0, length);
+        index.put(hash, new ChunkLocation(packNumber, packSize, length, size));
+        packSize += length;
+        return length;
+    }
+
+    /**
+     * Writes the rest of the current packfile to disk, so the index can reference it.
+     */
+    private void closePack() throws IOException {
+        if (pack == null) {
+            return;
+        }
+        try {
+            pack.flush();
+            packFile.getFD().sync();
+        } finally {
+            pack.close();
+            pack = null;
+            packFile = null;
+            packNumber = -1;
+        }
+    }
+
+    /**
+     * Reads a chunk into {@link #chunk}, decompressing it if needed.
+     * @return the size of the chunk
+     */
+    private int readChunk(@NotNull RandomAccessFile packFile, @NotNull ChunkLocation location) throws IOException {
+        packFile.seek(location.offset);
+        if (location.length == location.size) {
+            packFile.readFully(chunk, 0, location.size);
+            return location.size;
+        }
+        packFile.readFully(compressedChunk, 0, location.length);
+        inflater.reset();
+        inflater.setInput(compressedChunk, 0, location.length);
+        try {
+            int size = inflater.inflate(chunk, 0, location.size);
+            if (size != location.size || !inflater.finished()) {
+                throw new IOException("Corrupt chunk in " + getPackFile(location.pack).getName());
+            }
+            return size;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt chunk in " + getPackFile(location.pack).getName(), e);
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        if (!indexFile.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            if (!INDEX_HEADER.equals(reader.readLine())) {
+                throw new IOException("Invalid chunk index");
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 5) {
+                    throw new IOException("Invalid chunk index");
+                }
+                index.put(fields[0], new ChunkLocation(
+                    Integer.parseInt(fields[1]),
+                    Long.parseLong(fields[2]),
+                    Integer.parseInt(fields[3]),
+                    Integer.parseInt(fields[4])));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid chunk index", e);
+        }
+    }
+
+    /**
+     * Saves the index, replacing it in one step so that a partially written index is never left behind.
+     */
+    private void saveIndex() throws IOException {
+        File temporaryFile = new File(indexFile.getPath() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporaryFile.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(INDEX_HEADER);
+            writer.newLine();
+            for (Map.Entry<String, ChunkLocation> entry : index.entrySet()) {
+                ChunkLocation location = entry.getValue();
+                writer.write(entry.getKey() + "\t" + location.pack + "\t" + location.offset + "\t" + location.length + "\t" + location.size);
+                writer.newLine();
+            }
+        }
+        Files.move(temporaryFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @NotNull
+    private Map<Integer, File> getPackFiles() {
+        Map<Integer, File> packFiles = new TreeMap<>();
+        File[] files = packsFolder.listFiles((dir, name) -> name.endsWith(PACK_EXTENSION));
+        if (files == null) {
+            return packFiles;
+        }
+        for (File file : files) {
+            int number = getPackNumber(file);
+            if (number >= 0) {
+                packFiles.put(number, file);
+            }
+        }
+        return packFiles;
+    }
+
+    @NotNull
+    private File getPackFile(int number) {
+        return new File(packsFolder, String.format("%08d", number) + PACK_EXTENSION);
+    }
+
+    private static int getPackNumber(@NotNull File packFile) {
+        String name = packFile.getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - PACK_EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @NotNull
+    private String hash(byte[] data, int length) {
+        digest.reset();
+        digest.update(data, 0, length);
+        byte[] hash = digest.digest();
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xF];
+        }
+        return new String(hex);
+    }
+}
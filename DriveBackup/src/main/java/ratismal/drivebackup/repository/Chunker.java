@@ -0,0 +1,114 @@
+package ratismal.drivebackup.repository;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a stream into chunks using content-defined chunking.
+ * <p>
+ * Chunk boundaries are found with a gear rolling hash over the data, so they only depend on the bytes around them.
+ * Inserting or removing data in a file only changes the chunks around the change,
+ * and the rest of the file's chunks stay the same, and are only stored once.
+ */
+class Chunker {
+    /**
+     * Chunks are never smaller than this, unless they are the end of the stream
+     */
+    static final int MIN_CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * Chunks are never larger than this
+     */
+    static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * A boundary is found when these bits of the hash are zero, on average every 64 KiB after the minimum chunk size.
+     * The top bits are used, as they depend on the most bytes.
+     */
+    private static final long BOUNDARY_MASK = 0xFFFF000000000000L;
+
+    /**
+     * The random value the gear hash adds for each byte.
+     * It is generated from a fixed seed, as changing it would change every chunk boundary,
+     * so nothing already in a repository would be deduplicated.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long seed = 0x44726976654261L;
+        for (int i = 0; i < GEAR.length; i++) {
+            seed += 0x9E3779B97F4A7C15L;
+            long value = seed;
+            value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+            value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = value ^ (value >>> 31);
+        }
+    }
+
+    private final InputStream inputStream;
+    private final byte[] buffer = new byte[MAX_CHUNK_SIZE];
+    private int start;
+    private int end;
+    private boolean endOfStream;
+
+    /**
+     * Creates an instance of the {@code Chunker} object
+     * @param inputStream the stream to split into chunks
+     */
+    Chunker(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Reads the next chunk.
+     * @param chunk the array to read the chunk into, at least {@link #MAX_CHUNK_SIZE} long
+     * @return the length of the chunk, or -1 at the end of the stream
+     * @throws IOException if reading the stream failed
+     */
+    int next(@NotNull byte[] chunk) throws IOException {
+        fill();
+        int available = end - start;
+        if (available == 0) {
+            return -1;
+        }
+        int length = findBoundary(buffer, start, available);
+        System.arraycopy(buffer, start, chunk, 0, length);
+        start += length;
+        return length;
+    }
+
+    /**
+     * Moves the unread data to the start of the buffer, and reads until it is full or the stream ends.
+     */
+    private void fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        while (!endOfStream && end < buffer.length) {
+            int read = inputStream.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                endOfStream = true;
+            } else {
+                end += read;
+            }
+        }
+    }
+
+    private static int findBoundary(byte[] data, int offset, int length) {
+        if (length <= MIN_CHUNK_SIZE) {
+            return length;
+        }
+        long hash = 0;
+        for (int i = MIN_CHUNK_SIZE; i < length; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((hash & BOUNDARY_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,111 @@
+package ratismal.drivebackup.repository;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The index of a backup in a {@link ChunkRepository}, listing each file backed up and the chunks making up its contents.
+ */
+public class Snapshot {
+    /**
+     * The extension of snapshot files
+     */
+    public static final String EXTENSION = ".snapshot";
+
+    private static final String HEADER = "# DriveBackupV2 snapshot";
+    private static final String NO_CHUNKS = "-";
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * A file in a snapshot
+     */
+    public static class Entry {
+        public final String path;
+        public final long size;
+        public final long lastModified;
+        public final List<String> chunks;
+
+        /**
+         * Creates an instance of the {@code Entry} object
+         * @param path the path of the file, relative to the backup location
+         * @param size the size of the file
+         * @param lastModified the last modified time of the file
+         * @param chunks the hashes of the chunks making up the file's contents, in order
+         */
+        @Contract (pure = true)
+        public Entry(String path, long size, long lastModified, List<String> chunks) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.chunks = chunks;
+        }
+    }
+
+    public void add(Entry entry) {
+        entries.add(entry);
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Loads a snapshot from a file.
+     * @param file the file
+     * @return the snapshot
+     * @throws IOException if the snapshot couldn't be read, or isn't valid
+     */
+    @NotNull
+    public static Snapshot load(@NotNull File file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException("Invalid snapshot " + file.getName());
+            }
+            Snapshot snapshot = new Snapshot();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4) {
+                    throw new IOException("Invalid snapshot " + file.getName());
+                }
+                List<String> chunks = NO_CHUNKS.equals(fields[2]) ? Collections.emptyList() : Arrays.asList(fields[2].split(","));
+                snapshot.add(new Entry(fields[3], Long.parseLong(fields[0]), Long.parseLong(fields[1]), chunks));
+            }
+            return snapshot;
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid snapshot " + file.getName(), e);
+        }
+    }
+
+    /**
+     * Saves the snapshot to a file, replacing it in one step so that a partially written snapshot is never left behind.
+     * @param file the file
+     * @throws IOException if the snapshot couldn't be saved
+     */
+    public void save(@NotNull File file) throws IOException {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporaryFile.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Entry entry : entries) {
+                String chunks = entry.chunks.isEmpty() ? NO_CHUNKS : String.join(",", entry.chunks);
+                writer.write(entry.size + "\t" + entry.lastModified + "\t" + chunks + "\t" + entry.path);
+                writer.newLine();
+            }
+        }
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,182 @@
+package ratismal.drivebackup.uploaders;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.util.BoundedPipe;
+import ratismal.drivebackup.util.MessageUtil;
+import ratismal.drivebackup.util.Timer;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static ratismal.drivebackup.config.Localization.intl;
+
+/**
+ * Uploads a backup while it is being created, to the uploaders which support streaming uploads.
+ * <p>
+ * What is written to {@link #getOutputStream()} is passed to each uploader through its own {@link BoundedPipe},
+ * so creating the backup is only as fast as the slowest upload, and the backup doesn't have to be saved to disk.
+ * A local copy is only written if one is specified.
+ * If an upload fails, the others continue. If creating the backup fails, it must be aborted, see {@link #abort(Exception)},
+ * so the uploads are abandoned rather than completed.
+ */
+public class StreamingUpload implements Closeable {
+    /**
+     * The maximum number of bytes waiting to be uploaded by each uploader
+     */
+    private static final int PIPE_SIZE = 8 * 1024 * 1024;
+
+    private final UploadLogger logger;
+    private final List<Uploader> uploaders;
+    private final List<BoundedPipe> pipes = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final Timer timer = new Timer();
+    private final OutputStream localCopy;
+    private long size;
+    private boolean closed;
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) throws IOException {
+            for (BoundedPipe pipe : pipes) {
+                pipe.getOutputStream().write(b, off, len);
+            }
+            if (localCopy != null) {
+                localCopy.write(b, off, len);
+            }
+            size += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (localCopy != null) {
+                localCopy.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The backup is only ended by closing the upload, so it can be aborted after the archive was closed
+            flush();
+        }
+    };
+
+    /**
+     * Creates an instance of the {@code StreamingUpload} object, and starts the uploads
+     * @param logger the logger
+     * @param uploaders the uploaders to upload the backup to, which must support streaming uploads
+     * @param fileName the name of the backup
+     * @param type the type of file (ex. plugins, world)
+     * @param localCopy the file to also write the backup to, or {@code null} if it isn't kept locally
+     * @throws IOException if the local copy couldn't be created
+     */
+    public StreamingUpload(UploadLogger logger, @NotNull List<Uploader> uploaders, String fileName, String type, @Nullable File localCopy) throws IOException {
+        this.logger = logger;
+        this.uploaders = uploaders;
+        this.localCopy = localCopy == null ? null : new BufferedOutputStream(new FileOutputStream(localCopy));
+        timer.start();
+        for (Uploader uploader : uploaders) {
+            logger.info(
+                intl("backup-method-uploading"),
+                "upload-method", uploader.getName());
+            BoundedPipe pipe = new BoundedPipe(PIPE_SIZE);
+            Thread thread = new Thread(() -> {
+                try (InputStream inputStream = pipe.getInputStream()) {
+                    uploader.uploadStream(inputStream, fileName, type);
+                } catch (Exception e) {
+                    MessageUtil.sendConsoleException(e);
+                }
+            }, "DriveBackupV2-upload-" + uploader.getId());
+            thread.setDaemon(true);
+            pipes.add(pipe);
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Gets the stream to write the backup to.
+     * <p>
+     * Closing it doesn't end the backup, see {@link #close()}.
+     * @return the stream
+     */
+    @NotNull
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Abandons the uploads, because creating the backup failed.
+     * @param cause why creating the backup failed
+     */
+    public void abort(@NotNull Exception cause) {
+        IOException exception = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        for (BoundedPipe pipe : pipes) {
+            pipe.abort(exception);
+        }
+    }
+
+    /**
+     * Ends the backup, and waits for the uploads to finish, logging how each went.
+     * @throws IOException if the local copy couldn't be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finishWriting();
+        } finally {
+            boolean interrupted = false;
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    abort(e);
+                    try {
+                        thread.join();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+            timer.end();
+            for (Uploader uploader : uploaders) {
+                if (!uploader.isErrorWhileUploading()) {
+                    logger.info(timer.getUploadTimeMessage(size, uploader.getId()));
+                } else {
+                    logger.info(intl("backup-method-upload-failed"));
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void finishWriting() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (BoundedPipe pipe : pipes) {
+            pipe.getOutputStream().close();
+        }
+        if (localCopy != null) {
+            localCopy.close();
+        }
+    }
+}
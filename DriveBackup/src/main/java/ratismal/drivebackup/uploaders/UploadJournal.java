@@ -0,0 +1,338 @@
+package ratismal.drivebackup.uploaders;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ratismal.drivebackup.config.ConfigParser;
+import ratismal.drivebackup.util.MessageUtil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The uploads which are in progress, kept in the local backup folder, so an upload interrupted by a restart or an error
+ * is resumed by the next backup from the last byte the backup method confirmed, rather than uploaded again from the start.
+ * <p>
+ * Each upload is recorded with the file being uploaded, the folder it is uploaded to, the upload session of the backup method,
+ * the number of bytes the backup method confirmed, and a hash of the file, so a different file with the same name isn't resumed.
+ * Uploads which can't be resumed, as their file changed or is gone, or they were started too long ago,
+ * are abandoned, and their upload session cleaned up, see {@link Uploader#abandonUpload(Entry)}.
+ */
+public class UploadJournal {
+    /**
+     * The name of the journal file, kept in the local backup folder
+     */
+    public static final String FILE_NAME = ".drivebackup-uploads";
+
+    private static final String HEADER = "# DriveBackupV2 upload journal";
+
+    /**
+     * Uploads started longer ago than this are abandoned, as the backup methods expire their upload sessions after about a week
+     */
+    private static final long MAX_UPLOAD_AGE = TimeUnit.DAYS.toMillis(6);
+
+    /**
+     * The number of bytes hashed at the start and at the end of a file
+     */
+    private static final int HASHED_BYTES = 64 * 1024;
+
+    private static UploadJournal journal;
+
+    private final File file;
+    private final List<Entry> entries = new ArrayList<>();
+
+    private UploadJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * An upload in progress
+     */
+    public static class Entry {
+        /**
+         * The ID of the uploader uploading the file
+         */
+        public final String uploaderId;
+
+        /**
+         * The path of the file
+         */
+        public final String filePath;
+
+        /**
+         * Where the file is uploaded to, which is the type of file passed to {@link Uploader#uploadFile(File, String)}
+         */
+        public final String destination;
+
+        /**
+         * The upload session, such as its URL or ID, as the uploader identifies it
+         */
+        public final String session;
+
+        /**
+         * The number of bytes of the file the backup method confirmed
+         */
+        public final long offset;
+
+        public final String hash;
+
+        /**
+         * When the upload was started, in milliseconds since the epoch
+         */
+        public final long startTime;
+
+        @Contract (pure = true)
+        public Entry(String uploaderId, String filePath, String destination, String session, long offset, String hash, long startTime) {
+            this.uploaderId = uploaderId;
+            this.filePath = filePath;
+            this.destination = destination;
+            this.session = session;
+            this.offset = offset;
+            this.hash = hash;
+            this.startTime = startTime;
+        }
+    }
+
+    /**
+     * Gets the journal of the local backup folder, loading it if it wasn't yet.
+     * @return the journal
+     */
+    @NotNull
+    public static synchronized UploadJournal getJournal() {
+        File file = new File(ConfigParser.getConfig().backupStorage.localDirectory, FILE_NAME);
+        if (journal == null || !journal.file.equals(file)) {
+            journal = load(file);
+        }
+        return journal;
+    }
+
+    /**
+     * Gets the uploads of an uploader.
+     * @param uploaderId the ID of the uploader
+     * @return the uploads, oldest first
+     */
+    @NotNull
+    public synchronized List<Entry> getEntries(@NotNull String uploaderId) {
+        List<Entry> uploaderEntries = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.uploaderId.equals(uploaderId)) {
+                uploaderEntries.add(entry);
+            }
+        }
+        return uploaderEntries;
+    }
+
+    /**
+     * Gets whether a file has an unfinished upload, by any uploader, so it must be kept to resume the upload.
+     * @param file the file
+     * @return whether it does
+     */
+    public synchronized boolean hasUpload(@NotNull File file) {
+        String filePath = file.getAbsolutePath();
+        for (Entry entry : entries) {
+            if (entry.filePath.equals(filePath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the upload of a file to resume.
+     * @param uploaderId the ID of the uploader
+     * @param file the file
+     * @param destination where the file is uploaded to
+     * @return the upload, or {@code null} if the file isn't being uploaded there, or the upload can't be resumed
+     */
+    @Nullable
+    public synchronized Entry getResumable(@NotNull String uploaderId, @NotNull File file, @NotNull String destination) {
+        Entry entry = find(uploaderId, file.getAbsolutePath());
+        if (entry == null || !entry.destination.equals(destination) || !isResumable(entry)) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Gets whether an upload can be resumed, which it can while its file is unchanged, and it wasn't started too long ago.
+     * @param entry the upload
+     * @return whether the upload can be resumed
+     */
+    public boolean isResumable(@NotNull Entry entry) {
+        File uploadedFile = new File(entry.filePath);
+        if (!uploadedFile.isFile() || System.currentTimeMillis() - entry.startTime > MAX_UPLOAD_AGE) {
+            return false;
+        }
+        try {
+            return entry.hash.equals(hash(uploadedFile));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Records that an upload was started, replacing any previous upload of the file by the uploader.
+     * @param uploaderId the ID of the uploader
+     * @param file the file
+     * @param destination where the file is uploaded to
+     * @param session the upload session
+     * @return the upload
+     */
+    @NotNull
+    public synchronized Entry start(@NotNull String uploaderId, @NotNull File file, @NotNull String destination, @NotNull String session) {
+        String hash;
+        try {
+            hash = hash(file);
+        } catch (IOException e) {
+            // The upload can't be resumed without the hash of its file
+            hash = "";
+        }
+        Entry entry = new Entry(uploaderId, file.getAbsolutePath(), destination, session, 0, hash, System.currentTimeMillis());
+        Entry previous = find(uploaderId, entry.filePath);
+        if (previous != null) {
+            entries.remove(previous);
+        }
+        entries.add(entry);
+        save();
+        return entry;
+    }
+
+    /**
+     * Records that the backup method confirmed more bytes of an upload.
+     * @param entry the upload
+     * @param offset the number of bytes of the file the backup method confirmed
+     * @return the updated upload
+     */
+    @NotNull
+    public synchronized Entry update(@NotNull Entry entry, long offset) {
+        Entry updated = new Entry(entry.uploaderId, entry.filePath, entry.destination, entry.session, offset, entry.hash, entry.startTime);
+        int index = entries.indexOf(entry);
+        if (index == -1) {
+            entries.add(updated);
+        } else {
+            entries.set(index, updated);
+        }
+        save();
+        return updated;
+    }
+
+    /**
+     * Removes an upload which finished, or was abandoned.
+     * @param entry the upload
+     */
+    public synchronized void remove(@NotNull Entry entry) {
+        if (entries.remove(entry)) {
+            save();
+        }
+    }
+
+    @Nullable
+    private Entry find(String uploaderId, String filePath) {
+        for (Entry entry : entries) {
+            if (entry.uploaderId.equals(uploaderId) && entry.filePath.equals(filePath)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Hashes the size, the modification time, and the start and end of a file,
+     * which tells it apart from another backup with the same name without reading all of a large backup.
+     * @param file the file
+     * @return the hash, as hexadecimal
+     * @throws IOException if the file couldn't be read
+     */
+    @NotNull
+    private static String hash(@NotNull File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            long length = randomAccessFile.length();
+            digest.update((length + "\t" + file.lastModified()).getBytes(StandardCharsets.UTF_8));
+            byte[] buffer = new byte[(int) Math.min(HASHED_BYTES, length)];
+            randomAccessFile.readFully(buffer);
+            digest.update(buffer);
+            randomAccessFile.seek(length - buffer.length);
+            randomAccessFile.readFully(buffer);
+            digest.update(buffer);
+        }
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Loads a journal from a file.
+     * @param file the file
+     * @return the journal, which is empty if there is no journal, or it couldn't be read
+     */
+    @NotNull
+    private static UploadJournal load(@NotNull File file) {
+        UploadJournal loaded = new UploadJournal(file);
+        if (!file.isFile()) {
+            return loaded;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                return loaded;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 7);
+                if (fields.length != 7) {
+                    continue;
+                }
+                loaded.entries.add(new Entry(
+                    fields[0], fields[6], fields[3], fields[4], Long.parseLong(fields[1]), fields[5], Long.parseLong(fields[2])));
+            }
+            return loaded;
+        } catch (IOException | RuntimeException e) {
+            return new UploadJournal(file);
+        }
+    }
+
+    /**
+     * Saves the journal, replacing it in one step so that a partially written journal is never left behind.
+     * The journal is deleted once no uploads are in progress.
+     */
+    private void save() {
+        try {
+            if (entries.isEmpty()) {
+                Files.deleteIfExists(file.toPath());
+                return;
+            }
+            File temporaryFile = new File(file.getPath() + ".tmp");
+            file.getAbsoluteFile().getParentFile().mkdirs();
+            try (BufferedWriter writer = Files.newBufferedWriter(temporaryFile.toPath(), StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+                for (Entry entry : entries) {
+                    writer.write(entry.uploaderId + "\t" + entry.offset + "\t" + entry.startTime + "\t" + entry.destination
+                        + "\t" + entry.session + "\t" + entry.hash + "\t" + entry.filePath);
+                    writer.newLine();
+                }
+            }
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            MessageUtil.sendConsoleException(e);
+        }
+    }
+}
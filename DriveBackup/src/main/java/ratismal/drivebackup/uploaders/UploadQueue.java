@@ -0,0 +1,100 @@
+package ratismal.drivebackup.uploaders;
+
+import org.jetbrains.annotations.NotNull;
+import ratismal.drivebackup.util.MessageUtil;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads the backups of the backup locations in the order they are created, on its own thread,
+ * while the backups of the next locations are still being created, so uploading overlaps with compressing
+ * rather than only starting once every backup was created.
+ * <p>
+ * The backups waiting to be uploaded take up disk space until they are uploaded and pruned,
+ * so before the next backup is created, {@link #awaitDiskSpace()} waits for the uploads
+ * while there is less free space than the largest backup queued so far.
+ */
+public class UploadQueue implements Closeable {
+    private final File folder;
+    private final ExecutorService executor;
+    private int pendingUploads;
+    private long largestBackupSize;
+    private boolean closed;
+
+    /**
+     * Creates an instance of the {@code UploadQueue} object, and starts the upload thread
+     * @param folder the folder the backups are saved in, whose free space limits how many backups wait to be uploaded
+     */
+    public UploadQueue(@NotNull File folder) {
+        this.folder = folder;
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "DriveBackupV2-upload-queue");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a backup to be uploaded once the backups queued before it were.
+     * @param size the size of the backup, in bytes
+     * @param upload uploads the backup
+     */
+    public synchronized void add(long size, @NotNull Runnable upload) {
+        pendingUploads++;
+        largestBackupSize = Math.max(largestBackupSize, size);
+        executor.execute(() -> {
+            try {
+                upload.run();
+            } catch (Exception e) {
+                MessageUtil.sendConsoleException(e);
+            } finally {
+                uploadFinished();
+            }
+        });
+    }
+
+    /**
+     * Waits until there is enough free disk space to create the next backup,
+     * which is as much as the largest backup queued so far, or no backups are waiting to be uploaded.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void awaitDiskSpace() throws InterruptedException {
+        while (pendingUploads > 0 && folder.getUsableSpace() < largestBackupSize) {
+            wait();
+        }
+    }
+
+    private synchronized void uploadFinished() {
+        pendingUploads--;
+        notifyAll();
+    }
+
+    /**
+     * Waits for the queued backups to be uploaded.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        executor.shutdown();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.DAYS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -2,14 +2,17 @@ package ratismal.drivebackup.uploaders;
 
 import ratismal.drivebackup.UploadThread;
 import ratismal.drivebackup.uploaders.Authenticator.AuthenticationProvider;
+import ratismal.drivebackup.util.BufferPool;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 public abstract class Uploader {
     private String name;
     private String id;
     private boolean authenticated;
-    private boolean errorOccurred;
+    private volatile boolean errorOccurred;
+    private volatile boolean pruningDeferred;
     private AuthenticationProvider authProvider;
     protected UploadThread.UploadLogger logger;
     
@@ -48,7 +51,77 @@ public abstract class Uploader {
     protected void setErrorOccurred(boolean errorOccurred) {
         this.errorOccurred = errorOccurred;
     }
+    /**
+     * Sets whether to skip pruning the backups after uploading a file,
+     * such as while uploading the volumes of a backup before the last, so older backups aren't deleted before it is complete.
+     * @param pruningDeferred whether to skip pruning
+     */
+    public void setPruningDeferred(boolean pruningDeferred) {
+        this.pruningDeferred = pruningDeferred;
+    }
+    protected boolean isPruningDeferred() {
+        return pruningDeferred;
+    }
     public abstract void test(java.io.File testFile);
     public abstract void uploadFile(java.io.File file, String type) throws IOException;
+
+    /**
+     * Whether this uploader can upload a backup while it is being created, see {@link #uploadStream(InputStream, String, String)}
+     * @return whether it can
+     */
+    public boolean supportsStreaming() {
+        return false;
+    }
+
+    /**
+     * Uploads a backup while it is being created, reading it until the end of the stream.
+     * <p>
+     * If the stream fails, the upload must be abandoned rather than completed, so a partial backup isn't uploaded.
+     * @param inputStream the contents of the backup
+     * @param fileName the name of the backup
+     * @param type the type of file (ex. plugins, world)
+     * @throws IOException if the upload failed
+     */
+    public void uploadStream(InputStream inputStream, String fileName, String type) throws IOException {
+        throw new UnsupportedOperationException(getName() + " doesn't support streaming uploads");
+    }
+
+    /**
+     * Reports how much of a file was uploaded, which is shown in the status of the backup, see {@link UploadThread#setUploadProgress(String, long, long)}.
+     * @param uploaded the number of bytes uploaded
+     * @param size the size of the file, in bytes, or 0 once the upload finished
+     */
+    protected void reportProgress(long uploaded, long size) {
+        UploadThread.setUploadProgress(getName(), uploaded, size);
+    }
+
+    /**
+     * Cleans up an upload recorded in the {@link UploadJournal} which won't be resumed, such as by cancelling its upload session,
+     * for uploaders whose upload sessions don't just expire.
+     * @param entry the upload
+     * @throws IOException if the upload couldn't be cleaned up
+     */
+    public void abandonUpload(UploadJournal.Entry entry) throws IOException {
+    }
+
+    /**
+     * Reads from a stream until the chunk is full or the stream ends, to upload a backup in chunks while it is being created.
+     * @param inputStream the stream
+     * @param buffer the buffer to read the chunk into, which may be longer than the chunk, such as one from the {@link BufferPool}
+     * @param chunkSize the size of the chunk
+     * @return the number of bytes read, which is less than the size of the chunk only if the stream ended
+     * @throws IOException if reading from the stream failed
+     */
+    protected static int readChunk(InputStream inputStream, byte[] buffer, int chunkSize) throws IOException {
+        int total = 0;
+        while (total < chunkSize) {
+            int read = inputStream.read(buffer, total, chunkSize - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
     public abstract void close();
 }
@@ -0,0 +1,215 @@
+package ratismal.drivebackup.uploaders;
+
+import org.jetbrains.annotations.NotNull;
+import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.archive.VolumeOutputStream;
+import ratismal.drivebackup.util.BackupHistory;
+import ratismal.drivebackup.util.MessageUtil;
+import ratismal.drivebackup.util.Timer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static ratismal.drivebackup.config.Localization.intl;
+
+/**
+ * Uploads the volumes of backups split into volumes, see {@link VolumeOutputStream}, as soon as each is finished,
+ * while the rest of the backups are still being created.
+ * <p>
+ * Each uploader uploads the volumes in order on its own thread, so the uploaders upload concurrently with each other,
+ * and with creating the backups. An uploader only uploads one volume at a time,
+ * as some keep a single connection, or create the folders to upload to when uploading.
+ * <p>
+ * Uploaders don't prune their backups until the last volume of a backup was uploaded, see {@link Uploader#setPruningDeferred(boolean)},
+ * so older backups aren't deleted before the new backup is complete.
+ * If an upload fails, that uploader skips the rest of the volumes of that backup.
+ */
+public class VolumeUpload implements Closeable {
+    private static final Volume END = new Volume(null, null, true);
+
+    private final UploadLogger logger;
+    private final List<Uploader> uploaders;
+    private final BackupHistory history;
+    private final List<BlockingQueue<Volume>> queues = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final Timer timer = new Timer();
+    private final AtomicLong size = new AtomicLong();
+    private boolean closed;
+
+    /**
+     * A backup being split into volumes, whose volumes are uploaded as they are finished
+     */
+    public class Backup implements VolumeOutputStream.Listener {
+        private final String type;
+        private volatile boolean aborted;
+        private volatile File index;
+
+        private Backup(String type) {
+            this.type = type;
+        }
+
+        @Override
+        public void volumeFinished(File volume, boolean last) {
+            File index = this.index;
+            add(volume, last && index == null);
+            if (last && index != null) {
+                add(index, true);
+            }
+        }
+
+        /**
+         * Sets the index of this backup, see {@link ratismal.drivebackup.archive.ArchiveIndex}, to be uploaded after its last volume.
+         * @param index the index
+         */
+        public void setIndex(File index) {
+            this.index = index;
+        }
+
+        private void add(@NotNull File file, boolean last) {
+            size.addAndGet(file.length());
+            Volume finished = new Volume(this, file, last);
+            for (BlockingQueue<Volume> queue : queues) {
+                queue.add(finished);
+            }
+        }
+
+        /**
+         * Stops uploading the volumes of this backup, because creating it failed, leaving the volumes already uploaded.
+         */
+        public void abort() {
+            aborted = true;
+        }
+    }
+
+    /**
+     * A finished volume
+     */
+    private static class Volume {
+        private final Backup backup;
+        private final File file;
+        private final boolean last;
+
+        private Volume(Backup backup, File file, boolean last) {
+            this.backup = backup;
+            this.file = file;
+            this.last = last;
+        }
+    }
+
+    /**
+     * Creates an instance of the {@code VolumeUpload} object, and starts the upload threads
+     * @param logger the logger
+     * @param uploaders the uploaders to upload the volumes to
+     * @param history the history to record how fast each uploader uploaded in
+     */
+    public VolumeUpload(UploadLogger logger, @NotNull List<Uploader> uploaders, BackupHistory history) {
+        this.logger = logger;
+        this.uploaders = uploaders;
+        this.history = history;
+        timer.start();
+        for (Uploader uploader : uploaders) {
+            BlockingQueue<Volume> queue = new LinkedBlockingQueue<>();
+            Thread thread = new Thread(() -> upload(uploader, queue), "DriveBackupV2-upload-" + uploader.getId());
+            thread.setDaemon(true);
+            queues.add(queue);
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Starts a backup, whose volumes are uploaded as they are finished.
+     * @param type the type of file (ex. plugins, world)
+     * @return the backup, to be notified of its volumes
+     */
+    @NotNull
+    public Backup startBackup(String type) {
+        return new Backup(type);
+    }
+
+    /**
+     * Waits for the uploads to finish, logging how each uploader went.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (BlockingQueue<Volume> queue : queues) {
+            queue.add(END);
+        }
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                try {
+                    thread.join();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+        timer.end();
+        for (Uploader uploader : uploaders) {
+            logger.info(
+                intl("backup-method-uploading"),
+                "upload-method", uploader.getName());
+            if (!uploader.isErrorWhileUploading()) {
+                logger.info(timer.getUploadTimeMessage(size.get(), uploader.getId()));
+            } else {
+                logger.info(intl("backup-method-upload-failed"));
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void upload(@NotNull Uploader uploader, @NotNull BlockingQueue<Volume> queue) {
+        // Several backups can be made at once, so their volumes are interleaved
+        Set<Backup> failedBackups = new HashSet<>();
+        long uploadedSize = 0;
+        long uploadTime = 0;
+        try {
+            Volume volume;
+            while ((volume = queue.take()) != END) {
+                if (volume.backup.aborted || failedBackups.contains(volume.backup)) {
+                    continue;
+                }
+                // An uploader which already failed can't be told to have failed on this volume, so it uploads the rest anyway
+                boolean failedBefore = uploader.isErrorWhileUploading();
+                uploader.setPruningDeferred(!volume.last);
+                long startTime = System.currentTimeMillis();
+                try {
+                    uploader.uploadFile(volume.file, volume.backup.type);
+                    if (!failedBefore && uploader.isErrorWhileUploading()) {
+                        failedBackups.add(volume.backup);
+                    } else if (!uploader.isErrorWhileUploading()) {
+                        // Only the time spent uploading counts, not the time spent waiting for the next volume
+                        uploadedSize += volume.file.length();
+                        uploadTime += System.currentTimeMillis() - startTime;
+                    }
+                } catch (Exception e) {
+                    MessageUtil.sendConsoleException(e);
+                    failedBackups.add(volume.backup);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            uploader.setPruningDeferred(false);
+            history.recordUpload(uploader.getId(), uploadedSize, uploadTime);
+        }
+    }
+}
@@ -2,29 +2,37 @@ package ratismal.drivebackup.uploaders.dropbox;
 
 import okhttp3.FormBody;
 import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.archive.ArchiveFormat;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.config.ConfigParser.Config;
 import ratismal.drivebackup.plugin.DriveBackup;
 import ratismal.drivebackup.uploaders.Authenticator;
 import ratismal.drivebackup.uploaders.Authenticator.AuthenticationProvider;
 import ratismal.drivebackup.uploaders.Obfusticate;
+import ratismal.drivebackup.uploaders.UploadJournal;
 import ratismal.drivebackup.uploaders.Uploader;
+import ratismal.drivebackup.util.BandwidthLimiter;
+import ratismal.drivebackup.util.BufferPool;
 import ratismal.drivebackup.util.MessageUtil;
 import ratismal.drivebackup.util.NetUtil;
 
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.time.Instant;
-import java.util.TreeMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static ratismal.drivebackup.config.Localization.intl;
@@ -33,23 +41,31 @@ public class DropboxUploader extends Uploader {
 
     public static final String UPLOADER_NAME = "Dropbox";
 
+    /**
+     * The size of each chunk of a chunked upload, 8 MB
+     */
+    private static final int CHUNKED_UPLOAD_CHUNK_SIZE = (1024 * 1024 * 8);
+
     /**
      * Global Dropbox tokens
      */
     private String accessToken = "";
     private String refreshToken;
 
+    /**
+     * The client requests are made with, whose uploads are limited by the {@link BandwidthLimiter}
+     */
+    private final OkHttpClient httpClient;
+
     /**
      * Tests the Dropbox account by uploading a small file
      *  @param testFile the file to upload during the test
      */
     public void test(@NotNull java.io.File testFile) {
-        try (DataInputStream dis = new DataInputStream(Files.newInputStream(testFile.toPath()))) {
-            byte[] content = new byte[(int) testFile.length()];
-            dis.readFully(content);
+        try {
             MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
             MediaType JSON = MediaType.parse("application/json; charset=utf-8");
-            RequestBody requestBody = RequestBody.create(content, OCTET_STREAM);
+            RequestBody requestBody = RequestBody.create(testFile, OCTET_STREAM);
             String destination = ConfigParser.getConfig().backupStorage.remoteDirectory;
             JSONObject dropbox_json = new JSONObject();
             dropbox_json.put("path", "/" + destination + "/" + testFile.getName());
@@ -60,7 +76,7 @@ public class DropboxUploader extends Uploader {
                 .url("https://content.dropboxapi.com/2/files/upload")
                 .post(requestBody)
                 .build();
-            Response response = DriveBackup.httpClient.newCall(request).execute();
+            Response response = httpClient.newCall(request).execute();
             int statusCode = response.code();
             response.close();
             if (statusCode != 200) {
@@ -75,7 +91,7 @@ public class DropboxUploader extends Uploader {
                 .url("https://api.dropboxapi.com/2/files/delete_v2")
                 .post(deleteRequestBody)
                 .build();
-            response = DriveBackup.httpClient.newCall(request).execute();
+            response = httpClient.newCall(request).execute();
             statusCode = response.code();
             response.close();
             if (statusCode != 200) {
@@ -107,76 +123,12 @@ public class DropboxUploader extends Uploader {
         MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
         String folder = type.replaceAll("\\.{1,2}\\/", "");
         folder = folder.replace(".\\", "");
-        try (DataInputStream dis = new DataInputStream(Files.newInputStream(file.toPath()))) {
+        try {
             if (fileSize > 150000000L /* 150MB */) {
-                // Chunked upload
-                // 10 MB chunk
-                final int CHUNKED_UPLOAD_CHUNK_SIZE = (1024 * 1024 * 10);
-                long uploaded = 0L;
-                byte[] buff = new byte[CHUNKED_UPLOAD_CHUNK_SIZE];
-                String sessionId = null;
-                // (1) Start
-                if (sessionId == null) {
-                    dis.readFully(buff);
-                    RequestBody requestBody = RequestBody.create(buff, OCTET_STREAM);
-                    Request request = new Request.Builder()
-                        .addHeader("Authorization", "Bearer " + accessToken)
-                        .post(requestBody)
-                        .url("https://content.dropboxapi.com/2/files/upload_session/start")
-                        .build();
-                    Response response = DriveBackup.httpClient.newCall(request).execute();
-                    JSONObject parsedResponse = new JSONObject(response.body().string());
-                    sessionId = parsedResponse.getString("session_id");
-                    response.close();
-                    uploaded += CHUNKED_UPLOAD_CHUNK_SIZE;
-                }
-                // (2) Append
-                while (fileSize - uploaded > CHUNKED_UPLOAD_CHUNK_SIZE) {
-                    dis.readFully(buff);
-                    RequestBody requestBody = RequestBody.create(buff, OCTET_STREAM);
-                    JSONObject dropbox_cursor = new JSONObject();
-                    dropbox_cursor.put("session_id", sessionId);
-                    dropbox_cursor.put("offset", uploaded);
-                    JSONObject dropbox_json = new JSONObject();
-                    dropbox_json.put("cursor", dropbox_cursor);
-                    String dropbox_arg = dropbox_json.toString();
-                    Request request = new Request.Builder()
-                        .addHeader("Dropbox-API-Arg", dropbox_arg)
-                        .addHeader("Authorization", "Bearer " + accessToken)
-                        .post(requestBody)
-                        .url("https://content.dropboxapi.com/2/files/upload_session/append_v2")
-                        .build();
-                    Response response = DriveBackup.httpClient.newCall(request).execute();
-                    response.close();
-                    uploaded += CHUNKED_UPLOAD_CHUNK_SIZE;
-                }
-                // (3) Finish
-                int remainingSize = (int) (fileSize - uploaded);
-                byte[] remaining = new byte[remainingSize];
-                dis.readFully(remaining);
-                RequestBody requestBody = RequestBody.create(remaining, OCTET_STREAM);
-                JSONObject dropboxCursor = new JSONObject();
-                dropboxCursor.put("session_id", sessionId);
-                dropboxCursor.put("offset", uploaded);
-                JSONObject dropboxCommit = new JSONObject();
-                dropboxCommit.put("path", "/" + destination + "/" + folder + "/" + file.getName());
-                JSONObject dropboxJson = new JSONObject();
-                dropboxJson.put("cursor", dropboxCursor);
-                dropboxJson.put("commit", dropboxCommit);
-                String dropbox_arg = dropboxJson.toString();
-                Request request = new Request.Builder()
-                    .addHeader("Dropbox-API-Arg", dropbox_arg)
-                    .addHeader("Authorization", "Bearer " + accessToken)
-                    .post(requestBody)
-                    .url("https://content.dropboxapi.com/2/files/upload_session/finish")
-                    .build();
-                Response response = DriveBackup.httpClient.newCall(request).execute();
-                response.close();
+                uploadChunked(file, "/" + destination + "/" + folder + "/" + file.getName(), type);
             } else {
-                // Single upload
-                byte[] content = new byte[ (int) fileSize];
-                dis.readFully(content);
-                RequestBody requestBody = RequestBody.create(content, OCTET_STREAM);
+                // Single upload, streamed from the file
+                RequestBody requestBody = RequestBody.create(file, OCTET_STREAM);
                 JSONObject dropbox_json = new JSONObject();
                 dropbox_json.put("path", "/" + destination + "/" + folder + "/" + file.getName());
                 String dropbox_arg = dropbox_json.toString();
@@ -186,7 +138,7 @@ public class DropboxUploader extends Uploader {
                     .url("https://content.dropboxapi.com/2/files/upload")
                     .post(requestBody)
                     .build();
-                Response response = DriveBackup.httpClient.newCall(request).execute();
+                Response response = httpClient.newCall(request).execute();
                 response.close();
             }
             try {
@@ -202,6 +154,200 @@ public class DropboxUploader extends Uploader {
         }
     }
 
+    @Override
+    public boolean supportsStreaming() {
+        return true;
+    }
+
+    /**
+     * Uploads a backup to the authenticated user's Dropbox inside a folder for the specified file type,
+     * while it is being created, using an upload session which is only finished once the whole backup was read.
+     *
+     * @param inputStream the contents of the backup
+     * @param fileName the name of the backup
+     * @param type the type of file (ex. plugins, world)
+     */
+    @Override
+    public void uploadStream(@NotNull InputStream inputStream, @NotNull String fileName, @NotNull String type) {
+        String destination = ConfigParser.getConfig().backupStorage.remoteDirectory;
+        String folder = type.replaceAll("\\.{1,2}\\/", "");
+        folder = folder.replace(".\\", "");
+        try {
+            JSONObject parsedResponse = new JSONObject(executeSessionRequest("start", null, new byte[0], 0));
+            String sessionId = parsedResponse.getString("session_id");
+            byte[] buff = BufferPool.acquire(CHUNKED_UPLOAD_CHUNK_SIZE);
+            try {
+                long uploaded = 0L;
+                while (true) {
+                    int read = readChunk(inputStream, buff, CHUNKED_UPLOAD_CHUNK_SIZE);
+                    JSONObject dropboxCursor = new JSONObject();
+                    dropboxCursor.put("session_id", sessionId);
+                    dropboxCursor.put("offset", uploaded);
+                    JSONObject dropboxJson = new JSONObject();
+                    dropboxJson.put("cursor", dropboxCursor);
+                    if (read < CHUNKED_UPLOAD_CHUNK_SIZE) {
+                        JSONObject dropboxCommit = new JSONObject();
+                        dropboxCommit.put("path", "/" + destination + "/" + folder + "/" + fileName);
+                        dropboxJson.put("commit", dropboxCommit);
+                        executeSessionRequest("finish", dropboxJson.toString(), buff, read);
+                        break;
+                    }
+                    executeSessionRequest("append_v2", dropboxJson.toString(), buff, read);
+                    uploaded += read;
+                }
+            } finally {
+                BufferPool.release(buff);
+            }
+            try {
+                pruneBackups(folder);
+            } catch (Exception e) {
+                logger.log(intl("backup-method-prune-failed"));
+                throw e;
+            }
+        } catch (Exception exception) {
+            NetUtil.catchException(exception, "api.dropboxapi.com", logger);
+            MessageUtil.sendConsoleException(exception);
+            setErrorOccurred(true);
+        }
+    }
+
+    /**
+     * Uploads a file in chunks with an upload session, which is recorded in the {@link UploadJournal},
+     * so an interrupted upload of the file is resumed from the last chunk Dropbox received.
+     * @param file the file
+     * @param path the path to upload the file to
+     * @param type the type of file (ex. plugins, world)
+     * @throws IOException if the upload failed
+     */
+    private void uploadChunked(@NotNull java.io.File file, @NotNull String path, @NotNull String type) throws IOException {
+        UploadJournal journal = UploadJournal.getJournal();
+        byte[] buff = BufferPool.acquire(CHUNKED_UPLOAD_CHUNK_SIZE);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            UploadJournal.Entry entry = journal.getResumable(getId(), file, type);
+            if (entry != null) {
+                try {
+                    uploadToSession(raf, buff, entry, path);
+                    return;
+                } catch (SessionRequestException e) {
+                    JSONObject lookupError = e.getLookupError();
+                    if (lookupError == null || !"not_found".equals(lookupError.getString(".tag"))) {
+                        throw e;
+                    }
+                    // The upload session expired, so the file is uploaded again
+                    journal.remove(entry);
+                }
+            }
+            String sessionId = new JSONObject(executeSessionRequest("start", null, buff, 0)).getString("session_id");
+            uploadToSession(raf, buff, journal.start(getId(), file, type, sessionId), path);
+        } finally {
+            BufferPool.release(buff);
+        }
+    }
+
+    /**
+     * Uploads the rest of a file to an upload session, from the last chunk Dropbox received, then finishes the session.
+     * @param raf the file
+     * @param buff the buffer to read the chunks into
+     * @param entry the upload in the {@link UploadJournal}
+     * @param path the path to upload the file to
+     * @throws IOException if the upload failed
+     */
+    private void uploadToSession(@NotNull RandomAccessFile raf, byte[] buff, @NotNull UploadJournal.Entry entry, @NotNull String path) throws IOException {
+        UploadJournal journal = UploadJournal.getJournal();
+        long fileSize = raf.length();
+        long uploaded = entry.offset;
+        while (true) {
+            int length = (int) Math.min(CHUNKED_UPLOAD_CHUNK_SIZE, fileSize - uploaded);
+            raf.seek(uploaded);
+            raf.readFully(buff, 0, length);
+            boolean last = uploaded + length == fileSize;
+            JSONObject dropboxCursor = new JSONObject();
+            dropboxCursor.put("session_id", entry.session);
+            dropboxCursor.put("offset", uploaded);
+            JSONObject dropboxJson = new JSONObject();
+            dropboxJson.put("cursor", dropboxCursor);
+            if (last) {
+                JSONObject dropboxCommit = new JSONObject();
+                dropboxCommit.put("path", path);
+                dropboxJson.put("commit", dropboxCommit);
+            }
+            try {
+                executeSessionRequest(last ? "finish" : "append_v2", dropboxJson.toString(), buff, length);
+            } catch (SessionRequestException e) {
+                // Dropbox received a chunk which wasn't recorded as received before the upload was interrupted
+                JSONObject lookupError = e.getLookupError();
+                if (lookupError == null || !"incorrect_offset".equals(lookupError.getString(".tag"))
+                    || lookupError.getLong("correct_offset") == uploaded) {
+                    throw e;
+                }
+                uploaded = lookupError.getLong("correct_offset");
+                entry = journal.update(entry, uploaded);
+                continue;
+            }
+            if (last) {
+                break;
+            }
+            uploaded += length;
+            entry = journal.update(entry, uploaded);
+        }
+        journal.remove(entry);
+    }
+
+    /**
+     * A failed request of an upload session
+     */
+    private static class SessionRequestException extends IOException {
+        private final String body;
+
+        private SessionRequestException(String action, int statusCode, String body) {
+            super("Upload session " + action + " failed with status " + statusCode + ": " + body);
+            this.body = body;
+        }
+
+        /**
+         * Gets why the upload session couldn't be looked up, such as it having received more of the file.
+         * @return the error, or {@code null} if the request failed for another reason
+         */
+        @Nullable
+        private JSONObject getLookupError() {
+            try {
+                JSONObject error = new JSONObject(body).getJSONObject("error");
+                if ("lookup_failed".equals(error.getString(".tag"))) {
+                    error = error.getJSONObject("lookup_failed");
+                }
+                return error;
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Sends a request of an upload session.
+     * @param action the action, such as {@code start}
+     * @param dropboxArg the arguments of the request, or {@code null} if there are none
+     * @param data the data to upload
+     * @param length the number of bytes of the data to upload
+     * @return the body of the response
+     * @throws IOException if the request failed
+     */
+    private String executeSessionRequest(String action, String dropboxArg, byte[] data, int length) throws IOException {
+        Request.Builder requestBuilder = new Request.Builder()
+            .addHeader("Authorization", "Bearer " + accessToken)
+            .post(RequestBody.create(data, MediaType.parse("application/octet-stream"), 0, length))
+            .url("https://content.dropboxapi.com/2/files/upload_session/" + action);
+        if (dropboxArg != null) {
+            requestBuilder.addHeader("Dropbox-API-Arg", dropboxArg);
+        }
+        try (Response response = httpClient.newCall(requestBuilder.build()).execute()) {
+            String body = response.body().string();
+            if (!response.isSuccessful()) {
+                throw new SessionRequestException(action, response.code(), body);
+            }
+            return body;
+        }
+    }
+
     /**
      * Deletes the oldest files past the number to retain from the FTP server inside
      * the specified folder for the file type.
@@ -218,40 +364,41 @@ public class DropboxUploader extends Uploader {
         type = type.replace(".\\", "");
         String destination = config.backupStorage.remoteDirectory;
         int fileLimit = config.backupStorage.keepCount;
-        if (fileLimit == -1) {
+        if (fileLimit == -1 || isPruningDeferred()) {
             return;
         }
-        TreeMap<Instant, String> files = getZipFiles(destination, type);
+        List<List<JSONObject>> files = getZipFiles(destination, type);
         if (files.size() > fileLimit) {
             logger.info(intl("backup-method-limit-reached"),
                 "file-count", String.valueOf(files.size()),
                 "upload-method", getName(),
                 "file-limit", String.valueOf(fileLimit));
-            while (files.size() > fileLimit) {
-                JSONObject deleteJson = new JSONObject();
-                deleteJson.put("path", "/" + destination + "/" + type + "/" + files.firstEntry().getValue());
-                RequestBody deleteRequestBody = RequestBody.create(deleteJson.toString(),
-                                                        MediaType.parse("application/json"));
-                Request deleteRequest = new Request.Builder()
-                    .addHeader("Authorization", "Bearer " + accessToken)
-                    .url("https://api.dropboxapi.com/2/files/delete_v2")
-                    .post(deleteRequestBody)
-                    .build();
-                Response deleteResponse = DriveBackup.httpClient.newCall(deleteRequest).execute();
-                deleteResponse.close();
-                files.remove(files.firstKey());
+            for (List<JSONObject> backup : ArchiveFormat.getBackupsToPrune(files, fileLimit, file -> file.getString("name"))) {
+                for (JSONObject file : backup) {
+                    JSONObject deleteJson = new JSONObject();
+                    deleteJson.put("path", "/" + destination + "/" + type + "/" + file.getString("name"));
+                    RequestBody deleteRequestBody = RequestBody.create(deleteJson.toString(),
+                                                            MediaType.parse("application/json"));
+                    Request deleteRequest = new Request.Builder()
+                        .addHeader("Authorization", "Bearer " + accessToken)
+                        .url("https://api.dropboxapi.com/2/files/delete_v2")
+                        .post(deleteRequestBody)
+                        .build();
+                    Response deleteResponse = httpClient.newCall(deleteRequest).execute();
+                    deleteResponse.close();
+                }
             }
         }
     }
 
     /**
-     * Returns a list of ZIP files, and their modification dates inside the given folder.
-     * @return a map of files, and their modification dates
+     * Returns the backup archives inside the given folder, the volumes of each backup split into volumes together.
+     * @return the backups, oldest first
      * @throws Exception
      */
     @NotNull
-    private TreeMap<Instant, String> getZipFiles(String destination, String type) throws Exception {
-        TreeMap<Instant, String> files = new TreeMap<>();
+    private List<List<JSONObject>> getZipFiles(String destination, String type) throws Exception {
+        List<JSONObject> files = new ArrayList<>();
         JSONObject json = new JSONObject();
         json.put("path", "/" + destination + "/" + type);
         RequestBody requestBody = RequestBody.create(json.toString(), MediaType.parse("application/json"));
@@ -260,17 +407,18 @@ public class DropboxUploader extends Uploader {
             .url("https://api.dropboxapi.com/2/files/list_folder")
             .post(requestBody)
             .build();
-        Response response = DriveBackup.httpClient.newCall(request).execute();
+        Response response = httpClient.newCall(request).execute();
         JSONObject parsedResponse = new JSONObject(response.body().string());
         JSONArray resFiles = parsedResponse.getJSONArray("entries");
         response.close();
         for (int i = 0; i < resFiles.length(); i++) {
             JSONObject file = resFiles.getJSONObject(i);
-            if (file.getString("name").endsWith(".zip")) {
-                files.put(Instant.parse(file.getString("server_modified")), file.getString("name"));
+            if (ArchiveFormat.isArchive(file.getString("name"))) {
+                files.add(file);
             }
         }
-        return files;
+        files.sort(Comparator.comparing(file -> Instant.parse(file.getString("server_modified"))));
+        return ArchiveFormat.groupVolumes(files, file -> file.getString("name"));
     }
 
     /**
@@ -278,6 +426,7 @@ public class DropboxUploader extends Uploader {
      */
     public DropboxUploader(UploadLogger logger) {
         super(UPLOADER_NAME, "dropbox");
+        httpClient = BandwidthLimiter.limit(DriveBackup.httpClient, getId());
         setAuthProvider(AuthenticationProvider.DROPBOX);
         this.logger = logger;
         try {
@@ -303,7 +452,7 @@ public class DropboxUploader extends Uploader {
             .url("https://api.dropbox.com/oauth2/token")
             .post(requestBody)
             .build();
-        Response response = DriveBackup.httpClient.newCall(request).execute();
+        Response response = httpClient.newCall(request).execute();
         JSONObject parsedResponse = new JSONObject(response.body().string());
         response.close();
         if (!response.isSuccessful()) {
@@ -8,9 +8,11 @@ import org.apache.commons.net.ftp.FTPSClient;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.archive.ArchiveFormat;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.config.configSections.BackupMethods.FTPBackupMethod;
 import ratismal.drivebackup.uploaders.Uploader;
+import ratismal.drivebackup.util.BandwidthLimiter;
 import ratismal.drivebackup.util.MessageUtil;
 import ratismal.drivebackup.util.NetUtil;
 
@@ -20,8 +22,8 @@ import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.TreeMap;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static ratismal.drivebackup.config.Localization.intl;
@@ -202,7 +204,7 @@ public class FTPUploader extends Uploader {
             createThenEnter(_remoteBaseFolder);
             createThenEnter(type);
             try (FileInputStream fs = new FileInputStream(file)) {
-                ftpClient.storeFile(file.getName(), fs);
+                ftpClient.storeFile(file.getName(), BandwidthLimiter.limit(fs, getId()));
             }
             try {
                 pruneBackups(type);
@@ -282,37 +284,39 @@ public class FTPUploader extends Uploader {
      */
     private void pruneBackups(String type) throws Exception {
         int fileLimit = ConfigParser.getConfig().backupStorage.keepCount;
-        if (fileLimit == -1) {
+        if (fileLimit == -1 || isPruningDeferred()) {
             return;
         }
-        TreeMap<Date, FTPFile> files = getZipFiles();
+        List<List<FTPFile>> files = getZipFiles();
         if (files.size() > fileLimit) {
             logger.info(
                 intl("backup-method-limit-reached"), 
                 "file-count", String.valueOf(files.size()),
                 "upload-method", getName(),
                 "file-limit", String.valueOf(fileLimit));
-            while (files.size() > fileLimit) {
-                ftpClient.deleteFile(files.firstEntry().getValue().getName());
-                files.remove(files.firstKey());
+            for (List<FTPFile> backup : ArchiveFormat.getBackupsToPrune(files, fileLimit, FTPFile::getName)) {
+                for (FTPFile file : backup) {
+                    ftpClient.deleteFile(file.getName());
+                }
             }
         }
     }
 
     /**
-     * Returns a list of ZIP files, and their modification dates inside the current working directory.
-     * @return a map of ZIP files, and their modification dates
+     * Returns the backup archives inside the current working directory, the volumes of each backup split into volumes together.
+     * @return the backups, oldest first
      * @throws Exception
      */
     @NotNull
-    private TreeMap<Date, FTPFile> getZipFiles() throws Exception {
-        TreeMap<Date, FTPFile> files = new TreeMap<>();
+    private List<List<FTPFile>> getZipFiles() throws Exception {
+        List<FTPFile> files = new ArrayList<>();
         for (FTPFile file : ftpClient.mlistDir()) {
-            if (file.getName().endsWith(".zip")) {
-                files.put(file.getTimestamp().getTime(), file);
+            if (ArchiveFormat.isArchive(file.getName())) {
+                files.add(file);
             }
         }
-        return files;
+        files.sort(Comparator.comparing(file -> file.getTimestamp().getTime()));
+        return ArchiveFormat.groupVolumes(files, FTPFile::getName);
     }
 
     /**
@@ -3,10 +3,12 @@ package ratismal.drivebackup.uploaders.ftp;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.archive.ArchiveFormat;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.config.ConfigParser.Config;
 import ratismal.drivebackup.config.configSections.BackupMethods.FTPBackupMethod;
 import ratismal.drivebackup.plugin.DriveBackup;
+import ratismal.drivebackup.util.BandwidthLimiter;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -17,9 +19,11 @@ import java.util.concurrent.TimeUnit;
 import com.google.api.client.util.Strings;
 
 import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.StreamCopier;
 import net.schmizz.sshj.sftp.RemoteResourceInfo;
 import net.schmizz.sshj.sftp.StatefulSFTPClient;
 import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
+import net.schmizz.sshj.xfer.TransferListener;
 import net.schmizz.sshj.userauth.password.*;
 import net.schmizz.sshj.userauth.method.AuthMethod;
 import net.schmizz.sshj.userauth.method.AuthPassword;
@@ -32,6 +36,11 @@ import static ratismal.drivebackup.config.Localization.intl;
  */
 
 public class SFTPUploader {
+    /**
+     * The id of the backup method, whose uploads are limited by the {@link BandwidthLimiter}
+     */
+    private static final String UPLOADER_ID = "ftp";
+
     private UploadLogger logger;
 
     private SSHClient sshClient;
@@ -118,6 +127,7 @@ public class SFTPUploader {
         }
         sshClient.auth(username, sshAuthMethods);
         sftpClient = new StatefulSFTPClient(sshClient.newSFTPClient().getSFTPEngine());
+        sftpClient.getFileTransfer().setTransferListener(new LimitedTransferListener());
         initialRemoteFolder = sftpClient.pwd();
     }
 
@@ -214,37 +224,39 @@ public class SFTPUploader {
      */
     private void pruneBackups() throws Exception {
         int fileLimit = ConfigParser.getConfig().backupStorage.keepCount;
-        if (fileLimit == -1) {
+        if (fileLimit == -1 || isPruningDeferred()) {
             return;
         }
-        TreeMap<Date, RemoteResourceInfo> files = getZipFiles();
+        List<List<RemoteResourceInfo>> files = getZipFiles();
         if (files.size() > fileLimit) {
             logger.info(
                 intl("backup-method-limit-reached"), 
                 "file-count", String.valueOf(files.size()),
                 "upload-method", "(S)FTP",
                 "file-limit", String.valueOf(fileLimit));
-            while (files.size() > fileLimit) {
-                sftpClient.rm(files.firstEntry().getValue().getName());
-                files.remove(files.firstEntry().getKey());
+            for (List<RemoteResourceInfo> backup : ArchiveFormat.getBackupsToPrune(files, fileLimit, RemoteResourceInfo::getName)) {
+                for (RemoteResourceInfo file : backup) {
+                    sftpClient.rm(file.getName());
+                }
             }
         }
     }
 
     /**
-     * Returns a list of ZIP files, and their modification dates inside the current working directory.
-     * @return a map of the files and their modification dates
+     * Returns the backup archives inside the current working directory, the volumes of each backup split into volumes together.
+     * @return the backups, oldest first
      * @throws Exception
      */
     @NotNull
-    private TreeMap<Date, RemoteResourceInfo> getZipFiles() throws Exception {
-        TreeMap<Date, RemoteResourceInfo> files = new TreeMap<>();
+    private List<List<RemoteResourceInfo>> getZipFiles() throws Exception {
+        List<RemoteResourceInfo> files = new ArrayList<>();
         for (RemoteResourceInfo file : sftpClient.ls()) {
-            if (file.getName().endsWith(".zip")) {
-                files.put(new Date(file.getAttributes().getMtime()), file);
+            if (ArchiveFormat.isArchive(file.getName())) {
+                files.add(file);
             }
         }
-        return files;
+        files.sort(Comparator.comparingLong(file -> file.getAttributes().getMtime()));
+        return ArchiveFormat.groupVolumes(files, RemoteResourceInfo::getName);
     }
 
     /**
@@ -282,4 +294,27 @@ public class SFTPUploader {
         }
         return list;
     }
+
+    /**
+     * Limits how fast files are uploaded, by waiting for the bytes sent each time the progress of a file is reported
+     */
+    private static class LimitedTransferListener implements TransferListener {
+        @Override
+        public TransferListener directory(String name) {
+            return this;
+        }
+
+        @Override
+        public StreamCopier.Listener file(String name, long size) {
+            return new StreamCopier.Listener() {
+                private long reported;
+
+                @Override
+                public void reportProgress(long transferred) throws IOException {
+                    BandwidthLimiter.acquire(UPLOADER_ID, transferred - reported);
+                    reported = transferred;
+                }
+            };
+        }
+    }
 }
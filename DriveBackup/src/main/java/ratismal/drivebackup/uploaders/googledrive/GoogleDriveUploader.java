@@ -6,17 +6,18 @@ import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.FileContent;
 import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.InputStreamContent;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.Strings;
 import com.google.api.services.drive.Drive;
-import com.google.api.services.drive.model.ChildList;
-import com.google.api.services.drive.model.ChildReference;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
 import com.google.api.services.drive.model.ParentReference;
 import okhttp3.FormBody;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
@@ -27,20 +28,27 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.json.JSONObject;
 import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.archive.ArchiveFormat;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.plugin.DriveBackup;
 import ratismal.drivebackup.uploaders.Authenticator;
 import ratismal.drivebackup.uploaders.Authenticator.AuthenticationProvider;
 import ratismal.drivebackup.uploaders.Obfusticate;
+import ratismal.drivebackup.uploaders.UploadJournal;
 import ratismal.drivebackup.uploaders.Uploader;
+import ratismal.drivebackup.util.BandwidthLimiter;
+import ratismal.drivebackup.util.BufferPool;
 import ratismal.drivebackup.util.MessageUtil;
 import ratismal.drivebackup.util.NetUtil;
 
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 import static ratismal.drivebackup.config.Localization.intl;
@@ -53,6 +61,17 @@ public class GoogleDriveUploader extends Uploader {
     
     public static final String APPLICATION_VND_GOOGLE_APPS_FOLDER = "application/vnd.google-apps.folder";
     private String refreshToken;
+    private volatile String accessToken;
+
+    /**
+     * When the access token expires, in milliseconds since the epoch
+     */
+    private volatile long accessTokenExpiry;
+
+    /**
+     * How long before the access token expires it is refreshed, so it doesn't expire during a request
+     */
+    private static final long ACCESS_TOKEN_EXPIRY_MARGIN = TimeUnit.MINUTES.toMillis(5);
 
     /**
      * A cached instance of shared drives
@@ -74,7 +93,20 @@ public class GoogleDriveUploader extends Uploader {
     /**
      * Global Google Drive API client
      */
-    private Drive service;
+    private volatile Drive service;
+
+    private final OkHttpClient httpClient;
+
+    private static final String RESUMABLE_UPLOAD_URL =
+        "https://www.googleapis.com/upload/drive/v2/files?uploadType=resumable&supportsAllDrives=true";
+
+    /**
+     * The number of times a failed request of a resumable upload is retried, waiting twice as long each time
+     */
+    private static final int MAX_RETRY_ATTEMPTS = 6;
+    private static final long INITIAL_RETRY_DELAY = TimeUnit.SECONDS.toMillis(1);
+
+    private static final MediaType jsonMediaType = MediaType.parse("application/json; charset=utf-8");
 
 
     /**
@@ -83,6 +115,7 @@ public class GoogleDriveUploader extends Uploader {
     public GoogleDriveUploader(UploadLogger logger) {
         super(UPLOADER_NAME, "googledrive");
         this.logger = logger;
+        httpClient = BandwidthLimiter.limit(DriveBackup.httpClient, getId());
         setAuthProvider(AuthenticationProvider.GOOGLE_DRIVE);
         try {
             refreshToken = Authenticator.getRefreshToken(AuthenticationProvider.GOOGLE_DRIVE);
@@ -103,7 +136,7 @@ public class GoogleDriveUploader extends Uploader {
     /**
      * Gets a new Google Drive access token for the authenticated user.
      */
-    private void retrieveNewAccessToken() throws Exception {
+    private synchronized void retrieveNewAccessToken() throws Exception {
         RequestBody requestBody = new FormBody.Builder()
             .add("client_id", Obfusticate.decrypt(AuthenticationProvider.GOOGLE_DRIVE.getClientId()))
             .add("client_secret", Obfusticate.decrypt(AuthenticationProvider.GOOGLE_DRIVE.getClientSecret()))
@@ -120,16 +153,41 @@ public class GoogleDriveUploader extends Uploader {
         if (!response.isSuccessful()) {
             return;
         }
+        accessToken = parsedResponse.getString("access_token");
+        accessTokenExpiry = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(parsedResponse.optLong("expires_in", 3600));
         service = new Drive.Builder(
             httpTransport, 
             JSON_FACTORY, 
             setTimeout(new Credential(
                 BearerToken.authorizationHeaderAccessMethod())
-                .setAccessToken(parsedResponse.getString("access_token"))))
+                .setAccessToken(accessToken)))
             .setApplicationName("DriveBackupV2")
             .build();
     }
 
+    /**
+     * Gets a new access token if the current one expires soon, as it only lasts an hour,
+     * which a backup can take longer than to compress and upload.
+     * @param force whether to get a new access token even if the current one hasn't expired, such as after it was rejected
+     * @throws IOException if a new access token couldn't be retrieved
+     */
+    private synchronized void refreshAccessToken(boolean force) throws IOException {
+        if (!force && System.currentTimeMillis() < accessTokenExpiry - ACCESS_TOKEN_EXPIRY_MARGIN) {
+            return;
+        }
+        long previousExpiry = accessTokenExpiry;
+        try {
+            retrieveNewAccessToken();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to refresh the Google Drive access token", e);
+        }
+        if (accessTokenExpiry == previousExpiry) {
+            throw new IOException("Failed to refresh the Google Drive access token");
+        }
+    }
+
     @Override
     public boolean isAuthenticated() {
         return service != null;
@@ -210,24 +268,35 @@ public class GoogleDriveUploader extends Uploader {
 
     /**
      * Uploads the specified file to the authenticated user's Google Drive inside a folder for the specified file type.
+     * <p>
+     * Files larger than a chunk are uploaded in chunks with the resumable upload protocol, see {@link #uploadResumable(java.io.File, String, File)}.
      * @param file the file
      * @param type the type of file (ex. plugins, world)
      */
     public void uploadFile(java.io.File file, String type) {
         try {
             String sharedDriveId = ConfigParser.getConfig().backupMethods.googleDrive.sharedDriveId;
-            retrieveNewAccessToken();
+            refreshAccessToken(false);
             File folder = getRemoteDir(type, sharedDriveId);
             File fileMetadata = new File();
             fileMetadata.setTitle(file.getName());
             fileMetadata.setDescription("Uploaded by the DriveBackupV2 Minecraft plugin");
-            fileMetadata.setMimeType("application/zip");
+            String mimeType = ArchiveFormat.getMimeType(file.getName());
+            fileMetadata.setMimeType(mimeType);
             ParentReference fileParent = new ParentReference();
             fileParent.setId(folder.getId());
             fileMetadata.setParents(Collections.singletonList(fileParent));
-            FileContent fileContent = new FileContent("application/zip", file);
-            service.files().insert(fileMetadata, fileContent).setSupportsAllDrives(true).execute();
+            if (file.length() > ConfigParser.getConfig().backupMethods.googleDrive.chunkSize) {
+                uploadResumable(file, type, fileMetadata);
+            } else {
+                try (InputStream inputStream = BandwidthLimiter.limit(new FileInputStream(file), getId())) {
+                    InputStreamContent fileContent = new InputStreamContent(mimeType, inputStream).setLength(file.length());
+                    service.files().insert(fileMetadata, fileContent).setSupportsAllDrives(true).execute();
+                }
+            }
             try {
+                // The upload may have outlasted the access token
+                refreshAccessToken(false);
                 pruneBackups(folder);
             } catch (Exception e) {
                 if (!Strings.isNullOrEmpty(sharedDriveId)) {
@@ -241,6 +310,204 @@ public class GoogleDriveUploader extends Uploader {
             NetUtil.catchException(exception, "www.googleapis.com", logger);
             MessageUtil.sendConsoleException(exception);
             setErrorOccurred(true);
+            if (exception instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Uploads a file in chunks with the resumable upload protocol, to an upload session recorded in the {@link UploadJournal},
+     * so an upload interrupted by a restart is resumed from the last chunk Google Drive received.
+     * @param file the file
+     * @param type the type of file (ex. plugins, world)
+     * @param fileMetadata the metadata of the file to create
+     * @throws IOException if the upload failed
+     * @throws InterruptedException if interrupted while waiting to retry
+     */
+    private void uploadResumable(java.io.File file, String type, File fileMetadata) throws IOException, InterruptedException {
+        UploadJournal journal = UploadJournal.getJournal();
+        UploadJournal.Entry entry = journal.getResumable(getId(), file, type);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            if (entry != null) {
+                try {
+                    uploadToSession(entry, randomAccessFile, true);
+                    return;
+                } catch (UploadSessionException e) {
+                    if (!e.isExpired()) {
+                        throw e;
+                    }
+                    // The upload session expired, so the file is uploaded again
+                    journal.remove(entry);
+                }
+            }
+            String sessionUri;
+            try {
+                sessionUri = createUploadSession(fileMetadata, file.length());
+            } catch (UploadSessionException e) {
+                if (!e.isUnauthorized()) {
+                    throw e;
+                }
+                // The access token was revoked or expired early, so the upload session is started again with a new one
+                refreshAccessToken(true);
+                sessionUri = createUploadSession(fileMetadata, file.length());
+            }
+            entry = journal.start(getId(), file, type, sessionUri);
+            uploadToSession(entry, randomAccessFile, false);
+        } finally {
+            reportProgress(0, 0);
+        }
+    }
+
+    /**
+     * Starts a resumable upload session.
+     * @param fileMetadata the metadata of the file to create
+     * @param size the size of the file, in bytes
+     * @return the URI of the upload session
+     * @throws IOException if the upload session couldn't be started
+     */
+    @NotNull
+    private String createUploadSession(@NotNull File fileMetadata, long size) throws IOException {
+        Request request = new Request.Builder()
+            .addHeader("Authorization", "Bearer " + accessToken)
+            .addHeader("X-Upload-Content-Type", fileMetadata.getMimeType())
+            .addHeader("X-Upload-Content-Length", String.valueOf(size))
+            .url(RESUMABLE_UPLOAD_URL)
+            .post(RequestBody.create(JSON_FACTORY.toString(fileMetadata), jsonMediaType))
+            .build();
+        try (Response response = DriveBackup.httpClient.newCall(request).execute()) {
+            String sessionUri = response.header("Location");
+            if (!response.isSuccessful() || sessionUri == null) {
+                //noinspection DataFlowIssue (response.body() is non-null after Call.execute())
+                throw new UploadSessionException(response.code(), response.body().string());
+            }
+            return sessionUri;
+        }
+    }
+
+    /**
+     * Uploads a file to an upload session in chunks of the configured size, updating the {@link UploadJournal} as Google Drive receives each chunk.
+     * <p>
+     * After a request fails with a connection error, a server error, or because of rate limiting,
+     * it waits with exponential backoff, asks Google Drive how much of the file it received, and continues from there.
+     * @param entry of the upload session in the journal
+     * @param randomAccessFile to upload
+     * @param resumed whether the upload was started before, so how much of the file Google Drive received is asked first
+     * @throws IOException if the file couldn't be read, or a request failed after max retries
+     * @throws UploadSessionException if Google Drive rejected a request, such as because the upload session expired
+     * @throws InterruptedException if interrupted while waiting to retry
+     */
+    private void uploadToSession(@NotNull UploadJournal.Entry entry, @NotNull RandomAccessFile randomAccessFile, boolean resumed)
+        throws IOException, InterruptedException {
+        UploadJournal journal = UploadJournal.getJournal();
+        int chunkSize = ConfigParser.getConfig().backupMethods.googleDrive.chunkSize;
+        long size = randomAccessFile.length();
+        long offset = 0;
+        boolean queryOffset = resumed;
+        int retryCount = 0;
+        byte[] buffer = BufferPool.acquire(chunkSize);
+        try {
+            reportProgress(0, size);
+            while (true) {
+                Request.Builder request = new Request.Builder().url(entry.session);
+                if (queryOffset) {
+                    request.addHeader("Content-Range", "bytes */" + size)
+                        .put(RequestBody.create(new byte[0]));
+                } else {
+                    int length = (int) Math.min(chunkSize, size - offset);
+                    randomAccessFile.seek(offset);
+                    randomAccessFile.readFully(buffer, 0, length);
+                    request.addHeader("Content-Range", String.format("bytes %d-%d/%d", offset, offset + length - 1, size))
+                        .put(RequestBody.create(buffer, null, 0, length));
+                }
+                Response response;
+                try {
+                    response = httpClient.newCall(request.build()).execute();
+                } catch (IOException e) {
+                    retryCount = waitToRetry(retryCount, e);
+                    queryOffset = true;
+                    continue;
+                }
+                try (Response chunkResponse = response) {
+                    int statusCode = chunkResponse.code();
+                    if (statusCode == 200 || statusCode == 201) {
+                        journal.remove(entry);
+                        return;
+                    }
+                    if (statusCode == 308) {
+                        offset = getReceivedBytes(chunkResponse.header("Range"));
+                        entry = journal.update(entry, offset);
+                        reportProgress(offset, size);
+                        queryOffset = false;
+                        retryCount = 0;
+                        continue;
+                    }
+                    //noinspection DataFlowIssue (response.body() is non-null after Call.execute())
+                    UploadSessionException exception = new UploadSessionException(statusCode, chunkResponse.body().string());
+                    if (statusCode != 429 && statusCode < 500) {
+                        throw exception;
+                    }
+                    retryCount = waitToRetry(retryCount, exception);
+                    queryOffset = true;
+                }
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Waits before retrying a failed request, twice as long as before each time, with a random delay added
+     * so the uploads retrying at the same time don't all retry at once.
+     * @param retryCount the number of times the request was retried
+     * @param exception why the request failed
+     * @return the number of times the request was retried, including this time
+     * @throws IOException the exception, if the request was retried the max number of times
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static int waitToRetry(int retryCount, IOException exception) throws IOException, InterruptedException {
+        if (retryCount >= MAX_RETRY_ATTEMPTS) {
+            throw exception;
+        }
+        TimeUnit.MILLISECONDS.sleep((INITIAL_RETRY_DELAY << retryCount) + ThreadLocalRandom.current().nextLong(INITIAL_RETRY_DELAY));
+        return retryCount + 1;
+    }
+
+    /**
+     * Gets how much of a file Google Drive received from the {@code Range} header of an incomplete upload response.
+     * @param range the header, such as {@code bytes=0-524287}, or {@code null} if Google Drive received none of the file
+     * @return the number of bytes received
+     */
+    @Contract (pure = true)
+    private static long getReceivedBytes(@Nullable String range) {
+        if (range == null) {
+            return 0;
+        }
+        return Long.parseLong(range.substring(range.lastIndexOf('-') + 1)) + 1;
+    }
+
+    private static class UploadSessionException extends IOException {
+        private final int statusCode;
+
+        private UploadSessionException(int statusCode, String body) {
+            super("Upload session request failed with status " + statusCode + ": " + body);
+            this.statusCode = statusCode;
+        }
+
+        /**
+         * Gets whether the request failed because the upload session expired, after which the file must be uploaded again.
+         * @return whether the upload session expired
+         */
+        private boolean isExpired() {
+            return statusCode == 404 || statusCode == 410;
+        }
+
+        /**
+         * Gets whether the request failed because the access token was rejected.
+         * @return whether the access token was rejected
+         */
+        private boolean isUnauthorized() {
+            return statusCode == 401;
         }
     }
 
@@ -461,19 +728,23 @@ public class GoogleDriveUploader extends Uploader {
      * @throws Exception
      */
     @NotNull
-    private List<ChildReference> getFiles(@NotNull File folder) throws Exception {
+    private List<File> getFiles(@NotNull File folder) throws Exception {
         //Create a List to store results
-        List<ChildReference> result = new ArrayList<>();
+        List<File> result = new ArrayList<>();
         //Set up a request to query all files from all pages.
         //We are also making sure the files are sorted by created Date.
         //Oldest at the beginning of List.
-        //Drive.Files.List request = service.files().list().setOrderBy("createdDate");
-        //folder.getId();
-        Drive.Children.List request = service.children().list(folder.getId()).setOrderBy("createdDate");
+        //The titles are needed to group the volumes of backups split into volumes.
+        Drive.Files.List request = service.files().list()
+            .setQ("trashed=false and '" + folder.getId() + "' in parents")
+            .setOrderBy("createdDate")
+            .setSupportsAllDrives(true)
+            .setIncludeItemsFromAllDrives(true)
+            .setCorpora("allDrives");
         //While there is a page available, request files and add them to the Result List.
         do {
             try {
-                ChildList files = request.execute();
+                FileList files = request.execute();
                 result.addAll(files.getItems());
                 request.setPageToken(files.getNextPageToken());
             } catch (IOException e) {
@@ -494,24 +765,21 @@ public class GoogleDriveUploader extends Uploader {
      */
     private void pruneBackups(File folder) throws Exception {
         int fileLimit = ConfigParser.getConfig().backupStorage.keepCount;
-        if (fileLimit == -1) {
+        if (fileLimit == -1 || isPruningDeferred()) {
             return;
         }
-        List<ChildReference> files = getFiles(folder);
+        List<List<File>> files = ArchiveFormat.groupVolumes(getFiles(folder), File::getTitle);
         if (files.size() > fileLimit) {
             logger.info(
                 intl("backup-method-limit-reached"), 
                 "file-count", String.valueOf(files.size()),
                 "upload-method", getName(),
                 "file-limit", String.valueOf(fileLimit));
-            for (Iterator<ChildReference> iterator = files.iterator(); iterator.hasNext(); ) {
-                if (files.size() == fileLimit) {
-                    break;
+            for (List<File> backup : ArchiveFormat.getBackupsToPrune(files, fileLimit, File::getTitle)) {
+                for (File file : backup) {
+                    Drive.Files.Delete removeItem = service.files().delete(file.getId()).setSupportsAllDrives(true);
+                    removeItem.execute();
                 }
-                ChildReference file = iterator.next();
-                Drive.Files.Delete removeItem = service.files().delete(file.getId()).setSupportsAllDrives(true);
-                removeItem.execute();
-                iterator.remove();
             }
         }
     }
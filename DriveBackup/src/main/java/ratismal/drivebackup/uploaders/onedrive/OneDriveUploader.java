@@ -2,6 +2,7 @@ package ratismal.drivebackup.uploaders.onedrive;
 
 import okhttp3.FormBody;
 import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
@@ -11,12 +12,16 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.archive.ArchiveFormat;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.plugin.DriveBackup;
 import ratismal.drivebackup.uploaders.Authenticator;
 import ratismal.drivebackup.uploaders.Authenticator.AuthenticationProvider;
 import ratismal.drivebackup.uploaders.Obfusticate;
+import ratismal.drivebackup.uploaders.UploadJournal;
 import ratismal.drivebackup.uploaders.Uploader;
+import ratismal.drivebackup.util.BandwidthLimiter;
+import ratismal.drivebackup.util.BufferPool;
 import ratismal.drivebackup.util.MessageUtil;
 import ratismal.drivebackup.util.NetUtil;
 
@@ -52,12 +57,18 @@ public class OneDriveUploader extends Uploader {
     // as per ms docs should be multiple of 320 KiB (327'680 bytes)
     private static final int UPLOAD_CHUNK_SIZE = 5 * 1024 * 1024;
 
+    /**
+     * The client requests are made with, whose uploads are limited by the {@link BandwidthLimiter}
+     */
+    private final OkHttpClient httpClient;
+
     /**
      * Creates an instance of the {@code OneDriveUploader} object
      */
     public OneDriveUploader(UploadLogger logger) {
         super(UPLOADER_NAME, "onedrive");
         this.logger = logger;
+        httpClient = BandwidthLimiter.limit(DriveBackup.httpClient, getId());
         setAuthProvider(AuthenticationProvider.ONEDRIVE);
         try {
             refreshToken = Authenticator.getRefreshToken(getAuthProvider());
@@ -86,7 +97,7 @@ public class OneDriveUploader extends Uploader {
             .url("https://login.microsoftonline.com/common/oauth2/v2.0/token")
             .post(requestBody)
             .build();
-        try (Response response = DriveBackup.httpClient.newCall(request).execute()) {
+        try (Response response = httpClient.newCall(request).execute()) {
             //noinspection DataFlowIssue (response.body() is non-null after Call.execute())
             JSONObject parsedResponse = new JSONObject(response.body().string());
             if (!response.isSuccessful()) {
@@ -135,9 +146,27 @@ public class OneDriveUploader extends Uploader {
             String destinationRoot = normalizePath(ConfigParser.getConfig().backupStorage.remoteDirectory);
             String destinationPath = concatPath(destinationRoot, normalizePath(location));
             FQID destinationId = createPath(destinationPath);
-            String uploadURL = createUploadSession(file.getName(), destinationId);
+            // An upload of the file which was interrupted is resumed from the bytes OneDrive still expects
+            UploadJournal journal = UploadJournal.getJournal();
+            UploadJournal.Entry entry = journal.getResumable(getId(), file, location);
+            Range range = null;
+            if (entry != null) {
+                try {
+                    range = getNextExpectedRange(entry.session);
+                } catch (GraphApiErrorException e) {
+                    if (e.statusCode != 404) {
+                        throw e;
+                    }
+                    // The upload session expired, so the file is uploaded again
+                    journal.remove(entry);
+                    entry = null;
+                }
+            }
+            if (entry == null) {
+                entry = journal.start(getId(), file, location, createUploadSession(file.getName(), destinationId));
+            }
             try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-                uploadToSession(uploadURL, raf);
+                uploadToSession(entry, range, raf);
             }
             try {
                 pruneBackups(destinationId);
@@ -263,7 +292,7 @@ public class OneDriveUploader extends Uploader {
             .url("https://graph.microsoft.com/v1.0/drives/" + root.driveId + "/items/" + root.itemId + "/children")
             .post(requestBody)
             .build();
-        try (Response response = DriveBackup.httpClient.newCall(request).execute()) {
+        try (Response response = httpClient.newCall(request).execute()) {
             //noinspection DataFlowIssue (response.body() is non-null after Call.execute())
             String jsonResponse = response.body().string();
             if (response.code() != 201) {
@@ -297,7 +326,7 @@ public class OneDriveUploader extends Uploader {
             .url("https://graph.microsoft.com/v1.0/me/drive/root/children")
             .post(requestBody)
             .build();
-        try (Response response = DriveBackup.httpClient.newCall(request).execute()) {
+        try (Response response = httpClient.newCall(request).execute()) {
             //noinspection DataFlowIssue (response.body() is non-null after Call.execute())
             String responseBody = response.body().string();
             if (response.code() != 201) {
@@ -326,7 +355,7 @@ public class OneDriveUploader extends Uploader {
             .url("https://graph.microsoft.com/v1.0/me/drive/root" + folderUrl + "?$select=id,parentReference,remoteItem")
             .build();
         JSONObject parsedResponse;
-        try (Response response = DriveBackup.httpClient.newCall(request).execute()) {
+        try (Response response = httpClient.newCall(request).execute()) {
             //noinspection DataFlowIssue (response.body() is non-null after Call.execute())
             String responseBody = response.body().string();
             if (response.code() == 404) {
@@ -392,7 +421,7 @@ public class OneDriveUploader extends Uploader {
                     .addHeader("Authorization", "Bearer " + accessToken)
                     .url(targetUrl)
                     .build();
-            try (Response response = DriveBackup.httpClient.newCall(request).execute()) {
+            try (Response response = httpClient.newCall(request).execute()) {
                 //noinspection DataFlowIssue (response.body() is non-null after Call.execute())
                 String responseBody = response.body().string();
                 if (!response.isSuccessful()) {
@@ -426,7 +455,7 @@ public class OneDriveUploader extends Uploader {
             .url("https://graph.microsoft.com/v1.0/drives/" + driveId + "/items/" + itemId)
             .delete()
             .build();
-        try (Response response = DriveBackup.httpClient.newCall(delteRequest).execute()) {
+        try (Response response = httpClient.newCall(delteRequest).execute()) {
             if (response.code() != 204 && response.code() != 404) {
                 //noinspection DataFlowIssue (response.body() is non-null after Call.execute())
                 throw new GraphApiErrorException(response.code(), response.body().string());
@@ -450,7 +479,7 @@ public class OneDriveUploader extends Uploader {
                 + ":/" + file.getName() + ":/content")
             .put(RequestBody.create(file, textMediaType))
             .build();
-        try (Response response = DriveBackup.httpClient.newCall(uploadRequest).execute()) {
+        try (Response response = httpClient.newCall(uploadRequest).execute()) {
             //noinspection DataFlowIssue (response.body() is non-null after Call.execute())
             String responseBody = response.body().string();
             if (response.code() != 201) {
@@ -479,7 +508,7 @@ public class OneDriveUploader extends Uploader {
                 + "/items/" + destinationFolder.itemId + ":/" + fileName + ":/createUploadSession")
             .post(RequestBody.create("{}", jsonMediaType))
             .build();
-        try (Response response = DriveBackup.httpClient.newCall(request).execute()) {
+        try (Response response = httpClient.newCall(request).execute()) {
             //noinspection DataFlowIssue (response.body() is non-null after Call.execute())
             String responseBody = response.body().string();
             if (!response.isSuccessful()) {
@@ -490,9 +519,11 @@ public class OneDriveUploader extends Uploader {
     }
 
     /**
-     * uploads the file to a session with the given upload URL. some errors are handled via automatic retries.
+     * uploads the file to a session recorded in the {@link UploadJournal}, which is updated as OneDrive accepts each chunk.
+     * some errors are handled via automatic retries.
      *
-     * @param uploadURL of the upload session
+     * @param entry of the upload session in the journal
+     * @param range to upload first, or {@code null} to start at the start of the file
      * @param randomAccessFile to upload
      * @throws IOException if a request could not be executed, or randomAccessFile could not be read
      * @throws GraphApiErrorException with the last error after max retries
@@ -501,29 +532,41 @@ public class OneDriveUploader extends Uploader {
      * @throws NumberFormatException if the responses do not have the expected values
      * @throws IndexOutOfBoundsException if the responses do not have the expected values
      */
-    private void uploadToSession(@NotNull String uploadURL, @NotNull RandomAccessFile randomAccessFile)
+    private void uploadToSession(@NotNull UploadJournal.Entry entry, @Nullable Range range, @NotNull RandomAccessFile randomAccessFile)
         throws IOException, GraphApiErrorException, InterruptedException {
+        UploadJournal journal = UploadJournal.getJournal();
+        String uploadURL = entry.session;
         UploadSessionState state = new UploadSessionState();
-        while (true) {
-            byte[] bytesToUpload = getChunk(randomAccessFile, state.range);
-            Request uploadRequest = new Request.Builder()
-                .addHeader("Content-Range", String.format("bytes %d-%d/%d",
-                    state.range.start, state.range.start + bytesToUpload.length - 1, randomAccessFile.length()))
-                .url(uploadURL)
-                .put(RequestBody.create(bytesToUpload, zipMediaType))
-                .build();
-            try (Response uploadResponse = DriveBackup.httpClient.newCall(uploadRequest).execute()) {
-                //noinspection DataFlowIssue (response.body() is non-null after Call.execute())
-                String responseBody = uploadResponse.body().string();
-                int statusCode = uploadResponse.code();
-                if (statusCode == 202) {
-                    uploadAccepted(state, responseBody);
-                } else if (statusCode == 201 || statusCode == 200) {
-                    break;
-                } else {
-                    uploadRetryOrFailure(state, uploadURL, statusCode, responseBody);
+        if (range != null) {
+            state.range = range;
+        }
+        byte[] buffer = BufferPool.acquire(UPLOAD_CHUNK_SIZE);
+        try {
+            while (true) {
+                int chunkSize = getChunk(randomAccessFile, state.range, buffer);
+                Request uploadRequest = new Request.Builder()
+                    .addHeader("Content-Range", String.format("bytes %d-%d/%d",
+                        state.range.start, state.range.start + chunkSize - 1, randomAccessFile.length()))
+                    .url(uploadURL)
+                    .put(RequestBody.create(buffer, zipMediaType, 0, chunkSize))
+                    .build();
+                try (Response uploadResponse = httpClient.newCall(uploadRequest).execute()) {
+                    //noinspection DataFlowIssue (response.body() is non-null after Call.execute())
+                    String responseBody = uploadResponse.body().string();
+                    int statusCode = uploadResponse.code();
+                    if (statusCode == 202) {
+                        uploadAccepted(state, responseBody);
+                        entry = journal.update(entry, state.range.start);
+                    } else if (statusCode == 201 || statusCode == 200) {
+                        journal.remove(entry);
+                        break;
+                    } else {
+                        uploadRetryOrFailure(state, uploadURL, statusCode, responseBody);
+                    }
                 }
             }
+        } finally {
+            BufferPool.release(buffer);
         }
     }
 
@@ -545,22 +588,12 @@ public class OneDriveUploader extends Uploader {
         @NotNull String uploadResponseBody) throws IOException, GraphApiErrorException, InterruptedException {
         if (state.retryCount > MAX_RETRY_ATTEMPTS || statusCode == 409) {
             Request cancelRequest = new Request.Builder().url(uploadURL).delete().build();
-            DriveBackup.httpClient.newCall(cancelRequest).execute().close();
+            httpClient.newCall(cancelRequest).execute().close();
             throw new GraphApiErrorException(statusCode, uploadResponseBody);
         } else if (statusCode == 404) {
             throw new GraphApiErrorException(statusCode, uploadResponseBody);
         } else if (statusCode == 416) {
-            Request statusRequest = new Request.Builder().url(uploadURL).build();
-            try (Response statusResponse = DriveBackup.httpClient.newCall(statusRequest).execute()) {
-                //noinspection DataFlowIssue (response.body() is non-null after Call.execute())
-                String statusResponseBody = statusResponse.body().string();
-                if (!statusResponse.isSuccessful()) {
-                    throw new GraphApiErrorException(statusResponse.code(), statusResponseBody);
-                }
-                JSONObject responseObject = new JSONObject(statusResponseBody);
-                JSONArray expectedRanges = responseObject.getJSONArray("nextExpectedRanges");
-                state.range = new Range(expectedRanges.getString(0), UPLOAD_CHUNK_SIZE);
-            }
+            state.range = getNextExpectedRange(uploadURL);
         } else if (statusCode >= 500 && statusCode < 600) {
             TimeUnit.MILLISECONDS.sleep(state.exponentialBackoffMillis);
             state.exponentialBackoffMillis *= EXPONENTIAL_BACKOFF_FACTOR;
@@ -568,6 +601,42 @@ public class OneDriveUploader extends Uploader {
         state.retryCount++;
     }
 
+    /**
+     * gets the range of bytes an upload session expects next
+     *
+     * @param uploadURL of the upload session
+     * @return the {@link OneDriveUploader.Range Range} to upload next
+     * @throws IOException if the request could not be executed
+     * @throws GraphApiErrorException if the status of the upload session was not returned, such as it having expired
+     * @throws JSONException if the response does not contain the expected values
+     */
+    @NotNull
+    private Range getNextExpectedRange(@NotNull String uploadURL) throws IOException, GraphApiErrorException {
+        Request statusRequest = new Request.Builder().url(uploadURL).build();
+        try (Response statusResponse = httpClient.newCall(statusRequest).execute()) {
+            //noinspection DataFlowIssue (response.body() is non-null after Call.execute())
+            String statusResponseBody = statusResponse.body().string();
+            if (!statusResponse.isSuccessful()) {
+                throw new GraphApiErrorException(statusResponse.code(), statusResponseBody);
+            }
+            JSONObject responseObject = new JSONObject(statusResponseBody);
+            JSONArray expectedRanges = responseObject.getJSONArray("nextExpectedRanges");
+            return new Range(expectedRanges.getString(0), UPLOAD_CHUNK_SIZE);
+        }
+    }
+
+    /**
+     * cancels an upload session which won't be resumed, so OneDrive discards the bytes it received
+     *
+     * @param entry of the upload session in the journal
+     * @throws IOException if the request could not be executed
+     */
+    @Override
+    public void abandonUpload(@NotNull UploadJournal.Entry entry) throws IOException {
+        Request cancelRequest = new Request.Builder().url(entry.session).delete().build();
+        httpClient.newCall(cancelRequest).execute().close();
+    }
+
     /**
      * Deletes the oldest files in the specified folder past the number to retain from the authenticated user's OneDrive.
      * <p>
@@ -579,23 +648,24 @@ public class OneDriveUploader extends Uploader {
      */
     private void pruneBackups(@NotNull FQID parent) throws IOException, GraphApiErrorException {
         int fileLimit = ConfigParser.getConfig().backupStorage.keepCount;
-        if (fileLimit == -1) {
+        if (fileLimit == -1 || isPruningDeferred()) {
             return;
         }
-        List<JSONObject> childItems = getChildren(parent, "?$select=id,createdDateTime");
-        if(fileLimit >= childItems.size()) {
+        List<JSONObject> childItems = getChildren(parent, "?$select=id,name,createdDateTime");
+        childItems.sort(Comparator.comparing(item -> item.getString("createdDateTime")));
+        List<List<JSONObject>> backups = ArchiveFormat.groupVolumes(childItems, item -> item.getString("name"));
+        if(fileLimit >= backups.size()) {
             return;
         }
         logger.info(
             intl("backup-method-limit-reached"),
-            "file-count", String.valueOf(childItems.size()),
+            "file-count", String.valueOf(backups.size()),
             "upload-method", getName(),
             "file-limit", String.valueOf(fileLimit));
-        childItems.sort(Comparator.comparing(item -> item.getString("createdDateTime")));
-        int itemsToDelete = childItems.size() - fileLimit;
-        for (int i = 0; i < itemsToDelete; i++) {
-            String itemId = childItems.get(i).getString("id");
-            recycleItem(parent.driveId, itemId);
+        for (List<JSONObject> backup : ArchiveFormat.getBackupsToPrune(backups, fileLimit, item -> item.getString("name"))) {
+            for (JSONObject item : backup) {
+                recycleItem(parent.driveId, item.getString("id"));
+            }
         }
     }
 
@@ -645,20 +715,20 @@ public class OneDriveUploader extends Uploader {
     }
 
     /**
-     * gets an array of bytes to upload next from the file buffer
+     * reads the bytes to upload next from the file into a buffer
      * @param raf file to get chunk from
      * @param range in file to get chunk from
-     * @return the array of bytes; may be smaller than range if {@code raf.length() - range.start < range.length}
+     * @param buffer to read the chunk into, at least as long as the range
+     * @return the number of bytes read; may be smaller than range if {@code raf.length() - range.start < range.length}
      * @throws IOException on file read errors
      */
-    private static byte @NotNull [] getChunk(RandomAccessFile raf, Range range) throws IOException {
+    private static int getChunk(RandomAccessFile raf, Range range, byte @NotNull [] buffer) throws IOException {
         if (range.start >= raf.length()) {
-            return new byte[0];
+            return 0;
         }
         int chunkSize = (int)Math.min(range.length, raf.length() - range.start);
-        byte[] bytes = new byte[chunkSize];
         raf.seek(range.start);
-        raf.read(bytes);
-        return bytes;
+        raf.readFully(buffer, 0, chunkSize);
+        return chunkSize;
     }
 }
@@ -1,25 +1,43 @@
 package ratismal.drivebackup.uploaders.s3;
 
 import io.minio.ListObjectsArgs;
+import io.minio.MinioAsyncClient;
 import io.minio.MinioClient;
+import io.minio.PutObjectArgs;
 import io.minio.RemoveObjectArgs;
 import io.minio.Result;
 import io.minio.UploadObjectArgs;
+import io.minio.errors.ErrorResponseException;
+import io.minio.http.HttpUtils;
 import io.minio.messages.Item;
+import io.minio.messages.ListPartsResult;
+import io.minio.messages.Part;
+import okhttp3.OkHttpClient;
+import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.archive.ArchiveFormat;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.config.configSections.BackupMethods.S3BackupMethod;
 import ratismal.drivebackup.uploaders.Authenticator;
+import ratismal.drivebackup.uploaders.UploadJournal;
 import ratismal.drivebackup.uploaders.Uploader;
+import ratismal.drivebackup.util.BandwidthLimiter;
 import ratismal.drivebackup.util.MessageUtil;
 import ratismal.drivebackup.util.NetUtil;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.URL;
-import java.time.ZonedDateTime;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static ratismal.drivebackup.config.Localization.intl;
 
@@ -28,7 +46,40 @@ public class S3Uploader extends Uploader {
     public static final String UPLOADER_NAME = "S3";
     public static final String UPLOADER_ID = "s3";
 
+    /**
+     * The size of each part of a streamed multipart upload, which is buffered in memory.
+     * At most 10,000 parts are allowed, so this allows backups of up to about 156 GiB.
+     */
+    private static final long STREAM_PART_SIZE = 16L * 1024 * 1024;
+
+    /**
+     * The size of each part of a resumable multipart upload, unless the file is too large for 10,000 parts of this size.
+     * Files no larger than this are uploaded in a single request.
+     */
+    private static final long RESUMABLE_PART_SIZE = 16L * 1024 * 1024;
+
+    /**
+     * The most parts a multipart upload can have
+     */
+    private static final int MAX_PART_COUNT = 10000;
+
+    /**
+     * The size parts are rounded up to a multiple of, when a file is too large for parts of the default size
+     */
+    private static final long PART_SIZE_UNIT = 1024 * 1024;
+
+    /**
+     * The error code of a request to a multipart upload which was completed, aborted, or expired
+     */
+    private static final String NO_SUCH_UPLOAD = "NoSuchUpload";
+
+    /**
+     * The connect, read and write timeouts of the client, the same as those of the client MinIO creates by default
+     */
+    private static final long TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
     private MinioClient minioClient;
+    private MultipartClient multipartClient;
     
     private String _bucket;
     private String _hostname;
@@ -39,7 +90,17 @@ public class S3Uploader extends Uploader {
         try {
             _hostname = new URL(config.endpoint).getHost();
             _bucket = config.bucket;
-            minioClient = MinioClient.builder().endpoint(config.endpoint).credentials(config.accessKey, config.secretKey).build();
+            OkHttpClient httpClient = BandwidthLimiter.limit(HttpUtils.newDefaultHttpClient(TIMEOUT, TIMEOUT, TIMEOUT), UPLOADER_ID);
+            minioClient = MinioClient.builder()
+                .endpoint(config.endpoint)
+                .credentials(config.accessKey, config.secretKey)
+                .httpClient(httpClient)
+                .build();
+            multipartClient = new MultipartClient(MinioAsyncClient.builder()
+                .endpoint(config.endpoint)
+                .credentials(config.accessKey, config.secretKey)
+                .httpClient(httpClient)
+                .build(), _bucket);
         } catch(Exception e) {
             MessageUtil.sendConsoleException(e);
             setErrorOccurred(true);
@@ -83,9 +144,130 @@ public class S3Uploader extends Uploader {
     public void uploadFile(File file, String type) {
         type = normalizeType(type);
         try {
-            String destination = ConfigParser.getConfig().backupStorage.remoteDirectory;
-            String key = destination + "/" + type + "/" + file.getName();
-            minioClient.uploadObject(UploadObjectArgs.builder().bucket(_bucket).object(key).filename(file.getAbsolutePath()).build());
+            String key = getKey(file.getName(), type);
+            if (file.length() > RESUMABLE_PART_SIZE) {
+                uploadResumable(file, key, type);
+            } else {
+                minioClient.uploadObject(UploadObjectArgs.builder().bucket(_bucket).object(key).filename(file.getAbsolutePath()).build());
+            }
+            try {
+                pruneBackups(type);
+            } catch (Exception e) {
+                logger.log(intl("backup-method-prune-failed"));
+                throw e;
+            }
+        } catch(Exception exception) {
+            NetUtil.catchException(exception, _hostname, logger);
+            MessageUtil.sendConsoleException(exception);
+            setErrorOccurred(true);
+        }
+    }
+
+    /**
+     * Uploads a file with a multipart upload, whose upload ID is recorded in the {@link UploadJournal},
+     * so an interrupted upload of the file is resumed from the parts S3 already has.
+     * @param file the file
+     * @param key the name of the object to upload the file to
+     * @param type the type of file (ex. plugins, world)
+     * @throws Exception if the upload failed
+     */
+    private void uploadResumable(@NotNull File file, @NotNull String key, @NotNull String type) throws Exception {
+        UploadJournal journal = UploadJournal.getJournal();
+        UploadJournal.Entry entry = journal.getResumable(UPLOADER_ID, file, type);
+        List<Part> parts = new ArrayList<>();
+        if (entry != null) {
+            try {
+                parts = multipartClient.getUploadedParts(key, entry.session);
+            } catch (ErrorResponseException e) {
+                if (!NO_SUCH_UPLOAD.equals(e.errorResponse().code())) {
+                    throw e;
+                }
+                // The multipart upload was aborted or expired, so the file is uploaded again
+                journal.remove(entry);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            entry = journal.start(UPLOADER_ID, file, type, multipartClient.startUpload(key));
+        }
+        long size = file.length();
+        long partSize = getPartSize(size);
+        // Only the parts S3 has from the first one on, at their full size, are kept, the rest are uploaded again
+        int uploadedParts = 0;
+        while (uploadedParts < parts.size()) {
+            Part part = parts.get(uploadedParts);
+            if (part.partNumber() != uploadedParts + 1 || part.partSize() != Math.min(partSize, size - uploadedParts * partSize)) {
+                break;
+            }
+            uploadedParts++;
+        }
+        parts = new ArrayList<>(parts.subList(0, uploadedParts));
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            for (long offset = uploadedParts * partSize; offset < size; offset += partSize) {
+                long length = Math.min(partSize, size - offset);
+                int partNumber = parts.size() + 1;
+                randomAccessFile.seek(offset);
+                parts.add(new Part(partNumber, multipartClient.uploadPart(key, entry.session, partNumber, randomAccessFile, length)));
+                entry = journal.update(entry, offset + length);
+            }
+        }
+        multipartClient.finishUpload(key, entry.session, parts.toArray(new Part[0]));
+        journal.remove(entry);
+    }
+
+    /**
+     * Aborts the multipart upload of a resumable upload which won't be resumed, so S3 deletes its parts.
+     * @param entry the upload
+     * @throws IOException if the multipart upload couldn't be aborted
+     */
+    @Override
+    public void abandonUpload(@NotNull UploadJournal.Entry entry) throws IOException {
+        try {
+            multipartClient.abortUpload(getKey(new File(entry.filePath).getName(), normalizeType(entry.destination)), entry.session);
+        } catch (ErrorResponseException e) {
+            if (!NO_SUCH_UPLOAD.equals(e.errorResponse().code())) {
+                throw new IOException(e);
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Gets the size of the parts to upload a file in, which is the same each time the upload is resumed.
+     * @param size the size of the file, in bytes
+     * @return the size of the parts, in bytes
+     */
+    @Contract (pure = true)
+    private static long getPartSize(long size) {
+        long minPartSize = (size + MAX_PART_COUNT - 1) / MAX_PART_COUNT;
+        return Math.max(RESUMABLE_PART_SIZE, (minPartSize + PART_SIZE_UNIT - 1) / PART_SIZE_UNIT * PART_SIZE_UNIT);
+    }
+
+    @NotNull
+    private static String getKey(@NotNull String fileName, @NotNull String type) {
+        return ConfigParser.getConfig().backupStorage.remoteDirectory + "/" + type + "/" + fileName;
+    }
+
+    @Override
+    public boolean supportsStreaming() {
+        return true;
+    }
+
+    /**
+     * Uploads a backup while it is being created, as a multipart upload, which is aborted if the stream fails.
+     * @param inputStream the contents of the backup
+     * @param fileName the name of the backup
+     * @param type the type of file (ex. plugins, world)
+     */
+    @Override
+    public void uploadStream(InputStream inputStream, String fileName, String type) {
+        type = normalizeType(type);
+        try {
+            String key = getKey(fileName, type);
+            minioClient.putObject(PutObjectArgs.builder().bucket(_bucket).object(key).stream(inputStream, -1, STREAM_PART_SIZE).build());
             try {
                 pruneBackups(type);
             } catch (Exception e) {
@@ -105,35 +287,43 @@ public class S3Uploader extends Uploader {
 
     public void pruneBackups(String type) throws Exception {
         int fileLimit = ConfigParser.getConfig().backupStorage.keepCount;
-        if (fileLimit == -1) {
+        if (fileLimit == -1 || isPruningDeferred()) {
             return;
         }
         String destination = ConfigParser.getConfig().backupStorage.remoteDirectory;
-        TreeMap<ZonedDateTime, Item> files = getZipFiles(destination + "/" +type);
+        List<List<Item>> files = getZipFiles(destination + "/" +type);
         if (files.size() > fileLimit) {
             logger.info(
                     intl("backup-method-limit-reached"),
                     "file-count", String.valueOf(files.size()),
                     "upload-method", getName(),
                     "file-limit", String.valueOf(fileLimit));
-            while (files.size() > fileLimit) {
-                Map.Entry<ZonedDateTime, Item> firstEntry = files.firstEntry();
-                minioClient.removeObject(RemoveObjectArgs.builder().bucket(_bucket).object(firstEntry.getValue().objectName()).build());
-                files.remove(firstEntry.getKey());
+            for (List<Item> backup : ArchiveFormat.getBackupsToPrune(files, fileLimit, Item::objectName)) {
+                for (Item item : backup) {
+                    minioClient.removeObject(RemoveObjectArgs.builder().bucket(_bucket).object(item.objectName()).build());
+                }
             }
         }
     }
 
+    /**
+     * Returns the backups inside the specified folder, the volumes of each backup split into volumes together.
+     * @return the backups, oldest first
+     * @throws Exception
+     */
     @NotNull
-    private TreeMap<ZonedDateTime, Item> getZipFiles(String type) throws Exception {
+    private List<List<Item>> getZipFiles(String type) throws Exception {
         type = normalizeType(type);
         String prefix = type + "/";
-        TreeMap<ZonedDateTime, Item> files = new TreeMap<>();
+        List<Item> files = new ArrayList<>();
         for (Result<Item> result : minioClient.listObjects(ListObjectsArgs.builder().bucket(_bucket).prefix(prefix).build())) {
             Item item = result.get();
-            files.put(item.lastModified(), item);
+            if (ArchiveFormat.isArchive(item.objectName())) {
+                files.add(item);
+            }
         }
-        return files;
+        files.sort(Comparator.comparing(Item::lastModified));
+        return ArchiveFormat.groupVolumes(files, Item::objectName);
     }
 
     @NotNull
@@ -143,5 +333,104 @@ public class S3Uploader extends Uploader {
         }
         return type;
     }
-    
+
+    /**
+     * MinIO's client, with the requests of a multipart upload exposed, which it otherwise only makes itself,
+     * so a multipart upload can be resumed with the parts S3 already has.
+     */
+    private static final class MultipartClient extends MinioAsyncClient {
+        private final String bucket;
+
+        private MultipartClient(MinioAsyncClient client, String bucket) {
+            super(client);
+            this.bucket = bucket;
+        }
+
+        /**
+         * Starts a multipart upload.
+         * @param key the name of the object to upload
+         * @return the upload ID
+         * @throws Exception if the request failed
+         */
+        @NotNull
+        private String startUpload(@NotNull String key) throws Exception {
+            return await(createMultipartUploadAsync(bucket, null, key, null, null)).result().uploadId();
+        }
+
+        /**
+         * Uploads a part of a multipart upload, replacing any part with the same number.
+         * @param key the name of the object being uploaded
+         * @param uploadId the upload ID
+         * @param partNumber the number of the part, starting at 1
+         * @param file the file to upload the part from, at the position of the part
+         * @param length the size of the part, in bytes
+         * @return the ETag of the part
+         * @throws Exception if the request failed
+         */
+        @NotNull
+        private String uploadPart(@NotNull String key, @NotNull String uploadId, int partNumber, @NotNull RandomAccessFile file, long length) throws Exception {
+            return await(uploadPartAsync(bucket, null, key, file, length, uploadId, partNumber, null, null)).etag();
+        }
+
+        /**
+         * Gets the parts S3 has of a multipart upload.
+         * @param key the name of the object being uploaded
+         * @param uploadId the upload ID
+         * @return the parts, by part number
+         * @throws ErrorResponseException with the code {@code NoSuchUpload} if the multipart upload doesn't exist anymore
+         * @throws Exception if the request failed
+         */
+        @NotNull
+        private List<Part> getUploadedParts(@NotNull String key, @NotNull String uploadId) throws Exception {
+            List<Part> parts = new ArrayList<>();
+            Integer partNumberMarker = null;
+            while (true) {
+                ListPartsResult result = await(listPartsAsync(bucket, null, key, null, partNumberMarker, uploadId, null, null)).result();
+                parts.addAll(result.partList());
+                if (!result.isTruncated()) {
+                    return parts;
+                }
+                partNumberMarker = result.nextPartNumberMarker();
+            }
+        }
+
+        /**
+         * Completes a multipart upload, creating the object from its parts.
+         * @param key the name of the object being uploaded
+         * @param uploadId the upload ID
+         * @param parts the parts, by part number
+         * @throws Exception if the request failed
+         */
+        private void finishUpload(@NotNull String key, @NotNull String uploadId, @NotNull Part[] parts) throws Exception {
+            await(completeMultipartUploadAsync(bucket, null, key, uploadId, parts, null, null));
+        }
+
+        /**
+         * Aborts a multipart upload, deleting its parts.
+         * @param key the name of the object being uploaded
+         * @param uploadId the upload ID
+         * @throws Exception if the request failed
+         */
+        private void abortUpload(@NotNull String key, @NotNull String uploadId) throws Exception {
+            await(abortMultipartUploadAsync(bucket, null, key, uploadId, null, null));
+        }
+
+        /**
+         * Waits for a request to finish, throwing the exception it failed with, as the synchronous client does.
+         */
+        private static <T> T await(@NotNull CompletableFuture<T> future) throws Exception {
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof CompletionException && cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw e;
+            }
+        }
+    }
 }
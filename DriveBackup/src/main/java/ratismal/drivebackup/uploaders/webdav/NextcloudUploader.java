@@ -1,8 +1,10 @@
 package ratismal.drivebackup.uploaders.webdav;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Array;
 import java.net.URL;
 import java.util.UUID;
@@ -12,6 +14,7 @@ import com.github.sardine.impl.SardineException;
 import org.jetbrains.annotations.NotNull;
 import ratismal.drivebackup.UploadThread.UploadLogger;
 import ratismal.drivebackup.config.configSections.BackupMethods.NextcloudBackupMethod;
+import ratismal.drivebackup.util.BufferPool;
 import ratismal.drivebackup.util.ChunkedFileInputStream;
 
 public class NextcloudUploader extends WebDAVUploader {
@@ -86,4 +89,43 @@ public class NextcloudUploader extends WebDAVUploader {
             }
         }
     }
+
+    /**
+     * Uploads a backup while it is being created, in chunks which are reassembled by Nextcloud,
+     * each of which is buffered in memory, as their size has to be known.
+     * @param inputStream the contents of the backup
+     * @param target the URL to upload the backup to
+     * @throws IOException if the upload failed
+     */
+    @Override
+    public void realUploadStream(@NotNull InputStream inputStream, @NotNull URL target) throws IOException {
+        if (magic_upload_dir == null) {
+            super.realUploadStream(inputStream, target);
+            return;
+        }
+        String tempdir = magic_upload_dir + "/" + UUID.randomUUID().toString();
+        sardine.createDirectory(tempdir);
+        try {
+            byte[] chunk = BufferPool.acquire(nextcloud.chunkSize);
+            long offset = 0;
+            int read;
+            while ((read = readChunk(inputStream, chunk, nextcloud.chunkSize)) > 0) {
+                sardine.put(tempdir + String.format("/%020d", offset), new ByteArrayInputStream(chunk, 0, read), (String) null, true, read);
+                offset += read;
+            }
+            BufferPool.release(chunk);
+            try {
+                sardine.move(tempdir + "/.file", target.toString());
+            } catch (SardineException e) {
+                // Assume 504 Gateway Timeout means Nextcloud will succeed reassembling the
+                // file.
+                if (e.getStatusCode() != 504) {
+                    throw e;
+                }
+            }
+        } catch (IOException e) {
+            sardine.delete(tempdir);
+            throw e;
+        }
+    }
 }
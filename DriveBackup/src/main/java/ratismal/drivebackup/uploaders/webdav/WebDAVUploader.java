@@ -3,14 +3,18 @@ package ratismal.drivebackup.uploaders.webdav;
 import org.jetbrains.annotations.NotNull;
 import ratismal.drivebackup.uploaders.Uploader;
 import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.archive.ArchiveFormat;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.config.configSections.BackupMethods.WebDAVBackupMethod;
+import ratismal.drivebackup.util.BandwidthLimiter;
 import ratismal.drivebackup.util.MessageUtil;
 import ratismal.drivebackup.util.NetUtil;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
@@ -19,6 +23,8 @@ import com.github.sardine.DavResource;
 import com.github.sardine.Sardine;
 import com.github.sardine.SardineFactory;
 import com.github.sardine.impl.SardineImpl;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.NTCredentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
@@ -26,6 +32,7 @@ import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.config.AuthSchemes;
 import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.HttpClientBuilder;
 
@@ -41,9 +48,10 @@ class SardineCannery {
      *
      * @param username Use in authentication header credentials
      * @param password Use in authentication header credentials
+     * @param uploader the uploader using the instance, whose uploads are limited by the {@link BandwidthLimiter}
      * @return a new {@link Sardine} instance with the specified credentials, and standard cookie specs
      */
-    static Sardine make(String username, String password) {
+    static Sardine make(String username, String password, Uploader uploader) {
         // helper class to get a builder with the same settings as SardineImpl, and standard cookie specs
         // because builder can't be extracted from SardineImpl due to being private
         class SardineCanneryHelper extends SardineImpl {
@@ -84,6 +92,22 @@ class SardineCannery {
             }
         }
         SardineCanneryHelper cannery = new SardineCanneryHelper(username, password);
+        // the id of the uploader is only gotten once a request is sent, as subclasses set it after the instance was created
+        cannery.builder.addInterceptorLast((HttpRequestInterceptor) (request, context) -> {
+            if (!(request instanceof HttpEntityEnclosingRequest)) {
+                return;
+            }
+            HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) request;
+            if (entityRequest.getEntity() == null) {
+                return;
+            }
+            entityRequest.setEntity(new HttpEntityWrapper(entityRequest.getEntity()) {
+                @Override
+                public void writeTo(OutputStream outStream) throws IOException {
+                    super.writeTo(BandwidthLimiter.limit(outStream, uploader.getId()));
+                }
+            });
+        });
         return new SardineImpl(cannery.builder);
     }
 }
@@ -102,7 +126,7 @@ public class WebDAVUploader extends Uploader {
         this.logger = logger;
         try {
             _remoteBaseFolder = new URL(webdav.hostname + "/" + webdav.remoteDirectory);
-            sardine = SardineCannery.make(webdav.username, webdav.password);
+            sardine = SardineCannery.make(webdav.username, webdav.password, this);
             sardine.enablePreemptiveAuthentication(_remoteBaseFolder.getHost());
             createDirectory(_remoteBaseFolder.toString());
         } catch (Exception e) {
@@ -148,6 +172,16 @@ public class WebDAVUploader extends Uploader {
         }
     }
 
+    /**
+     * Uploads a backup while it is being created, with a chunked transfer encoded request as its size isn't known.
+     * @param inputStream the contents of the backup
+     * @param target the URL to upload the backup to
+     * @throws IOException if the upload failed
+     */
+    public void realUploadStream(@NotNull InputStream inputStream, @NotNull URL target) throws IOException {
+        sardine.put(target.toString(), inputStream, (String)null, true, -1);
+    }
+
     /**
      * Uploads the specified file to the WebDAV server inside a folder for the specified file type.
      * @param file the file
@@ -173,6 +207,37 @@ public class WebDAVUploader extends Uploader {
         }
     }
 
+    @Override
+    public boolean supportsStreaming() {
+        return true;
+    }
+
+    /**
+     * Uploads a backup to the WebDAV server inside a folder for the specified file type, while it is being created.
+     * @param inputStream the contents of the backup
+     * @param fileName the name of the backup
+     * @param type the type of file (ex. plugins, world)
+     */
+    @Override
+    public void uploadStream(InputStream inputStream, String fileName, String type) {
+        try {
+            type = type.replaceAll(".{1,2}[/\\\\]", "");
+            createDirectory(_remoteBaseFolder.toString() + "/" + type);
+            URL target = new URL(_remoteBaseFolder + "/" + type + "/" + fileName);
+            realUploadStream(inputStream, target);
+            try {
+                pruneBackups(type);
+            } catch (Exception e) {
+                logger.log(intl("backup-method-prune-failed"));
+                throw e;
+            }
+        } catch (Exception exception) {
+            NetUtil.catchException(exception, _remoteBaseFolder.getHost(), logger);
+            MessageUtil.sendConsoleException(exception);
+            setErrorOccurred(true);
+        }
+    }
+
     /**
      * Deletes the oldest files past the number to retain from the FTP server inside the specified folder for the file type.
      * <p>
@@ -182,38 +247,40 @@ public class WebDAVUploader extends Uploader {
      */
     public void pruneBackups(String type) throws Exception {
         int fileLimit = ConfigParser.getConfig().backupStorage.keepCount;
-        if (fileLimit == -1) {
+        if (fileLimit == -1 || isPruningDeferred()) {
             return;
         }
-        TreeMap<Date, DavResource> files = getZipFiles(type);
+        List<List<DavResource>> files = getZipFiles(type);
         if (files.size() > fileLimit) {
             logger.info(
                 intl("backup-method-limit-reached"), 
                 "file-count", String.valueOf(files.size()),
                 "upload-method", getName(),
                 "file-limit", String.valueOf(fileLimit));
-            while (files.size() > fileLimit) {
-                sardine.delete(new URL(_remoteBaseFolder + "/" + type + "/" + files.firstEntry().getValue().getName()).toString());
-                files.remove(files.firstKey());
+            for (List<DavResource> backup : ArchiveFormat.getBackupsToPrune(files, fileLimit, DavResource::getName)) {
+                for (DavResource resource : backup) {
+                    sardine.delete(new URL(_remoteBaseFolder + "/" + type + "/" + resource.getName()).toString());
+                }
             }
         }
     }
 
     /**
-     * Returns a list of ZIP files, and their modification dates inside the current working directory.
-     * @return a map of ZIP files, and their modification dates
+     * Returns the backup archives inside the folder for the file type, the volumes of each backup split into volumes together.
+     * @return the backups, oldest first
      * @throws Exception
      */
     @NotNull
-    private TreeMap<Date, DavResource> getZipFiles(String type) throws Exception {
-        TreeMap<Date, DavResource> files = new TreeMap<>();
+    private List<List<DavResource>> getZipFiles(String type) throws Exception {
+        List<DavResource> files = new ArrayList<>();
         List<DavResource> resources = sardine.list(new URL(_remoteBaseFolder + "/" + type).toString());
         for (DavResource resource : resources) {
-            if (resource.getName().endsWith(".zip")) {
-                files.put(resource.getModified(), resource);
+            if (ArchiveFormat.isArchive(resource.getName())) {
+                files.add(resource);
             }
         }
-        return files;
+        files.sort(Comparator.comparing(DavResource::getModified));
+        return ArchiveFormat.groupVolumes(files, DavResource::getName);
     }
 
     private String rstrip(@NotNull String src, char remove) {
@@ -0,0 +1,51 @@
+package ratismal.drivebackup.util;
+
+/**
+ * The time a backup has to be created and uploaded in, from when it started,
+ * so that it can be sped up when it is running late rather than delaying the next backup.
+ */
+public class BackupDeadline {
+    private final long startTime;
+    private final long budget;
+
+    /**
+     * Creates an instance of the {@code BackupDeadline} object, starting now
+     * @param budget how long the backup has to finish in, in milliseconds
+     */
+    public BackupDeadline(long budget) {
+        this.startTime = System.nanoTime();
+        this.budget = budget;
+    }
+
+    /**
+     * Gets how long the backup has to finish in.
+     * @return the time, in milliseconds
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Gets how long ago the backup started.
+     * @return the time, in milliseconds
+     */
+    public long getElapsedTime() {
+        return (System.nanoTime() - startTime) / 1_000_000;
+    }
+
+    /**
+     * Gets how long is left until the backup has to be finished.
+     * @return the time, in milliseconds, negative if the deadline has passed
+     */
+    public long getRemainingTime() {
+        return budget - getElapsedTime();
+    }
+
+    /**
+     * Gets whether the deadline has passed.
+     * @return whether it has
+     */
+    public boolean isExceeded() {
+        return getRemainingTime() < 0;
+    }
+}
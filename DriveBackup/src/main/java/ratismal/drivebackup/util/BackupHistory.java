@@ -0,0 +1,250 @@
+package ratismal.drivebackup.util;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.archive.CompressionBenchmark.Measurement;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What was learned from previous backups, kept in the local backup folder, so later backups can be planned with it.
+ * <p>
+ * It records how fast each uploader uploaded recently, how much each backup location last archived,
+ * and the compression levels chosen for each backup location when the compression level is tuned automatically,
+ * along with the measurements they were chosen from.
+ */
+public class BackupHistory {
+    /**
+     * The name of the history file, kept in the local backup folder
+     */
+    public static final String FILE_NAME = ".drivebackup-history";
+
+    private static final String HEADER = "# DriveBackupV2 backup history";
+    private static final String UPLOAD_KEY = "upload";
+    private static final String COMPRESSION_KEY = "compression";
+    private static final String SIZE_KEY = "size";
+
+    /**
+     * Uploads smaller than this take too little time to measure how fast an uploader is
+     */
+    private static final long MIN_RECORDED_UPLOAD_SIZE = 1024 * 1024;
+
+    /**
+     * How much the last upload counts towards the recent upload speed of an uploader
+     */
+    private static final double UPLOAD_RATE_WEIGHT = 0.5;
+
+    private final Map<String, Double> uploadRates = new LinkedHashMap<>();
+    private final Map<String, Compression> compressions = new LinkedHashMap<>();
+    private final Map<String, Long> locationSizes = new LinkedHashMap<>();
+
+    /**
+     * The compression level chosen for a backup location
+     */
+    public static class Compression {
+        /**
+         * The archive format the level was chosen for
+         */
+        public final ArchiveFormat format;
+
+        /**
+         * The number of backups made since the files of the location were last measured
+         */
+        public final int backupsSinceBenchmark;
+
+        public final int level;
+
+        /**
+         * How a sample of the files of the location compressed at each level
+         */
+        public final List<Measurement> measurements;
+
+        @Contract (pure = true)
+        public Compression(ArchiveFormat format, int backupsSinceBenchmark, int level, List<Measurement> measurements) {
+            this.format = format;
+            this.backupsSinceBenchmark = backupsSinceBenchmark;
+            this.level = level;
+            this.measurements = measurements;
+        }
+    }
+
+    /**
+     * Records an upload, to update how fast the uploader uploaded recently.
+     * @param uploaderId the ID of the uploader
+     * @param size the number of bytes uploaded
+     * @param time how long the upload took, in milliseconds
+     */
+    public synchronized void recordUpload(String uploaderId, long size, long time) {
+        if (size < MIN_RECORDED_UPLOAD_SIZE || time <= 0) {
+            return;
+        }
+        double rate = size * 1000.0 / time;
+        Double previousRate = uploadRates.get(uploaderId);
+        uploadRates.put(uploaderId, previousRate == null ? rate : previousRate + (rate - previousRate) * UPLOAD_RATE_WEIGHT);
+    }
+
+    /**
+     * Gets how fast an uploader uploaded recently.
+     * @param uploaderId the ID of the uploader
+     * @return the number of bytes uploaded per second, or -1 if no uploads were recorded
+     */
+    public synchronized double getUploadRate(String uploaderId) {
+        Double rate = uploadRates.get(uploaderId);
+        return rate == null ? -1 : rate;
+    }
+
+    /**
+     * Estimates how fast a backup is uploaded to all of the specified uploaders.
+     * @param uploaderIds the IDs of the uploaders
+     * @param concurrent whether the uploaders upload at the same time, rather than one after another
+     * @return the number of bytes of the backup uploaded to all the uploaders per second,
+     * infinite if there are no uploaders, or -1 if any of the uploaders has no recorded uploads
+     */
+    public synchronized double estimateUploadRate(@NotNull List<String> uploaderIds, boolean concurrent) {
+        if (uploaderIds.isEmpty()) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double slowestRate = Double.POSITIVE_INFINITY;
+        double timePerByte = 0;
+        for (String uploaderId : uploaderIds) {
+            double rate = getUploadRate(uploaderId);
+            if (rate <= 0) {
+                return -1;
+            }
+            slowestRate = Math.min(slowestRate, rate);
+            timePerByte += 1 / rate;
+        }
+        return concurrent ? slowestRate : 1 / timePerByte;
+    }
+
+    /**
+     * Gets the compression level chosen for a backup location.
+     * @param location the backup location
+     * @return the compression level, or {@code null} if none was chosen
+     */
+    @Nullable
+    public synchronized Compression getCompression(String location) {
+        return compressions.get(location);
+    }
+
+    /**
+     * Records the compression level chosen for a backup location.
+     * @param location the backup location
+     * @param compression the compression level
+     */
+    public synchronized void putCompression(String location, Compression compression) {
+        compressions.put(location, compression);
+    }
+
+    /**
+     * Records how much the backup of a backup location archived, to estimate how much its next backup archives.
+     * @param location the backup location
+     * @param size the number of bytes of the files archived
+     */
+    public synchronized void recordLocationSize(String location, long size) {
+        locationSizes.put(location, size);
+    }
+
+    /**
+     * Gets how much the last backup of a backup location archived.
+     * @param location the backup location
+     * @return the number of bytes of the files archived, or -1 if no backup of the location was recorded
+     */
+    public synchronized long getLocationSize(String location) {
+        Long size = locationSizes.get(location);
+        return size == null ? -1 : size;
+    }
+
+    /**
+     * Loads the history from a file.
+     * @param file the file
+     * @return the history, which is empty if there is no history, or it couldn't be read
+     */
+    @NotNull
+    public static BackupHistory load(@NotNull File file) {
+        BackupHistory history = new BackupHistory();
+        if (!file.isFile()) {
+            return history;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                return new BackupHistory();
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 6);
+                if (fields.length == 3 && UPLOAD_KEY.equals(fields[0])) {
+                    history.uploadRates.put(fields[2], Double.parseDouble(fields[1]));
+                } else if (fields.length == 3 && SIZE_KEY.equals(fields[0])) {
+                    history.locationSizes.put(fields[2], Long.parseLong(fields[1]));
+                } else if (fields.length == 6 && COMPRESSION_KEY.equals(fields[0])) {
+                    ArchiveFormat format = ArchiveFormat.fromConfigName(fields[1]);
+                    if (format == null) {
+                        continue;
+                    }
+                    List<Measurement> measurements = new ArrayList<>();
+                    for (String measurement : fields[4].split(",")) {
+                        String[] values = measurement.split(":");
+                        measurements.add(new Measurement(Integer.parseInt(values[0]), Double.parseDouble(values[1]), Double.parseDouble(values[2])));
+                    }
+                    history.compressions.put(fields[5], new Compression(
+                        format, Integer.parseInt(fields[2]), Integer.parseInt(fields[3]), Collections.unmodifiableList(measurements)));
+                }
+            }
+            return history;
+        } catch (IOException | RuntimeException e) {
+            return new BackupHistory();
+        }
+    }
+
+    /**
+     * Saves the history to a file, replacing it in one step so that a partially written history is never left behind.
+     * @param file the file
+     * @throws IOException if the history couldn't be saved
+     */
+    public synchronized void save(@NotNull File file) throws IOException {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporaryFile.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Map.Entry<String, Double> uploadRate : uploadRates.entrySet()) {
+                writer.write(UPLOAD_KEY + "\t" + uploadRate.getValue() + "\t" + uploadRate.getKey());
+                writer.newLine();
+            }
+            for (Map.Entry<String, Long> locationSize : locationSizes.entrySet()) {
+                writer.write(SIZE_KEY + "\t" + locationSize.getValue() + "\t" + locationSize.getKey());
+                writer.newLine();
+            }
+            for (Map.Entry<String, Compression> entry : compressions.entrySet()) {
+                Compression compression = entry.getValue();
+                if (compression.measurements.isEmpty()) {
+                    continue;
+                }
+                StringBuilder measurements = new StringBuilder();
+                for (Measurement measurement : compression.measurements) {
+                    if (measurements.length() > 0) {
+                        measurements.append(',');
+                    }
+                    measurements.append(measurement.level).append(':').append(measurement.ratio).append(':').append(measurement.bytesPerSecond);
+                }
+                writer.write(COMPRESSION_KEY + "\t" + compression.format.configName + "\t" + compression.backupsSinceBenchmark
+                    + "\t" + compression.level + "\t" + measurements + "\t" + entry.getKey());
+                writer.newLine();
+            }
+        }
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
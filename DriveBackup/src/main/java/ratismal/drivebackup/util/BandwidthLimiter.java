@@ -0,0 +1,250 @@
+package ratismal.drivebackup.util;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ratismal.drivebackup.config.ConfigParser;
+import ratismal.drivebackup.config.ConfigParser.Config;
+import ratismal.drivebackup.config.configSections.UploadRateLimits;
+import ratismal.drivebackup.config.configSections.UploadRateLimits.RateLimitScheduleEntry;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.time.LocalTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how fast backups are uploaded, so uploading doesn't use up the server's upload bandwidth, see {@link UploadRateLimits}.
+ * <p>
+ * Every byte sent to a backup method is taken from a token bucket shared by all backup methods,
+ * and from a token bucket of the backup method, which are refilled at the configured rates.
+ * Taking more bytes than a bucket holds puts it into debt, which the sender waits out before sending,
+ * so the backup methods uploading at the same time share the rate rather than each getting all of it.
+ * A bucket holds up to a second of its rate, so a sender which was idle can burst briefly.
+ */
+public final class BandwidthLimiter {
+    /**
+     * The most bytes sent at once by a limited stream, so the rate is kept smoothly rather than in bursts
+     */
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    private static final TokenBucket totalBucket = new TokenBucket();
+    private static final Map<String, TokenBucket> methodBuckets = new ConcurrentHashMap<>();
+
+    private BandwidthLimiter() {}
+
+    /**
+     * A token bucket, refilled at the rate it was last taken from
+     */
+    private static class TokenBucket {
+        private long rate;
+        private double tokens;
+        private long refillTime;
+
+        /**
+         * Takes the specified number of bytes from the bucket.
+         * @param bytes the number of bytes
+         * @param rate the rate of the bucket, in bytes per second, or 0 if unlimited
+         * @return how long to wait before sending the bytes, in nanoseconds
+         */
+        synchronized long take(long bytes, long rate) {
+            if (rate <= 0) {
+                this.rate = 0;
+                return 0;
+            }
+            long now = System.nanoTime();
+            if (this.rate > 0) {
+                tokens += (now - refillTime) * (double) this.rate / TimeUnit.SECONDS.toNanos(1);
+            } else {
+                tokens = rate;
+            }
+            this.rate = rate;
+            refillTime = now;
+            tokens = Math.min(tokens, rate) - bytes;
+            if (tokens >= 0) {
+                return 0;
+            }
+            return (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * Waits until the specified number of bytes may be sent to a backup method.
+     * @param uploaderId the id of the backup method
+     * @param bytes the number of bytes
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public static void acquire(@NotNull String uploaderId, long bytes) throws InterruptedIOException {
+        Config config = ConfigParser.getConfig();
+        UploadRateLimits limits = config.uploadRateLimits;
+        if (bytes <= 0 || !limits.isEnabled()) {
+            return;
+        }
+        RateLimitScheduleEntry scheduleEntry = limits.getScheduleEntry(LocalTime.now(config.advanced.dateTimezone));
+        long totalRate = scheduleEntry != null ? scheduleEntry.rate : limits.rate;
+        long methodRate = scheduleEntry != null ? 0 : limits.methodRates.getOrDefault(uploaderId, 0L);
+        long waitTime = Math.max(
+            totalBucket.take(bytes, totalRate),
+            methodBuckets.computeIfAbsent(uploaderId, id -> new TokenBucket()).take(bytes, methodRate));
+        if (waitTime > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitTime);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Gets the rate uploads to a backup method are currently limited to.
+     * @param uploaderId the id of the backup method
+     * @return the rate, in bytes per second, or 0 if unlimited
+     */
+    public static long getRate(@NotNull String uploaderId) {
+        Config config = ConfigParser.getConfig();
+        UploadRateLimits limits = config.uploadRateLimits;
+        RateLimitScheduleEntry scheduleEntry = limits.getScheduleEntry(LocalTime.now(config.advanced.dateTimezone));
+        if (scheduleEntry != null) {
+            return scheduleEntry.rate;
+        }
+        long methodRate = limits.methodRates.getOrDefault(uploaderId, 0L);
+        if (limits.rate <= 0 || methodRate <= 0) {
+            return Math.max(limits.rate, methodRate);
+        }
+        return Math.min(limits.rate, methodRate);
+    }
+
+    /**
+     * Limits how fast the contents of a stream are read, for a backup method which reads what it uploads.
+     * @param inputStream the stream
+     * @param uploaderId the id of the backup method
+     * @return the limited stream
+     */
+    @NotNull
+    public static InputStream limit(@NotNull InputStream inputStream, @NotNull String uploaderId) {
+        return new FilterInputStream(inputStream) {
+            @Override
+            public int read() throws IOException {
+                int read = super.read();
+                if (read != -1) {
+                    acquire(uploaderId, 1);
+                }
+                return read;
+            }
+
+            @Override
+            public int read(@NotNull byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, Math.min(len, MAX_CHUNK_SIZE));
+                acquire(uploaderId, read);
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Limits how fast a stream is written to, for a backup method which writes what it uploads.
+     * @param outputStream the stream
+     * @param uploaderId the id of the backup method
+     * @return the limited stream
+     */
+    @NotNull
+    public static OutputStream limit(@NotNull OutputStream outputStream, @NotNull String uploaderId) {
+        return new FilterOutputStream(outputStream) {
+            @Override
+            public void write(int b) throws IOException {
+                acquire(uploaderId, 1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(@NotNull byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int chunkSize = Math.min(len, MAX_CHUNK_SIZE);
+                    acquire(uploaderId, chunkSize);
+                    out.write(b, off, chunkSize);
+                    off += chunkSize;
+                    len -= chunkSize;
+                }
+            }
+        };
+    }
+
+    /**
+     * Limits how fast the bodies of the requests a client makes are sent, for a backup method which uploads with the client.
+     * @param client the client
+     * @param uploaderId the id of the backup method
+     * @return a client sharing the connections of the specified client, whose request bodies are limited
+     */
+    @NotNull
+    public static OkHttpClient limit(@NotNull OkHttpClient client, @NotNull String uploaderId) {
+        return client.newBuilder()
+            .addNetworkInterceptor(chain -> {
+                Request request = chain.request();
+                RequestBody body = request.body();
+                if (body == null) {
+                    return chain.proceed(request);
+                }
+                return chain.proceed(request.newBuilder()
+                    .method(request.method(), new LimitedRequestBody(body, uploaderId))
+                    .build());
+            })
+            .build();
+    }
+
+    private static class LimitedRequestBody extends RequestBody {
+        private final RequestBody body;
+        private final String uploaderId;
+
+        private LimitedRequestBody(RequestBody body, String uploaderId) {
+            this.body = body;
+            this.uploaderId = uploaderId;
+        }
+
+        @Nullable
+        @Override
+        public MediaType contentType() {
+            return body.contentType();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return body.contentLength();
+        }
+
+        @Override
+        public boolean isOneShot() {
+            return body.isOneShot();
+        }
+
+        @Override
+        public void writeTo(@NotNull BufferedSink sink) throws IOException {
+            BufferedSink limitedSink = Okio.buffer(new ForwardingSink(sink) {
+                @Override
+                public void write(@NotNull Buffer source, long byteCount) throws IOException {
+                    while (byteCount > 0) {
+                        long chunkSize = Math.min(byteCount, MAX_CHUNK_SIZE);
+                        acquire(uploaderId, chunkSize);
+                        super.write(source, chunkSize);
+                        byteCount -= chunkSize;
+                    }
+                }
+            });
+            body.writeTo(limitedSink);
+            limitedSink.emit();
+        }
+    }
+}
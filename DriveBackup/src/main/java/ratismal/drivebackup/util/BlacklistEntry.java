@@ -1,20 +1,25 @@
 package ratismal.drivebackup.util;
 
 import java.nio.file.PathMatcher;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BlacklistEntry {
     private String globPattern;
     private PathMatcher pathMatcher;
-    private int blacklistedFiles;
+    private final AtomicInteger blacklistedFiles = new AtomicInteger();
+    private final AtomicInteger blacklistedFolders = new AtomicInteger();
 
     public BlacklistEntry(String globPattern, PathMatcher pathMatcher) {
         this.globPattern = globPattern;
         this.pathMatcher = pathMatcher;
-        this.blacklistedFiles = 0;
     }
 
     public void incBlacklistedFiles() {
-        blacklistedFiles++;
+        blacklistedFiles.incrementAndGet();
+    }
+
+    public void incBlacklistedFolders() {
+        blacklistedFolders.incrementAndGet();
     }
 
     public String getGlobPattern() {
@@ -26,6 +31,10 @@ public class BlacklistEntry {
     }
 
     public int getBlacklistedFiles() {
-        return blacklistedFiles;
+        return blacklistedFiles.get();
+    }
+
+    public int getBlacklistedFolders() {
+        return blacklistedFolders.get();
     }
 }
@@ -0,0 +1,334 @@
+package ratismal.drivebackup.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matches paths against all the blacklist globs of a backup location at once,
+ * with the same glob syntax as {@link java.nio.file.FileSystem#getPathMatcher(String)}.
+ * <p>
+ * The globs are stored in a trie by their leading literal folder names, such as {@code plugins/dynmap} for {@code plugins/dynmap/web/**},
+ * and the rest of the globs stored at each node are compiled into a single pattern,
+ * so a path is only matched against the globs it can match, once for each of its folders in the trie.
+ * <p>
+ * Globs ending with {@code **} also match whole folders, so the folders can be left out without walking them.
+ * <p>
+ * Paths are relative to the folder being backed up, and when several globs match, the first one is reported, as a blacklist is checked in order.
+ */
+public class BlacklistMatcher {
+    /**
+     * Paths on Windows are matched ignoring case, as they are by {@code getPathMatcher}
+     */
+    private static final boolean IGNORE_CASE = File.separatorChar == '\\';
+
+    private static final String REGEX_META_CHARS = ".^$+{[]|()";
+    private static final String GLOB_META_CHARS = "\\*?[{";
+
+    private final Node root = new Node();
+
+    /**
+     * Creates an instance of the {@code BlacklistMatcher} object
+     * @param globs the glob patterns, in the order they are checked in
+     * @throws PatternSyntaxException if a glob pattern is invalid
+     */
+    public BlacklistMatcher(@NotNull List<String> globs) {
+        for (int i = 0; i < globs.size(); i++) {
+            add(i, globs.get(i));
+        }
+        root.compile();
+    }
+
+    /**
+     * Finds the first glob matching a file.
+     * @param path the path of the file, relative to the folder being backed up
+     * @return the index of the glob, or {@code -1} if none match
+     */
+    public int matchFile(@NotNull String path) {
+        return match(normalize(path), false);
+    }
+
+    /**
+     * Finds the first glob matching every path in a folder, so the folder can be left out entirely.
+     * @param path the path of the folder, relative to the folder being backed up
+     * @return the index of the glob, or {@code -1} if none match
+     */
+    public int matchFolder(@NotNull String path) {
+        return match(normalize(path) + "/", true);
+    }
+
+    private int match(String path, boolean folder) {
+        Node node = root;
+        int first = node.match(path, 0, folder);
+        int segmentStart = 0;
+        while (segmentStart < path.length()) {
+            int segmentEnd = path.indexOf('/', segmentStart);
+            if (segmentEnd < 0) {
+                segmentEnd = path.length();
+            }
+            node = node.children.get(key(path.substring(segmentStart, segmentEnd)));
+            if (node == null) {
+                break;
+            }
+            int index = node.match(path, segmentEnd, folder);
+            if (index >= 0 && (first < 0 || index < first)) {
+                first = index;
+            }
+            segmentStart = segmentEnd + 1;
+        }
+        return first;
+    }
+
+    private void add(int index, String glob) {
+        Node node = root;
+        int restStart = 0;
+        int segmentStart = 0;
+        int segmentEnd;
+        while ((segmentEnd = glob.indexOf('/', segmentStart)) > segmentStart) {
+            String segment = glob.substring(segmentStart, segmentEnd);
+            if (!isLiteral(segment)) {
+                break;
+            }
+            node = node.children.computeIfAbsent(key(segment), key -> new Node());
+            restStart = segmentEnd;
+            segmentStart = segmentEnd + 1;
+        }
+        String rest = glob.substring(restStart);
+        node.fileGlobs.add(index);
+        node.fileRegexes.add(toRegex(rest));
+        // A folder matches "<prefix>**" if the start of its path followed by a slash matches "<prefix>"
+        if (rest.endsWith("**") && !rest.endsWith("***")) {
+            String prefixRegex;
+            try {
+                prefixRegex = toRegex(rest.substring(0, rest.length() - 2));
+            } catch (PatternSyntaxException e) {
+                return;
+            }
+            node.folderGlobs.add(index);
+            node.folderRegexes.add(prefixRegex);
+        }
+    }
+
+    private static boolean isLiteral(@NotNull String segment) {
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if (GLOB_META_CHARS.indexOf(c) >= 0 || c == '}' || c == ']') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @NotNull
+    private static String key(@NotNull String segment) {
+        return IGNORE_CASE ? segment.toLowerCase(Locale.ROOT) : segment;
+    }
+
+    @NotNull
+    private static String normalize(@NotNull String path) {
+        return File.separatorChar == '/' ? path : path.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Converts a glob pattern to a regular expression, in the same way as {@code getPathMatcher} does.
+     * @param glob the glob pattern
+     * @return the regular expression, without capturing groups
+     * @throws PatternSyntaxException if the glob pattern is invalid
+     */
+    @NotNull
+    static String toRegex(@NotNull String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inGroup = false;
+        int i = 0;
+        while (i < glob.length()) {
+            char c = glob.charAt(i++);
+            switch (c) {
+                case '\\':
+                    if (i == glob.length()) {
+                        throw new PatternSyntaxException("No character to escape", glob, i - 1);
+                    }
+                    char escaped = glob.charAt(i++);
+                    if (GLOB_META_CHARS.indexOf(escaped) >= 0 || REGEX_META_CHARS.indexOf(escaped) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(escaped);
+                    break;
+                case '[':
+                    i = appendClass(glob, i, regex);
+                    break;
+                case '{':
+                    if (inGroup) {
+                        throw new PatternSyntaxException("Cannot nest groups", glob, i - 1);
+                    }
+                    regex.append("(?:(?:");
+                    inGroup = true;
+                    break;
+                case '}':
+                    if (inGroup) {
+                        regex.append("))");
+                        inGroup = false;
+                    } else {
+                        regex.append('}');
+                    }
+                    break;
+                case ',':
+                    regex.append(inGroup ? ")|(?:" : ",");
+                    break;
+                case '*':
+                    if (i < glob.length() && glob.charAt(i) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                default:
+                    if (REGEX_META_CHARS.indexOf(c) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(c);
+            }
+        }
+        if (inGroup) {
+            throw new PatternSyntaxException("Missing '}'", glob, i - 1);
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Converts a bracket expression, such as {@code [a-z]} or {@code [!0-9]}, which never matches a slash.
+     * @return the index after the bracket expression
+     */
+    private static int appendClass(String glob, int i, StringBuilder regex) {
+        regex.append("[[^/]&&[");
+        if (i < glob.length() && glob.charAt(i) == '^') {
+            regex.append("\\^");
+            i++;
+        } else {
+            if (i < glob.length() && glob.charAt(i) == '!') {
+                regex.append('^');
+                i++;
+            }
+            if (i < glob.length() && glob.charAt(i) == '-') {
+                regex.append('-');
+                i++;
+            }
+        }
+        boolean hasRangeStart = false;
+        char last = 0;
+        char c = 0;
+        while (i < glob.length()) {
+            c = glob.charAt(i++);
+            if (c == ']') {
+                break;
+            }
+            if (c == '/') {
+                throw new PatternSyntaxException("Explicit 'name separator' in class", glob, i - 1);
+            }
+            if (c == '\\' || c == '[' || c == '&' && i < glob.length() && glob.charAt(i) == '&') {
+                regex.append('\\');
+            }
+            regex.append(c);
+            if (c == '-') {
+                if (!hasRangeStart) {
+                    throw new PatternSyntaxException("Invalid range", glob, i - 1);
+                }
+                if (i == glob.length()) {
+                    break;
+                }
+                c = glob.charAt(i++);
+                if (c == ']') {
+                    break;
+                }
+                if (c < last) {
+                    throw new PatternSyntaxException("Invalid range", glob, i - 3);
+                }
+                regex.append(c);
+                hasRangeStart = false;
+            } else {
+                hasRangeStart = true;
+                last = c;
+            }
+        }
+        if (c != ']') {
+            throw new PatternSyntaxException("Missing ']'", glob, i - 1);
+        }
+        regex.append("]]");
+        return i;
+    }
+
+    /**
+     * A folder in the trie, with the globs starting with its path
+     */
+    private static class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private final List<Integer> fileGlobs = new ArrayList<>();
+        private final List<String> fileRegexes = new ArrayList<>();
+        private final List<Integer> folderGlobs = new ArrayList<>();
+        private final List<String> folderRegexes = new ArrayList<>();
+        private Pattern filePattern;
+        private Pattern folderPattern;
+
+        private void compile() {
+            filePattern = combine(fileRegexes);
+            folderPattern = combine(folderRegexes);
+            for (Node child : children.values()) {
+                child.compile();
+            }
+        }
+
+        /**
+         * Combines regular expressions into a single pattern, in which each is a capturing group,
+         * so the first one matching is the first group which matched.
+         */
+        private static Pattern combine(@NotNull List<String> regexes) {
+            if (regexes.isEmpty()) {
+                return null;
+            }
+            StringBuilder combined = new StringBuilder();
+            for (String regex : regexes) {
+                if (combined.length() > 0) {
+                    combined.append('|');
+                }
+                combined.append('(').append(regex).append(')');
+            }
+            return Pattern.compile(combined.toString(), IGNORE_CASE ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0);
+        }
+
+        /**
+         * Finds the first glob stored at this node matching the rest of a path.
+         * @param path the path
+         * @param restStart the index of the rest of the path, after the path of this node
+         * @param folder whether to match every path in the folder, rather than the file
+         * @return the index of the glob, or {@code -1} if none match
+         */
+        private int match(String path, int restStart, boolean folder) {
+            Pattern pattern = folder ? folderPattern : filePattern;
+            if (pattern == null) {
+                return -1;
+            }
+            Matcher matcher = pattern.matcher(path).region(restStart, path.length());
+            if (folder ? !matcher.lookingAt() : !matcher.matches()) {
+                return -1;
+            }
+            List<Integer> globs = folder ? folderGlobs : fileGlobs;
+            for (int group = 1; group <= globs.size(); group++) {
+                if (matcher.start(group) >= 0) {
+                    return globs.get(group - 1);
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package ratismal.drivebackup.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A pipe from one thread to another, which holds at most a fixed number of bytes,
+ * so the writing thread waits when the reading thread falls behind.
+ * <p>
+ * Unlike {@link java.io.PipedInputStream}, it doesn't depend on which threads use it,
+ * the writing side can abort it so the reading side fails instead of seeing the end of the stream,
+ * and once the reading side is closed or the pipe is aborted, anything written is discarded.
+ */
+public class BoundedPipe {
+    private final byte[] buffer;
+    private int readPosition;
+    private int available;
+    private boolean writerClosed;
+    private boolean readerClosed;
+    private IOException failure;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException {
+            return BoundedPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (BoundedPipe.this) {
+                return available;
+            }
+        }
+
+        @Override
+        public void close() {
+            closeReader();
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) throws IOException {
+            BoundedPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closeWriter();
+        }
+    };
+
+    /**
+     * Creates an instance of the {@code BoundedPipe} object
+     * @param size the maximum number of bytes held by the pipe
+     */
+    public BoundedPipe(int size) {
+        buffer = new byte[size];
+    }
+
+    /**
+     * Gets the reading side of the pipe, which ends once the writing side is closed.
+     * @return the input stream
+     */
+    @NotNull
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    /**
+     * Gets the writing side of the pipe.
+     * @return the output stream
+     */
+    @NotNull
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Aborts the pipe, so reading from it fails with the specified cause, even if the writing side was closed.
+     * @param cause why the pipe was aborted
+     */
+    public synchronized void abort(@NotNull IOException cause) {
+        if (failure == null) {
+            failure = cause;
+        }
+        notifyAll();
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (available == 0 && failure == null) {
+            if (writerClosed) {
+                return -1;
+            }
+            if (readerClosed) {
+                throw new IOException("Pipe closed");
+            }
+            waitForOtherSide();
+        }
+        if (failure != null) {
+            throw new IOException("Pipe aborted", failure);
+        }
+        int read = Math.min(len, Math.min(available, buffer.length - readPosition));
+        System.arraycopy(buffer, readPosition, b, off, read);
+        readPosition = (readPosition + read) % buffer.length;
+        available -= read;
+        notifyAll();
+        return read;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (writerClosed) {
+            throw new IOException("Pipe closed");
+        }
+        while (len > 0) {
+            while (available == buffer.length && !readerClosed && failure == null) {
+                waitForOtherSide();
+            }
+            if (readerClosed || failure != null) {
+                return;
+            }
+            int writePosition = (readPosition + available) % buffer.length;
+            int written = Math.min(len, Math.min(buffer.length - available, buffer.length - writePosition));
+            System.arraycopy(b, off, buffer, writePosition, written);
+            available += written;
+            off += written;
+            len -= written;
+            notifyAll();
+        }
+    }
+
+    private synchronized void closeReader() {
+        readerClosed = true;
+        available = 0;
+        notifyAll();
+    }
+
+    private synchronized void closeWriter() {
+        writerClosed = true;
+        notifyAll();
+    }
+
+    private void waitForOtherSide() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
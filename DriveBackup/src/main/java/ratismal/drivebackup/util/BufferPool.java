@@ -0,0 +1,238 @@
+package ratismal.drivebackup.util;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * A pool of buffers shared by creating and uploading backups, so the large buffers used to read, compress, and upload files
+ * are reused rather than allocated, and garbage collected, for every file or chunk.
+ * <p>
+ * Buffers come in size classes, the powers of two from {@link #MIN_SIZE} to {@link #MAX_SIZE},
+ * so a buffer may be larger than requested, and callers must keep track of how much of it they use.
+ * Larger buffers are allocated without being pooled.
+ * Heap and direct buffers are pooled separately, and at most {@link #MAX_POOLED_BYTES} of each are kept,
+ * any buffer beyond that is left to be garbage collected when released.
+ * <p>
+ * A buffer must not be used after it is released, and a buffer which isn't released is garbage collected as usual.
+ */
+public final class BufferPool {
+    /**
+     * The size of the smallest buffers
+     */
+    public static final int MIN_SIZE = 8 * 1024;
+
+    /**
+     * The size of the largest buffers which are pooled
+     */
+    public static final int MAX_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The maximum number of bytes of each of heap and direct buffers kept in the pool
+     */
+    public static final long MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+    private static final int MIN_SIZE_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SIZE_SHIFT + 1;
+
+    private static final Pool<byte[]> heapBuffers = new Pool<>(byte[]::new, buffer -> buffer.length);
+    private static final Pool<ByteBuffer> directBuffers = new Pool<>(ByteBuffer::allocateDirect, ByteBuffer::capacity);
+
+    private BufferPool() {
+    }
+
+    /**
+     * Gets the size of the buffers handed out for a size.
+     * @param size the size requested
+     * @return the size of the buffer, the size itself if it is too large to be pooled
+     */
+    @Contract (pure = true)
+    public static int getBufferSize(int size) {
+        if (size <= MIN_SIZE) {
+            return MIN_SIZE;
+        }
+        if (size > MAX_SIZE) {
+            return size;
+        }
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    /**
+     * Takes a heap buffer from the pool, or allocates one if there isn't one of its size.
+     * @param size the minimum size of the buffer
+     * @return the buffer, at least {@code size} long, whose contents are undefined
+     */
+    @NotNull
+    public static byte[] acquire(int size) {
+        return heapBuffers.acquire(size);
+    }
+
+    /**
+     * Returns a heap buffer to the pool.
+     * @param buffer the buffer, taken from {@link #acquire(int)}
+     */
+    public static void release(@NotNull byte[] buffer) {
+        heapBuffers.release(buffer);
+    }
+
+    /**
+     * Takes a direct buffer from the pool, or allocates one if there isn't one of its size.
+     * @param size the minimum capacity of the buffer
+     * @return the buffer, cleared, with a capacity of at least {@code size}
+     */
+    @NotNull
+    public static ByteBuffer acquireDirect(int size) {
+        ByteBuffer buffer = directBuffers.acquire(size);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a direct buffer to the pool.
+     * @param buffer the buffer, taken from {@link #acquireDirect(int)}
+     */
+    public static void releaseDirect(@NotNull ByteBuffer buffer) {
+        directBuffers.release(buffer);
+    }
+
+    /**
+     * Gets the statistics of the heap buffers handed out since the server started.
+     * @return the statistics
+     */
+    @NotNull
+    public static Stats getHeapStats() {
+        return heapBuffers.getStats();
+    }
+
+    /**
+     * Gets the statistics of the direct buffers handed out since the server started.
+     * @return the statistics
+     */
+    @NotNull
+    public static Stats getDirectStats() {
+        return directBuffers.getStats();
+    }
+
+    /**
+     * Statistics of how well buffers are being reused
+     */
+    public static class Stats {
+        /**
+         * The number of buffers requested
+         */
+        public final long requests;
+
+        /**
+         * The number of buffers requested which were taken from the pool
+         */
+        public final long hits;
+
+        /**
+         * The number of bytes of the buffers in use
+         */
+        public final long bytesInUse;
+
+        /**
+         * The highest number of bytes of buffers in use at once
+         */
+        public final long peakBytesInUse;
+
+        /**
+         * The number of bytes of the buffers kept in the pool
+         */
+        public final long pooledBytes;
+
+        private Stats(long requests, long hits, long bytesInUse, long peakBytesInUse, long pooledBytes) {
+            this.requests = requests;
+            this.hits = hits;
+            this.bytesInUse = bytesInUse;
+            this.peakBytesInUse = peakBytesInUse;
+            this.pooledBytes = pooledBytes;
+        }
+
+        /**
+         * Gets the share of the buffers requested which were taken from the pool.
+         * @return the hit rate, between 0 and 1
+         */
+        public double getHitRate() {
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+    }
+
+    /**
+     * The buffers of one kind, with a queue for each size class
+     */
+    private static class Pool<T> {
+        private final IntFunction<T> allocator;
+        private final ToIntFunction<T> sizeOf;
+        private final Queue<T>[] buffers;
+        private final AtomicLong pooledBytes = new AtomicLong();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong bytesInUse = new AtomicLong();
+        private final AtomicLong peakBytesInUse = new AtomicLong();
+
+        @SuppressWarnings("unchecked")
+        private Pool(IntFunction<T> allocator, ToIntFunction<T> sizeOf) {
+            this.allocator = allocator;
+            this.sizeOf = sizeOf;
+            buffers = new Queue[SIZE_CLASSES];
+            for (int i = 0; i < SIZE_CLASSES; i++) {
+                buffers[i] = new ConcurrentLinkedQueue<>();
+            }
+        }
+
+        private T acquire(int size) {
+            int bufferSize = getBufferSize(size);
+            requests.incrementAndGet();
+            long inUse = bytesInUse.addAndGet(bufferSize);
+            peakBytesInUse.accumulateAndGet(inUse, Math::max);
+            int sizeClass = getSizeClass(bufferSize);
+            if (sizeClass >= 0) {
+                T buffer = buffers[sizeClass].poll();
+                if (buffer != null) {
+                    pooledBytes.addAndGet(-bufferSize);
+                    hits.incrementAndGet();
+                    return buffer;
+                }
+            }
+            return allocator.apply(bufferSize);
+        }
+
+        private void release(T buffer) {
+            int bufferSize = sizeOf.applyAsInt(buffer);
+            bytesInUse.addAndGet(-bufferSize);
+            int sizeClass = getSizeClass(bufferSize);
+            if (sizeClass < 0) {
+                return;
+            }
+            if (pooledBytes.addAndGet(bufferSize) > MAX_POOLED_BYTES) {
+                pooledBytes.addAndGet(-bufferSize);
+                return;
+            }
+            buffers[sizeClass].add(buffer);
+        }
+
+        private Stats getStats() {
+            return new Stats(requests.get(), hits.get(), bytesInUse.get(), peakBytesInUse.get(), pooledBytes.get());
+        }
+
+        /**
+         * Gets the index of the size class of a buffer.
+         * @param bufferSize the size of the buffer
+         * @return the index, or -1 if the buffer isn't pooled
+         */
+        private static int getSizeClass(int bufferSize) {
+            if (bufferSize < MIN_SIZE || bufferSize > MAX_SIZE || Integer.bitCount(bufferSize) != 1) {
+                return -1;
+            }
+            return Integer.numberOfTrailingZeros(bufferSize) - MIN_SIZE_SHIFT;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package ratismal.drivebackup.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the files to back up in a folder, walking its subfolders in parallel on a {@link ForkJoinPool}.
+ * <p>
+ * The files are handed out as they are found, along with the attributes read while walking,
+ * so archiving them can start before the whole folder was walked, and their attributes aren't read a second time.
+ * At most {@link #QUEUE_SIZE} found files wait to be handed out, the walk pauses beyond that.
+ * Files in the local backup folder, and files matching the blacklist, are left out and counted instead.
+ * Folders which the blacklist matches entirely, see {@link BlacklistMatcher#matchFolder(String)}, are left out without being walked.
+ * <p>
+ * The files are handed out in no particular order. A {@code FileScanner} can only be used for one walk,
+ * and must be closed, so the walk is stopped if the files weren't all handed out.
+ */
+public class FileScanner implements Iterator<FileScanner.ScannedFile>, Closeable {
+    /**
+     * The maximum number of found files waiting to be handed out
+     */
+    private static final int QUEUE_SIZE = 10000;
+
+    /**
+     * Walking is mostly waiting for the file system, so more threads are used than there are processors on small machines
+     */
+    private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    private static final ScannedFile END = new ScannedFile(null, null);
+    private static final AtomicInteger poolCount = new AtomicInteger();
+
+    private final Path root;
+    private final List<BlacklistEntry> blacklist;
+    private final BlacklistMatcher blacklistMatcher;
+    private final String backupFolderPath;
+    private final int threadPriority;
+    private final BlockingQueue<ScannedFile> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final AtomicInteger filesInBackupFolder = new AtomicInteger();
+    private final Queue<String> unreadablePaths = new ConcurrentLinkedQueue<>();
+    private final List<ScannedFile> files = new ArrayList<>();
+    private ForkJoinPool pool;
+    private volatile boolean cancelled;
+    private volatile Throwable failure;
+    private ScannedFile next;
+    private boolean ended;
+
+    /**
+     * A file found by the {@code FileScanner}
+     */
+    public static class ScannedFile {
+        /**
+         * The path of the file, relative to the folder being walked
+         */
+        public final String path;
+
+        /**
+         * The attributes of the file, read while walking
+         */
+        public final BasicFileAttributes attributes;
+
+        ScannedFile(String path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.attributes = attributes;
+        }
+    }
+
+    /**
+     * Creates an instance of the {@code FileScanner} object
+     * @param inputFolderPath the path of the folder to walk
+     * @param blacklist the blacklist, whose counts are increased for each file left out
+     * @param backupFolder the local backup folder, whose files are left out
+     * @param threadPriority the priority of the walking threads
+     * @throws IOException if the path of the local backup folder couldn't be resolved
+     * @throws java.util.regex.PatternSyntaxException if a glob pattern of the blacklist is invalid
+     */
+    public FileScanner(String inputFolderPath, List<BlacklistEntry> blacklist, @NotNull File backupFolder, int threadPriority) throws IOException {
+        root = Paths.get(inputFolderPath);
+        this.blacklist = blacklist;
+        List<String> globs = new ArrayList<>(blacklist.size());
+        for (BlacklistEntry blacklistEntry : blacklist) {
+            globs.add(blacklistEntry.getGlobPattern());
+        }
+        blacklistMatcher = new BlacklistMatcher(globs);
+        backupFolderPath = backupFolder.getCanonicalPath() + File.separator;
+        this.threadPriority = threadPriority;
+    }
+
+    /**
+     * Starts walking the folder.
+     * @throws IOException if the folder doesn't exist, or isn't a folder
+     */
+    public void start() throws IOException {
+        if (!Files.readAttributes(root, BasicFileAttributes.class).isDirectory()) {
+            throw new NotDirectoryException(root.toString());
+        }
+        int poolId = poolCount.incrementAndGet();
+        AtomicInteger threadCount = new AtomicInteger();
+        pool = new ForkJoinPool(THREADS, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("DriveBackupV2-scanner-" + poolId + "-" + threadCount.incrementAndGet());
+            thread.setPriority(threadPriority);
+            return thread;
+        }, null, false);
+        pool.execute(() -> {
+            try {
+                new DirectoryTask(root, false).invoke();
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                hand(END);
+            }
+        });
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (ended) {
+            return false;
+        }
+        try {
+            next = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while walking " + root));
+        }
+        if (next == END) {
+            next = null;
+            ended = true;
+            if (failure != null) {
+                throw new UncheckedIOException(new IOException("Failed to walk " + root, failure));
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public ScannedFile next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ScannedFile file = next;
+        next = null;
+        files.add(file);
+        return file;
+    }
+
+    /**
+     * Hands out all the files which are left, waiting for the walk to finish.
+     * @return the files handed out, see {@link #getFiles()}
+     */
+    @NotNull
+    public List<ScannedFile> finish() {
+        while (hasNext()) {
+            next();
+        }
+        return files;
+    }
+
+    /**
+     * Gets the files handed out so far.
+     * @return the files
+     */
+    @NotNull
+    public List<ScannedFile> getFiles() {
+        return files;
+    }
+
+    /**
+     * Gets the number of files left out for being in the local backup folder.
+     * @return the number of files
+     */
+    public int getFilesInBackupFolder() {
+        return filesInBackupFolder.get();
+    }
+
+    /**
+     * Gets the paths of the files and folders which couldn't be read, or aren't regular files or folders.
+     * @return the paths
+     */
+    @NotNull
+    public List<String> getUnreadablePaths() {
+        return new ArrayList<>(unreadablePaths);
+    }
+
+    /**
+     * Stops the walk, if it is still going.
+     */
+    @Override
+    public void close() {
+        cancelled = true;
+        queue.clear();
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Waits until the file can be handed out, unless the walk was stopped.
+     */
+    private void hand(ScannedFile file) {
+        try {
+            while (!cancelled && !queue.offer(file, 100, TimeUnit.MILLISECONDS)) {
+                // Wait for the files to be handed out
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isInBackupFolder(@NotNull Path folder) {
+        try {
+            return (folder.toFile().getCanonicalPath() + File.separator).startsWith(backupFolderPath);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void addFile(@NotNull Path file, BasicFileAttributes attributes) {
+        String relativePath = root.relativize(file).toString();
+        int blacklistIndex = blacklistMatcher.matchFile(relativePath);
+        if (blacklistIndex >= 0) {
+            blacklist.get(blacklistIndex).incBlacklistedFiles();
+            return;
+        }
+        hand(new ScannedFile(relativePath, attributes));
+    }
+
+    /**
+     * Checks whether a folder is left out entirely by the blacklist, counting it if so.
+     */
+    private boolean isBlacklistedFolder(@NotNull Path folder) {
+        int blacklistIndex = blacklistMatcher.matchFolder(root.relativize(folder).toString());
+        if (blacklistIndex < 0) {
+            return false;
+        }
+        blacklist.get(blacklistIndex).incBlacklistedFolders();
+        return true;
+    }
+
+    /**
+     * Walks a folder, walking each of its subfolders in its own task
+     */
+    private class DirectoryTask extends RecursiveAction {
+        private final Path folder;
+        private final boolean parentInBackupFolder;
+
+        private DirectoryTask(Path folder, boolean parentInBackupFolder) {
+            this.folder = folder;
+            this.parentInBackupFolder = parentInBackupFolder;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled) {
+                return;
+            }
+            // The canonical path of each folder is resolved once, rather than that of each file
+            boolean inBackupFolder = parentInBackupFolder || isInBackupFolder(folder);
+            List<DirectoryTask> subfolders = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        unreadablePaths.add(entry.toString());
+                        continue;
+                    }
+                    if (attributes.isDirectory()) {
+                        if (inBackupFolder || !isBlacklistedFolder(entry)) {
+                            subfolders.add(new DirectoryTask(entry, inBackupFolder));
+                        }
+                    } else if (!attributes.isRegularFile()) {
+                        unreadablePaths.add(entry.toString());
+                    } else if (inBackupFolder) {
+                        filesInBackupFolder.incrementAndGet();
+                    } else {
+                        addFile(entry, attributes);
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                unreadablePaths.add(folder.toString());
+            }
+            invokeAll(subfolders);
+        }
+    }
+}
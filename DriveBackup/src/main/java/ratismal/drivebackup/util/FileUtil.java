@@ -2,29 +2,62 @@ package ratismal.drivebackup.util;
 
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.archive.ArchiveIndex;
+import ratismal.drivebackup.archive.ArchiveListener;
+import ratismal.drivebackup.archive.ArchiveStats;
+import ratismal.drivebackup.archive.Archiver;
+import ratismal.drivebackup.archive.BackupManifest;
+import ratismal.drivebackup.archive.CompressionBenchmark;
+import ratismal.drivebackup.archive.CompressionPacer;
+import ratismal.drivebackup.archive.CompressionStrategy;
+import ratismal.drivebackup.archive.ReadAhead;
+import ratismal.drivebackup.archive.RegionDelta;
+import ratismal.drivebackup.archive.RegionTimestamps;
+import ratismal.drivebackup.archive.VolumeOutputStream;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.config.ConfigParser.Config;
+import ratismal.drivebackup.config.configSections.BackupStorage;
 import ratismal.drivebackup.exceptions.AbsolutePathException;
+import ratismal.drivebackup.repository.ChunkRepository;
+import ratismal.drivebackup.uploaders.StreamingUpload;
+import ratismal.drivebackup.uploaders.UploadJournal;
+import ratismal.drivebackup.uploaders.Uploader;
+import ratismal.drivebackup.uploaders.VolumeUpload;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
 import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import static ratismal.drivebackup.config.Localization.intl;
 
@@ -35,43 +68,225 @@ import static ratismal.drivebackup.config.Localization.intl;
 public class FileUtil {
     private static final String NAME_KEYWORD = "%NAME";
 
+    /**
+     * How many backups are made with the compression level chosen automatically before the files are measured again
+     */
+    private static final int COMPRESSION_BENCHMARK_INTERVAL = 10;
+
     private UploadLogger logger;
+    private final ArchiveStats archiveStats = new ArchiveStats();
+    private List<Uploader> streamingUploaders = Collections.emptyList();
+    private boolean keepLocalCopy = true;
+    private VolumeUpload volumeUpload;
+    private BackupHistory history;
+    private double uploadRate = -1;
+    private boolean uploadOverlapped;
+    private BackupDeadline deadline;
+
+    /**
+     * The estimated size of the files of the locations still to be backed up, by location, see {@link #setPendingLocations(List)}
+     */
+    private final Map<String, Long> pendingLocationBytes = new ConcurrentHashMap<>();
+
+    /**
+     * Held while adding a snapshot to the local repository, as backups of several locations can be made at once
+     */
+    private final Object repositoryLock = new Object();
 
     public FileUtil(UploadLogger logger) {
         this.logger = logger;
     }
 
     /**
-     * Gets the local backups in the specified folder as a {@code TreeMap} with their creation date and a reference to them.
+     * Gets how much data was stored and compressed in all the backups made so far, for the summary of the backup.
+     * @return the stats
+     */
+    public ArchiveStats getArchiveStats() {
+        return archiveStats;
+    }
+
+    /**
+     * Sets the uploaders to upload the backups to while they are being created, see {@link StreamingUpload}.
+     * @param streamingUploaders the uploaders, which must support streaming uploads
+     * @param keepLocalCopy whether to also save the backups locally, which is needed to retain them, or to upload them to the other uploaders
+     */
+    public void setStreamingUploaders(List<Uploader> streamingUploaders, boolean keepLocalCopy) {
+        this.streamingUploaders = streamingUploaders;
+        this.keepLocalCopy = keepLocalCopy;
+    }
+
+    /**
+     * Sets where to upload the volumes of backups split into volumes as they are finished, see {@link VolumeUpload}.
+     * @param volumeUpload the upload, or {@code null} if backups aren't split into volumes
+     */
+    public void setVolumeUpload(VolumeUpload volumeUpload) {
+        this.volumeUpload = volumeUpload;
+    }
+
+    /**
+     * Sets what to choose the compression level of each backup location with, when it is chosen automatically.
+     * @param history the history to record the levels chosen in, and to reuse them from
+     * @param uploadRate how many bytes of the backups are uploaded per second, see {@link BackupHistory#estimateUploadRate(List, boolean)}
+     * @param uploadOverlapped whether the backups are uploaded while they are being created
+     */
+    public void setCompressionTuning(BackupHistory history, double uploadRate, boolean uploadOverlapped) {
+        this.history = history;
+        this.uploadRate = uploadRate;
+        this.uploadOverlapped = uploadOverlapped;
+    }
+
+    /**
+     * Sets the deadline of the backups, to lower the compression level of the rest of a backup when it is running late,
+     * see {@link CompressionPacer}. How long uploading takes is estimated from the upload speed set with {@link #setCompressionTuning(BackupHistory, double, boolean)}.
+     * @param deadline the deadline, or {@code null} if the backups have no time budget
+     */
+    public void setDeadline(BackupDeadline deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Sets the locations still to be backed up, so that the time they take counts towards whether a backup is running late,
+     * see {@link CompressionPacer}. Their sizes are estimated from their last backups, recorded in the history set with
+     * {@link #setCompressionTuning(BackupHistory, double, boolean)}, and each location is removed once its backup starts.
+     * @param locations the locations
+     */
+    public void setPendingLocations(@NotNull List<String> locations) {
+        pendingLocationBytes.clear();
+        if (history == null) {
+            return;
+        }
+        for (String location : locations) {
+            long size = history.getLocationSize(location);
+            if (size > 0) {
+                pendingLocationBytes.put(location, size);
+            }
+        }
+    }
+
+    /**
+     * Gets the estimated size of the files of the locations still to be backed up, see {@link #setPendingLocations(List)}.
+     * @return the number of bytes
+     */
+    private long getPendingLocationBytes() {
+        long bytes = 0;
+        for (long size : pendingLocationBytes.values()) {
+            bytes += size;
+        }
+        return bytes;
+    }
+
+    /**
+     * Gets the local backups in the specified folder as a {@code TreeMap} with their creation date and their files,
+     * which are the volumes of a backup split into volumes, in order, or just the archive, followed by its index.
      * @param location the location of the folder containing the backups
      * @param formatter the format of the file name
      * @return The list of backups
      */
-    public TreeMap<Long, File> getLocalBackups(String location, LocalDateTimeFormatter formatter) {
+    public TreeMap<Long, List<File>> getLocalBackups(String location, LocalDateTimeFormatter formatter) {
+        TreeMap<Long, List<File>> backupList = new TreeMap<>();
+        for (List<File> backup : getLocalBackupFiles(location)) {
+            long lastModified = 0;
+            for (File file : backup) {
+                lastModified = Math.max(lastModified, file.lastModified());
+            }
+            backupList.put((lastModified / 1000), backup);
+        }
+        return backupList;
+    }
+
+    /**
+     * Gets the files of each local backup in the specified folder, which are the volumes of a backup split into volumes, in order,
+     * or just the archive, followed by its index.
+     * @param location the location of the folder containing the backups
+     * @return the files of each backup, in the order of their names
+     */
+    @NotNull
+    public static List<List<File>> getLocalBackupFiles(String location) {
         location = escapeBackupLocation(location);
-        TreeMap<Long, File> backupList = new TreeMap<>();
         String path = new File(ConfigParser.getConfig().backupStorage.localDirectory).getAbsolutePath() + "/" + location;
         File[] files = new File(path).listFiles();
         if (files == null) {
-            return backupList;
+            return Collections.emptyList();
         }
+        List<File> archives = new ArrayList<>();
         for (File file : files) {
-            if (file.getName().endsWith(".zip")) {
-                backupList.put((file.lastModified() / 1000), file);
+            if (ArchiveFormat.isArchive(file.getName())) {
+                archives.add(file);
             }
         }
-        return backupList;
+        archives.sort(Comparator.comparing(File::getName));
+        return ArchiveFormat.groupVolumes(archives, File::getName);
+    }
+
+    /**
+     * Makes a snapshot of the specified folder to create its backup from, see {@link LocationSnapshot},
+     * only copying the files the backup will include.
+     * @param location the location of the folder
+     * @param blacklistGlobs a list of glob patterns of files/folders to not include in the backup.
+     * @param incremental whether the backup will only include the files which changed since the last backup
+     * @param fullBackupInterval how often a full backup is made when making incremental backups, such as every 7th backup
+     * @return the snapshot, which must be closed once the backup was created
+     * @throws Exception
+     */
+    @NotNull
+    public LocationSnapshot makeSnapshot(@NotNull String location, List<String> blacklistGlobs, boolean incremental, int fullBackupInterval) throws Exception {
+        Config config = ConfigParser.getConfig();
+        if (location.charAt(0) == '/') {
+            throw new AbsolutePathException("Location cannot start with a slash");
+        }
+        String subFolderName = escapeBackupLocation(isBaseFolder(location) ? "root" : location);
+        BackupManifest previousManifest = null;
+        if (incremental && !config.backupStorage.localRepository) {
+            File path = new File(config.backupStorage.localDirectory, subFolderName);
+            previousManifest = BackupManifest.load(new File(path, BackupManifest.FILE_NAME));
+            if (previousManifest != null && previousManifest.getBackupsSinceFull() + 1 >= fullBackupInterval) {
+                previousManifest = null;
+            }
+        }
+        // The files which will be left out of the incremental backup as unchanged aren't copied
+        BackupManifest unchangedFiles = previousManifest;
+        List<BlacklistEntry> blacklist = createBlacklist(blacklistGlobs);
+        File folder = new File(new File(config.backupStorage.localDirectory, LocationSnapshot.FOLDER_NAME), subFolderName);
+        LocationSnapshot snapshot;
+        try (FileScanner scanner = new FileScanner(location, blacklist, new File(config.backupStorage.localDirectory), config.backupStorage.threadPriority)) {
+            scanner.start();
+            snapshot = LocationSnapshot.make(location, folder, scanner, file -> {
+                if (unchangedFiles == null) {
+                    return true;
+                }
+                BackupManifest.Entry entry = unchangedFiles.get(file.path);
+                return entry == null
+                    || entry.size < 0
+                    || entry.size != file.attributes.size()
+                    || entry.lastModified != file.attributes.lastModifiedTime().toMillis();
+            }, config.backupStorage.threadPriority);
+            logScanResult(scanner, blacklist);
+        }
+        for (String file : snapshot.getFailedFiles()) {
+            // Don't send warning for .lock files, they will always be locked.
+            if (!file.endsWith(".lock")) {
+                logger.info(
+                    intl("local-backup-failed-to-include"),
+                    "file-path", location + "/" + file);
+            }
+        }
+        return snapshot;
     }
 
     /**
-     * Creates a local backup zip file for the specified file/folder.
+     * Creates a local backup archive for the specified file/folder.
      * @param location the location of the file or folder
      * @param formatter the format of the file name
      * @param blacklistGlobs a list of glob patterns of files/folders to not include in the backup.
+     * @param incremental whether to only include the files which changed since the last backup
+     * @param fullBackupInterval how often a full backup is made when making incremental backups, such as every 7th backup
+     * @param snapshot the snapshot of the location to create the backup from, see {@link #makeSnapshot(String, List, boolean, int)},
+     *                 or {@code null} to create it from the location itself
      * @throws Exception
      */
-    public void makeBackup(@NotNull String location, LocalDateTimeFormatter formatter, List<String> blacklistGlobs) throws Exception {
+    public void makeBackup(@NotNull String location, LocalDateTimeFormatter formatter, List<String> blacklistGlobs, boolean incremental, int fullBackupInterval, @Nullable LocationSnapshot snapshot) throws Exception {
         Config config = ConfigParser.getConfig();
+        pendingLocationBytes.remove(location);
         if (location.charAt(0) == '/') {
             throw new AbsolutePathException("Location cannot start with a slash");
         }
@@ -85,6 +300,55 @@ public class FileUtil {
         if (!path.exists()) {
             path.mkdirs();
         }
+        if (fileName.contains(NAME_KEYWORD)) {
+            int lastSeparatorIndex = Math.max(location.lastIndexOf('/'), location.lastIndexOf('\\'));
+            String lastFolderName = location.substring(lastSeparatorIndex + 1);
+            fileName = fileName.replace(NAME_KEYWORD, lastFolderName);
+        }
+        ArchiveFormat archiveFormat = config.backupStorage.archiveFormat;
+        String archiveName = archiveFormat.withExtension(fileName);
+        List<String> files = new ArrayList<>();
+        if (snapshot != null) {
+            // The files were already found when making the snapshot
+            int compressionLevel = getCompressionLevel(location, snapshot, snapshot.getFiles());
+            if (incremental) {
+                makeIncrementalBackup(location, snapshot, path, archiveName, snapshot.getFiles(), fullBackupInterval, compressionLevel);
+            } else {
+                zipIt(location, snapshot, path.getPath() + "/" + archiveName, snapshot.getFiles(), Collections.emptyList(), null, Collections.emptyMap(), compressionLevel);
+            }
+            for (FileScanner.ScannedFile file : snapshot.getFiles()) {
+                files.add(file.path);
+            }
+        } else {
+            List<BlacklistEntry> blacklist = createBlacklist(blacklistGlobs);
+            try (FileScanner scanner = new FileScanner(location, blacklist, new File(config.backupStorage.localDirectory), config.backupStorage.threadPriority)) {
+                scanner.start();
+                if (incremental) {
+                    List<FileScanner.ScannedFile> scannedFiles = scanner.finish();
+                    makeIncrementalBackup(location, null, path, archiveName, scannedFiles, fullBackupInterval, getCompressionLevel(location, null, scannedFiles));
+                } else if (needsCompressionBenchmark(location)) {
+                    // The files are sampled to choose the compression level, so they are all found before they are archived
+                    List<FileScanner.ScannedFile> scannedFiles = scanner.finish();
+                    zipIt(location, null, path.getPath() + "/" + archiveName, scannedFiles, Collections.emptyList(), null, Collections.emptyMap(), getCompressionLevel(location, null, scannedFiles));
+                } else {
+                    // The files are archived as they are found
+                    int compressionLevel = getCompressionLevel(location, null, Collections.emptyList());
+                    zipIt(location, null, path.getPath() + "/" + archiveName, () -> scanner, Collections.emptyList(), null, Collections.emptyMap(), compressionLevel);
+                }
+                logScanResult(scanner, blacklist);
+                for (FileScanner.ScannedFile file : scanner.getFiles()) {
+                    files.add(file.path);
+                }
+            }
+        }
+        if (config.backupStorage.localRepository) {
+            String snapshotName = archiveName.substring(0, archiveName.length() - archiveFormat.extension.length());
+            addRepositorySnapshot(snapshot != null ? snapshot.getFolderPath() : location, escapeBackupLocation(subFolderName), snapshotName, files);
+        }
+    }
+
+    @NotNull
+    private static List<BlacklistEntry> createBlacklist(@NotNull List<String> blacklistGlobs) {
         List<BlacklistEntry> blacklist = new ArrayList<>();
         for (String blacklistGlob : blacklistGlobs) {
             BlacklistEntry blacklistEntry = new BlacklistEntry(
@@ -93,8 +357,21 @@ public class FileUtil {
                 );
             blacklist.add(blacklistEntry);
         }
-        BackupFileList fileList = generateFileList(location, blacklist);
-        for (BlacklistEntry blacklistEntry : fileList.getBlacklist()) {
+        return blacklist;
+    }
+
+    /**
+     * Logs the files left out of a backup, and the files which couldn't be read.
+     * @param scanner the scanner which found the files in the backup
+     * @param blacklist the blacklist
+     */
+    private void logScanResult(@NotNull FileScanner scanner, @NotNull List<BlacklistEntry> blacklist) {
+        for (String filePath : scanner.getUnreadablePaths()) {
+            logger.info(
+                intl("local-backup-failed-to-include"),
+                "file-path", filePath);
+        }
+        for (BlacklistEntry blacklistEntry : blacklist) {
             String globPattern = blacklistEntry.getGlobPattern();
             int blacklistedFiles = blacklistEntry.getBlacklistedFiles();
             if (blacklistedFiles > 0) {
@@ -103,19 +380,328 @@ public class FileUtil {
                     "blacklisted-files-count", String.valueOf(blacklistedFiles),
                     "glob-pattern", globPattern);
             }
+            int blacklistedFolders = blacklistEntry.getBlacklistedFolders();
+            if (blacklistedFolders > 0) {
+                logger.info(
+                    intl("local-backup-backlisted-folders"),
+                    "blacklisted-folders-count", String.valueOf(blacklistedFolders),
+                    "glob-pattern", globPattern);
+            }
         }
-        int filesInBackupFolder = fileList.getFilesInBackupFolder();
+        int filesInBackupFolder = scanner.getFilesInBackupFolder();
         if (filesInBackupFolder > 0) {
             logger.info(
                 intl("local-backup-in-backup-folder"), 
                 "files-in-backup-folder-count", String.valueOf(filesInBackupFolder));
         }
-        if (fileName.contains(NAME_KEYWORD)) {
-            int lastSeparatorIndex = Math.max(location.lastIndexOf('/'), location.lastIndexOf('\\'));
-            String lastFolderName = location.substring(lastSeparatorIndex + 1);
-            fileName = fileName.replace(NAME_KEYWORD, lastFolderName);
+    }
+
+    /**
+     * Creates an incremental backup archive, only including the files which changed since the last backup,
+     * or a full backup if there is no previous backup, or it is time for the next full backup.
+     * @param location the location of the folder
+     * @param snapshot the snapshot of the folder to read the files from, or {@code null} to read them from the folder itself
+     * @param path the folder to create the archive in
+     * @param archiveName the name of the archive, if it is a full backup
+     * @param scannedFiles the files in the folder
+     * @param fullBackupInterval how often a full backup is made, such as every 7th backup
+     * @param compressionLevel the compression level
+     * @throws Exception
+     */
+    private void makeIncrementalBackup(String location, @Nullable LocationSnapshot snapshot, File path, String archiveName, List<FileScanner.ScannedFile> scannedFiles, int fullBackupInterval, int compressionLevel) throws Exception {
+        List<String> files = new ArrayList<>(scannedFiles.size());
+        for (FileScanner.ScannedFile file : scannedFiles) {
+            files.add(file.path);
+        }
+        File manifestFile = new File(path, BackupManifest.FILE_NAME);
+        File regionTimestampsFile = new File(path, RegionTimestamps.FILE_NAME);
+        BackupManifest previousManifest = BackupManifest.load(manifestFile);
+        RegionTimestamps regionTimestamps = new RegionTimestamps();
+        if (previousManifest == null || previousManifest.getBackupsSinceFull() + 1 >= fullBackupInterval) {
+            logger.info(intl("local-backup-full"));
+            BackupManifest manifest = new BackupManifest(0);
+            for (String file : files) {
+                recordRegionTimestamps(regionTimestamps, location, snapshot, file);
+            }
+            zipIt(location, snapshot, path.getPath() + "/" + archiveName, scannedFiles, Collections.emptyList(), manifest, Collections.emptyMap(), compressionLevel);
+            saveManifest(manifest, manifestFile, files, regionTimestamps, regionTimestampsFile);
+            return;
+        }
+        BackupManifest manifest = new BackupManifest(previousManifest.getBackupsSinceFull() + 1);
+        List<FileScanner.ScannedFile> changedFiles = new ArrayList<>();
+        Set<String> changedFileSet = new HashSet<>();
+        for (FileScanner.ScannedFile scannedFile : scannedFiles) {
+            String file = scannedFile.path;
+            BasicFileAttributes fileAttributes = scannedFile.attributes;
+            long lastModified = fileAttributes.lastModifiedTime().toMillis();
+            if (previousManifest.isUnchanged(file, getSourceFile(location, snapshot, file).getPath(), fileAttributes.size(), lastModified)) {
+                manifest.put(file, new BackupManifest.Entry(fileAttributes.size(), lastModified, previousManifest.get(file).crc));
+            } else {
+                changedFiles.add(scannedFile);
+                changedFileSet.add(file);
+            }
         }
-        zipIt(location, path.getPath() + "/" + fileName, fileList);
+        Set<String> currentFiles = new HashSet<>(files);
+        List<String> deletedFiles = new ArrayList<>();
+        for (String file : previousManifest.getPaths()) {
+            if (!currentFiles.contains(file)) {
+                deletedFiles.add(file);
+            }
+        }
+        logger.info(
+            intl("local-backup-incremental"),
+            "changed-files-count", String.valueOf(changedFiles.size()),
+            "deleted-files-count", String.valueOf(deletedFiles.size()));
+        RegionTimestamps previousRegionTimestamps = RegionTimestamps.load(regionTimestampsFile);
+        Map<String, File> regionDeltas = new HashMap<>();
+        Map<String, Long> regionCrcs = new HashMap<>();
+        try {
+            int changedChunks = 0;
+            for (String file : files) {
+                if (!RegionDelta.isRegionFile(file)) {
+                    continue;
+                }
+                int[] previousTimestamps = previousRegionTimestamps == null ? null : previousRegionTimestamps.get(file);
+                if (previousTimestamps == null || !changedFileSet.contains(file)) {
+                    if (previousTimestamps != null) {
+                        regionTimestamps.put(file, previousTimestamps);
+                    } else {
+                        recordRegionTimestamps(regionTimestamps, location, snapshot, file);
+                    }
+                    continue;
+                }
+                File region = getSourceFile(location, snapshot, file);
+                File regionDelta = File.createTempFile("region", null, path);
+                regionDeltas.put(file, regionDelta);
+                try {
+                    RegionDelta.Result result = RegionDelta.create(region, previousTimestamps, regionDelta);
+                    regionDelta.setLastModified(region.lastModified());
+                    regionTimestamps.put(file, result.timestamps);
+                    regionCrcs.put(file, result.crc);
+                    changedChunks += result.changedChunks;
+                } catch (IOException e) {
+                    // Include the whole region file instead
+                    regionDeltas.remove(file);
+                    regionDelta.delete();
+                }
+            }
+            if (!regionDeltas.isEmpty()) {
+                logger.info(
+                    intl("local-backup-region-deltas"),
+                    "chunk-count", String.valueOf(changedChunks),
+                    "region-count", String.valueOf(regionDeltas.size()));
+            }
+            String extension = ConfigParser.getConfig().backupStorage.archiveFormat.extension;
+            archiveName = archiveName.substring(0, archiveName.length() - extension.length()) + ArchiveFormat.INCREMENTAL_SUFFIX + extension;
+            zipIt(location, snapshot, path.getPath() + "/" + archiveName, changedFiles, deletedFiles, manifest, regionDeltas, compressionLevel);
+            for (Map.Entry<String, Long> regionCrc : regionCrcs.entrySet()) {
+                manifest.setCrc(regionCrc.getKey(), regionCrc.getValue());
+            }
+        } finally {
+            for (File regionDelta : regionDeltas.values()) {
+                regionDelta.delete();
+            }
+        }
+        saveManifest(manifest, manifestFile, files, regionTimestamps, regionTimestampsFile);
+    }
+
+    /**
+     * Records the timestamps of the chunks in the specified file, if it is a region file.
+     * @param regionTimestamps where to record the timestamps
+     * @param location the location of the folder
+     * @param snapshot the snapshot of the folder to read the file from, or {@code null} to read it from the folder itself
+     * @param file the file, relative to the folder
+     */
+    private static void recordRegionTimestamps(RegionTimestamps regionTimestamps, String location, @Nullable LocationSnapshot snapshot, String file) {
+        if (!RegionDelta.isRegionFile(file)) {
+            return;
+        }
+        if (snapshot != null && !snapshot.isCopied(file)) {
+            // The file may have been saved since the snapshot, so its timestamps may be newer than what was backed up
+            return;
+        }
+        try {
+            int[] timestamps = RegionDelta.readTimestamps(getSourceFile(location, snapshot, file));
+            if (timestamps != null) {
+                regionTimestamps.put(file, timestamps);
+            }
+        } catch (IOException e) {
+            // The whole region file is included in the next backup instead
+        }
+    }
+
+    /**
+     * Gets the file to read a file of the specified folder from.
+     * @param location the location of the folder
+     * @param snapshot the snapshot of the folder, or {@code null} to read the file from the folder itself
+     * @param file the file, relative to the folder
+     * @return the file
+     */
+    @NotNull
+    private static File getSourceFile(String location, @Nullable LocationSnapshot snapshot, String file) {
+        return snapshot != null ? snapshot.getFile(file) : new File(location, file);
+    }
+
+    /**
+     * Gets whether the files of a location have to be measured to choose its compression level automatically,
+     * because they never were, the archive format changed, or they were last measured too many backups ago.
+     * @param location the location of the folder
+     * @return whether they have to be measured
+     */
+    private boolean needsCompressionBenchmark(String location) {
+        BackupStorage backupStorage = ConfigParser.getConfig().backupStorage;
+        if (!backupStorage.zipCompressionAuto || history == null || !CompressionBenchmark.isTunable(backupStorage.archiveFormat)) {
+            return false;
+        }
+        BackupHistory.Compression compression = history.getCompression(location);
+        return compression == null
+            || compression.format != backupStorage.archiveFormat
+            || compression.backupsSinceBenchmark + 1 >= COMPRESSION_BENCHMARK_INTERVAL;
+    }
+
+    /**
+     * Gets the compression level to create the backup of a location with.
+     * <p>
+     * If it is chosen automatically, it is the level estimated to create and upload the backup in the least time,
+     * from how a sample of the files compressed at each level, see {@link CompressionBenchmark}, and how fast the uploaders uploaded recently.
+     * The measurements are kept in the history, and reused until the files have to be measured again.
+     * @param location the location of the folder
+     * @param snapshot the snapshot of the folder to read the files from, or {@code null} to read them from the folder itself
+     * @param files the files in the backup, which are only needed if they have to be measured, see {@link #needsCompressionBenchmark(String)}
+     * @return the compression level
+     */
+    private int getCompressionLevel(String location, @Nullable LocationSnapshot snapshot, List<FileScanner.ScannedFile> files) {
+        BackupStorage backupStorage = ConfigParser.getConfig().backupStorage;
+        ArchiveFormat archiveFormat = backupStorage.archiveFormat;
+        if (!backupStorage.zipCompressionAuto || history == null || !CompressionBenchmark.isTunable(archiveFormat)) {
+            return backupStorage.zipCompression;
+        }
+        List<CompressionBenchmark.Measurement> measurements;
+        int backupsSinceBenchmark;
+        if (needsCompressionBenchmark(location)) {
+            logger.info(intl("local-backup-compression-measuring"));
+            List<String> filePaths = new ArrayList<>(files.size());
+            List<Long> sizes = new ArrayList<>(files.size());
+            for (FileScanner.ScannedFile file : files) {
+                // Stored files take as long at every level, so they don't change which level is fastest
+                if (backupStorage.zipStoreIncompressible && archiveFormat == ArchiveFormat.ZIP && CompressionStrategy.hasIncompressibleExtension(file.path)) {
+                    continue;
+                }
+                filePaths.add(getSourceFile(location, snapshot, file.path).getPath());
+                sizes.add(file.attributes.size());
+            }
+            try {
+                measurements = CompressionBenchmark.run(archiveFormat, filePaths, sizes);
+            } catch (IOException e) {
+                MessageUtil.sendConsoleException(e);
+                measurements = Collections.emptyList();
+            }
+            DecimalFormat df = new DecimalFormat("#.##");
+            df.setDecimalFormatSymbols(DecimalFormatSymbols.getInstance(Locale.ENGLISH));
+            for (CompressionBenchmark.Measurement measurement : measurements) {
+                logger.info(
+                    intl("local-backup-compression-measured"),
+                    "level", String.valueOf(measurement.level),
+                    "ratio", df.format(measurement.ratio * 100),
+                    "speed", df.format(measurement.bytesPerSecond / 1024 / 1024));
+            }
+            backupsSinceBenchmark = 0;
+        } else {
+            BackupHistory.Compression previous = history.getCompression(location);
+            measurements = previous.measurements;
+            backupsSinceBenchmark = previous.backupsSinceBenchmark + 1;
+        }
+        if (measurements.isEmpty()) {
+            return backupStorage.zipCompression;
+        }
+        int level;
+        if (uploadRate < 0) {
+            // The measurements are kept, so the level can be chosen once the upload speeds are known
+            level = backupStorage.zipCompression;
+            logger.info(
+                intl("local-backup-compression-no-upload-history"),
+                "level", String.valueOf(level));
+        } else {
+            level = CompressionBenchmark.chooseLevel(measurements, backupStorage.zipCompressionThreads, uploadRate, uploadOverlapped);
+            logger.info(
+                intl("local-backup-compression-level"),
+                "level", String.valueOf(level));
+        }
+        history.putCompression(location, new BackupHistory.Compression(archiveFormat, backupsSinceBenchmark, level, measurements));
+        return level;
+    }
+
+    /**
+     * Adds a snapshot of the specified files to the local repository.
+     * <p>
+     * The backup archive was only needed for uploading, so it is deleted when pruning, see {@link #pruneLocalBackups(String, LocalDateTimeFormatter)}.
+     * @param location the location of the folder
+     * @param repositoryLocation the name of the location in the repository
+     * @param snapshotName the name of the snapshot
+     * @param files the files in the folder, relative to it
+     * @throws IOException if writing to the repository failed
+     */
+    private void addRepositorySnapshot(String location, String repositoryLocation, String snapshotName, List<String> files) throws IOException {
+        BackupStorage backupStorage = ConfigParser.getConfig().backupStorage;
+        File repositoryFolder = new File(backupStorage.localDirectory, ChunkRepository.FOLDER_NAME);
+        ChunkRepository.SnapshotResult result;
+        synchronized (repositoryLock) {
+            try (ChunkRepository repository = ChunkRepository.open(repositoryFolder, backupStorage.zipCompression)) {
+                result = repository.addSnapshot(repositoryLocation, snapshotName, location, files);
+            }
+        }
+        for (String file : result.failedFiles) {
+            // Don't send warning for .lock files, they will always be locked.
+            if (!file.endsWith(".lock")) {
+                logger.info(
+                    intl("local-backup-failed-to-include"),
+                    "file-path", location + "/" + file);
+            }
+        }
+        logger.info(
+            intl("local-repository-snapshot-complete"),
+            "total-size", formatMegabytes(result.totalBytes),
+            "stored-size", formatMegabytes(result.storedBytes));
+    }
+
+    /**
+     * Saves the manifest of an incremental backup and the timestamps of its region files, logging if it fails.
+     * <p>
+     * If the manifest isn't saved, the next incremental backup is based on the previous one,
+     * so it includes the changes already in this backup again, and nothing is missed.
+     * The timestamps of region files which weren't fully backed up aren't saved, so they are included whole in the next backup.
+     * @param manifest the manifest
+     * @param manifestFile the file to save the manifest to
+     * @param files the files in the folder, relative to it
+     * @param regionTimestamps the timestamps of the region files
+     * @param regionTimestampsFile the file to save the timestamps to
+     */
+    private void saveManifest(@NotNull BackupManifest manifest, File manifestFile, List<String> files, RegionTimestamps regionTimestamps, File regionTimestampsFile) {
+        for (String file : files) {
+            BackupManifest.Entry entry = manifest.get(file);
+            if (entry == null || entry.size < 0) {
+                regionTimestamps.remove(file);
+            }
+        }
+        try {
+            regionTimestamps.save(regionTimestampsFile);
+            manifest.save(manifestFile);
+        } catch (IOException e) {
+            logger.log(intl("local-backup-manifest-save-failed"));
+            MessageUtil.sendConsoleException(e);
+        }
+    }
+
+    /**
+     * Formats a number of bytes as megabytes, with up to two decimal places.
+     * @param bytes the number of bytes
+     * @return the formatted number
+     */
+    @NotNull
+    public static String formatMegabytes(long bytes) {
+        DecimalFormat df = new DecimalFormat("#.##");
+        df.setDecimalFormatSymbols(DecimalFormatSymbols.getInstance(Locale.ENGLISH));
+        return df.format(bytes / 1024.0 / 1024.0);
     }
 
     /**
@@ -131,12 +717,16 @@ public class FileUtil {
             location = "root";
         }
         logger.log(intl("local-backup-pruning-start"), "location", location);
+        if (ConfigParser.getConfig().backupStorage.localRepository) {
+            pruneLocalRepository(location, formatter);
+            return;
+        }
         int localKeepCount = ConfigParser.getConfig().backupStorage.localKeepCount;
         if (localKeepCount == -1) {
             logger.info(intl("local-backup-no-limit"));
         } else {
             try {
-                TreeMap<Long, File> backupList = getLocalBackups(location, formatter);
+                TreeMap<Long, List<File>> backupList = getLocalBackups(location, formatter);
                 String size = String.valueOf(backupList.size());
                 String keepCount = String.valueOf(localKeepCount);
                 if (backupList.size() > localKeepCount) {
@@ -149,17 +739,20 @@ public class FileUtil {
                                 "backup-limit", keepCount);
                     return;
                 }
-                while (backupList.size() > localKeepCount) {
-                    File fileToDelete = backupList.descendingMap().lastEntry().getValue();
-                    long dateOfFile = backupList.descendingMap().lastKey();
-                    if (!fileToDelete.delete()) {
-                        logger.log(intl("local-backup-file-failed-to-delete"),
-                                   "local-backup-name", fileToDelete.getName());
-                    } else {
-                        logger.info(intl("local-backup-file-deleted"),
-                                    "local-backup-name", fileToDelete.getName());
+                List<List<File>> backups = new ArrayList<>(backupList.values());
+                for (List<File> filesToDelete : ArchiveFormat.getBackupsToPrune(backups, localKeepCount, File::getName)) {
+                    if (isUploading(filesToDelete)) {
+                        continue;
+                    }
+                    for (File fileToDelete : filesToDelete) {
+                        if (!fileToDelete.delete()) {
+                            logger.log(intl("local-backup-file-failed-to-delete"),
+                                       "local-backup-name", fileToDelete.getName());
+                        } else {
+                            logger.info(intl("local-backup-file-deleted"),
+                                        "local-backup-name", fileToDelete.getName());
+                        }
                     }
-                    backupList.remove(dateOfFile);
                 }
                 logger.log(intl("local-backup-pruning-complete"), "location", location);
             } catch (Exception e) {
@@ -170,146 +763,343 @@ public class FileUtil {
     }
 
     /**
-     * Zips files in the specified folder into the specified file location.
-     * @param inputFolderPath the path of the zip file to create
-     * @param outputFilePath the path of the folder to put it in
-     * @param fileList file to include in the zip
+     * Gets whether any of the files of a backup have an unfinished upload in the {@link UploadJournal},
+     * so the backup is kept to resume the upload, logging it if so.
+     * @param files the files of the backup, or of the backups which are pruned together
+     * @return whether they do
      */
-    private void zipIt(String inputFolderPath, String outputFilePath, BackupFileList fileList) throws Exception {
-        byte[] buffer = new byte[1024];
-        FileOutputStream fileOutputStream;
-        ZipOutputStream zipOutputStream = null;
-        String formattedInputFolderPath = new File(inputFolderPath).getName();
-        if (isBaseFolder(inputFolderPath)) {
-            formattedInputFolderPath = "root";
+    private boolean isUploading(@NotNull List<File> files) {
+        UploadJournal journal = UploadJournal.getJournal();
+        for (File file : files) {
+            if (journal.hasUpload(file)) {
+                logger.info(intl("local-backup-kept-for-upload"), "local-backup-name", file.getName());
+                return true;
+            }
         }
+        return false;
+    }
+
+    /**
+     * Deletes the backup archives in the specified folder, which were only kept for uploading,
+     * and the oldest snapshots of the location in the local repository past the number to retain locally.
+     * <p>
+     * This doesn't free the space used by the snapshots, see {@link #collectRepositoryGarbage()}.
+     * @param location the location of the folder containing the backups
+     * @param formatter the format of the file name
+     */
+    private void pruneLocalRepository(String location, LocalDateTimeFormatter formatter) {
+        BackupStorage backupStorage = ConfigParser.getConfig().backupStorage;
         try {
-            fileOutputStream = new FileOutputStream(outputFilePath);
-            zipOutputStream = new ZipOutputStream(fileOutputStream);
-            zipOutputStream.setLevel(ConfigParser.getConfig().backupStorage.zipCompression);
-            for (String file : fileList.getList()) {
-                ZipEntry entry = new ZipEntry(formattedInputFolderPath + "/" + file);
-                String filePath = inputFolderPath + "/" + file;
-                BasicFileAttributes fileAttributes = null;
-                try {
-                    fileAttributes = Files.readAttributes(Paths.get(filePath), BasicFileAttributes.class);
-                } catch(Exception e) { }
-                if (fileAttributes == null) {
-                    logger.info(
-                        intl("local-backup-failed-attributes"),
-                        "file-path", filePath);
-                } else {
-                    entry.setCreationTime(fileAttributes.creationTime());
-                    entry.setLastAccessTime(fileAttributes.lastAccessTime());
-                    entry.setLastModifiedTime(fileAttributes.lastModifiedTime());
-                    entry.setSize(fileAttributes.size());
+            for (List<File> filesToDelete : getLocalBackups(location, formatter).values()) {
+                if (isUploading(filesToDelete)) {
+                    continue;
                 }
-                zipOutputStream.putNextEntry(entry);
-                try (FileInputStream fileInputStream = new FileInputStream(filePath)){
-                    int len;
-                    while ((len = fileInputStream.read(buffer)) > 0) {
-                        zipOutputStream.write(buffer, 0, len);
-                    }
-                } catch (Exception e) {
-                    // Don't send warning for .lock files, they will always be locked.
-                    if (!filePath.endsWith(".lock")) {
-                        logger.info(
-                            intl("local-backup-failed-to-include"),
-                            "file-path", filePath);
+                for (File fileToDelete : filesToDelete) {
+                    if (!fileToDelete.delete()) {
+                        logger.log(intl("local-backup-file-failed-to-delete"),
+                                   "local-backup-name", fileToDelete.getName());
+                    } else {
+                        logger.info(intl("local-backup-file-deleted"),
+                                    "local-backup-name", fileToDelete.getName());
                     }
                 }
-                zipOutputStream.closeEntry();
             }
-            zipOutputStream.close();
-        } catch (Exception exception) {
-            if (zipOutputStream != null) {
-                zipOutputStream.close();
+            int localKeepCount = backupStorage.localKeepCount;
+            if (localKeepCount == -1) {
+                logger.info(intl("local-backup-no-limit"));
+                return;
             }
-            throw exception; 
+            File repositoryFolder = new File(backupStorage.localDirectory, ChunkRepository.FOLDER_NAME);
+            try (ChunkRepository repository = ChunkRepository.open(repositoryFolder, backupStorage.zipCompression)) {
+                TreeMap<Long, File> snapshots = repository.getSnapshots(location);
+                while (snapshots.size() > localKeepCount) {
+                    File snapshotToDelete = snapshots.pollFirstEntry().getValue();
+                    if (!snapshotToDelete.delete()) {
+                        logger.log(intl("local-backup-file-failed-to-delete"),
+                                   "local-backup-name", snapshotToDelete.getName());
+                    } else {
+                        logger.info(intl("local-backup-file-deleted"),
+                                    "local-backup-name", snapshotToDelete.getName());
+                    }
+                }
+            }
+            logger.log(intl("local-backup-pruning-complete"), "location", location);
+        } catch (Exception e) {
+            logger.log(intl("local-backup-failed-to-delete"));
+            MessageUtil.sendConsoleException(e);
         }
     }
 
     /**
-     * A list of files to put in a zip file
-     * Mutable.
+     * Frees the space used by the chunks in the local repository which no snapshot references anymore.
      */
-    private static class BackupFileList {
-        private int filesInBackupFolder;
-        private List<String> fileList;
-        private List<BlacklistEntry> blacklist;
-        
-        @Contract (pure = true)
-        private BackupFileList(List<BlacklistEntry> blacklist) {
-            this.filesInBackupFolder = 0;
-            this.fileList = new ArrayList<>();
-            this.blacklist = blacklist;
+    public void collectRepositoryGarbage() {
+        BackupStorage backupStorage = ConfigParser.getConfig().backupStorage;
+        File repositoryFolder = new File(backupStorage.localDirectory, ChunkRepository.FOLDER_NAME);
+        try (ChunkRepository repository = ChunkRepository.open(repositoryFolder, backupStorage.zipCompression)) {
+            long freedBytes = repository.collectGarbage();
+            logger.info(
+                intl("local-repository-garbage-collected"),
+                "freed-size", formatMegabytes(freedBytes));
+        } catch (Exception e) {
+            logger.log(intl("local-repository-garbage-collection-failed"));
+            MessageUtil.sendConsoleException(e);
         }
-
-        void incFilesInBackupFolder() {
-            filesInBackupFolder++;
+    }
+    /**
+     * Archives files in the specified folder into the specified file location, in the configured archive format.
+     * @param inputFolderPath the path of the folder to archive
+     * @param snapshot the snapshot of the folder to read the files from, which all the files to include were copied to,
+     *                 or {@code null} to read them from the folder itself
+     * @param outputFilePath the path of the archive to create
+     * @param files the files to include in the archive
+     * @param deletedFiles the files deleted since the last backup, relative to the folder, listed in the archive for incremental backups
+     * @param manifest the manifest to record the included files in, or {@code null} if not making incremental backups
+     * @param regionDeltas the deltas to include instead of the region files they are of, by the path of the region file relative to the folder
+     * @param compressionLevel the compression level
+     */
+    private void zipIt(String inputFolderPath, @Nullable LocationSnapshot snapshot, String outputFilePath, Iterable<FileScanner.ScannedFile> files, List<String> deletedFiles, @Nullable BackupManifest manifest, Map<String, File> regionDeltas, int compressionLevel) throws Exception {
+        BackupStorage backupStorage = ConfigParser.getConfig().backupStorage;
+        String formattedInputFolderPath = new File(inputFolderPath).getName();
+        if (isBaseFolder(inputFolderPath)) {
+            formattedInputFolderPath = "root";
         }
-
-        int getFilesInBackupFolder() {
-            return filesInBackupFolder;
+        String sourceFolderPath = snapshot != null ? snapshot.getFolderPath() : inputFolderPath;
+        int relativePathStart = sourceFolderPath.length() + 1;
+        // The deltas are archived from temporary files, so they are recorded in the manifest under the path of their region file
+        Map<String, String> regionPaths = new HashMap<>();
+        for (Map.Entry<String, File> regionDelta : regionDeltas.entrySet()) {
+            regionPaths.put(regionDelta.getValue().getPath(), regionDelta.getKey());
         }
+        long[] archivedBytes = {0};
+        ArchiveListener listener = new ArchiveListener() {
+            @Override
+            public void fileArchived(String filePath, long size, long crc) {
+                archivedBytes[0] += size;
+                // The CRC-32 of a delta isn't that of its region file, which is recorded once the archive is made
+                if (manifest != null && !regionPaths.containsKey(filePath) && filePath.length() > relativePathStart) {
+                    manifest.setCrc(filePath.substring(relativePathStart), crc);
+                }
+            }
 
-        void appendToList(String file) {
-            fileList.add(file);
+            @Override
+            public void fileNotFullyRead(String filePath) {
+                String regionPath = regionPaths.get(filePath);
+                if (manifest != null && regionPath != null) {
+                    manifest.invalidate(regionPath);
+                } else if (manifest != null && filePath.length() > relativePathStart) {
+                    manifest.invalidate(filePath.substring(relativePathStart));
+                }
+                // Don't send warning for .lock files, they will always be locked.
+                if (!filePath.endsWith(".lock")) {
+                    logger.info(
+                        intl("local-backup-failed-to-include"),
+                        "file-path", filePath);
+                }
+            }
+        };
+        CompressionPacer pacer = null;
+        if (deadline != null) {
+            int startLevel = CompressionPacer.getStartLevel(deadline, compressionLevel);
+            if (startLevel != compressionLevel) {
+                compressionLevel = startLevel;
+                logCompressionLevelLowered(compressionLevel);
+            }
+            long totalBytes = -1;
+            if (files instanceof Collection) {
+                totalBytes = 0;
+                for (FileScanner.ScannedFile file : files) {
+                    totalBytes += file.attributes.size();
+                }
+            }
+            pacer = new CompressionPacer(deadline, compressionLevel, totalBytes, this::getPendingLocationBytes, uploadRate, uploadOverlapped);
         }
-
-        List<String> getList() {
-            return fileList;
+        // Only this archive's stats, as the other archives being created at the same time would skew its pace
+        ArchiveStats stats = new ArchiveStats(archiveStats);
+        int currentLevel = compressionLevel;
+        File deletedFilesList = null;
+        long startTime = System.nanoTime();
+        StreamingUpload streamingUpload = null;
+        VolumeUpload.Backup volumeBackup = null;
+        VolumeOutputStream volumeOutputStream = null;
+        OutputStream outputStream;
+        if (backupStorage.volumeSize > 0) {
+            String type = isBaseFolder(inputFolderPath) ? "root" : inputFolderPath;
+            volumeBackup = volumeUpload != null ? volumeUpload.startBackup(type) : null;
+            VolumeOutputStream.Listener volumeListener = volumeBackup != null ? volumeBackup : (volume, last) -> {};
+            volumeOutputStream = new VolumeOutputStream(new File(outputFilePath), backupStorage.volumeSize, volumeListener);
+            outputStream = volumeOutputStream;
+        } else if (streamingUploaders.isEmpty()) {
+            outputStream = new FileOutputStream(outputFilePath);
+        } else {
+            File outputFile = new File(outputFilePath);
+            String type = isBaseFolder(inputFolderPath) ? "root" : inputFolderPath;
+            streamingUpload = new StreamingUpload(logger, streamingUploaders, outputFile.getName(), type, keepLocalCopy ? outputFile : null);
+            outputStream = streamingUpload.getOutputStream();
         }
-
-        List<BlacklistEntry> getBlacklist() {
-            return blacklist;
+        Archiver completedArchiver;
+        try (OutputStream archiveOutputStream = outputStream;
+             ReadAhead readAhead = new ReadAhead(backupStorage.readAheadFiles, backupStorage.readAheadMemory, backupStorage.threadPriority);
+             Archiver archiver = backupStorage.archiveFormat.createArchiver(
+                 archiveOutputStream,
+                 compressionLevel,
+                 backupStorage.zipCompressionThreads,
+                 backupStorage.threadPriority,
+                 backupStorage.zipStoreIncompressible,
+                 stats,
+                 readAhead,
+                 listener)) {
+            Iterator<FileScanner.ScannedFile> fileIterator = files.iterator();
+            // The files after the one being archived, which are being read ahead
+            Deque<FileScanner.ScannedFile> upcomingFiles = new ArrayDeque<>();
+            while (true) {
+                while (upcomingFiles.size() <= readAhead.getDepth() && fileIterator.hasNext()) {
+                    FileScanner.ScannedFile upcomingFile = fileIterator.next();
+                    upcomingFiles.add(upcomingFile);
+                    if (!regionDeltas.containsKey(upcomingFile.path)) {
+                        readAhead.prefetch(sourceFolderPath + "/" + upcomingFile.path, upcomingFile.attributes.size());
+                    }
+                }
+                FileScanner.ScannedFile scannedFile = upcomingFiles.poll();
+                if (scannedFile == null) {
+                    break;
+                }
+                String file = scannedFile.path;
+                String filePath = sourceFolderPath + "/" + file;
+                BasicFileAttributes fileAttributes = scannedFile.attributes;
+                if (manifest != null) {
+                    manifest.put(file, new BackupManifest.Entry(fileAttributes.size(), fileAttributes.lastModifiedTime().toMillis(), -1));
+                }
+                File regionDelta = regionDeltas.get(file);
+                if (regionDelta != null) {
+                    archiver.addFile(
+                        formattedInputFolderPath + "/" + file + RegionDelta.SUFFIX,
+                        regionDelta.getPath(),
+                        Files.readAttributes(regionDelta.toPath(), BasicFileAttributes.class));
+                } else {
+                    archiver.addFile(formattedInputFolderPath + "/" + file, filePath, fileAttributes);
+                }
+                if (pacer != null) {
+                    int level = pacer.update(archivedBytes[0], stats.getStoredBytes() + stats.getDeflatedCompressedBytes());
+                    if (level != currentLevel) {
+                        if (archiver.setLevel(level)) {
+                            currentLevel = level;
+                            logCompressionLevelLowered(level);
+                        } else {
+                            // The format can't change its level partway through an archive
+                            pacer = null;
+                        }
+                    }
+                }
+            }
+            if (!deletedFiles.isEmpty()) {
+                deletedFilesList = File.createTempFile(BackupManifest.DELETED_FILES_ENTRY, null, new File(outputFilePath).getParentFile());
+                List<String> deletedEntries = new ArrayList<>(deletedFiles.size());
+                for (String file : deletedFiles) {
+                    deletedEntries.add(formattedInputFolderPath + "/" + file);
+                }
+                Files.write(deletedFilesList.toPath(), deletedEntries, StandardCharsets.UTF_8);
+                archiver.addFile(BackupManifest.DELETED_FILES_ENTRY, deletedFilesList.getPath(), null);
+            }
+            completedArchiver = archiver;
+        } catch (Exception e) {
+            if (streamingUpload != null) {
+                streamingUpload.abort(e);
+            }
+            if (volumeBackup != null) {
+                volumeBackup.abort();
+            }
+            throw e;
+        } finally {
+            if (deletedFilesList != null) {
+                deletedFilesList.delete();
+            }
+            if (streamingUpload != null) {
+                streamingUpload.close();
+            }
         }
+        File indexFile = saveIndex(completedArchiver, outputFilePath);
+        if (volumeOutputStream != null) {
+            if (volumeBackup != null && indexFile != null) {
+                volumeBackup.setIndex(indexFile);
+            }
+            // Only once the archive is closed, and so complete, so the last volume isn't uploaded if creating it failed
+            volumeOutputStream.finish();
+        }
+        if (streamingUpload != null && indexFile != null) {
+            uploadIndex(indexFile, isBaseFolder(inputFolderPath) ? "root" : inputFolderPath);
+        }
+        if (history != null) {
+            history.recordLocationSize(inputFolderPath, archivedBytes[0]);
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        DecimalFormat df = new DecimalFormat("#.##");
+        df.setDecimalFormatSymbols(DecimalFormatSymbols.getInstance(Locale.ENGLISH));
+        logger.info(
+            intl("local-backup-read-speed"),
+            "size", formatMegabytes(archivedBytes[0]),
+            "length", df.format(seconds),
+            "speed", df.format(archivedBytes[0] / 1024.0 / 1024.0 / Math.max(seconds, 0.001)));
     }
 
     /**
-     * Generates a list of files to put in the zip created from the specified folder.
-     * @param inputFolderPath The path of the folder to create the zip from
-     * @throws Exception
+     * Saves the index of an archive next to it, see {@link ArchiveIndex}, logging if it fails.
+     * @param archiver the archiver the archive was created with, once it is closed
+     * @param archivePath the path of the archive
+     * @return the index, or {@code null} if the format has no index, or it couldn't be saved
      */
-    @NotNull
-    private BackupFileList generateFileList(String inputFolderPath, List<BlacklistEntry> blacklist) throws Exception {
-        BackupFileList fileList = new BackupFileList(blacklist);
-        generateFileList(new File(inputFolderPath), inputFolderPath, fileList);
-        return fileList;
+    @Nullable
+    private File saveIndex(@NotNull Archiver archiver, String archivePath) {
+        ArchiveIndex index = archiver.getIndex();
+        if (index == null) {
+            return null;
+        }
+        index.setVolumeSize(ConfigParser.getConfig().backupStorage.volumeSize);
+        File indexFile = new File(ArchiveIndex.getIndexName(archivePath));
+        try {
+            index.save(indexFile);
+            return indexFile;
+        } catch (IOException e) {
+            logger.info(intl("local-backup-index-save-failed"));
+            MessageUtil.sendConsoleException(e);
+            indexFile.delete();
+            return null;
+        }
     }
 
     /**
-     * Adds the specified file or folder to the list of files to put in the zip created from the specified folder.
-     * @param file the file or folder to add
-     * @param inputFolderPath the path of the folder to create the zip 
-     * @param fileList the list of files to add the specified file or folder to.
-     * @throws Exception
+     * Uploads the index of a backup uploaded while it was being created to the uploaders it was uploaded to,
+     * deleting it afterwards if the backup isn't saved locally.
+     * @param indexFile the index
+     * @param type the type of file (ex. plugins, world)
      */
-    private void generateFileList(@NotNull File file, String inputFolderPath, BackupFileList fileList) throws Exception {
-        BasicFileAttributes fileAttributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
-        if (fileAttributes.isRegularFile()) {
-            // Verify not backing up previous backups
-            if (file.getCanonicalPath().startsWith(new File(ConfigParser.getConfig().backupStorage.localDirectory).getCanonicalPath())) {
-                fileList.incFilesInBackupFolder();
-                return;
+    private void uploadIndex(@NotNull File indexFile, String type) {
+        for (Uploader uploader : streamingUploaders) {
+            if (uploader.isErrorWhileUploading()) {
+                continue;
             }
-            Path relativePath = Paths.get(inputFolderPath).relativize(file.toPath());
-            for (BlacklistEntry blacklistEntry : fileList.getBlacklist()) {
-                if (blacklistEntry.getPathMatcher().matches(relativePath)) {
-                    blacklistEntry.incBlacklistedFiles();
-
-                    return;
-                }
-            }
-            fileList.appendToList(relativePath.toString());
-        } else if (fileAttributes.isDirectory()) {
-            for (String filename : file.list()) {
-                generateFileList(new File(file, filename), inputFolderPath, fileList);
+            try {
+                uploader.uploadFile(indexFile, type);
+            } catch (Exception e) {
+                MessageUtil.sendConsoleException(e);
             }
+        }
+        if (!keepLocalCopy) {
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Logs that the compression level of the rest of a backup was lowered, as the backup is running late.
+     * @param level the new compression level
+     */
+    private void logCompressionLevelLowered(int level) {
+        if (level == 0) {
+            logger.info(intl("local-backup-compression-deadline-store"));
         } else {
-            logger.info(intl("local-backup-failed-to-include"),
-                "file-path", file.getAbsolutePath()
-                );
+            logger.info(
+                intl("local-backup-compression-deadline"),
+                "level", String.valueOf(level));
         }
     }
 
@@ -0,0 +1,190 @@
+package ratismal.drivebackup.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * A copy of the files of a backup location, made while saving is disabled, which the backup is then created from,
+ * so saving can be enabled again while the backup is being compressed.
+ * <p>
+ * The files are copied rather than hard linked, as the server writes to region files in place, which would change a linked file too.
+ * Files which don't need to be backed up, such as the files which didn't change since the last incremental backup, aren't copied,
+ * and are read from the location if needed.
+ * <p>
+ * The copy is deleted when the snapshot is closed.
+ */
+public class LocationSnapshot implements Closeable {
+    /**
+     * The name of the folder in the local backup folder the snapshots are made in
+     */
+    public static final String FOLDER_NAME = ".snapshots";
+
+    /**
+     * Copying is mostly waiting for the file system, so several files are copied at once
+     */
+    private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    private final String location;
+    private final File folder;
+    private final List<FileScanner.ScannedFile> files;
+    private final Set<String> copiedFiles;
+    private final List<String> failedFiles;
+
+    private LocationSnapshot(String location, File folder, List<FileScanner.ScannedFile> files, Set<String> copiedFiles, List<String> failedFiles) {
+        this.location = location;
+        this.folder = folder;
+        this.files = files;
+        this.copiedFiles = copiedFiles;
+        this.failedFiles = failedFiles;
+    }
+
+    /**
+     * Makes a snapshot of the files found by a scanner, replacing the folder if it already exists.
+     * @param location the location of the folder the scanner walks
+     * @param folder the folder to copy the files to
+     * @param scanner the started scanner, whose files are copied as they are found
+     * @param needsCopy whether a file needs to be copied
+     * @param threadPriority the priority of the copying threads
+     * @return the snapshot
+     * @throws IOException if copying was interrupted, or walking the location failed
+     */
+    @NotNull
+    public static LocationSnapshot make(String location, @NotNull File folder, @NotNull FileScanner scanner, Predicate<FileScanner.ScannedFile> needsCopy, int threadPriority) throws IOException {
+        FileUtil.deleteFolder(folder);
+        Path root = folder.toPath();
+        Path source = new File(location).toPath();
+        Set<String> copiedFiles = ConcurrentHashMap.newKeySet();
+        List<String> failedFiles = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "DriveBackupV2-snapshot-" + threadCount.incrementAndGet());
+            thread.setPriority(threadPriority);
+            return thread;
+        });
+        List<Future<FileScanner.ScannedFile>> copies = new ArrayList<>();
+        try {
+            while (scanner.hasNext()) {
+                FileScanner.ScannedFile file = scanner.next();
+                if (!needsCopy.test(file)) {
+                    copies.add(null);
+                    continue;
+                }
+                copies.add(executor.submit(() -> {
+                    Path copy = root.resolve(file.path);
+                    try {
+                        Files.createDirectories(copy.getParent());
+                        Files.copy(source.resolve(file.path), copy, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                        BasicFileAttributes attributes = Files.readAttributes(copy, BasicFileAttributes.class);
+                        copiedFiles.add(file.path);
+                        return new FileScanner.ScannedFile(file.path, attributes);
+                    } catch (IOException e) {
+                        failedFiles.add(file.path);
+                        return null;
+                    }
+                }));
+            }
+            List<FileScanner.ScannedFile> scannedFiles = scanner.getFiles();
+            List<FileScanner.ScannedFile> files = new ArrayList<>(scannedFiles.size());
+            for (int i = 0; i < scannedFiles.size(); i++) {
+                Future<FileScanner.ScannedFile> copy = copies.get(i);
+                if (copy == null) {
+                    files.add(scannedFiles.get(i));
+                    continue;
+                }
+                FileScanner.ScannedFile copied = copy.get();
+                if (copied != null) {
+                    files.add(copied);
+                }
+            }
+            return new LocationSnapshot(location, folder, files, copiedFiles, failedFiles);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while making a snapshot of " + location);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to make a snapshot of " + location, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Gets the location the snapshot was made of.
+     * @return the location
+     */
+    public String getLocation() {
+        return location;
+    }
+
+    /**
+     * Gets the path of the folder the files were copied to.
+     * @return the path
+     */
+    @NotNull
+    public String getFolderPath() {
+        return folder.getPath();
+    }
+
+    /**
+     * Gets the files in the snapshot, with the attributes of the copies, and of the location for the files which weren't copied.
+     * @return the files
+     */
+    @NotNull
+    public List<FileScanner.ScannedFile> getFiles() {
+        return files;
+    }
+
+    /**
+     * Gets the files which couldn't be copied, and were left out of the snapshot.
+     * @return the files, relative to the location
+     */
+    @NotNull
+    public List<String> getFailedFiles() {
+        return failedFiles;
+    }
+
+    /**
+     * Checks whether a file was copied to the snapshot.
+     * @param path the path of the file, relative to the location
+     * @return whether it was copied
+     */
+    public boolean isCopied(String path) {
+        return copiedFiles.contains(path);
+    }
+
+    /**
+     * Gets the file to read a file of the location from, which is the copy if it was copied.
+     * @param path the path of the file, relative to the location
+     * @return the file
+     */
+    @NotNull
+    public File getFile(String path) {
+        return new File(isCopied(path) ? folder.getPath() : location, path);
+    }
+
+    /**
+     * Deletes the copied files.
+     */
+    @Override
+    public void close() {
+        FileUtil.deleteFolder(folder);
+    }
+}
@@ -1,6 +1,7 @@
 package ratismal.drivebackup.util;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.text.DecimalFormat;
@@ -48,16 +49,37 @@ public class Timer {
      * @return message
      */
     public String getUploadTimeMessage(@NotNull File file) {
+        return getUploadTimeMessage(file.length());
+    }
+
+    /**
+     * Construct an upload message
+     * @param size the number of bytes that were uploaded
+     * @return message
+     */
+    public String getUploadTimeMessage(long size) {
+        return getUploadTimeMessage(size, null);
+    }
+
+    /**
+     * Construct an upload message, with the rate the upload was limited to by the {@link BandwidthLimiter}, if any
+     * @param size the number of bytes that were uploaded
+     * @param uploaderId the id of the backup method they were uploaded to, or {@code null} if not limited
+     * @return message
+     */
+    public String getUploadTimeMessage(long size, @Nullable String uploaderId) {
         DecimalFormat df = new DecimalFormat("#.##");
         df.setDecimalFormatSymbols(DecimalFormatSymbols.getInstance(Locale.ENGLISH));
 
         double difference = getTime();
         double length = difference / 1000;
-        double speed = ( ((double) file.length()) / 1024) / length;
+        double speed = ( ((double) size) / 1024) / length;
+        long limit = uploaderId != null ? BandwidthLimiter.getRate(uploaderId) : 0;
         
-        return intl("file-upload-message")
+        return intl(limit > 0 ? "file-upload-message-limited" : "file-upload-message")
             .replace("<length>", df.format(length))
-            .replace("<speed>", df.format(speed));
+            .replace("<speed>", df.format(speed))
+            .replace("<limit>", df.format(limit / 1024.0));
     }
 
     /**